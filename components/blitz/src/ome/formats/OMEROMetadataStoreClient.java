@@ -31,7 +31,6 @@ import static omero.rtypes.rstring;
 import static omero.rtypes.rtime;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
@@ -62,6 +61,7 @@ import ome.formats.enums.EnumerationProvider;
 import ome.formats.enums.IQueryEnumProvider;
 import ome.formats.importer.ImportEvent;
 import ome.formats.importer.util.ClientKeepAlive;
+import ome.formats.importer.util.OriginalFileUploader;
 import ome.formats.model.BlitzInstanceProvider;
 import ome.formats.model.ChannelProcessor;
 import ome.formats.model.IObjectContainerStore;
@@ -100,6 +100,7 @@ import omero.RString;
 import omero.RTime;
 import omero.ServerError;
 import omero.client;
+import omero.api.AMI_RawPixelsStore_setTile;
 import omero.api.IAdminPrx;
 import omero.api.IContainerPrx;
 import omero.api.IQueryPrx;
@@ -284,6 +285,18 @@ public class OMEROMetadataStoreClient
     /** Current pixels ID we're writing planes for. */
     private Long currentPixId;
 
+    /** Number of files uploaded at once by writeFilesToFileStore. */
+    private int fileUploadThreads = 4;
+
+    /** Number of writes of each file in flight in writeFilesToFileStore. */
+    private int fileUploadWindow = 4;
+
+    /**
+     * Number of the next tile written asynchronously to the current Pixels
+     * set. The server writes the tiles in this order.
+     */
+    private long nextTile;
+
     /** Annotations from the user for use by model processors. */
     private List<Annotation> userSpecifiedAnnotations;
 
@@ -355,6 +368,7 @@ public class OMEROMetadataStoreClient
         {
             rawPixelStore.setPixelsId(pixId, true);
             currentPixId = pixId;
+            nextTile = 0;
         }
     }
 
@@ -1806,7 +1820,11 @@ public class OMEROMetadataStoreClient
     }
 
     /**
-     * Writes binary original file data to the OMERO server.
+     * Writes binary original file data to the OMERO server. Several files
+     * are uploaded at once, each with a window of asynchronous writes in
+     * flight; see {@link #setFileUploadThreads(int)} and
+     * {@link #setFileUploadWindow(int)}. The SHA-1 of each file is computed
+     * while it is uploaded and saved with its original file.
      * @param files Files to populate against an original file list.
      * @param originalFileMap Map of absolute path against original file
      * objects that we are to populate.
@@ -1816,7 +1834,9 @@ public class OMEROMetadataStoreClient
     {
         // Lookup each source file in our hash map and write it to the
         // correct original file object server side.
-        byte[] buf = new byte[1048576];  // 1 MB buffer
+        Map<File, OriginalFile> toUpload =
+            new LinkedHashMap<File, OriginalFile>();
+        Map<File, Long> ids = new LinkedHashMap<File, Long>();
         for (File file : files)
         {
             String path = file.getAbsolutePath();
@@ -1831,41 +1851,60 @@ public class OMEROMetadataStoreClient
                          + file.getAbsolutePath());
                 continue;
             }
+            toUpload.put(file, originalFile);
+            ids.put(file, originalFile.getId().getValue());
+        }
+        if (toUpload.isEmpty())
+        {
+            return;
+        }
 
-            FileInputStream stream = null;
-            try
-            {
-                stream = new FileInputStream(file);
-                rawFileStore.setFileId(originalFile.getId().getValue());
-                int rlen = 0;
-                long offset = 0;
-                while (stream.available() != 0)
-                {
-                    rlen = stream.read(buf);
-                    rawFileStore.write(buf, offset, rlen);
-                    offset += rlen;
-                }
-            }
-            catch (Exception e)
-            {
-                log.error("I/O or server error populating file store.", e);
-                break;
-            }
-            finally
-            {
-                if (stream != null)
-                {
-                    try
-                    {
-                        stream.close();
-                    }
-                    catch (Exception e)
-                    {
-                        log.error("I/O error closing stream.", e);
-                    }
-                }
-            }
+        OriginalFileUploader uploader = new OriginalFileUploader(
+                this, fileUploadThreads, fileUploadWindow);
+        Map<File, String> sha1s = uploader.upload(ids);
+
+        List<OriginalFile> uploaded =
+            new ArrayList<OriginalFile>(sha1s.size());
+        for (Entry<File, String> entry : sha1s.entrySet())
+        {
+            OriginalFile originalFile = toUpload.get(entry.getKey());
+            originalFile.setSha1(toRType(entry.getValue()));
+            uploaded.add(originalFile);
         }
+        updateOriginalFiles(uploaded);
+    }
+
+    /**
+     * Creates a new {@link RawFileStorePrx} with the same call context as
+     * the other services of this store, e.g. for uploading files
+     * concurrently. The caller is responsible for closing it.
+     * @return A new raw file store.
+     * @throws ServerError If the service cannot be created.
+     */
+    public RawFileStorePrx createRawFileStore() throws ServerError
+    {
+        return (RawFileStorePrx) serviceFactory.createRawFileStore()
+            .ice_context(rawFileStore.ice_getContext());
+    }
+
+    /**
+     * Sets the number of files which {@link #writeFilesToFileStore} uploads
+     * at once, each through its own raw file store.
+     * @param fileUploadThreads The number of files; 1 or more.
+     */
+    public void setFileUploadThreads(int fileUploadThreads)
+    {
+        this.fileUploadThreads = Math.max(1, fileUploadThreads);
+    }
+
+    /**
+     * Sets the number of writes of each file which
+     * {@link #writeFilesToFileStore} keeps in flight.
+     * @param fileUploadWindow The number of writes; 1 or more.
+     */
+    public void setFileUploadWindow(int fileUploadWindow)
+    {
+        this.fileUploadWindow = Math.max(1, fileUploadWindow);
     }
 
     /**
@@ -2502,6 +2541,38 @@ public class OMEROMetadataStoreClient
         rawPixelStore.setTile(arrayBuf, z, c, t, x, y, w, h);
     }
 
+    /**
+     * Writes a tile of pixels to the server without waiting for the write to
+     * complete. The tile is numbered so that the server writes the tiles of
+     * a Pixels set in the order in which they were sent, however many are
+     * in flight. The byte array may be reused once this method returns.
+     * @param pixId Pixels set to write to.
+     * @param arrayBuf Byte array containing all pixels for this tile.
+     * @param z Z offset within the Pixels set.
+     * @param c Channel offset within the Pixels set.
+     * @param t Timepoint offset within the Pixels set.
+     * @param x X offset of the tile.
+     * @param y Y offset of the tile.
+     * @param w Width of the tile.
+     * @param h Height of the tile.
+     * @param cb Callback notified once the tile has been written or the
+     * write has failed.
+     * @throws ServerError If there is an error setting the Pixels set of the
+     * store.
+     * @see #setTile(Long, byte[], int, int, int, int, int, int, int)
+     */
+    public void setTileAsync(Long pixId, byte[] arrayBuf, int z, int c, int t,
+                             int x, int y, int w, int h,
+                             AMI_RawPixelsStore_setTile cb)
+        throws ServerError
+    {
+        resetPixelsId(pixId);
+        Map<String, String> ctx =
+            new HashMap<String, String>(rawPixelStore.ice_getContext());
+        ctx.put("omero.tile", Long.toString(nextTile++));
+        rawPixelStore.setTile_async(cb, arrayBuf, z, c, t, x, y, w, h, ctx);
+    }
+
     /**
      * Writes a plane to the server.
      * @param pixId Pixels set to write to.
@@ -2574,6 +2645,30 @@ public class OMEROMetadataStoreClient
         }
     }
 
+    /**
+     * Updates a list of original files, e.g. after their SHA-1 has been set.
+     * @param originalFiles List of original files to update.
+     */
+    public void updateOriginalFiles(List<OriginalFile> originalFiles)
+    {
+        try
+        {
+            List<IObject> objectList =
+                new ArrayList<IObject>(originalFiles.size());
+            for (OriginalFile originalFile : originalFiles)
+            {
+                originalFile.unloadCollections();
+                originalFile.unloadDetails();
+                objectList.add(originalFile);
+            }
+            iUpdate.saveArray(objectList);
+        }
+        catch (ServerError e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * @param in
      * @return
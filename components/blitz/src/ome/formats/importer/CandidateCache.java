@@ -0,0 +1,259 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.formats.importer;
+
+import static omero.rtypes.rint;
+import static omero.rtypes.rstring;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import omero.model.Pixels;
+import omero.model.PixelsI;
+import omero.model.PixelsType;
+import omero.model.PixelsTypeI;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * On-disk cache of what {@link ImportCandidates} learnt from calling
+ * {@link OMEROWrapper#setId(String)} on a file, so that rescanning a
+ * directory, e.g. after a partial import, need not parse the same files
+ * again. An entry is only used while the modification time and length of
+ * the file and the modification times of all its used files are unchanged.
+ *
+ * Only what was read from the file is cached; everything taken from the
+ * {@link ImportConfig} is set again by {@link ImportCandidates}. The cache
+ * is best-effort: should it fail to load or save, the files are simply
+ * parsed again.
+ *
+ * @since 4.4
+ */
+class CandidateCache
+{
+
+    final private static Log log = LogFactory.getLog(CandidateCache.class);
+
+    private static class Entry implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        long lastModified;
+        long length;
+        String format;
+        String[] usedFiles;
+        long[] usedModified;
+        boolean isSPW;
+        int seriesCount;
+        String[] pixelsTypes;
+        int[][] sizes;
+        String[] imageNames;
+    }
+
+    private final File file;
+
+    private final Map<String, Entry> entries;
+
+    private boolean dirty = false;
+
+    /**
+     * Loads the cache stored at the given path.
+     *
+     * @param path
+     *            location of the cache. May be null or empty.
+     * @return null if no path is given. Otherwise a cache which is empty if
+     *         the file does not exist yet or could not be read.
+     */
+    static CandidateCache load(String path)
+    {
+        if (path == null || path.length() == 0)
+        {
+            return null;
+        }
+        return new CandidateCache(new File(path));
+    }
+
+    @SuppressWarnings("unchecked")
+    private CandidateCache(File file)
+    {
+        this.file = file;
+        Map<String, Entry> loaded = null;
+        if (file.exists())
+        {
+            ObjectInputStream ois = null;
+            try
+            {
+                ois = new ObjectInputStream(new BufferedInputStream(
+                        new FileInputStream(file)));
+                loaded = (Map<String, Entry>) ois.readObject();
+            }
+            catch (Exception e)
+            {
+                log.warn("Ignoring unreadable scan cache " + file, e);
+            }
+            finally
+            {
+                if (ois != null)
+                {
+                    try
+                    {
+                        ois.close();
+                    }
+                    catch (IOException e)
+                    {
+                        log.error("I/O error closing stream.", e);
+                    }
+                }
+            }
+        }
+        entries = loaded == null ? new HashMap<String, Entry>() : loaded;
+    }
+
+    /**
+     * Returns a new {@link ImportContainer} with the values read from the
+     * given file when it was last parsed, or null if it has not been parsed
+     * or has changed since.
+     */
+    synchronized ImportContainer get(File f)
+    {
+        Entry entry = entries.get(f.getAbsolutePath());
+        if (entry == null || !f.exists()
+                || entry.lastModified != f.lastModified()
+                || entry.length != f.length())
+        {
+            return null;
+        }
+        for (int i = 0; i < entry.usedFiles.length; i++)
+        {
+            if (entry.usedModified[i]
+                    != new File(entry.usedFiles[i]).lastModified())
+            {
+                return null;
+            }
+        }
+
+        List<Pixels> pixels = new ArrayList<Pixels>();
+        for (int i = 0; i < entry.sizes.length; i++)
+        {
+            Pixels p = new PixelsI();
+            PixelsType pixelsType = new PixelsTypeI();
+            pixelsType.setValue(rstring(entry.pixelsTypes[i]));
+            p.setSizeX(rint(entry.sizes[i][0]));
+            p.setSizeY(rint(entry.sizes[i][1]));
+            p.setSizeZ(rint(entry.sizes[i][2]));
+            p.setSizeC(rint(entry.sizes[i][3]));
+            p.setSizeT(rint(entry.sizes[i][4]));
+            p.setPixelsType(pixelsType);
+            pixels.add(p);
+        }
+
+        ImportContainer ic = new ImportContainer(f, null, null, false, null,
+                entry.format, entry.usedFiles.clone(), entry.isSPW);
+        ic.setBfImageCount(entry.seriesCount);
+        ic.setBfPixels(pixels);
+        ic.setBfImageNames(new ArrayList<String>(
+                Arrays.asList(entry.imageNames)));
+        return ic;
+    }
+
+    /**
+     * Records the values read from the given file.
+     */
+    synchronized void put(File f, ImportContainer ic)
+    {
+        Entry entry = new Entry();
+        entry.lastModified = f.lastModified();
+        entry.length = f.length();
+        entry.format = ic.getReader();
+        entry.usedFiles = ic.getUsedFiles().clone();
+        entry.usedModified = new long[entry.usedFiles.length];
+        for (int i = 0; i < entry.usedFiles.length; i++)
+        {
+            entry.usedModified[i] = new File(entry.usedFiles[i]).lastModified();
+        }
+        entry.isSPW = Boolean.TRUE.equals(ic.getIsSPW());
+        entry.seriesCount = ic.getBfImageCount();
+        List<Pixels> pixels = ic.getBfPixels();
+        entry.pixelsTypes = new String[pixels.size()];
+        entry.sizes = new int[pixels.size()][];
+        for (int i = 0; i < entry.sizes.length; i++)
+        {
+            Pixels p = pixels.get(i);
+            entry.pixelsTypes[i] = p.getPixelsType().getValue().getValue();
+            entry.sizes[i] = new int[] {
+                    p.getSizeX().getValue(), p.getSizeY().getValue(),
+                    p.getSizeZ().getValue(), p.getSizeC().getValue(),
+                    p.getSizeT().getValue() };
+        }
+        entry.imageNames = ic.getBfImageNames().toArray(
+                new String[ic.getBfImageNames().size()]);
+        entries.put(f.getAbsolutePath(), entry);
+        dirty = true;
+    }
+
+    /**
+     * Writes the cache back to disk if any entries were added. The file is
+     * replaced only once the new contents have been written completely.
+     */
+    synchronized void save()
+    {
+        if (!dirty)
+        {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        ObjectOutputStream oos = null;
+        try
+        {
+            oos = new ObjectOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            oos.writeObject(entries);
+            oos.close();
+            oos = null;
+            file.delete();
+            if (!tmp.renameTo(file))
+            {
+                throw new IOException("Could not rename " + tmp);
+            }
+            dirty = false;
+        }
+        catch (IOException e)
+        {
+            log.warn("Could not save scan cache " + file, e);
+        }
+        finally
+        {
+            if (oos != null)
+            {
+                try
+                {
+                    oos.close();
+                }
+                catch (IOException e)
+                {
+                    log.error("I/O error closing stream.", e);
+                }
+                tmp.delete();
+            }
+        }
+    }
+
+}
@@ -12,11 +12,18 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static omero.rtypes.rint;
 import static omero.rtypes.rstring;
@@ -46,6 +53,14 @@ import org.apache.commons.logging.LogFactory;
  * number and members of a given import. This facility permits iterating over a
  * directory.
  *
+ * The directories are walked on the calling thread, while the candidates
+ * which are found are parsed by a pool of {@link #THREADS} threads, each with
+ * its own {@link OMEROWrapper}. The results are consumed in the order in which
+ * the candidates were found, so that the grouping of the used files is the
+ * same as if they had been parsed one after the other. If {@link #CACHE} is
+ * set, what was read from each file is kept on disk and reused on the next
+ * scan as long as the file has not changed.
+ *
  * This class is NOT thread-safe.
  *
  * @since Beta4.1
@@ -120,9 +135,37 @@ public class ImportCandidates extends DirectoryWalker
         MetadataLevel.valueOf(System.getProperty(
                 "omero.import.metadata.level","MINIMUM"));
 
+    /**
+     * Number of threads calling {@link IFormatReader#setId()}. A value of 1
+     * parses each candidate on the calling thread as it is found.
+     */
+    final public static int THREADS = Integer.valueOf(
+            System.getProperty("omero.import.scan.threads",
+                    String.valueOf(Math.min(4,
+                            Runtime.getRuntime().availableProcessors()))));
+
+    /**
+     * Path of the file in which the results of parsing are cached between
+     * scans, or null if they are not cached.
+     */
+    final public static String CACHE =
+        System.getProperty("omero.import.scan.cache");
+
+    /**
+     * Number of candidates per thread which may be parsed ahead of the one
+     * whose result is consumed next.
+     */
+    final private static int LOOKAHEAD = 4;
+
     final private IObserver observer;
     final private OMEROWrapper reader;
-    final private Set<String> allFiles = new HashSet<String>();
+
+    /**
+     * Number of threads parsing the candidates. See {@link #THREADS}.
+     */
+    final private int threads;
+    final private Set<String> allFiles =
+        Collections.synchronizedSet(new HashSet<String>());
     final private Map<String, List<String>> usedBy = new LinkedHashMap<String, List<String>>();
     final private List<ImportContainer> containers = new ArrayList<ImportContainer>();
     final private long start = System.currentTimeMillis();
@@ -160,6 +203,33 @@ public class ImportCandidates extends DirectoryWalker
      */
     boolean cancelled = false;
 
+    /**
+     * Pool parsing the candidates, or null if they are parsed on the calling
+     * thread.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Candidates which have been handed to {@link #executor}, in the order in
+     * which they were found.
+     */
+    final private LinkedList<Future<Scan>> scans = new LinkedList<Future<Scan>>();
+
+    /**
+     * Reader of each thread in {@link #executor}.
+     */
+    final private ThreadLocal<OMEROWrapper> workerReader =
+        new ThreadLocal<OMEROWrapper>();
+
+    /**
+     * Events raised while parsing on a thread in {@link #executor}, which are
+     * passed on to {@link #observer} once the result is consumed.
+     */
+    final private ThreadLocal<List<ImportEvent>> deferred =
+        new ThreadLocal<List<ImportEvent>>();
+
+    private CandidateCache cache;
+
     /**
      * Calls {@link #ImportCandidates(int, OMEROWrapper, String[], IObserver)}
      * with {@link #DEPTH} as the first argument.
@@ -199,10 +269,39 @@ public class ImportCandidates extends DirectoryWalker
      */
     public ImportCandidates(int depth, OMEROWrapper reader, String[] paths,
             IObserver observer)
+    {
+        this(depth, reader, paths, observer, THREADS, CACHE);
+    }
+
+    /**
+     * Constructor which parses the candidates with the given number of
+     * threads rather than {@link #THREADS}, and caches the results in the
+     * given file rather than in {@link #CACHE}.
+     *
+     * @param depth
+     *            number of directory levels to search down.
+     * @param reader
+     *            instance used for parsing each of the paths. Not used once the
+     *            constructor completes.
+     * @param paths
+     *            file paths which are searched. May be directories.
+     * @param observer
+     *            {@link IObserver} which will monitor any exceptions during
+     *            {@link OMEROWrapper#setId(String)}. Otherwise no error
+     *            reporting takes place.
+     * @param threads
+     *            number of threads calling {@link OMEROWrapper#setId(String)}.
+     * @param cachePath
+     *            path of the file in which the results of parsing are
+     *            cached between scans. May be null.
+     */
+    public ImportCandidates(int depth, OMEROWrapper reader, String[] paths,
+            IObserver observer, int threads, String cachePath)
     {
         super(TrueFileFilter.INSTANCE, depth);
         this.reader = reader;
         this.observer = observer;
+        this.threads = threads;
         log.info(String.format("Depth: %s Metadata Level: %s", depth,
                 METADATA_LEVEL));
 
@@ -226,7 +325,13 @@ public class ImportCandidates extends DirectoryWalker
             execute(paths);
             total = count;
             count = 0;
+            cache = CandidateCache.load(cachePath);
+            if (threads > 1)
+            {
+                executor = Executors.newFixedThreadPool(threads);
+            }
             execute(paths);
+            consumeScans(true);
             g = new Groups(usedBy);
             g.parse(containers);
             long totalElapsed = System.currentTimeMillis() - start;
@@ -245,6 +350,18 @@ public class ImportCandidates extends DirectoryWalker
             g = null;
             total = -1;
             count = -1;
+        } finally
+        {
+            if (executor != null)
+            {
+                executor.shutdownNow();
+                executor = null;
+            }
+            scans.clear();
+            if (cache != null)
+            {
+                cache.save();
+            }
         }
 
     }
@@ -400,59 +517,44 @@ public class ImportCandidates extends DirectoryWalker
             return null;
         }
 
+        final OMEROWrapper reader = currentReader();
         String format = null;
         String[] usedFiles = new String[] { path };
         long start = System.currentTimeMillis();
         try {
 
             try {
-                setids++;
                 reader.close();
                 reader.setMetadataStore(new ImageNameMetadataStore());
                 reader.setMetadataOptions(
                         new DefaultMetadataOptions(METADATA_LEVEL));
                 reader.setId(path);
                 format = reader.getFormat();
-                usedFiles = getOrderedFiles();
+                usedFiles = getOrderedFiles(reader);
                 String[] domains = reader.getReader().getDomains();
                 boolean isSPW = Arrays.asList(domains).contains(FormatTools.HCS_DOMAIN);
 
                 ImportContainer ic = new ImportContainer(file, null,
                         null, false, null, format, usedFiles, isSPW);
-                ic.setDoThumbnails(config.doThumbnails.get());
                 ic.setBfImageCount(reader.getSeriesCount());
-                ic.setBfPixels(getPixelsWithDimensions());
-                ic.setBfImageNames(getImageNames());
-                String configImageName = config.imageName.get();
-                if (configImageName == null)
-                {
-                    ic.setCustomImageName(path);
-                }
-                else
-                {
-                    ic.setCustomImageName(configImageName);
-                }
-                ic.setCustomImageDescription(config.imageDescription.get());
-                ic.setCustomPlateName(config.plateName.get());
-                ic.setCustomPlateDescription(config.plateDescription.get());
-                ic.setArchive(config.archiveImage.get());
-                ic.setCustomAnnotationList(config.annotations.get());
-                ic.setUseMetadataFile(config.companionFile.get());
+                ic.setBfPixels(getPixelsWithDimensions(reader));
+                ic.setBfImageNames(getImageNames(reader));
+                configure(ic, path, config);
                 return ic;
             } finally
             {
-                readerTime += (System.currentTimeMillis() - start);
+                recordSetId(System.currentTimeMillis() - start);
                 reader.close();
             }
 
         } catch (UnsupportedCompressionException uce)
         {
-            unknown++;
+            recordUnknown();
             // Handling as UNKNOWN_FORMAT for 4.3.0
             safeUpdate(new ErrorHandler.UNKNOWN_FORMAT(path, uce, this));
         } catch (UnknownFormatException ufe)
         {
-            unknown++;
+            recordUnknown();
             safeUpdate(new ErrorHandler.UNKNOWN_FORMAT(path, ufe, this));
         } catch (MissingLibraryException mle)
         {
@@ -473,11 +575,65 @@ public class ImportCandidates extends DirectoryWalker
 
     }
 
+    /**
+     * Sets the values of an import container which are taken from the
+     * configuration rather than from the file itself.
+     */
+    private void configure(ImportContainer ic, String path, ImportConfig config)
+    {
+        ic.setDoThumbnails(config.doThumbnails.get());
+        String configImageName = config.imageName.get();
+        if (configImageName == null)
+        {
+            ic.setCustomImageName(path);
+        }
+        else
+        {
+            ic.setCustomImageName(configImageName);
+        }
+        ic.setCustomImageDescription(config.imageDescription.get());
+        ic.setCustomPlateName(config.plateName.get());
+        ic.setCustomPlateDescription(config.plateDescription.get());
+        ic.setArchive(config.archiveImage.get());
+        ic.setCustomAnnotationList(config.annotations.get());
+        ic.setUseMetadataFile(config.companionFile.get());
+    }
+
+    /**
+     * Returns the reader to be used by the current thread. Each thread of
+     * {@link #executor} is given its own, as the readers are not thread-safe.
+     */
+    private OMEROWrapper currentReader()
+    {
+        if (executor == null)
+        {
+            return reader;
+        }
+        OMEROWrapper r = workerReader.get();
+        if (r == null)
+        {
+            r = new OMEROWrapper(reader.getConfig());
+            workerReader.set(r);
+        }
+        return r;
+    }
+
+    private synchronized void recordSetId(long elapsed)
+    {
+        setids++;
+        readerTime += elapsed;
+    }
+
+    private synchronized void recordUnknown()
+    {
+        unknown++;
+    }
+
     /**
      * Retrieves Image names for each image that Bio-Formats has detected.
      * @return See A list of Image names, in the order of <i>series</i>.
      */
-    private List<String> getImageNames() {
+    private List<String> getImageNames(OMEROWrapper reader) {
         List<String> toReturn = new ArrayList<String>();
         Map<Integer, String> imageNames = ((ImageNameMetadataStore)
                 reader.getMetadataStore()).getImageNames();
@@ -493,7 +649,7 @@ public class ImportCandidates extends DirectoryWalker
      * @return A list of Pixels objects, in the order of <i>series</i>
      * populated with dimensions X, Y, Z, C and T.
      */
-    private List<Pixels> getPixelsWithDimensions()
+    private List<Pixels> getPixelsWithDimensions(OMEROWrapper reader)
     {
         List<Pixels> toReturn = new ArrayList<Pixels>();
         for (int i = 0; i < reader.getSeriesCount(); i++)
@@ -519,7 +675,7 @@ public class ImportCandidates extends DirectoryWalker
      * used files. All files which can be used to initialize a fileset are
      * returned first.
      */
-    private String[] getOrderedFiles() {
+    private String[] getOrderedFiles(OMEROWrapper reader) {
 
         FileInfo[] infos = reader.getAdvancedUsedFiles(false);
         String[] usedFiles = new String[infos.length];
@@ -557,6 +713,11 @@ public class ImportCandidates extends DirectoryWalker
      * @param event
      */
     private void safeUpdate(ImportEvent event) {
+        List<ImportEvent> events = deferred.get();
+        if (events != null) {
+            events.add(event);
+            return;
+        }
         try {
             observer.update(null, event);
         } catch (Exception ex) {
@@ -599,11 +760,65 @@ public class ImportCandidates extends DirectoryWalker
             return;
         }
 
-        ImportContainer info = singleFile(file, reader.getConfig());
+        Scan scan = new Scan(file);
+        if (executor == null) {
+            consume(scan.call());
+        } else {
+            scans.add(executor.submit(scan));
+            consumeScans(false);
+        }
+    }
+
+    /**
+     * Consumes the results of the candidates handed to {@link #executor} in
+     * the order in which they were found. Unless <code>wait</code> is true,
+     * this stops at the first candidate which is still being parsed as long
+     * as not too many candidates are queued.
+     *
+     * @param wait whether to wait for all candidates to be parsed.
+     */
+    private void consumeScans(boolean wait) {
+        while (!scans.isEmpty()) {
+            Future<Scan> head = scans.getFirst();
+            if (!wait && !head.isDone()
+                    && scans.size() <= threads * LOOKAHEAD) {
+                return;
+            }
+            scans.removeFirst();
+            try {
+                consume(head.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CANCEL();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Records the result of parsing a candidate, unless one of the
+     * candidates consumed before it already uses it, in which case it is
+     * dropped along with any events it raised.
+     *
+     * @param scan
+     */
+    private void consume(Scan scan) {
+        String path = scan.file.getAbsolutePath();
+        if (scan.skipped || allFiles.contains(path)) {
+            return;
+        }
+
+        for (ImportEvent event : scan.events) {
+            safeUpdate(event);
+        }
+
+        ImportContainer info = scan.info;
         if (info == null) {
             return;
         }
 
+        File file = scan.file;
         containers.add(info);
         allFiles.addAll(Arrays.asList(info.getUsedFiles()));
         for (String string : info.getUsedFiles()) {
@@ -616,6 +831,51 @@ public class ImportCandidates extends DirectoryWalker
         }
     }
 
+    /**
+     * Parses a single candidate via {@link ImportCandidates#singleFile(File, ImportConfig)}
+     * or {@link #cache}, holding back any events raised.
+     */
+    private class Scan implements Callable<Scan> {
+
+        final File file;
+        final List<ImportEvent> events = new ArrayList<ImportEvent>();
+        ImportContainer info;
+        boolean skipped = false;
+
+        Scan(File file) {
+            this.file = file;
+        }
+
+        public Scan call() {
+            String path = file.getAbsolutePath();
+            // A candidate already used by a consumed one will be dropped.
+            if (allFiles.contains(path)) {
+                skipped = true;
+                return this;
+            }
+
+            ImportConfig config = reader.getConfig();
+            if (cache != null) {
+                info = cache.get(file);
+                if (info != null) {
+                    configure(info, path, config);
+                    return this;
+                }
+            }
+
+            deferred.set(events);
+            try {
+                info = singleFile(file, config);
+            } finally {
+                deferred.remove();
+            }
+            if (info != null && cache != null) {
+                cache.put(file, info);
+            }
+            return this;
+        }
+    }
+
     /**
      * The {@link Groups} class servers as an algorithm for sorting the usedBy
      * map from the {@link ImportCandidates#walk(File, Collection)} method.
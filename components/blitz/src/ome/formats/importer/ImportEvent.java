@@ -250,6 +250,38 @@ public class ImportEvent {
         }
     }
 
+    /**
+     * Raised after each plane of pixel data has been sent with the throughput
+     * so far and the number of tiles still being written by the server.
+     */
+    public static class PIXELS_THROUGHPUT extends ImportEvent {
+        public final Long pixId;
+        public final long bytes;
+        public final long elapsed;
+        public final double megabytesPerSecond;
+        public final int queueDepth;
+
+        public PIXELS_THROUGHPUT(Long pixId, long bytes, long elapsed,
+                double megabytesPerSecond, int queueDepth) {
+            this.pixId = pixId;
+            this.bytes = bytes;
+            this.elapsed = elapsed;
+            this.megabytesPerSecond = megabytesPerSecond;
+            this.queueDepth = queueDepth;
+        }
+
+        @Override
+        public String toLog() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(super.toLog());
+            sb.append(" ");
+            sb.append(String.format("Pixels: %d Bytes: %d Time: %d ms " +
+                    "MB/s: %.2f Queue: %d", pixId, bytes, elapsed,
+                    megabytesPerSecond, queueDepth));
+            return sb.toString();
+        }
+    }
+
     // count-events
 
     public static class LOADING_IMAGE extends COUNT_EVENT {
@@ -42,6 +42,7 @@ import loci.formats.in.MIASReader;
 import ome.formats.OMEROMetadataStoreClient;
 import ome.formats.OverlayMetadataStore;
 import ome.formats.importer.util.ErrorHandler;
+import ome.formats.importer.util.TileUploader;
 import ome.formats.model.InstanceProvider;
 import ome.util.PixelData;
 import omero.ServerError;
@@ -98,6 +99,9 @@ public class ImportLibrary implements IObservable
     /** Default arraybuf size for planar data transfer. (1MB) */
     public static final int DEFAULT_ARRAYBUF_SIZE = 1048576;
 
+    /** Default number of tiles which are sent but not yet written. */
+    public static final int DEFAULT_TILES_IN_FLIGHT = 4;
+
     private final ArrayList<IObserver> observers = new ArrayList<IObserver>();
 
     private final OMEROMetadataStoreClient store;
@@ -118,6 +122,9 @@ public class ImportLibrary implements IObservable
     /** Maximum plane height. */
     private int maxPlaneHeight;
 
+    /** Maximum number of tiles which are sent but not yet written. */
+    private int tilesInFlight = DEFAULT_TILES_IN_FLIGHT;
+
     /**
      * The library will not close the client instance. The reader will be closed
      * between calls to import.
@@ -189,6 +196,17 @@ public class ImportLibrary implements IObservable
         }
     }
 
+    /**
+     * Sets the maximum number of tiles which are sent to the server but not
+     * yet written while pixel data is imported. The next tile is read while
+     * these are transferred and written.
+     * @param tilesInFlight The maximum number of tiles in flight; 1 or more.
+     */
+    public void setTilesInFlight(int tilesInFlight)
+    {
+        this.tilesInFlight = Math.max(1, tilesInFlight);
+    }
+
     /**
      * Sets the metadata only flag.
      * @param isMetadataOnly Whether or not to perform metadata only imports
@@ -771,9 +789,13 @@ public class ImportLibrary implements IObservable
     }
 
     /**
-     * saves the binary data to the server. After each successful save,
-     * an {@link ImportEvent.IMPORT_STEP} is raised with the number of the
-     * iteration just completed.
+     * saves the binary data to the server. Tiles are sent without waiting for
+     * the previous ones to be written, so that reading from the file overlaps
+     * with the transfer. After each plane has been sent, an
+     * {@link ImportEvent.PIXELS_THROUGHPUT} and an
+     * {@link ImportEvent.IMPORT_STEP} are raised, the latter with the number
+     * of the iteration just completed. All the tiles have been written once
+     * this method returns.
      * @param series
      * @return The SHA1 message digest for the Pixels saved.
      */
@@ -797,6 +819,7 @@ public class ImportLibrary implements IObservable
 
         int planeNo = 1;
         int[] tileSize = store.getTileSize(pixId);
+        TileUploader uploader = new TileUploader(store, tilesInFlight);
         if (log.isDebugEnabled())
         {
             log.debug("Server tile size: " + Arrays.toString(tileSize));
@@ -809,13 +832,22 @@ public class ImportLibrary implements IObservable
                 {
                     writeDataTileBased(
                             pixId, size, z, c, t, tileSize[0], tileSize[1],
-                            bytesPerPixel, fileName, md);
+                            bytesPerPixel, fileName, md, uploader);
+                    notifyObservers(new ImportEvent.PIXELS_THROUGHPUT(
+                            pixId, uploader.getBytes(),
+                            uploader.getElapsedTime(),
+                            uploader.getMegabytesPerSecond(),
+                            uploader.getQueueDepth()));
                     notifyObservers(new ImportEvent.IMPORT_STEP(
                             planeNo, series, reader.getSeriesCount()));
                     planeNo++;
                 }
             }
         }
+        uploader.flush();
+        log.info(String.format("Sent %d bytes of Pixels:%d in %d ms " +
+                "(%.2f MB/s)", uploader.getBytes(), pixId,
+                uploader.getElapsedTime(), uploader.getMegabytesPerSecond()));
         return md;
     }
 
@@ -834,7 +866,8 @@ public class ImportLibrary implements IObservable
      * @param bytesPerPixel Number of bytes per pixel.
      * @param fileName Name of the file.
      * @param md Current Pixels set message digest.
-     * @return The new offset to use for the next plane.
+     * @param uploader Sends the tiles to the server without waiting for
+     * each to be written.
      * @throws FormatException If there is an error reading Pixel data via
      * Bio-Formats.
      * @throws IOException If there is an I/O error reading Pixel data via
@@ -845,7 +878,8 @@ public class ImportLibrary implements IObservable
     private void writeDataTileBased(long pixId, ImportSize size,
                                     int z, int c, int t, int tileWidth,
                                     int tileHeight, int bytesPerPixel,
-                                    String fileName, MessageDigest md)
+                                    String fileName, MessageDigest md,
+                                    TileUploader uploader)
         throws FormatException, IOException, ServerError
     {
         int planeNumber, x, y, w, h;
@@ -895,7 +929,7 @@ public class ImportLibrary implements IObservable
                     // This better not happen. :)
                     throw new RuntimeException(e);
                 }
-                store.setTile(
+                uploader.setTile(
                         pixId, arrayBuf, z, c, t, x, y, w, h);
             }
         }
@@ -0,0 +1,407 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.formats.importer.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import ome.formats.OMEROMetadataStoreClient;
+import omero.ServerError;
+import omero.api.AMI_RawFileStore_write;
+import omero.api.RawFileStorePrx;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Uploads the contents of several files to their original files on the
+ * server at once. Each of a fixed number of threads has its own
+ * {@link RawFileStorePrx} and keeps a bounded window of asynchronous writes
+ * in flight for the file it is uploading. The SHA-1 of each file is computed
+ * as it is read, so that it need not be read again.
+ *
+ * If the connection drops while a file is being uploaded, the upload is
+ * resumed with a new {@link RawFileStorePrx} from the offset before which
+ * every write has been acknowledged. Only the part of the file before that
+ * offset is read again, locally, to complete its SHA-1.
+ *
+ * @since 4.4
+ */
+public class OriginalFileUploader
+{
+    private final static Log log = LogFactory.getLog(OriginalFileUploader.class);
+
+    /** Size of each write. (1MB) */
+    public static final int CHUNK_SIZE = 1048576;
+
+    /** Number of times the upload of a file is resumed after a drop. */
+    public static final int MAX_RESUMES = 2;
+
+    private final OMEROMetadataStoreClient store;
+
+    private final int threads;
+
+    private final int window;
+
+    /** Stores which are not currently in use by an upload. */
+    private final ConcurrentLinkedQueue<RawFileStorePrx> idle =
+        new ConcurrentLinkedQueue<RawFileStorePrx>();
+
+    /** Stores which have been created, all of which are closed at the end. */
+    private final ConcurrentLinkedQueue<RawFileStorePrx> created =
+        new ConcurrentLinkedQueue<RawFileStorePrx>();
+
+    /**
+     * @param store the store from which {@link RawFileStorePrx} are created.
+     * @param threads the number of files uploaded at once.
+     * @param window the number of writes per file which may be in flight.
+     */
+    public OriginalFileUploader(OMEROMetadataStoreClient store, int threads,
+                                int window)
+    {
+        this.store = store;
+        this.threads = Math.max(1, threads);
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Uploads each file to the original file with the given id. Should the
+     * upload of a file fail, the files which have not yet been uploaded are
+     * skipped.
+     * @param files Original file ids by the file to upload to them.
+     * @return The hex encoded SHA-1 of each file which was uploaded.
+     */
+    public Map<File, String> upload(Map<File, Long> files)
+    {
+        Map<File, String> sha1s = new LinkedHashMap<File, String>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            Map<File, Future<String>> futures =
+                new LinkedHashMap<File, Future<String>>();
+            for (Map.Entry<File, Long> entry : files.entrySet())
+            {
+                futures.put(entry.getKey(), executor.submit(
+                        new Upload(entry.getKey(), entry.getValue())));
+            }
+            for (Map.Entry<File, Future<String>> entry : futures.entrySet())
+            {
+                try
+                {
+                    sha1s.put(entry.getKey(), entry.getValue().get());
+                }
+                catch (ExecutionException e)
+                {
+                    log.error("I/O or server error populating file store.",
+                            e.getCause());
+                    break;
+                }
+                catch (InterruptedException e)
+                {
+                    log.error("Interrupted populating file store.", e);
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+            RawFileStorePrx prx;
+            while ((prx = created.poll()) != null)
+            {
+                closeQuietly(prx);
+            }
+        }
+        return sha1s;
+    }
+
+    /**
+     * Whether the upload of a file should be resumed after the given
+     * failure, i.e. whether the connection was dropped.
+     */
+    private static boolean isResumable(Ice.LocalException e)
+    {
+        return e instanceof Ice.SocketException
+            || e instanceof Ice.TimeoutException;
+    }
+
+    /**
+     * Closes a store whose connection may have dropped, logging any failure.
+     */
+    private static void closeQuietly(RawFileStorePrx prx)
+    {
+        try
+        {
+            prx.close();
+        }
+        catch (Exception e)
+        {
+            log.warn("Exception closing " + prx, e);
+        }
+    }
+
+    /**
+     * Uploads a single file, returning its SHA-1.
+     */
+    private class Upload implements Callable<String>
+    {
+        private final File file;
+
+        private final long id;
+
+        /** Offset from which the next attempt starts writing. */
+        private long offset = 0;
+
+        Upload(File file, long id)
+        {
+            this.file = file;
+            this.id = id;
+        }
+
+        public String call() throws Exception
+        {
+            RawFileStorePrx prx = idle.poll();
+            if (prx == null)
+            {
+                prx = store.createRawFileStore();
+                created.add(prx);
+            }
+            try
+            {
+                for (int attempt = 0; ; attempt++)
+                {
+                    Window writes = new Window(prx, offset);
+                    try
+                    {
+                        return send(prx, writes);
+                    }
+                    catch (Ice.LocalException e)
+                    {
+                        if (attempt >= MAX_RESUMES || !isResumable(e))
+                        {
+                            throw e;
+                        }
+                        offset = writes.getResumeOffset();
+                        log.warn(String.format(
+                                "Connection dropped uploading %s; resuming " +
+                                "at offset %d", file, offset), e);
+                        created.remove(prx);
+                        closeQuietly(prx);
+                        prx = null;
+                        prx = store.createRawFileStore();
+                        created.add(prx);
+                    }
+                }
+            }
+            finally
+            {
+                if (prx != null)
+                {
+                    idle.add(prx);
+                }
+            }
+        }
+
+        private String send(RawFileStorePrx prx, Window writes)
+            throws IOException, ServerError
+        {
+            MessageDigest md = sha1();
+            byte[] buf = new byte[CHUNK_SIZE];
+            FileInputStream stream = new FileInputStream(file);
+            try
+            {
+                prx.setFileId(id);
+                long position = 0;
+                int rlen;
+                // Digest whatever was written by a previous attempt.
+                while (position < offset && (rlen = stream.read(buf, 0,
+                        (int) Math.min(buf.length, offset - position))) != -1)
+                {
+                    md.update(buf, 0, rlen);
+                    position += rlen;
+                }
+                while ((rlen = stream.read(buf)) != -1)
+                {
+                    md.update(buf, 0, rlen);
+                    writes.write(buf, position, rlen);
+                    position += rlen;
+                }
+                writes.flush();
+            }
+            finally
+            {
+                try
+                {
+                    stream.close();
+                }
+                catch (IOException e)
+                {
+                    log.error("I/O error closing stream.", e);
+                }
+            }
+            return OMEROMetadataStoreClient.byteArrayToHexString(md.digest());
+        }
+    }
+
+    /**
+     * The asynchronous writes of one attempt at uploading a file.
+     */
+    private class Window
+    {
+        private final RawFileStorePrx prx;
+
+        private final Semaphore slots = new Semaphore(window);
+
+        /** Positions of the writes which have not been acknowledged. */
+        private final SortedSet<Long> pending = new TreeSet<Long>();
+
+        /** Position after the last write sent. */
+        private long sent;
+
+        private volatile Exception failure;
+
+        Window(RawFileStorePrx prx, long offset)
+        {
+            this.prx = prx;
+            this.sent = offset;
+        }
+
+        void write(byte[] buf, long position, int length) throws ServerError
+        {
+            slots.acquireUninterruptibly();
+            if (failure != null)
+            {
+                slots.release();
+                flush();
+            }
+            synchronized (pending)
+            {
+                pending.add(position);
+                sent = position + length;
+            }
+            try
+            {
+                prx.write_async(new Callback(this, position), buf, position,
+                        length);
+            }
+            catch (RuntimeException e)
+            {
+                slots.release();
+                throw e;
+            }
+        }
+
+        /**
+         * Waits for all writes in flight and throws the first failure.
+         */
+        void flush() throws ServerError
+        {
+            slots.acquireUninterruptibly(window);
+            slots.release(window);
+            Exception e = failure;
+            if (e instanceof ServerError)
+            {
+                throw (ServerError) e;
+            }
+            else if (e instanceof RuntimeException)
+            {
+                throw (RuntimeException) e;
+            }
+            else if (e != null)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Returns the offset before which every write has been acknowledged.
+         */
+        long getResumeOffset()
+        {
+            synchronized (pending)
+            {
+                return pending.isEmpty() ? sent : pending.first();
+            }
+        }
+
+        void done(long position, Exception e)
+        {
+            if (e == null)
+            {
+                synchronized (pending)
+                {
+                    pending.remove(position);
+                }
+            }
+            else if (failure == null)
+            {
+                failure = e;
+            }
+            slots.release();
+        }
+    }
+
+    private static class Callback extends AMI_RawFileStore_write
+    {
+        private final Window writes;
+
+        private final long position;
+
+        Callback(Window writes, long position)
+        {
+            this.writes = writes;
+            this.position = position;
+        }
+
+        @Override
+        public void ice_response()
+        {
+            writes.done(position, null);
+        }
+
+        @Override
+        public void ice_exception(Ice.LocalException ex)
+        {
+            writes.done(position, ex);
+        }
+
+        @Override
+        public void ice_exception(Ice.UserException ex)
+        {
+            writes.done(position, ex);
+        }
+    }
+
+    private static MessageDigest sha1()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(
+                "Required SHA-1 message digest algorithm unavailable.");
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.formats.importer.util;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import ome.formats.OMEROMetadataStoreClient;
+import omero.InternalException;
+import omero.ServerError;
+import omero.api.AMI_RawPixelsStore_setTile;
+
+/**
+ * Sends the tiles of a Pixels set to the server asynchronously, keeping a
+ * bounded number of setTile calls in flight. While those calls transfer and
+ * write their tiles, the calling thread reads and decodes the next tile.
+ * The server writes the tiles in the order in which they were sent.
+ *
+ * A failed write is reported by the next call to
+ * {@link #setTile(Long, byte[], int, int, int, int, int, int, int)} or
+ * {@link #flush()}, after which no further tiles are sent. So is a write
+ * which is not answered within the timeout, e.g. because the server is
+ * still waiting for a tile sent before it.
+ *
+ * @since 4.4
+ */
+public class TileUploader
+{
+    /** Default number of milliseconds to wait for a tile to be written. */
+    public final static long DEFAULT_TIMEOUT = 5 * 60 * 1000L;
+
+    private final OMEROMetadataStoreClient store;
+
+    private final int maxInFlight;
+
+    private final long timeout;
+
+    /** One permit per tile which may still be sent. */
+    private final Semaphore slots;
+
+    private final long started = System.currentTimeMillis();
+
+    private volatile Exception failure;
+
+    private long bytes;
+
+    /**
+     * @param store the store to send the tiles through.
+     * @param maxInFlight the maximum number of tiles sent but not yet
+     * written. A value of 1 leaves no more than one tile in flight, which
+     * still overlaps reading the next tile with writing the last one.
+     */
+    public TileUploader(OMEROMetadataStoreClient store, int maxInFlight)
+    {
+        this(store, maxInFlight, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param store the store to send the tiles through.
+     * @param maxInFlight the maximum number of tiles sent but not yet
+     * written.
+     * @param timeout the number of milliseconds to wait for a slot to free
+     * up, or for all the tiles in flight to be written, before failing.
+     */
+    public TileUploader(OMEROMetadataStoreClient store, int maxInFlight,
+                        long timeout)
+    {
+        this.store = store;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.timeout = timeout;
+        this.slots = new Semaphore(this.maxInFlight);
+    }
+
+    /**
+     * Sends a tile once fewer than the maximum number of tiles are in
+     * flight. The byte array may be reused once this method returns.
+     * @throws ServerError If writing a previous tile failed, or no slot
+     * freed up within the timeout.
+     * @see OMEROMetadataStoreClient#setTileAsync
+     */
+    public void setTile(Long pixId, byte[] arrayBuf, int z, int c, int t,
+                        int x, int y, int w, int h)
+        throws ServerError
+    {
+        acquire(1);
+        try
+        {
+            checkFailure();
+            store.setTileAsync(pixId, arrayBuf, z, c, t, x, y, w, h,
+                    new Callback());
+            bytes += arrayBuf.length;
+        }
+        catch (ServerError e)
+        {
+            slots.release();
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            slots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for all the tiles in flight to be written.
+     * @throws ServerError If writing any of the tiles failed, or they were
+     * not all written within the timeout.
+     */
+    public void flush() throws ServerError
+    {
+        acquire(maxInFlight);
+        slots.release(maxInFlight);
+        checkFailure();
+    }
+
+    /**
+     * Returns the number of tiles sent but not yet written.
+     */
+    public int getQueueDepth()
+    {
+        return maxInFlight - slots.availablePermits();
+    }
+
+    /**
+     * Returns the number of bytes sent so far.
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of milliseconds since this instance was created.
+     */
+    public long getElapsedTime()
+    {
+        return System.currentTimeMillis() - started;
+    }
+
+    /**
+     * Returns the number of megabytes sent per second so far.
+     */
+    public double getMegabytesPerSecond()
+    {
+        long elapsed = Math.max(1, getElapsedTime());
+        return (bytes / 1048576.0) / (elapsed / 1000.0);
+    }
+
+    /**
+     * Takes the given number of slots, recording and throwing a failure if
+     * they do not free up within the timeout. Once failed, the uploader
+     * does not wait again.
+     */
+    private void acquire(int permits) throws ServerError
+    {
+        checkFailure();
+        boolean acquired;
+        try
+        {
+            acquired = slots.tryAcquire(permits, timeout,
+                    TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            fail(new InternalException(null, null,
+                    "Interrupted waiting for tiles to be written"));
+            acquired = false;
+        }
+        if (!acquired)
+        {
+            fail(new InternalException(null, null, "Timed out after "
+                    + timeout + " ms waiting for "
+                    + getQueueDepth() + " tile(s) to be written"));
+            checkFailure();
+        }
+    }
+
+    private void fail(Exception ex)
+    {
+        synchronized (slots)
+        {
+            if (failure == null)
+            {
+                failure = ex;
+            }
+        }
+    }
+
+    private void checkFailure() throws ServerError
+    {
+        Exception e = failure;
+        if (e == null)
+        {
+            return;
+        }
+        if (e instanceof ServerError)
+        {
+            throw (ServerError) e;
+        }
+        if (e instanceof RuntimeException)
+        {
+            throw (RuntimeException) e;
+        }
+        throw new RuntimeException(e);
+    }
+
+    /**
+     * Frees the slot of a tile once it has been written, recording the first
+     * failure.
+     */
+    private class Callback extends AMI_RawPixelsStore_setTile
+    {
+        @Override
+        public void ice_response()
+        {
+            slots.release();
+        }
+
+        @Override
+        public void ice_exception(Ice.LocalException ex)
+        {
+            failed(ex);
+        }
+
+        @Override
+        public void ice_exception(Ice.UserException ex)
+        {
+            failed(ex);
+        }
+
+        private void failed(Exception ex)
+        {
+            fail(ex);
+            slots.release();
+        }
+    }
+}
@@ -48,6 +48,14 @@ import Ice.TieBase;
 public class RawFileStoreI extends AbstractAmdServant implements
 _RawFileStoreOperations, ServiceFactoryAware, TieAware {
 
+    /**
+     * Key of the {@link Current#ctx context} entry in which a client can pass
+     * the hex encoded SHA-1 of the file it has written when calling save.
+     * If the SHA-1 calculated by the server differs, save fails with a
+     * {@link omero.ResourceError}.
+     */
+    public final static String CLIENT_SHA1 = "omero.sha1";
+
     private ServiceFactoryI sf;
 
     private _RawFileStoreTie tie;
@@ -118,9 +126,31 @@ _RawFileStoreOperations, ServiceFactoryAware, TieAware {
 
     }
 
-    public void save_async(AMD_RawFileStore_save __cb, Current __current)
-            throws ServerError {
-        callInvokerOnRawArgs(__cb, __current);
+    public void save_async(final AMD_RawFileStore_save __cb,
+            Current __current) throws ServerError {
+        final String expected = __current.ctx == null ? null
+                : __current.ctx.get(CLIENT_SHA1);
+        if (expected == null) {
+            callInvokerOnRawArgs(__cb, __current);
+            return;
+        }
+        callInvokerOnRawArgs(new AMD_RawFileStore_save() {
+            public void ice_response(OriginalFile file) {
+                String actual = (file == null || file.getSha1() == null) ? null
+                        : file.getSha1().getValue();
+                if (actual != null && !actual.equalsIgnoreCase(expected)) {
+                    __cb.ice_exception(new omero.ResourceError(null, null,
+                            String.format("SHA-1 mismatch for OriginalFile:%s: "
+                                    + "client=%s server=%s", file.getId()
+                                    .getValue(), expected, actual)));
+                } else {
+                    __cb.ice_response(file);
+                }
+            }
+            public void ice_exception(Exception ex) {
+                __cb.ice_exception(ex);
+            }
+        }, __current);
     }
 
     public boolean __redirect(final long fileId, final _RawFileStoreTie rfsTie,
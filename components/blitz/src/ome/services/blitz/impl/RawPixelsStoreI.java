@@ -11,6 +11,8 @@ import java.util.List;
 
 import ome.api.RawPixelsStore;
 import ome.services.blitz.util.BlitzExecutor;
+import ome.services.blitz.util.TileSequencer;
+import omero.ApiUsageException;
 import omero.ServerError;
 import omero.api.AMD_RawPixelsStore_calculateMessageDigest;
 import omero.api.AMD_RawPixelsStore_getByteWidth;
@@ -57,6 +59,21 @@ import Ice.Current;
 public class RawPixelsStoreI extends AbstractPyramidServant implements
         _RawPixelsStoreOperations {
 
+    /**
+     * Key of the {@link Current#ctx context} entry with which clients number
+     * the tiles they send asynchronously, starting from 0 after each call to
+     * {@link #setPixelsId_async}. Numbered tiles are written in that order,
+     * whatever the order in which Ice dispatches them.
+     */
+    public final static String TILE_SEQUENCE = "omero.tile";
+
+    /**
+     * Writes the numbered tiles in order. Tiles still queued when the
+     * Pixels set is changed or the store is closed are refused, so that no
+     * response stays deferred.
+     */
+    private final TileSequencer tiles = new TileSequencer();
+
     public RawPixelsStoreI(RawPixelsStore service, BlitzExecutor be) {
         super(service, be);
     }
@@ -190,6 +207,8 @@ public class RawPixelsStoreI extends AbstractPyramidServant implements
 
     public void setPixelsId_async(AMD_RawPixelsStore_setPixelsId __cb,
             long pixelsId, boolean bypassOriginalFile, Current __current) throws ServerError {
+        tiles.reset("Pixels set changed before the tiles before this one "
+                + "were received.");
         callInvokerOnRawArgs(__cb, __current, pixelsId, bypassOriginalFile);
 
     }
@@ -261,10 +280,36 @@ public class RawPixelsStoreI extends AbstractPyramidServant implements
     /* (non-Javadoc)
      * @see omero.api._RawPixelsStoreOperations#setTile_async(omero.api.AMD_RawPixelsStore_setTile, byte[], int, int, int, int, int, int, int, Ice.Current)
      */
-    public void setTile_async(AMD_RawPixelsStore_setTile __cb, byte[] buf, int z, int c,
-            int t, int x, int y, int w, int h, Current __current)
+    public void setTile_async(final AMD_RawPixelsStore_setTile __cb,
+            final byte[] buf, final int z, final int c, final int t,
+            final int x, final int y, final int w, final int h,
+            final Current __current)
             throws ServerError
     {
-        callInvokerOnRawArgs(__cb, __current, buf, z, c, t, x, y, w, h);
+        String seq = __current.ctx == null ? null
+                : __current.ctx.get(TILE_SEQUENCE);
+        if (seq == null) {
+            callInvokerOnRawArgs(__cb, __current, buf, z, c, t, x, y, w, h);
+            return;
+        }
+        tiles.write(Long.valueOf(seq), new TileSequencer.Tile() {
+            public void run() {
+                try {
+                    callInvokerOnRawArgs(__cb, __current, buf, z, c, t, x, y,
+                            w, h);
+                } catch (RuntimeException re) {
+                    __cb.ice_exception(re);
+                }
+            }
+            public void refuse(String reason) {
+                __cb.ice_exception(new ApiUsageException(null, null, reason));
+            }
+        });
+    }
+
+    @Override
+    protected void preClose(Ice.Current current) throws Throwable {
+        tiles.reset("Store closed before the tiles before this one were "
+                + "received.");
     }
 }
@@ -52,6 +52,14 @@ public class RequestObjectFactoryRegistry extends
                 return new SaveI();
             }
 
+        });
+        factories.put(ResetDefaultsInSetI.ice_staticId(), new ObjectFactory(
+                ResetDefaultsInSetI.ice_staticId()) {
+            @Override
+            public Ice.Object create(String name) {
+                return new ResetDefaultsInSetI();
+            }
+
         });
         return factories;
     }
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2012 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.blitz.impl.commands;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ome.api.IRenderingSettings;
+import ome.model.IObject;
+import ome.model.containers.Dataset;
+import ome.model.containers.Project;
+import ome.model.core.Image;
+import ome.model.core.Pixels;
+import ome.model.screen.Plate;
+import ome.model.screen.PlateAcquisition;
+import ome.model.screen.Screen;
+import ome.parameters.Parameters;
+import omero.api.ResetDefaultsInSet;
+import omero.api.ResetDefaultsInSetRsp;
+import omero.cmd.ERR;
+import omero.cmd.Helper;
+import omero.cmd.IRequest;
+import omero.cmd.Response;
+import omero.util.IceMapper;
+
+/**
+ * Resets the rendering settings of the images in a set of containers. The
+ * pixels sets of the containers are looked up on initialization and reset
+ * {@link #BATCH_SIZE} per step, so that the progress of resetting even a
+ * single large container can be followed.
+ *
+ * @since 4.4.0
+ */
+public class ResetDefaultsInSetI extends ResetDefaultsInSet implements
+        IRequest {
+
+    private static final long serialVersionUID = -8132759307164413742L;
+
+    /** The number of pixels sets reset per step. */
+    public static final int BATCH_SIZE = 10;
+
+    /** Queries for the ids of the pixels sets in each type of container. */
+    private static final Map<Class<?>, String> QUERIES =
+        new HashMap<Class<?>, String>();
+
+    static {
+        QUERIES.put(Project.class, "select distinct pix.id from Pixels pix "
+                + "join pix.image i join i.datasetLinks dil "
+                + "join dil.parent d join d.projectLinks pdl "
+                + "where pdl.parent.id in (:ids) order by pix.id");
+        QUERIES.put(Dataset.class, "select distinct pix.id from Pixels pix "
+                + "join pix.image i join i.datasetLinks dil "
+                + "where dil.parent.id in (:ids) order by pix.id");
+        QUERIES.put(Screen.class, "select distinct pix.id from Pixels pix "
+                + "join pix.image i join i.wellSamples s join s.well w "
+                + "join w.plate p join p.screenLinks spl "
+                + "where spl.parent.id in (:ids) order by pix.id");
+        QUERIES.put(Plate.class, "select distinct pix.id from Pixels pix "
+                + "join pix.image i join i.wellSamples s join s.well w "
+                + "where w.plate.id in (:ids) order by pix.id");
+        QUERIES.put(PlateAcquisition.class, "select distinct pix.id "
+                + "from Pixels pix join pix.image i join i.wellSamples s "
+                + "where s.plateAcquisition.id in (:ids) order by pix.id");
+        QUERIES.put(Image.class, "select distinct pix.id from Pixels pix "
+                + "where pix.image.id in (:ids) order by pix.id");
+        QUERIES.put(Pixels.class, "select distinct pix.id from Pixels pix "
+                + "where pix.id in (:ids) order by pix.id");
+    }
+
+    private Helper helper;
+
+    /** The ids of the pixels sets to reset, in order. */
+    private final List<Long> pixelsIds = new ArrayList<Long>();
+
+    /** The ids of the images reset by the steps built so far. */
+    private final List<Long> imageIds = new ArrayList<Long>();
+
+    public Map<String, String> getCallContext() {
+        return null;
+    }
+
+    public void init(Helper helper) {
+        this.helper = helper;
+        Class<? extends IObject> klass;
+        try {
+            klass = IceMapper.omeroClass(this.type, true);
+        } catch (omero.ApiUsageException e) {
+            throw helper.cancel(new ERR(), e, "bad-type", "type", this.type);
+        }
+        String query = QUERIES.get(klass);
+        if (query == null) {
+            throw helper.cancel(new ERR(), null, "bad-type", "type",
+                    this.type);
+        }
+        if (this.nodeIds != null && !this.nodeIds.isEmpty()) {
+            List<Object[]> rows = helper.getServiceFactory()
+                    .getQueryService().projection(query,
+                            new Parameters().addIds(this.nodeIds));
+            for (Object[] row : rows) {
+                pixelsIds.add((Long) row[0]);
+            }
+        }
+        // A container without pixels sets still takes one, empty, step so
+        // that it gets an empty response rather than being cancelled.
+        this.helper.setSteps(Math.max(1,
+                (pixelsIds.size() + BATCH_SIZE - 1) / BATCH_SIZE));
+    }
+
+    public Object step(int step) {
+        helper.assertStep(step);
+        if (pixelsIds.isEmpty()) {
+            return Collections.<Long>emptySet();
+        }
+        int start = step * BATCH_SIZE;
+        List<Long> batch = pixelsIds.subList(start,
+                Math.min(start + BATCH_SIZE, pixelsIds.size()));
+        try {
+            IRenderingSettings settings =
+                helper.getServiceFactory().getRenderingSettingsService();
+            helper.info("resetDefaultsInSet(Pixels, %s..%s)", batch.get(0),
+                    batch.get(batch.size() - 1));
+            return settings.resetDefaultsInSet(Pixels.class,
+                    new HashSet<Long>(batch));
+        }
+        catch (Throwable t) {
+            throw helper.cancel(new ERR(), t, "failed", "type", this.type,
+                    "pixels", String.format("%s", batch));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void buildResponse(int step, Object object) {
+        helper.assertResponse(step);
+        imageIds.addAll((Set<Long>) object);
+        if (helper.isLast(step)) {
+            helper.setResponseIfNull(new ResetDefaultsInSetRsp(
+                    new ArrayList<Long>(imageIds)));
+        }
+    }
+
+    public Response getResponse() {
+        return helper.getResponse();
+    }
+}
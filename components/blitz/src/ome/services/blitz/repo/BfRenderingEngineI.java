@@ -24,9 +24,11 @@ import omero.api.AMD_RenderingEngine_getChannelNoiseReduction;
 import omero.api.AMD_RenderingEngine_getChannelStats;
 import omero.api.AMD_RenderingEngine_getChannelWindowEnd;
 import omero.api.AMD_RenderingEngine_getChannelWindowStart;
+import omero.api.AMD_RenderingEngine_getCompressionFormat;
 import omero.api.AMD_RenderingEngine_getCompressionLevel;
 import omero.api.AMD_RenderingEngine_getDefaultT;
 import omero.api.AMD_RenderingEngine_getDefaultZ;
+import omero.api.AMD_RenderingEngine_getHistogram;
 import omero.api.AMD_RenderingEngine_getModel;
 import omero.api.AMD_RenderingEngine_getPixels;
 import omero.api.AMD_RenderingEngine_getPixelsTypeLowerBound;
@@ -53,6 +55,7 @@ import omero.api.AMD_RenderingEngine_saveCurrentSettings;
 import omero.api.AMD_RenderingEngine_setActive;
 import omero.api.AMD_RenderingEngine_setChannelWindow;
 import omero.api.AMD_RenderingEngine_setCodomainInterval;
+import omero.api.AMD_RenderingEngine_setCompressionFormat;
 import omero.api.AMD_RenderingEngine_setCompressionLevel;
 import omero.api.AMD_RenderingEngine_setDefaultT;
 import omero.api.AMD_RenderingEngine_setDefaultZ;
@@ -151,6 +154,13 @@ public class BfRenderingEngineI extends _RenderingEngineDisp {
 
     }
 
+    public void getCompressionFormat_async(
+            AMD_RenderingEngine_getCompressionFormat __cb, Current __current)
+            throws ServerError {
+        // TODO Auto-generated method stub
+
+    }
+
     public void getCompressionLevel_async(
             AMD_RenderingEngine_getCompressionLevel __cb, Current __current)
             throws ServerError {
@@ -170,6 +180,13 @@ public class BfRenderingEngineI extends _RenderingEngineDisp {
 
     }
 
+    public void getHistogram_async(AMD_RenderingEngine_getHistogram __cb,
+            int w, int binCount, PlaneDef pd, boolean wholeStack,
+            Current __current) throws ServerError {
+        // TODO Auto-generated method stub
+
+    }
+
     public void getModel_async(AMD_RenderingEngine_getModel __cb,
             Current __current) throws ServerError {
         // TODO Auto-generated method stub
@@ -344,6 +361,13 @@ public class BfRenderingEngineI extends _RenderingEngineDisp {
 
     }
 
+    public void setCompressionFormat_async(
+            AMD_RenderingEngine_setCompressionFormat __cb, String format,
+            Current __current) throws ServerError {
+        // TODO Auto-generated method stub
+
+    }
+
     public void setCompressionLevel_async(
             AMD_RenderingEngine_setCompressionLevel __cb, float percentage,
             Current __current) throws ServerError {
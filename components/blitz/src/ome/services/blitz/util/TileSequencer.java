@@ -0,0 +1,135 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.blitz.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes numbered tiles in the order of their numbers, starting from 0,
+ * whatever the order in which they arrive. A tile which arrives early is
+ * queued and then written by the thread which writes the tile before it, so
+ * that no thread waits on another. Tiles which have already been written or
+ * are being written, e.g. when Ice retries an idempotent call, are written
+ * again straight away. A tile which arrives while another with the same
+ * number is still queued replaces it, and the replaced tile is refused.
+ *
+ * Queued tiles wait for as long as a number is missing. They are only
+ * refused by {@link #reset(String)}, which also restarts the numbering.
+ *
+ * @since 4.4
+ * @see ome.services.blitz.impl.RawPixelsStoreI
+ */
+public class TileSequencer {
+
+    /**
+     * A numbered write. {@link #run()} must answer the caller itself and
+     * must not throw.
+     */
+    public interface Tile extends Runnable {
+
+        /**
+         * Called instead of {@link #run()} if the tile will not be written.
+         */
+        void refuse(String reason);
+
+    }
+
+    /** Tiles which have been received but not yet written, by number. */
+    private final Map<Long, Tile> queued = new HashMap<Long, Tile>();
+
+    /** Number of the next tile to be written. */
+    private long next = 0;
+
+    /**
+     * Whether a thread is writing queued tiles, in which case tile
+     * {@link #next} is the one being written.
+     */
+    private boolean writing = false;
+
+    /**
+     * Incremented by {@link #reset(String)} so that a thread still writing
+     * the tiles from before stops once done with its current tile.
+     */
+    private int generation = 0;
+
+    /**
+     * Writes the tile now if all the tiles before it have been written, and
+     * then any queued tiles which follow it. Otherwise queues the tile.
+     */
+    public void write(long number, Tile tile) {
+        final Tile replaced;
+        final boolean again;
+        final int gen;
+        synchronized (this) {
+            gen = generation;
+            again = number < next || (writing && number == next);
+            if (again) {
+                replaced = null;
+            } else {
+                replaced = queued.put(number, tile);
+                if (writing || number != next) {
+                    tile = null; // Written by the thread writing before it
+                } else {
+                    queued.remove(number);
+                    writing = true;
+                }
+            }
+        }
+        if (replaced != null) {
+            replaced.refuse("Tile " + number + " was sent again.");
+        }
+        if (tile == null) {
+            return;
+        }
+        if (again) {
+            tile.run();
+            return;
+        }
+        while (tile != null) {
+            tile.run();
+            synchronized (this) {
+                if (gen != generation) {
+                    return;
+                }
+                next++;
+                tile = queued.remove(next);
+                if (tile == null) {
+                    writing = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Refuses all queued tiles and restarts the numbering from 0.
+     */
+    public void reset(String reason) {
+        final List<Tile> refused;
+        synchronized (this) {
+            refused = new ArrayList<Tile>(queued.values());
+            queued.clear();
+            next = 0;
+            writing = false;
+            generation++;
+        }
+        for (Tile tile : refused) {
+            tile.refuse(reason);
+        }
+    }
+
+    /**
+     * Returns the number of tiles waiting for those before them.
+     */
+    public synchronized int getQueuedCount() {
+        return queued.size();
+    }
+
+}
@@ -43,6 +43,7 @@ import omero.model.SmartRectI;
 import omero.model.SmartShape;
 import omero.util.IceMapper;
 import omero.util.ObjectFactoryRegistry.ObjectFactory;
+import omeis.providers.re.RenderingExecutor;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -50,8 +51,6 @@ import org.hibernate.Query;
 import org.hibernate.Session;
 import org.springframework.context.ApplicationListener;
 
-import edu.emory.mathcs.backport.java.util.Arrays;
-
 /**
  * Strategy for handling the conversion between {@link Shape shapes} and
  * database-specific geometries.
@@ -77,6 +76,8 @@ public class GeomTool {
 
     protected final String uuid;
 
+    protected RenderingExecutor renderingExecutor;
+
     public GeomTool(PixelData data, SqlAction sql,
             SessionFactory factory) {
         this(data, sql, factory, null, null);
@@ -91,6 +92,21 @@ public class GeomTool {
         this.uuid = uuid;
     }
 
+    /**
+     * Sets the executor on which the statistics of several planes and
+     * channels are accumulated at once.
+     */
+    public void setRenderingExecutor(RenderingExecutor renderingExecutor) {
+        this.renderingExecutor = renderingExecutor;
+    }
+
+    private RenderingExecutor getRenderingExecutor() {
+        if (renderingExecutor == null) {
+            return RenderingExecutor.getDefault();
+        }
+        return renderingExecutor;
+    }
+
     /**
      * Loads just the shape and no other relationships. This
      * 
@@ -298,12 +314,15 @@ public class GeomTool {
             final ShapeStats stats = makeStats(pix, shape);
             stats.shapeId = shape.getId();
 
-            final int ch = stats.channelIds.length;
-            final double[] sumOfSquares = new double[ch];
-
+            final Integer theC = shape.getTheC(); // May be null
             final Integer theZ = shape.getTheZ(); // May be null
             final Integer theT = shape.getTheT(); // May be null
 
+            final int[] channels = new int[stats.channelIds.length];
+            for (int w = 0; w < channels.length; w++) {
+                channels[w] = (theC == null) ? w : theC.intValue();
+            }
+
             final int startZ = (theZ == null) ? 0 : theZ.intValue();
             final int startT = (theT == null) ? 0 : theT.intValue();
 
@@ -312,31 +331,10 @@ public class GeomTool {
 
             final PixelBuffer buf = data.getBuffer(pixId);
             try {
-                SmartShape.PointCallback cb = new SmartShape.PointCallback() {
-
-                    public void handle(int x, int y) {
-
-                        for (int w = 0; w < ch; w++) {
-
-                            for (int z = startZ; z <= endZ; z++) {
-                                for (int t = startT; t <= endT; t++) {
-
-                                    // WHAT TO DO ABOUT THE CHANNELS IN AGGREGATION?
-                                    stats.pointsCount[w]++;
-                                    double value = data.get(buf, x, y, z, w, t);
-                                    stats.min[w] = Math.min(value, stats.min[w]);
-                                    stats.max[w] = Math.max(value, stats.max[w]);
-                                    stats.sum[w] += value;
-                                    sumOfSquares[w] += value * value;
-
-                                }
-                            }
-
-                        }
-                    }
-                };
-
-                smartShape.areaPoints(cb);
+                ShapeSpans spans = ShapeSpans.fromShape(smartShape).clip(
+                        buf.getSizeX(), buf.getSizeY());
+                new SpanStatistics(getRenderingExecutor()).compute(buf,
+                        spans, channels, startZ, endZ, startT, endT, stats);
             } finally {
                 try {
                     buf.close();
@@ -345,19 +343,6 @@ public class GeomTool {
                 }
             }
 
-            for (int w = 0; w < ch; w++) {
-
-                stats.mean[w] = stats.sum[w] / stats.pointsCount[w];
-                if (stats.pointsCount[w] > 1) {
-                    double sigmaSquare = (sumOfSquares[w] - stats.sum[w]
-                            * stats.sum[w] / stats.pointsCount[w])
-                            / (stats.pointsCount[w] - 1);
-                    if (sigmaSquare > 0) {
-                        stats.stdDev[w] = Math.sqrt(sigmaSquare);
-                    }
-                }
-            }
-
             rs.perShape[i] = stats;
         }
 
@@ -391,16 +376,7 @@ public class GeomTool {
     //
 
     private ShapeStats makeStats(int ch) {
-        ShapeStats stats = new ShapeStats();
-        stats.channelIds = new long[ch];
-        stats.min = new double[ch];
-        stats.max = new double[ch];
-        stats.sum = new double[ch];
-        stats.mean = new double[ch];
-        stats.stdDev = new double[ch];
-        stats.pointsCount = new long[ch];
-        Arrays.fill(stats.min, 0, ch, Double.MAX_VALUE);
-        return stats;
+        return SpanStatistics.makeStats(ch);
     }
 
     private ShapeStats makeStats(Pixels pix, ome.model.roi.Shape shape) {
@@ -445,6 +421,11 @@ public class GeomTool {
 
         boolean called = false;
 
+        ShapeMapper() {
+            // Children are only reached via filter() while walking.
+            setWalkGraph(true);
+        }
+
         /**
          * Overrides {@link IceMapper#filter(String, Filterable)} in order to
          * only allow descending one level deep.
@@ -0,0 +1,202 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.roi;
+
+import java.util.Arrays;
+
+import omero.model.SmartShape;
+
+/**
+ * Scanline representation of the points within a {@link SmartShape}. Each
+ * span covers the pixels <code>[x, xEnd)</code> of row <code>y</code>; spans
+ * are sorted by row and then by column and never overlap. Rasterizing a shape
+ * once in this form lets the statistics be accumulated over whole runs of
+ * pixels for every plane rather than shape point by shape point.
+ *
+ * @since Beta4.4
+ */
+public class ShapeSpans {
+
+    private final int[] y;
+
+    private final int[] x;
+
+    private final int[] xEnd;
+
+    private final int count;
+
+    private final long pointsCount;
+
+    private ShapeSpans(int[] y, int[] x, int[] xEnd, int count) {
+        this.y = y;
+        this.x = x;
+        this.xEnd = xEnd;
+        this.count = count;
+        long points = 0;
+        for (int i = 0; i < count; i++) {
+            points += xEnd[i] - x[i];
+        }
+        this.pointsCount = points;
+    }
+
+    /**
+     * Collects the {@link SmartShape#areaPoints(SmartShape.PointCallback)
+     * area points} of the shape into spans. Duplicate points are only counted
+     * once.
+     *
+     * @param shape
+     *            the shape to rasterize.
+     * @return the spans of the shape, possibly empty.
+     */
+    public static ShapeSpans fromShape(SmartShape shape) {
+        final long[][] keys = new long[][] { new long[64] };
+        final int[] size = new int[1];
+        shape.areaPoints(new SmartShape.PointCallback() {
+            public void handle(int x, int y) {
+                if (size[0] == keys[0].length) {
+                    keys[0] = Arrays.copyOf(keys[0], size[0] * 2);
+                }
+                // Shifted so that negative x still sorts before positive x.
+                keys[0][size[0]++] = ((long) y << 32)
+                        + ((long) x - Integer.MIN_VALUE);
+            }
+        });
+        return fromKeys(keys[0], size[0]);
+    }
+
+    private static ShapeSpans fromKeys(long[] keys, int size) {
+        Arrays.sort(keys, 0, size);
+        int[] ys = new int[16];
+        int[] xs = new int[16];
+        int[] xEnds = new int[16];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            int py = (int) (keys[i] >> 32);
+            int px = (int) ((keys[i] & 0xFFFFFFFFL) + Integer.MIN_VALUE);
+            if (count > 0 && ys[count - 1] == py) {
+                if (px < xEnds[count - 1]) {
+                    continue; // Duplicate
+                } else if (px == xEnds[count - 1]) {
+                    xEnds[count - 1]++;
+                    continue;
+                }
+            }
+            if (count == ys.length) {
+                ys = Arrays.copyOf(ys, count * 2);
+                xs = Arrays.copyOf(xs, count * 2);
+                xEnds = Arrays.copyOf(xEnds, count * 2);
+            }
+            ys[count] = py;
+            xs[count] = px;
+            xEnds[count] = px + 1;
+            count++;
+        }
+        return new ShapeSpans(ys, xs, xEnds, count);
+    }
+
+    /**
+     * Returns the spans which lie within a plane of the given size, cutting
+     * any which cross its edges.
+     *
+     * @param sizeX
+     *            the width of the plane.
+     * @param sizeY
+     *            the height of the plane.
+     * @return this instance if nothing needed to be cut.
+     */
+    public ShapeSpans clip(int sizeX, int sizeY) {
+        int[] ys = new int[count];
+        int[] xs = new int[count];
+        int[] xEnds = new int[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (y[i] < 0 || y[i] >= sizeY) {
+                continue;
+            }
+            int start = Math.max(0, x[i]);
+            int end = Math.min(sizeX, xEnd[i]);
+            if (start < end) {
+                ys[n] = y[i];
+                xs[n] = start;
+                xEnds[n] = end;
+                n++;
+            }
+        }
+        ShapeSpans clipped = new ShapeSpans(ys, xs, xEnds, n);
+        if (clipped.pointsCount == pointsCount) {
+            return this;
+        }
+        return clipped;
+    }
+
+    /**
+     * @return the number of spans.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the total number of points covered by the spans.
+     */
+    public long getPointsCount() {
+        return pointsCount;
+    }
+
+    public int getY(int span) {
+        return y[span];
+    }
+
+    public int getX(int span) {
+        return x[span];
+    }
+
+    public int getXEnd(int span) {
+        return xEnd[span];
+    }
+
+    /**
+     * @return the lowest x of all spans or 0 if there are none.
+     */
+    public int getMinX() {
+        if (count == 0) {
+            return 0;
+        }
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            min = Math.min(min, x[i]);
+        }
+        return min;
+    }
+
+    /**
+     * @return one past the highest x of all spans or 0 if there are none.
+     */
+    public int getMaxX() {
+        int max = 0;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, xEnd[i]);
+        }
+        return max;
+    }
+
+    /**
+     * @return the row of the first span or 0 if there are none.
+     */
+    public int getMinY() {
+        return count == 0 ? 0 : y[0];
+    }
+
+    /**
+     * @return one past the row of the last span or 0 if there are none.
+     */
+    public int getMaxY() {
+        return count == 0 ? 0 : y[count - 1] + 1;
+    }
+
+}
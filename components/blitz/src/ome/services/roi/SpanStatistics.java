@@ -0,0 +1,332 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.roi;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import ome.conditions.ResourceError;
+import ome.io.nio.PixelBuffer;
+import ome.util.PixelData;
+import omero.api.ShapeStats;
+import omeis.providers.re.RenderingExecutor;
+import omeis.providers.re.RenderingTask;
+import omeis.providers.re.quantum.QuantizationException;
+
+/**
+ * Computes the statistics of the points covered by {@link ShapeSpans} over a
+ * range of planes and channels. The bounding box of the spans is read from
+ * each plane in bands of whole rows, one {@link PixelBuffer#getTile} call per
+ * band, and the values under the spans are accumulated into primitive arrays.
+ * <p>
+ * Bands are read by the calling thread, since pixel buffers are not
+ * necessarily thread-safe, and accumulated in batches on a
+ * {@link RenderingExecutor}, so that several planes and channels are
+ * processed at once.
+ * </p>
+ * Medians and quartiles are taken from the sorted point values. When a
+ * channel has more than {@link #MAX_SAMPLES} points, evenly spaced points are
+ * used instead of all of them.
+ *
+ * @since Beta4.4
+ */
+public class SpanStatistics {
+
+    /** Maximum number of pixels read from a plane at once. */
+    public static final int MAX_BAND_PIXELS = 1024 * 1024;
+
+    /** Maximum number of values kept per channel for the percentiles. */
+    public static final int MAX_SAMPLES = 4 * 1024 * 1024;
+
+    private final RenderingExecutor executor;
+
+    /**
+     * @param executor
+     *            the executor on which bands are accumulated, or
+     *            <code>null</code> to accumulate them on the calling thread.
+     */
+    public SpanStatistics(RenderingExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Allocates the arrays of a {@link ShapeStats} for the given number of
+     * channels, including the percentiles.
+     */
+    public static ShapeStats makeStats(int ch) {
+        ShapeStats stats = new ShapeStats();
+        stats.channelIds = new long[ch];
+        stats.min = new double[ch];
+        stats.max = new double[ch];
+        stats.sum = new double[ch];
+        stats.mean = new double[ch];
+        stats.stdDev = new double[ch];
+        stats.median = new double[ch];
+        stats.firstQuartile = new double[ch];
+        stats.thirdQuartile = new double[ch];
+        stats.pointsCount = new long[ch];
+        Arrays.fill(stats.min, 0, ch, Double.MAX_VALUE);
+        return stats;
+    }
+
+    /**
+     * Fills in the statistics of the points covered by the spans.
+     *
+     * @param buf
+     *            the pixels to read.
+     * @param spans
+     *            the spans, already clipped to the size of the planes.
+     * @param channels
+     *            the channel to read for each entry of the arrays of
+     *            <code>stats</code>.
+     * @param startZ
+     *            the first plane, inclusive.
+     * @param endZ
+     *            the last plane, inclusive.
+     * @param startT
+     *            the first timepoint, inclusive.
+     * @param endT
+     *            the last timepoint, inclusive.
+     * @param stats
+     *            the statistics to fill in, as created by
+     *            {@link #makeStats(int)}.
+     */
+    public void compute(PixelBuffer buf, ShapeSpans spans, int[] channels,
+            int startZ, int endZ, int startT, int endT, ShapeStats stats) {
+
+        final int ch = channels.length;
+        final int planes = (endZ - startZ + 1) * (endT - startT + 1);
+        final long perPlane = spans.getPointsCount();
+        final long perChannel = perPlane * Math.max(0, planes);
+
+        final double[] sumOfSquares = new double[ch];
+        final double[][] samples = new double[ch][];
+        final long stride = Math.max(1, (perChannel + MAX_SAMPLES - 1)
+                / MAX_SAMPLES);
+        for (int w = 0; w < ch; w++) {
+            samples[w] = new double[(int) ((perChannel + stride - 1) / stride)];
+        }
+
+        if (perChannel > 0) {
+            // Offset of the first point of each span within a plane.
+            final long[] offsets = new long[spans.size()];
+            for (int i = 1; i < offsets.length; i++) {
+                offsets[i] = offsets[i - 1] + spans.getXEnd(i - 1)
+                        - spans.getX(i - 1);
+            }
+            final int x0 = spans.getMinX();
+            final int width = spans.getMaxX() - x0;
+            final int maxY = spans.getMaxY();
+            final int bandHeight = Math.max(1, MAX_BAND_PIXELS / width);
+
+            int batchSize = 1;
+            if (executor != null
+                    && (long) width * Math.min(bandHeight, maxY
+                            - spans.getMinY()) >= executor
+                            .getMinPixelsPerTask()) {
+                batchSize = executor.getMaxTasks(Long.MAX_VALUE);
+            }
+            BandTask[] tasks = new BandTask[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                tasks[i] = new BandTask(spans, offsets, stride);
+            }
+
+            int pending = 0;
+            try {
+                for (int w = 0; w < ch; w++) {
+                    int plane = 0;
+                    for (int z = startZ; z <= endZ; z++) {
+                        for (int t = startT; t <= endT; t++, plane++) {
+                            int span = 0;
+                            for (int y = spans.getMinY(); y < maxY; y += bandHeight) {
+                                int h = Math.min(bandHeight, maxY - y);
+                                int first = span;
+                                while (span < spans.size()
+                                        && spans.getY(span) < y + h) {
+                                    span++;
+                                }
+                                if (first == span) {
+                                    continue; // No points in this band
+                                }
+                                PixelData data = buf.getTile(z, channels[w], t,
+                                        x0, y, width, h);
+                                tasks[pending++].set(w, data, x0, y, width,
+                                        first, span, plane * perPlane,
+                                        samples[w]);
+                                if (pending == batchSize) {
+                                    run(tasks, pending, stats, sumOfSquares);
+                                    pending = 0;
+                                }
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new ResourceError("IOException: " + e);
+            }
+            run(tasks, pending, stats, sumOfSquares);
+        }
+
+        for (int w = 0; w < ch; w++) {
+            stats.mean[w] = stats.sum[w] / stats.pointsCount[w];
+            if (stats.pointsCount[w] > 1) {
+                double sigmaSquare = (sumOfSquares[w] - stats.sum[w]
+                        * stats.sum[w] / stats.pointsCount[w])
+                        / (stats.pointsCount[w] - 1);
+                if (sigmaSquare > 0) {
+                    stats.stdDev[w] = Math.sqrt(sigmaSquare);
+                }
+            }
+            double[] sorted = samples[w];
+            Arrays.sort(sorted);
+            stats.median[w] = percentile(sorted, 50);
+            stats.firstQuartile[w] = percentile(sorted, 25);
+            stats.thirdQuartile[w] = percentile(sorted, 75);
+        }
+    }
+
+    /**
+     * Returns the value below which the given percentage of the sorted
+     * values lie, interpolating linearly between neighbouring values.
+     *
+     * @param sorted
+     *            the values in ascending order.
+     * @param percent
+     *            between <code>0</code> and <code>100</code>.
+     * @return {@link Double#NaN} if there are no values.
+     */
+    public static double percentile(double[] sorted, double percent) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        double position = percent / 100 * (sorted.length - 1);
+        int lower = (int) Math.floor(position);
+        int upper = Math.min(lower + 1, sorted.length - 1);
+        double fraction = position - lower;
+        return sorted[lower] + fraction * (sorted[upper] - sorted[lower]);
+    }
+
+    /**
+     * Runs the first <code>count</code> tasks, in parallel if there are
+     * several, and merges their results into the statistics.
+     */
+    private void run(BandTask[] tasks, int count, ShapeStats stats,
+            double[] sumOfSquares) {
+        if (count == 0) {
+            return;
+        }
+        if (count == 1 || executor == null) {
+            for (int i = 0; i < count; i++) {
+                tasks[i].call();
+            }
+        } else {
+            RenderingTask[] batch = new RenderingTask[count];
+            System.arraycopy(tasks, 0, batch, 0, count);
+            try {
+                executor.execute(batch);
+            } catch (QuantizationException e) {
+                // Never thrown by BandTask.
+                throw new RuntimeException(e);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            BandTask task = tasks[i];
+            int w = task.channel;
+            stats.pointsCount[w] += task.count;
+            stats.min[w] = Math.min(stats.min[w], task.min);
+            stats.max[w] = Math.max(stats.max[w], task.max);
+            stats.sum[w] += task.sum;
+            sumOfSquares[w] += task.sumOfSquares;
+            task.data = null;
+        }
+    }
+
+    /**
+     * Accumulates the values under the spans of one band of one plane.
+     * Sampled values are written directly to the channel's array, at
+     * positions which no other band of the same channel uses.
+     */
+    static class BandTask implements RenderingTask {
+
+        private final ShapeSpans spans;
+
+        private final long[] offsets;
+
+        private final long stride;
+
+        int channel;
+
+        PixelData data;
+
+        private int x0, y0, width, firstSpan, endSpan;
+
+        private long planeOffset;
+
+        private double[] samples;
+
+        long count;
+
+        double min, max, sum, sumOfSquares;
+
+        BandTask(ShapeSpans spans, long[] offsets, long stride) {
+            this.spans = spans;
+            this.offsets = offsets;
+            this.stride = stride;
+        }
+
+        void set(int channel, PixelData data, int x0, int y0, int width,
+                int firstSpan, int endSpan, long planeOffset,
+                double[] samples) {
+            this.channel = channel;
+            this.data = data;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.width = width;
+            this.firstSpan = firstSpan;
+            this.endSpan = endSpan;
+            this.planeOffset = planeOffset;
+            this.samples = samples;
+        }
+
+        public Object call() {
+            long n = 0;
+            double lo = Double.MAX_VALUE, hi = -Double.MAX_VALUE;
+            double s = 0, sq = 0;
+            for (int i = firstSpan; i < endSpan; i++) {
+                int row = (spans.getY(i) - y0) * width - x0;
+                int end = row + spans.getXEnd(i);
+                long index = planeOffset + offsets[i];
+                // Next index to keep as a sample.
+                long next = ((index + stride - 1) / stride) * stride;
+                for (int p = row + spans.getX(i); p < end; p++, index++) {
+                    double value = data.getPixelValue(p);
+                    if (value < lo) {
+                        lo = value;
+                    }
+                    if (value > hi) {
+                        hi = value;
+                    }
+                    s += value;
+                    sq += value * value;
+                    if (index == next) {
+                        samples[(int) (index / stride)] = value;
+                        next += stride;
+                    }
+                }
+                n += spans.getXEnd(i) - spans.getX(i);
+            }
+            count = n;
+            min = lo;
+            max = hi;
+            sum = s;
+            sumOfSquares = sq;
+            return null;
+        }
+    }
+
+}
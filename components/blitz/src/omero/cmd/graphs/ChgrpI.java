@@ -98,7 +98,7 @@ public class ChgrpI extends Chgrp implements IRequest {
                 helper.getSession(), spec);
 
             // Throws on no steps
-            this.helper.setSteps(state.getTotalFoundCount()+1); // +1 refresh;
+            this.helper.setSteps(state.getStepCount()+1); // +1 refresh;
             sw.stop("omero.chgrp.ids." + helper.getSteps());
 
 
@@ -99,7 +99,7 @@ public class ChownI extends Chown implements IRequest {
             state = new GraphState(ec, factory, helper.getSql(),
                 helper.getSession(), spec);
             // Throws if steps == 0
-            helper.setSteps(state.getTotalFoundCount());
+            helper.setSteps(state.getStepCount());
             sw.stop("omero.chown.ids." + helper.getSteps());
 
             // security restrictions (#6620)
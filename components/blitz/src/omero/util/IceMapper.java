@@ -743,8 +743,13 @@ public class IceMapper extends ome.util.ModelMapper implements
 
         Collection target = (Collection) model2target.get(source);
         if (null == target) {
-            target = new ArrayList();
+            target = new ArrayList(source.size());
             model2target.put(source, target);
+            if (!walkGraph) {
+                for (Object o : source) {
+                    target.add(findCollectionTarget(o));
+                }
+            }
         }
         return target;
     }
@@ -966,11 +971,87 @@ public class IceMapper extends ome.util.ModelMapper implements
 
     // ~ For ome->omero parsing
     // =========================================================================
+
+    /**
+     * If true, {@link #filter(String, Filterable)} first walks the whole
+     * graph via {@link Filterable#acceptFilter(ome.util.Filter)} as
+     * {@link ModelMapper} does, and the generated copyObject methods only
+     * look up the targets created on the way. By default, targets are
+     * instead filled as soon as they are created, so that each object is
+     * visited and copied exactly once.
+     */
+    private boolean walkGraph = false;
+
+    public void setWalkGraph(boolean walkGraph) {
+        this.walkGraph = walkGraph;
+    }
+
+    public boolean isWalkGraph() {
+        return walkGraph;
+    }
+
     @Override
     protected Map c2c() {
         return IceMap.OMEtoOMERO;
     }
 
+    /**
+     * Uses the generated factories of {@link IceMap} rather than reflection.
+     * Proxies and types without a factory are passed to
+     * {@link ModelMapper#newTarget(Object)}.
+     */
+    @Override
+    protected Object newTarget(Object current) {
+        Object target = IceMap.create(current.getClass());
+        if (target == null) {
+            target = super.newTarget(current);
+        }
+        return target;
+    }
+
+    /**
+     * Unless the graph is walked, the target of an object which has not been
+     * seen yet is filled immediately. Since the generated copyObject methods
+     * call back into this method, {@link #findCollection(Collection)} and
+     * {@link #findMap(Map)} for their fields, the reachable graph is copied
+     * depth-first. Targets are stored before they are filled, so cycles end
+     * on the stored, partially filled target.
+     */
+    @Override
+    public Object findTarget(Object current) {
+        if (walkGraph) {
+            return super.findTarget(current);
+        } else if (current instanceof Collection) {
+            return findCollection((Collection) current);
+        } else if (current instanceof Map) {
+            return findMap((Map) current);
+        } else if (!(current instanceof Filterable)) {
+            return super.findTarget(current);
+        }
+
+        Object target = model2target.get(current);
+        if (null == target) {
+            target = super.findTarget(current);
+            if (target instanceof ModelBased) {
+                fillTarget((Filterable) current, (ModelBased) target);
+            }
+        }
+        return target;
+    }
+
+    @Override
+    public Map findMap(Map source) {
+        if (walkGraph || source == null || model2target.containsKey(source)) {
+            return super.findMap(source);
+        }
+
+        Map target = super.findMap(source);
+        for (Object o : source.keySet()) {
+            target.put(findKeyTarget(o), findCollectionTarget(source.get(o)));
+        }
+        return target;
+    }
+
     private void fillTarget(Filterable source, ModelBased target) {
         if (source != null && target != null) {
             target.copyObject(source, this);
@@ -979,6 +1060,11 @@ public class IceMapper extends ome.util.ModelMapper implements
 
     @Override
     public Filterable filter(String fieldId, Filterable source) {
+        if (!walkGraph) {
+            findTarget(source);
+            return source;
+        }
+
         // Filterable o = super.filter(fieldId,source);
         // Can't call super here!!
         if (hasntSeen(source)) {
@@ -994,6 +1080,24 @@ public class IceMapper extends ome.util.ModelMapper implements
         return source;
     }
 
+    @Override
+    public Collection filter(String fieldId, Collection source) {
+        if (!walkGraph) {
+            findCollection(source);
+            return source;
+        }
+        return super.filter(fieldId, source);
+    }
+
+    @Override
+    public Map filter(String fieldId, Map source) {
+        if (!walkGraph) {
+            findMap(source);
+            return source;
+        }
+        return super.filter(fieldId, source);
+    }
+
     @Override
     protected boolean hasntSeen(Object o) {
         return o == null ? false : super.hasntSeen(o);
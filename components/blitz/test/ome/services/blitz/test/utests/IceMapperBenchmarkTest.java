@@ -0,0 +1,143 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services.blitz.test.utests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import ome.model.annotations.CommentAnnotation;
+import ome.model.annotations.ImageAnnotationLink;
+import ome.model.annotations.TagAnnotation;
+import ome.model.core.Image;
+import ome.model.meta.Event;
+import ome.model.meta.Experimenter;
+import ome.model.meta.ExperimenterGroup;
+import ome.model.roi.Rect;
+import omero.model.CommentAnnotationI;
+import omero.model.ImageAnnotationLinkI;
+import omero.model.ImageI;
+import omero.model.SmartRectI;
+import omero.util.IceMapper;
+
+import org.perf4j.StopWatch;
+import org.perf4j.commonslog.CommonsLogStopWatch;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that {@link IceMapper} copies the same graph whether or not it
+ * walks the graph first, and times both on a large list of images with
+ * annotations. The timings are logged as perf4j stop watches with the
+ * number of images in their tag.
+ */
+@Test(groups = "mapping")
+public class IceMapperBenchmarkTest extends TestCase {
+
+    static final int SIZE = 10000;
+
+    static final int ITERATIONS = 3;
+
+    List<Image> images;
+
+    @BeforeClass
+    public void setup() {
+        images = images(SIZE);
+    }
+
+    List<Image> images(int count) {
+        Experimenter owner = new Experimenter(1L, true);
+        owner.setOmeName("owner");
+        ExperimenterGroup group = new ExperimenterGroup(2L, true);
+        group.setName("group");
+        Event event = new Event(3L, true);
+        TagAnnotation tag = new TagAnnotation(4L, true);
+        tag.setTextValue("tag");
+
+        List<Image> list = new ArrayList<Image>(count);
+        for (int i = 0; i < count; i++) {
+            Image image = new Image((long) i, true);
+            image.setName("image" + i);
+            image.getDetails().setOwner(owner);
+            image.getDetails().setGroup(group);
+            image.getDetails().setCreationEvent(event);
+            CommentAnnotation comment = new CommentAnnotation();
+            comment.setTextValue("comment" + i);
+            comment.getDetails().setOwner(owner);
+            image.linkAnnotation(tag);
+            image.linkAnnotation(comment);
+            list.add(image);
+        }
+        return list;
+    }
+
+    @SuppressWarnings("unchecked")
+    List<ImageI> map(boolean walk, List<Image> list) throws Exception {
+        IceMapper mapper = new IceMapper();
+        mapper.setWalkGraph(walk);
+        return (List<ImageI>) IceMapper.FILTERABLE_COLLECTION
+                .mapReturnValue(mapper, list);
+    }
+
+    public void testDirectCopyMatchesWalkedCopy() throws Exception {
+        List<Image> list = images(10);
+        List<ImageI> walked = map(true, list);
+        List<ImageI> direct = map(false, list);
+        assertEquals(walked.size(), direct.size());
+        for (int i = 0; i < walked.size(); i++) {
+            ImageI w = walked.get(i);
+            ImageI d = direct.get(i);
+            assertEquals(w.getId().getValue(), d.getId().getValue());
+            assertEquals(w.getName().getValue(), d.getName().getValue());
+            assertEquals(w.getDetails().getOwner().getId().getValue(), d
+                    .getDetails().getOwner().getId().getValue());
+            assertEquals(w.sizeOfAnnotationLinks(), d.sizeOfAnnotationLinks());
+            assertEquals(2, d.sizeOfAnnotationLinks());
+        }
+    }
+
+    public void testSharedObjectsAreCopiedOnce() throws Exception {
+        List<ImageI> direct = map(false, images(2));
+        ImageI first = direct.get(0);
+        ImageI second = direct.get(1);
+        assertSame(first.getDetails().getOwner(), second.getDetails()
+                .getOwner());
+        ImageAnnotationLinkI link = (ImageAnnotationLinkI) first
+                .copyAnnotationLinks().get(0);
+        assertSame(first, link.getParent());
+    }
+
+    public void testUnsavedChildrenAreFilled() throws Exception {
+        Image image = new Image(1L, true);
+        ImageAnnotationLink link = image.linkAnnotation(new CommentAnnotation());
+        ((CommentAnnotation) link.getChild()).setTextValue("filled");
+        ImageI mapped = (ImageI) new IceMapper().map(image);
+        ImageAnnotationLinkI mappedLink = (ImageAnnotationLinkI) mapped
+                .copyAnnotationLinks().get(0);
+        CommentAnnotationI comment = (CommentAnnotationI) mappedLink
+                .getChild();
+        assertEquals("filled", comment.getTextValue().getValue());
+    }
+
+    public void testGeneratedFactoriesKeepOverrides() throws Exception {
+        assertTrue(new IceMapper().map(new Rect()) instanceof SmartRectI);
+    }
+
+    public void testMappingLargeGraph() throws Exception {
+        for (int i = 0; i < ITERATIONS; i++) {
+            StopWatch walk = new CommonsLogStopWatch("omero.mapper.walk."
+                    + SIZE);
+            assertEquals(SIZE, map(true, images).size());
+            walk.stop();
+            StopWatch direct = new CommonsLogStopWatch("omero.mapper.direct."
+                    + SIZE);
+            assertEquals(SIZE, map(false, images).size());
+            direct.stop();
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services.blitz.test.utests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import ome.api.IQuery;
+import ome.services.blitz.impl.commands.ResetDefaultsInSetI;
+import ome.system.ServiceFactory;
+import omero.api.ResetDefaultsInSetRsp;
+import omero.cmd.Helper;
+import omero.cmd.Status;
+
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that resetting the rendering settings of containers without any
+ * pixels sets answers with an empty response rather than being cancelled.
+ */
+@Test(groups = "rendering")
+public class ResetDefaultsInSetITest extends MockObjectTestCase {
+
+    Mock mockQuery;
+
+    ServiceFactory sf;
+
+    ResetDefaultsInSetI req;
+
+    Status status;
+
+    @BeforeMethod
+    public void setup() {
+        mockQuery = mock(IQuery.class);
+        sf = new ServiceFactory() {
+            @Override
+            protected String getDefaultContext() {
+                return null;
+            }
+
+            @Override
+            public IQuery getQueryService() {
+                return (IQuery) mockQuery.proxy();
+            }
+        };
+        req = new ResetDefaultsInSetI();
+        req.type = "Dataset";
+        status = new Status();
+    }
+
+    @Test
+    public void testEmptyDataset() {
+        mockQuery.expects(once()).method("projection")
+                .will(returnValue(new ArrayList<Object[]>()));
+        req.nodeIds = Arrays.asList(1L);
+        assertEmptyResponse();
+    }
+
+    @Test
+    public void testNoContainers() {
+        req.nodeIds = Collections.<Long>emptyList();
+        assertEmptyResponse();
+    }
+
+    private void assertEmptyResponse() {
+        Helper helper = new Helper(req, status, null, null, sf);
+        req.init(helper);
+        assertEquals(1, status.steps);
+        Object rv = req.step(0);
+        assertTrue(((Set<?>) rv).isEmpty());
+        req.buildResponse(0, rv);
+        ResetDefaultsInSetRsp rsp = (ResetDefaultsInSetRsp) req.getResponse();
+        assertNotNull(rsp);
+        assertTrue(rsp.imageIds.isEmpty());
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services.blitz.test.utests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import ome.services.blitz.util.TileSequencer;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks the order in which {@link TileSequencer} writes tiles which arrive
+ * out of order, twice or not at all.
+ */
+@Test(groups = "tiles")
+public class TileSequencerTest extends TestCase {
+
+    TileSequencer tiles;
+
+    List<String> written;
+
+    List<String> refused;
+
+    @BeforeMethod
+    public void setup() {
+        tiles = new TileSequencer();
+        written = new ArrayList<String>();
+        refused = new ArrayList<String>();
+    }
+
+    void write(long number, final String name) {
+        tiles.write(number, new TileSequencer.Tile() {
+            public void run() {
+                written.add(name);
+            }
+            public void refuse(String reason) {
+                refused.add(name);
+            }
+        });
+    }
+
+    public void testTilesInOrderAreWrittenStraightAway() {
+        write(0, "a");
+        write(1, "b");
+        assertEquals("[a, b]", written.toString());
+        assertEquals(0, tiles.getQueuedCount());
+    }
+
+    public void testTilesOutOfOrderAreWrittenInOrder() {
+        write(2, "c");
+        write(1, "b");
+        assertTrue(written.isEmpty());
+        assertEquals(2, tiles.getQueuedCount());
+        write(0, "a");
+        assertEquals("[a, b, c]", written.toString());
+        assertEquals(0, tiles.getQueuedCount());
+        assertTrue(refused.isEmpty());
+    }
+
+    public void testWrittenTileSentAgainIsWrittenAgain() {
+        write(0, "a");
+        write(1, "b");
+        write(0, "a2");
+        assertEquals("[a, b, a2]", written.toString());
+        write(2, "c");
+        assertEquals("[a, b, a2, c]", written.toString());
+    }
+
+    public void testQueuedTileSentAgainReplacesTheFirst() {
+        write(1, "b");
+        write(1, "b2");
+        assertEquals("[b]", refused.toString());
+        assertEquals(1, tiles.getQueuedCount());
+        write(0, "a");
+        assertEquals("[a, b2]", written.toString());
+    }
+
+    public void testTilesAfterMissingOneWaitUntilReset() {
+        write(1, "b");
+        write(2, "c");
+        assertTrue(written.isEmpty());
+        tiles.reset("gone");
+        assertEquals(2, refused.size());
+        assertTrue(refused.contains("b"));
+        assertTrue(refused.contains("c"));
+        assertEquals(0, tiles.getQueuedCount());
+        assertTrue(written.isEmpty());
+    }
+
+    public void testResetRestartsNumbering() {
+        write(0, "a");
+        write(1, "b");
+        tiles.reset("next pixels");
+        assertTrue(refused.isEmpty());
+        write(0, "x");
+        assertEquals("[a, b, x]", written.toString());
+    }
+
+    public void testResetWhileWritingStopsTheWriter() {
+        write(1, "b");
+        tiles.write(0, new TileSequencer.Tile() {
+            public void run() {
+                written.add("a");
+                tiles.reset("closed");
+            }
+            public void refuse(String reason) {
+                refused.add("a");
+            }
+        });
+        assertEquals("[a]", written.toString());
+        assertEquals("[b]", refused.toString());
+        write(0, "x");
+        assertEquals("[a, x]", written.toString());
+    }
+
+}
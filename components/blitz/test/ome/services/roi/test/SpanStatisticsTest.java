@@ -0,0 +1,167 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.roi.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+import ome.io.nio.InMemoryPlanarPixelBuffer;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.services.roi.GeomTool;
+import ome.services.roi.ShapeSpans;
+import ome.services.roi.SpanStatistics;
+import ome.util.PixelData;
+import omero.api.ShapeStats;
+import omero.model.SmartShape;
+import omeis.providers.re.RenderingExecutor;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+/**
+ * Checks the statistics accumulated over {@link ShapeSpans} without a
+ * database, using planes whose values are <code>x + 10 * y + 100 * z</code>.
+ */
+@Test(groups = { "rois" })
+public class SpanStatisticsTest extends TestCase {
+
+    GeomTool geomTool = new GeomTool(null, null, null);
+
+    RenderingExecutor executor = new RenderingExecutor(4, 4, 1);
+
+    RampPixelBuffer buf = new RampPixelBuffer(10, 10, 3);
+
+    @AfterClass
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRectangleSpans() throws Exception {
+        ShapeSpans spans = spans(geomTool.rect(2, 3, 4, 5));
+        assertEquals(5, spans.size());
+        assertEquals(20, spans.getPointsCount());
+        assertEquals(2, spans.getMinX());
+        assertEquals(6, spans.getMaxX());
+        assertEquals(3, spans.getMinY());
+        assertEquals(8, spans.getMaxY());
+        assertSame(spans, spans.clip(10, 10));
+    }
+
+    @Test
+    public void testClip() throws Exception {
+        ShapeSpans spans = spans(geomTool.rect(-2, -2, 5, 5)).clip(10, 10);
+        assertEquals(9, spans.getPointsCount());
+        assertEquals(0, spans.getMinX());
+        assertEquals(0, spans.getMinY());
+        assertEquals(0, spans(geomTool.rect(20, 20, 5, 5)).clip(10, 10)
+                .getPointsCount());
+    }
+
+    @Test
+    public void testEllipseMatchesAreaPoints() throws Exception {
+        SmartShape ellipse = (SmartShape) geomTool.ellipse(5, 5, 3, 2);
+        final int[] count = new int[1];
+        ellipse.areaPoints(new SmartShape.PointCallback() {
+            public void handle(int x, int y) {
+                count[0]++;
+            }
+        });
+        assertEquals(count[0], ShapeSpans.fromShape(ellipse).getPointsCount());
+    }
+
+    @Test
+    public void testWholePlane() throws Exception {
+        ShapeStats stats = compute(geomTool.rect(0, 0, 10, 10), 0, 0, null);
+        assertEquals(100, stats.pointsCount[0]);
+        assertEquals(0.0, stats.min[0]);
+        assertEquals(99.0, stats.max[0]);
+        assertEquals(4950.0, stats.sum[0]);
+        assertEquals(49.5, stats.mean[0]);
+        assertEquals(49.5, stats.median[0]);
+        assertEquals(24.75, stats.firstQuartile[0]);
+        assertEquals(74.25, stats.thirdQuartile[0]);
+        assertEquals(29.01, stats.stdDev[0], 0.01);
+    }
+
+    @Test
+    public void testStackInParallelMatchesSerial() throws Exception {
+        SmartShape ellipse = (SmartShape) geomTool.ellipse(5, 5, 4, 3);
+        ShapeStats serial = compute(ellipse, 0, 2, null);
+        ShapeStats parallel = compute(ellipse, 0, 2, executor);
+        assertEquals(3 * ShapeSpans.fromShape(ellipse).getPointsCount(),
+                serial.pointsCount[0]);
+        assertEquals(serial.pointsCount[0], parallel.pointsCount[0]);
+        assertEquals(serial.min[0], parallel.min[0]);
+        assertEquals(serial.max[0], parallel.max[0]);
+        assertEquals(serial.sum[0], parallel.sum[0]);
+        assertEquals(serial.median[0], parallel.median[0]);
+        assertEquals(serial.stdDev[0], parallel.stdDev[0], 1e-9);
+    }
+
+    @Test
+    public void testPercentile() throws Exception {
+        double[] sorted = new double[] { 1, 2, 3, 4 };
+        assertEquals(1.0, SpanStatistics.percentile(sorted, 0));
+        assertEquals(2.5, SpanStatistics.percentile(sorted, 50));
+        assertEquals(4.0, SpanStatistics.percentile(sorted, 100));
+        assertTrue(Double.isNaN(SpanStatistics.percentile(new double[0], 50)));
+    }
+
+    private ShapeSpans spans(Object shape) {
+        return ShapeSpans.fromShape((SmartShape) shape);
+    }
+
+    private ShapeStats compute(Object shape, int startZ, int endZ,
+            RenderingExecutor executor) {
+        ShapeSpans spans = spans(shape).clip(buf.getSizeX(), buf.getSizeY());
+        ShapeStats stats = SpanStatistics.makeStats(1);
+        new SpanStatistics(executor).compute(buf, spans, new int[] { 0 },
+                startZ, endZ, 0, 0, stats);
+        return stats;
+    }
+
+    /**
+     * Only supports reading tiles, which is all {@link SpanStatistics} needs.
+     */
+    private static class RampPixelBuffer extends InMemoryPlanarPixelBuffer {
+
+        RampPixelBuffer(int sizeX, int sizeY, int sizeZ) {
+            super(pixels(sizeX, sizeY, sizeZ), null);
+        }
+
+        private static Pixels pixels(int sizeX, int sizeY, int sizeZ) {
+            PixelsType type = new PixelsType();
+            type.setValue("uint16");
+            Pixels pixels = new Pixels();
+            pixels.setPixelsType(type);
+            pixels.setSizeX(sizeX);
+            pixels.setSizeY(sizeY);
+            pixels.setSizeZ(sizeZ);
+            pixels.setSizeC(1);
+            pixels.setSizeT(1);
+            return pixels;
+        }
+
+        @Override
+        public PixelData getTile(Integer z, Integer c, Integer t, Integer x,
+                Integer y, Integer w, Integer h) throws IOException {
+            ByteBuffer data = ByteBuffer.allocate(w * h * 2);
+            for (int j = 0; j < h; j++) {
+                for (int i = 0; i < w; i++) {
+                    int value = x + i + 10 * (y + j) + 100 * z;
+                    data.putShort((j * w + i) * 2, (short) value);
+                }
+            }
+            return new PixelData("uint16", data);
+        }
+    }
+
+}
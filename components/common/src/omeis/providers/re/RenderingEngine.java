@@ -540,6 +540,28 @@ public interface RenderingEngine extends StatefulServiceInterface {
 	 * @see ICompress#getCompressionLevel()
 	 */
 	public float getCompressionLevel();
+
+	/**
+	 * Sets the format images are compressed to by
+	 * {@link #renderCompressed(PlaneDef)} and
+	 * {@link #renderProjectedCompressed(int, int, int, int, int)}. Either
+	 * <code>"jpeg"</code> (the default), which is lossy, or
+	 * <code>"png"</code>, which keeps the exact colours of every pixel and is
+	 * written palette-indexed for images with no more than 256 colours, e.g.
+	 * label masks. Clients which need exact colours can call this and fall
+	 * back to {@link #renderAsPackedInt(PlaneDef)} if it fails.
+	 * 
+	 * @param format The name of the format, ignoring case.
+	 * @throws ApiUsageException if the <code>format</code> is not supported.
+	 */
+	public void setCompressionFormat(String format);
+
+	/**
+	 * Returns the format images are compressed to.
+	 * 
+	 * @return See above.
+	 */
+	public String getCompressionFormat();
 	
 	/**
      * Returns <code>true</code> if the pixels type is signed, 
@@ -567,6 +589,29 @@ public interface RenderingEngine extends StatefulServiceInterface {
      */
 	public double getPixelsTypeUpperBound(int w);
 
+	/**
+     * Returns the histogram of the intensity values of a channel, e.g. to
+     * choose the input window. The bins evenly divide the interval between
+     * the global minimum and maximum of the channel or, if those are not
+     * known, the range of the pixels type. Values outside of that interval
+     * are counted in the first or last bin. The pixels of the current
+     * resolution level are used.
+     *
+     * @param w The channel index.
+     * @param binCount The number of bins.
+     * @param pd The plane to handle. If a region is set, only that region is
+     *           used.
+     * @param wholeStack Pass <code>true</code> to handle all the sections at
+     *                   the timepoint of <code>pd</code> instead of the
+     *                   section of <code>pd</code> only.
+     * @return The number of pixels in each bin.
+     * @throws ApiUsageException If the channel index or the number of bins is
+     *                           out of range, or <code>pd</code> is
+     *                           <code>null</code>.
+     */
+	public int[] getHistogram(int w, int binCount, PlaneDef pd,
+	        boolean wholeStack);
+
     public boolean requiresPixelsPyramid();
 
     public int getResolutionLevels();
@@ -15,6 +15,7 @@ import java.awt.image.DataBufferInt;
 import java.awt.image.DirectColorModel;
 import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
+import java.util.Arrays;
 
 import sun.awt.image.IntegerInterleavedRaster;
 
@@ -72,4 +73,119 @@ public class ImageUtil
 
         return image;
     }
+
+    /**
+     * Scales a rendering engine RGB buffer by area averaging: each pixel of
+     * the result is the average of the part of <i>buf</i> which it covers,
+     * with partially covered pixels weighted by the fraction covered. This
+     * works directly on the packed integers, without creating a buffered
+     * image, and is intended for reducing the size of an image.
+     * 
+     * @param buf
+     *            the rendering engine packed integer buffer.
+     * @param sizeX
+     *            the X-width of the image rendered.
+     * @param sizeY
+     *            the Y-width of the image rendered.
+     * @param scaledX
+     *            the X-width of the scaled image.
+     * @param scaledY
+     *            the Y-width of the scaled image.
+     * @return a new packed integer buffer of <i>scaledX</i> by
+     *         <i>scaledY</i> pixels.
+     */
+    public static int[] scalePackedInt(int[] buf, int sizeX, int sizeY,
+            int scaledX, int scaledY)
+    {
+        if (sizeX < 1 || sizeY < 1 || scaledX < 1 || scaledY < 1)
+        {
+            throw new IllegalArgumentException(String.format(
+                    "Cannot scale %dx%d to %dx%d",
+                    sizeX, sizeY, scaledX, scaledY));
+        }
+
+        // In units of 1/(sizeX*scaledX) of the width, a source column is
+        // scaledX wide and a scaled column sizeX wide. The columns which
+        // contribute to each scaled column and their overlaps are the same
+        // for every row, so are only calculated once.
+        int[] first = new int[scaledX];
+        int[] count = new int[scaledX];
+        int[] weights = new int[scaledX + sizeX];
+        int w = 0;
+        for (int x = 0; x < scaledX; x++)
+        {
+            long start = (long) x * sizeX;
+            long end = start + sizeX;
+            first[x] = (int) (start / scaledX);
+            for (int i = first[x]; (long) i * scaledX < end; i++)
+            {
+                weights[w++] = (int) (Math.min((long) (i + 1) * scaledX, end)
+                        - Math.max((long) i * scaledX, start));
+                count[x]++;
+            }
+        }
+
+        int[] scaled = new int[scaledX * scaledY];
+        float[] row = new float[scaledX * 3];
+        float[] sum = new float[scaledX * 3];
+        int lastRow = -1;
+        for (int y = 0; y < scaledY; y++)
+        {
+            long start = (long) y * sizeY;
+            long end = start + sizeY;
+            Arrays.fill(sum, 0);
+            for (int j = (int) (start / scaledY); (long) j * scaledY < end; j++)
+            {
+                // A source row shared with the previous scaled row is
+                // only averaged horizontally once.
+                if (j != lastRow)
+                {
+                    averageRow(buf, j * sizeX, first, count, weights, sizeX,
+                            row);
+                    lastRow = j;
+                }
+                float weight = Math.min((long) (j + 1) * scaledY, end)
+                        - Math.max((long) j * scaledY, start);
+                for (int i = 0; i < sum.length; i++)
+                {
+                    sum[i] += row[i] * weight;
+                }
+            }
+            int offset = y * scaledX;
+            for (int x = 0; x < scaledX; x++)
+            {
+                int red = Math.round(sum[x * 3] / sizeY);
+                int green = Math.round(sum[x * 3 + 1] / sizeY);
+                int blue = Math.round(sum[x * 3 + 2] / sizeY);
+                scaled[offset + x] = 0xFF000000 | red << 16 | green << 8 | blue;
+            }
+        }
+        return scaled;
+    }
+
+    /**
+     * Averages the packed integers of one row starting at <i>offset</i> into
+     * red, green and blue values for each scaled column.
+     */
+    private static void averageRow(int[] buf, int offset, int[] first,
+            int[] count, int[] weights, int sizeX, float[] row)
+    {
+        int w = 0;
+        for (int x = 0; x < first.length; x++)
+        {
+            int red = 0, green = 0, blue = 0;
+            int pixel = offset + first[x];
+            for (int i = 0; i < count[x]; i++, w++, pixel++)
+            {
+                int weight = weights[w];
+                int value = buf[pixel];
+                red += ((value >> 16) & 0xFF) * weight;
+                green += ((value >> 8) & 0xFF) * weight;
+                blue += (value & 0xFF) * weight;
+            }
+            row[x * 3] = (float) red / sizeX;
+            row[x * 3 + 1] = (float) green / sizeX;
+            row[x * 3 + 2] = (float) blue / sizeX;
+        }
+    }
 }
@@ -124,7 +124,6 @@ public abstract class ModelMapper extends ContextFilter {
         Object target = model2target.get(current);
         if (null == target) {
             Class currentType = current.getClass();
-            Class targetType = null;
 
             if (currentType.isArray()) {
 
@@ -145,22 +144,36 @@ public abstract class ModelMapper extends ContextFilter {
                 }
 
             } else {
-                targetType = findClass(currentType);
+                target = newTarget(current);
+            }
+            model2target.put(current, target);
+        }
+        return target;
+    }
 
-                if (null == targetType) {
-                    throw new InternalException("Cannot handle type:" + current);
-                }
+    /**
+     * extension point which subclasses can override to create targets
+     * without reflection. By default, the class returned by
+     * {@link #findClass(Class)} is instantiated.
+     * 
+     * @param current
+     *            a non-null, non-array object which has not been mapped yet.
+     * @return a new, uninitialized target.
+     */
+    protected Object newTarget(Object current) {
+        Class targetType = findClass(current.getClass());
 
-                try {
-                    target = targetType.newInstance();
-                } catch (Exception e) {
-                    log.error("Error creating new instance of target type"
-                            + current, e);
-                    throwOnNewInstanceException(current, targetType, e);
-                }
+        if (null == targetType) {
+            throw new InternalException("Cannot handle type:" + current);
+        }
 
-            }
-            model2target.put(current, target);
+        Object target = null;
+        try {
+            target = targetType.newInstance();
+        } catch (Exception e) {
+            log.error("Error creating new instance of target type" + current,
+                    e);
+            throwOnNewInstanceException(current, targetType, e);
         }
         return target;
     }
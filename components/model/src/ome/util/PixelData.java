@@ -153,6 +153,15 @@ public class PixelData
         return false;
     }
 
+    /**
+     * Returns the OME pixels type of the pixel data.
+     *
+     * @return See above.
+     */
+    public String getPixelsType() {
+        return pixelsType;
+    }
+
     /**
      * Returns the number of byte per pixel for the pixel data.
      *
@@ -15,6 +15,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -165,6 +166,29 @@ public interface SqlAction {
      */
     List<long[]> nextPixelsDataLogForRepo(String repo, long lastEventId, int howmany);
 
+    /**
+     * Returns arrays of longs describing PIXELDATA eventlogs which are
+     * candidates for scheduling, with the following columns:
+     * <code>eventlog, entityid as pixels, experimenter, event time (ms),
+     * import (1 if the event's type is "Import", 0 otherwise), sizeX,
+     * sizeY, sizeZ, sizeC, sizeT, bytes per pixel</code>
+     *
+     * Only eventlogs with an id greater than <code>lastEventId</code> are
+     * returned. If <code>newestFirst</code> is true, the most recent
+     * eventlogs are returned rather than the oldest.
+     */
+    List<long[]> nextPixelsDataCandidatesForRepo(String repo, long lastEventId,
+            int howmany, boolean newestFirst);
+
+    /**
+     * Returns the number of PIXELDATA eventlogs with an id greater than
+     * <code>lastEventId</code> for each of the given pixels sets, counted by
+     * a single grouped query. Pixels sets without any are missing from the
+     * returned map.
+     */
+    Map<Long, Long> countPixelsDataRequests(long lastEventId,
+            Collection<Long> pixelsIds);
+
     long countFormat(String name);
 
     int insertFormat(String name);
@@ -224,6 +248,14 @@ public interface SqlAction {
 
     void insertLogs(List<Object[]> batchData);
 
+    /**
+     * Inserts a read-only event row with an id previously taken from
+     * "seq_event" by {@link #nextValue(String, int)}. The type is given by
+     * the value of its {@link ome.model.enums.EventType}.
+     */
+    void insertEvent(long id, Date time, long experimenterId, long groupId,
+            long sessionId, String type);
+
     List<Map<String, Object>> roiByImageAndNs(final long imageId,
             final String ns);
 
@@ -447,6 +479,49 @@ public interface SqlAction {
             }
         }
 
+        public List<long[]> nextPixelsDataCandidatesForRepo(String repo,
+                long lastEventId, int rows, boolean newestFirst) {
+            final RowMapper<long[]> rm = new RowMapper<long[]>() {
+                public long[] mapRow(ResultSet arg0, int arg1)
+                        throws SQLException {
+                    long[] rv = new long[11];
+                    for (int i = 0; i < rv.length; i++) {
+                        rv[i] = arg0.getLong(i + 1);
+                    }
+                    return rv;
+                }};
+            final String order = newestFirst ? "desc" : "asc";
+            if (repo == null) {
+                return _jdbc().query(String.format(
+                        _lookup("find_pixels_data_candidates_for_null_repo"), // $NON-NLS-1$
+                        order), rm, lastEventId, rows);
+            } else {
+                return _jdbc().query(String.format(
+                        _lookup("find_pixels_data_candidates_for_repo"), // $NON-NLS-1$
+                        order), rm, lastEventId, repo, rows);
+            }
+        }
+
+        public Map<Long, Long> countPixelsDataRequests(long lastEventId,
+                Collection<Long> pixelsIds) {
+            final Map<Long, Long> rv = new HashMap<Long, Long>();
+            if (pixelsIds == null || pixelsIds.isEmpty()) {
+                return rv;
+            }
+            final Map<String, Object> args = new HashMap<String, Object>();
+            args.put("id", lastEventId); //$NON-NLS-1$
+            args.put("ids", pixelsIds); //$NON-NLS-1$
+            _jdbc().query(_lookup("count_pixels_data_requests"), //$NON-NLS-1$
+                    new RowMapper<Object>() {
+                        public Object mapRow(ResultSet arg0, int arg1)
+                                throws SQLException {
+                            rv.put(arg0.getLong(1), arg0.getLong(2));
+                            return null;
+                        }
+                    }, args);
+            return rv;
+        }
+
         public long getGroupPermissions(long groupId) {
             return _jdbc().queryForObject(
                     _lookup("get_group_permissions"), Long.class, //$NON-NLS-1$
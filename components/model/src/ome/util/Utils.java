@@ -291,8 +291,11 @@ public class Utils {
         return md;
     }
 
-
-    private static MessageDigest newSha1MessageDigest() {
+    /**
+     * Returns a new SHA-1 {@link MessageDigest}, e.g. for digesting a file
+     * incrementally as it is written.
+     */
+    public static MessageDigest newSha1MessageDigest() {
         try {
             return MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException e) {
@@ -276,6 +276,12 @@ public class PostgresSqlAction extends SqlAction.Impl {
         _jdbc().batchUpdate(_lookup("insert_logs"), batchData); //$NON-NLS-1$
     }
 
+    public void insertEvent(long id, Date time, long experimenterId,
+            long groupId, long sessionId, String type) {
+        _jdbc().update(_lookup("insert_event"), //$NON-NLS-1$
+                id, time, experimenterId, groupId, sessionId, type);
+    }
+
     public List<Map<String, Object>> roiByImageAndNs(final long imageId,
             final String ns) {
         String queryString;
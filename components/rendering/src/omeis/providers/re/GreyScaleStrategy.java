@@ -174,9 +174,12 @@ class GreyScaleStrategy extends RenderingStrategy {
         if (plane.isXYPlanar())
         {
         	int planeSize = sizeX1 * sizeX2;
+        	// Quantize the whole plane into the output buffer and pack each
+        	// value in place.
+        	qs.quantize(plane.getData(), 0, planeSize, buf, 0);
         	for (int i = 0; i < planeSize; i++)
         	{
-                discreteValue = qs.quantize(plane.getPixelValue(i));
+                discreteValue = buf[i];
                 // Right now we have no transforms being used so it's safe to
                 // comment this out for the time being.
                 //discreteValue = cc.transform(discreteValue);
@@ -237,9 +240,12 @@ class GreyScaleStrategy extends RenderingStrategy {
         if (plane.isXYPlanar())
         {
         	int planeSize = sizeX1 * sizeX2;
+        	// Quantize the whole plane into the output buffer and pack each
+        	// value in place.
+        	qs.quantize(plane.getData(), 0, planeSize, buf, 0);
         	for (int i = 0; i < planeSize; i++)
         	{
-                discreteValue = qs.quantize(plane.getPixelValue(i));
+                discreteValue = buf[i];
                 // Right now we have no transforms being used so it's safe to
                 // comment this out for the time being.
                 //discreteValue = cc.transform(discreteValue);
@@ -14,9 +14,6 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 // Third-party libraries
 import org.apache.commons.logging.Log;
@@ -45,8 +42,9 @@ import omeis.providers.re.quantum.QuantumStrategy;
  * rendering context.
  * <p>
  * This strategy renders the in "regions", dividing the planar data up based
- * on {@link #maxTasks} and assigning each task to its own thread. This should
- * result in parallel rendering on multi-processor machines.
+ * on {@link RenderingExecutor#getMaxTasks(long)} and handing the tasks to the
+ * renderer's shared {@link RenderingExecutor}. This should result in parallel
+ * rendering on multi-processor machines.
  * </p>
  * <p>
  * Thread-safety relies on the fact that the rendering context is not going to
@@ -70,12 +68,13 @@ class HSBStrategy extends RenderingStrategy {
     
     /**
      * Retrieves the maximum number of reasonable tasks to schedule based on
-     * image size and <i>maxTasks</i>.
+     * image size and the number the executor allows for a plane of that size.
      * 
      * @param size The width along the X2 axis.
      * @return the number of tasks to schedule.
      */
     private int numTasks(int size) {
+        int maxTasks = renderer.getExecutor().getMaxTasks((long) sizeX1 * size);
         for (int i = maxTasks; i > 0; i--) {
             if (size % i == 0) {
                 return i;
@@ -222,7 +221,9 @@ class HSBStrategy extends RenderingStrategy {
         int x1Start = 0;
         int x1End = sizeX1;
         int x2Start, x2End;
-        log.info("taskCount: "+taskCount+" delta: "+delta);
+        if (log.isDebugEnabled()) {
+            log.debug("taskCount: "+taskCount+" delta: "+delta);
+        }
         for (int i = 0; i < taskCount; i++) {
             x2Start = i*delta;
             x2End = (i+1)*delta;
@@ -310,33 +311,7 @@ class HSBStrategy extends RenderingStrategy {
         // just use the current thread.
         RenderingTask[] tasks = makeRenderingTasks(planeDef, buf);
         performanceStats.startRendering();
-        int n = tasks.length;
-        Future[] rndTskFutures = new Future[n]; // [0] unused.
-        ExecutorService processor = Executors.newCachedThreadPool();
-
-        while (0 < --n) {
-            rndTskFutures[n] = processor.submit(tasks[n]);
-        }
-
-        // Call the task in the current thread.
-        if (n == 0) {
-            tasks[0].call();
-        }
-
-        // Wait for all forked tasks (if any) to complete.
-        for (n = 1; n < rndTskFutures.length; ++n) {
-            try {
-                rndTskFutures[n].get();
-            } catch (Exception e) {
-                if (e instanceof QuantizationException) {
-                    throw (QuantizationException) e;
-                }
-                throw new RuntimeException(e);
-            }
-        }
-
-        // Shutdown the task processor
-        processor.shutdown();
+        renderer.getExecutor().execute(tasks);
 
         // End the performance metrics for this rendering event.
         performanceStats.endRendering();
@@ -204,6 +204,7 @@ class RenderHSBRegionTask implements RenderingTask {
         int width = x1End - x1Start;
         int i = 0;
         int[] buf = ((RGBIntBuffer) dataBuffer).getDataBuffer();
+        int[] row = new int[width];  // Quantized values of one XY row.
         boolean isPrimaryColor = optimizations.isPrimaryColorEnabled();
         boolean isAlphaless = optimizations.isAlphalessRendering();
         for (Plane2D plane : wData) {
@@ -218,7 +219,6 @@ class RenderHSBRegionTask implements RenderingTask {
             		color[ColorsFactory.BLUE_INDEX] / 255.0 : 0.0;
             boolean isXYPlanar = plane.isXYPlanar();
             PixelData data = plane.getData();
-            int bytesPerPixel = data.bytesPerPixel();
 
             // Get our color offset if we've got the primary color optimization
             // enabled.
@@ -228,12 +228,12 @@ class RenderHSBRegionTask implements RenderingTask {
             float alpha = new Integer(
             		color[ColorsFactory.ALPHA_INDEX]).floatValue() / 255;
             for (int x2 = x2Start; x2 < x2End; ++x2) {
+                if (isXYPlanar)
+                    qs.quantize(data, width * x2 + x1Start, width, row, 0);
                 for (int x1 = x1Start; x1 < x1End; ++x1) {
                     pix = width * x2 + x1;
                     if (isXYPlanar)
-                    	discreteValue = 
-                    		qs.quantize(
-                    			data.getPixelValueDirect(pix * bytesPerPixel));
+                    	discreteValue = row[x1 - x1Start];
                     else
                     	discreteValue = 
                     		qs.quantize(plane.getPixelValue(x1, x2));
@@ -326,6 +326,7 @@ class RenderHSBRegionTask implements RenderingTask {
         int width = x1End - x1Start;
         int i = 0;
         int[] buf = ((RGBAIntBuffer) dataBuffer).getDataBuffer();
+        int[] row = new int[width];  // Quantized values of one XY row.
         boolean isPrimaryColor = optimizations.isPrimaryColorEnabled();
         boolean isAlphaless = optimizations.isAlphalessRendering();
         for (Plane2D plane : wData) {
@@ -339,7 +340,6 @@ class RenderHSBRegionTask implements RenderingTask {
             		color[ColorsFactory.BLUE_INDEX] / 255.0 : 0.0;
             boolean isXYPlanar = plane.isXYPlanar();
             PixelData data = plane.getData();
-            int bytesPerPixel = data.bytesPerPixel();
 
             // Get our color offset if we've got the primary color optimization
             // enabled.
@@ -348,12 +348,12 @@ class RenderHSBRegionTask implements RenderingTask {
 
             float alpha = new Integer(color[ColorsFactory.ALPHA_INDEX]).floatValue() / 255;
             for (int x2 = x2Start; x2 < x2End; ++x2) {
+                if (isXYPlanar)
+                    qs.quantize(data, width * x2 + x1Start, width, row, 0);
                 for (int x1 = x1Start; x1 < x1End; ++x1) {
                     pix = width * x2 + x1;
                     if (isXYPlanar)
-                    	discreteValue = 
-                    		qs.quantize(
-                    			data.getPixelValueDirect(pix * bytesPerPixel));
+                    	discreteValue = row[x1 - x1Start];
                     else
                     	discreteValue = 
                     		qs.quantize(plane.getPixelValue(x1, x2));
@@ -20,6 +20,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 // Application-internal dependencies
+import ome.conditions.ApiUsageException;
 import ome.conditions.ResourceError;
 import ome.io.nio.PixelBuffer;
 import ome.model.core.Pixels;
@@ -29,10 +30,12 @@ import ome.model.display.RenderingDef;
 import ome.model.enums.Family;
 import ome.model.enums.PixelsType;
 import ome.model.enums.RenderingModel;
+import ome.model.stats.StatsInfo;
 import omeis.providers.re.codomain.CodomainChain;
 import omeis.providers.re.data.PlaneDef;
 import omeis.providers.re.data.PlaneFactory;
 import omeis.providers.re.data.RegionDef;
+import omeis.providers.re.metadata.StatsFactory;
 import omeis.providers.re.quantum.QuantizationException;
 import omeis.providers.re.quantum.QuantumFactory;
 import omeis.providers.re.quantum.QuantumStrategy;
@@ -138,6 +141,12 @@ public class Renderer {
     /** Map of overlays we've currently been told to render. */
     private Map<byte[], Integer> overlays;
 
+    /**
+     * Runs the rendering tasks of multi-threaded strategies. Falls back to
+     * {@link RenderingExecutor#getDefault()} if never set.
+     */
+    private RenderingExecutor executor;
+
     /**
      * Returns a copy of a list of channel bindings with one element removed;
      * the so called "other" channel bindings for the image.
@@ -713,6 +722,30 @@ public class Renderer {
         return stats;
     }
 
+    /**
+     * Returns the executor that rendering strategies should hand their
+     * {@link RenderingTask}s to.
+     * 
+     * @return See above.
+     */
+    public RenderingExecutor getExecutor() {
+        if (executor == null) {
+            return RenderingExecutor.getDefault();
+        }
+        return executor;
+    }
+
+    /**
+     * Sets the executor that rendering strategies should hand their
+     * {@link RenderingTask}s to. Usually shared by all renderers.
+     * 
+     * @param executor The executor to use or <code>null</code> to use the
+     *                 default one.
+     */
+    public void setExecutor(RenderingExecutor executor) {
+        this.executor = executor;
+    }
+
    
 
     //
@@ -931,6 +964,48 @@ public class Renderer {
 		return qs.getPixelsTypeMax();
 	}
 
+    /**
+     * Computes the histogram of the intensity values of a channel at the
+     * current resolution level. The bins evenly divide the interval between
+     * the global minimum and maximum of the channel or, if those are not
+     * known, the range of the pixels type.
+     * 
+     * @param w The channel index.
+     * @param binCount The number of bins.
+     * @param pd The plane to handle. If a region is set, only that region is
+     *           used.
+     * @param wholeStack Pass <code>true</code> to handle all the sections at
+     *                   the timepoint of <code>pd</code>.
+     * @return The number of pixels in each bin.
+     * @throws IOException If the pixel data cannot be read.
+     */
+    public int[] getHistogram(int w, int binCount, PlaneDef pd,
+            boolean wholeStack) throws IOException
+    {
+        if (pd == null)
+        {
+            throw new ApiUsageException("The plane definition is required.");
+        }
+        int sizeC = metadata.getSizeC();
+        if (w < 0 || w >= sizeC)
+        {
+            throw new ApiUsageException("The channel must be between 0 and "
+                    + (sizeC - 1) + ": " + w);
+        }
+        StatsFactory sf = new StatsFactory();
+        double[] range;
+        StatsInfo stats = metadata.getChannel(w).getStatsInfo();
+        if (stats == null) {
+            range = sf.initPixelsRange(metadata.getPixelsType());
+        } else {
+            range = new double[] { stats.getGlobalMin(), stats.getGlobalMax() };
+        }
+        int zStart = wholeStack ? 0 : pd.getZ();
+        int zEnd = wholeStack ? metadata.getSizeZ() - 1 : pd.getZ();
+        return sf.computeHistogram(buffer, pd, w, zStart, zEnd, binCount,
+                range[0], range[1], getExecutor());
+    }
+
     /**
      * Sets the active resolution level.
      * @param resolutionLevel The resolution level to be used by the renderer.
@@ -0,0 +1,185 @@
+/*
+ * omeis.providers.re.RenderingExecutor
+ *
+ *   Copyright 2012 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+// Java imports
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Third-party libraries
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+// Application-internal dependencies
+import omeis.providers.re.quantum.QuantizationException;
+
+/**
+ * Bounded pool of worker threads shared by all {@link RenderingStrategy}
+ * instances which split a plane into several {@link RenderingTask}s.
+ * <p>
+ * A single pool per server keeps the number of rendering threads constant,
+ * however many planes are rendered concurrently. When the work queue is full,
+ * tasks are run by the thread which submitted them, so that callers are
+ * slowed down rather than more threads being started. Planes with fewer than
+ * {@link #getMinPixelsPerTask()} pixels per task are rendered entirely on the
+ * calling thread since the hand-off would cost more than it saves.
+ * </p>
+ *
+ * @since Beta4.4
+ */
+public class RenderingExecutor {
+
+    /** The logger for this particular class */
+    private static Log log = LogFactory.getLog(RenderingExecutor.class);
+
+    /** Default minimum number of pixels each task should render. */
+    public static final int DEFAULT_MIN_PIXELS_PER_TASK = 256 * 256;
+
+    /** Shared instance used by renderers which have not been given one. */
+    private static RenderingExecutor defaultInstance;
+
+    /** The workers. */
+    private final ThreadPoolExecutor pool;
+
+    /** The maximum number of tasks a single plane is split into. */
+    private final int maxTasks;
+
+    /** The minimum number of pixels each task should render. */
+    private final int minPixelsPerTask;
+
+    /**
+     * Returns the executor used by any {@link Renderer} which has not been
+     * given one, creating it on first use with one thread per processor.
+     *
+     * @return See above.
+     */
+    public static synchronized RenderingExecutor getDefault() {
+        if (defaultInstance == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            defaultInstance = new RenderingExecutor(threads, threads * 16,
+                    DEFAULT_MIN_PIXELS_PER_TASK);
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param threads
+     *            The number of worker threads. Also the maximum number of
+     *            tasks a single plane is split into.
+     * @param queueSize
+     *            The maximum number of tasks waiting for a worker.
+     * @param minPixelsPerTask
+     *            The minimum number of pixels each task should render.
+     */
+    public RenderingExecutor(int threads, int queueSize, int minPixelsPerTask) {
+        maxTasks = Math.max(1, threads);
+        this.minPixelsPerTask = Math.max(1, minPixelsPerTask);
+        pool = new ThreadPoolExecutor(maxTasks, maxTasks, 60L,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                new WorkerThreadFactory(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        log.info(String.format("Rendering executor: threads=%d queue=%d "
+                + "minPixelsPerTask=%d", maxTasks, queueSize,
+                this.minPixelsPerTask));
+    }
+
+    /**
+     * Returns the number of tasks a plane of the given size should be split
+     * into. Returns <code>1</code> for planes which are too small to benefit
+     * from being rendered in parallel.
+     *
+     * @param pixels
+     *            The number of pixels in the plane to render.
+     * @return See above.
+     */
+    public int getMaxTasks(long pixels) {
+        long tasks = pixels / minPixelsPerTask;
+        if (tasks <= 1) {
+            return 1;
+        }
+        return (int) Math.min(maxTasks, tasks);
+    }
+
+    /**
+     * Returns the minimum number of pixels each task should render.
+     *
+     * @return See above.
+     */
+    public int getMinPixelsPerTask() {
+        return minPixelsPerTask;
+    }
+
+    /**
+     * Runs all the tasks and returns once they have all completed. The first
+     * task is always run on the calling thread.
+     *
+     * @param tasks
+     *            The tasks to run.
+     * @throws QuantizationException
+     *             If any of the tasks failed to quantize its data.
+     */
+    public void execute(RenderingTask[] tasks) throws QuantizationException {
+        int n = tasks.length;
+        Future[] futures = new Future[n]; // [0] unused.
+        while (0 < --n) {
+            futures[n] = pool.submit(tasks[n]);
+        }
+
+        // Call the task in the current thread.
+        if (n == 0) {
+            tasks[0].call();
+        }
+
+        // Wait for all forked tasks (if any) to complete.
+        for (n = 1; n < futures.length; ++n) {
+            try {
+                futures[n].get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof QuantizationException) {
+                    throw (QuantizationException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Stops all workers. Tasks already queued are still run.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Names worker threads so that they are identifiable in thread dumps.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "RenderingWorker-"
+                    + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
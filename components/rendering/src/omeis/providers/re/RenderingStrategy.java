@@ -66,11 +66,6 @@ abstract class RenderingStrategy {
      * &#151; <i>XZ</i> plane.
      */
     protected int sizeX2;
-    
-    /**
-     * The maximum number of tasks that we will be using during rendering.
-     */
-    protected int maxTasks;
 
     /**
      * Checks if the passed region is valid.
@@ -153,7 +148,6 @@ abstract class RenderingStrategy {
      */
     protected RenderingStrategy()
     {
-    	maxTasks = Runtime.getRuntime().availableProcessors();
     }
 
     /**
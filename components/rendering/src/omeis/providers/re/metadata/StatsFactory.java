@@ -13,6 +13,7 @@ package omeis.providers.re.metadata;
 
 // Application-internal dependencies
 import java.awt.Dimension;
+import java.io.IOException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -23,10 +24,14 @@ import ome.model.core.Channel;
 import ome.model.core.Pixels;
 import ome.model.enums.PixelsType;
 import ome.model.stats.StatsInfo;
+import ome.util.PixelData;
+import omeis.providers.re.RenderingExecutor;
+import omeis.providers.re.RenderingTask;
 import omeis.providers.re.data.Plane2D;
 import omeis.providers.re.data.PlaneDef;
 import omeis.providers.re.data.PlaneFactory;
 import omeis.providers.re.data.RegionDef;
+import omeis.providers.re.quantum.QuantizationException;
 import omeis.providers.re.quantum.QuantumStrategy;
 
 /**
@@ -110,42 +115,31 @@ public class StatsFactory {
 
         // check segment [o,e[
         double v;
-        BasicSegment segment;
+        int i;
         if (p2D.isXYPlanar()) {
             // modified code
             int size = sizeX1 * sizeX2;
             for (int j = 0; j < size; j++) {
                 v = p2D.getPixelValue(j);
-                for (int i = 0; i < segments.length; i++) {
-                    segment = segments[i];
-                    if (v >= segment.x1 && v < segment.x2) {
-                        totals[i]++;
-                        break;
-                    }
-                } // end i
+                i = binIndex(v, gMin, sizeBin, NB_BIN);
+                if (i >= 0 && i < NB_BIN && v == v) {
+                    totals[i]++;
+                }
             }
         } else {
             for (int x2 = 0; x2 < sizeX2; ++x2) {
                 for (int x1 = 0; x1 < sizeX1; ++x1) {
                     v = p2D.getPixelValue(x1, x2);
-                    for (int i = 0; i < segments.length; i++) {
-                        segment = segments[i];
-                        if (v >= segment.x1 && v < segment.x2) {
-                            totals[i]++;
-                            break;
-                        }
-                        /*
-                         * if (!segments[i].equals(1, pointX1, pointX2) &&
-                         * segments[i].lies(pointX1, pointX2)) { totals[i]++;
-                         * break; }
-                         */
-                    } // end i
+                    i = binIndex(v, gMin, sizeBin, NB_BIN);
+                    if (i >= 0 && i < NB_BIN && v == v) {
+                        totals[i]++;
+                    }
                 } // end x1
             }// end x2
         }
 
         double total = sizeX2 * sizeX1;
-        for (int i = 0; i < totals.length; i++) {
+        for (i = 0; i < totals.length; i++) {
             locationStats[i] += totals[i] / total;
         }
         // Default, we assume that we have at least 3 sub-intervals.
@@ -174,6 +168,39 @@ public class StatsFactory {
         noiseReduction = noiseReduction();
     }
 
+    /**
+     * Returns the index of the bin <code>[min + i * sizeBin,
+     * min + (i + 1) * sizeBin[</code> which contains the passed value,
+     * <code>-1</code> if the value is below the first bin or
+     * <code>binCount</code> if it is above the last one. The index is
+     * computed rather than searched for and then corrected by at most one bin
+     * so that values on a bound fall on the same side as when comparing
+     * against the bounds.
+     * 
+     * @param v The value to locate.
+     * @param min The lower bound of the first bin.
+     * @param sizeBin The size of each bin.
+     * @param binCount The number of bins.
+     * @return See above.
+     */
+    static int binIndex(double v, double min, double sizeBin, int binCount) {
+        double f = Math.floor((v - min) / sizeBin);
+        int i;
+        if (f < 0) {
+            i = 0;
+        } else if (f >= binCount) {
+            i = binCount - 1;
+        } else {
+            i = (int) f;
+        }
+        if (v < min + i * sizeBin) {
+            i--;
+        } else if (v >= min + (i + 1) * sizeBin) {
+            i++;
+        }
+        return i;
+    }
+
     /** Determines the value of the noiseReduction flag. */
     private boolean noiseReduction() {
         double sumMin = 0, sumMax = 0;
@@ -349,6 +376,170 @@ public class StatsFactory {
         }, pixelsData, (int) tileSize.getWidth(), (int) tileSize.getHeight());
     }
 
+    /**
+     * Computes the histogram of the intensity values of a channel over a
+     * region of one or more <i>XY</i>-planes. The <code>binCount</code> bins
+     * evenly divide <code>[min, max]</code>; values outside of that interval
+     * are counted in the first or last bin. The planes are read tile by tile
+     * at the current resolution level of the buffer.
+     * 
+     * @param pixelsData The buffer to read from.
+     * @param pd The plane to handle. Only the region, if any, and the
+     *           timepoint are used.
+     * @param index The channel index.
+     * @param zStart The first section to handle.
+     * @param zEnd The last section to handle, inclusive.
+     * @param binCount The number of bins.
+     * @param min The lower bound of the first bin.
+     * @param max The upper bound of the last bin.
+     * @param executor Used to bin several tiles in parallel. If
+     *                 <code>null</code>, all tiles are binned by the calling
+     *                 thread.
+     * @return The number of pixels in each bin.
+     * @throws IOException If the pixel data cannot be read.
+     */
+    public int[] computeHistogram(PixelBuffer pixelsData, PlaneDef pd,
+            int index, int zStart, int zEnd, int binCount, double min,
+            double max, RenderingExecutor executor) throws IOException {
+        if (binCount < 1) {
+            throw new IllegalArgumentException(
+                    "At least one bin is required: " + binCount);
+        }
+        if (!(max > min)) {
+            max = min + 1;
+        }
+        double binSize = (max - min) / binCount;
+        int x0 = 0, y0 = 0;
+        int width = pixelsData.getSizeX(), height = pixelsData.getSizeY();
+        RegionDef region = pd.getRegion();
+        if (region != null) {
+            x0 = region.getX();
+            y0 = region.getY();
+            width = Math.min(region.getWidth(), width - x0);
+            height = Math.min(region.getHeight(), height - y0);
+        }
+        Dimension tileSize = pixelsData.getTileSize();
+        int tileWidth = (int) tileSize.getWidth();
+        int tileHeight = (int) tileSize.getHeight();
+
+        // Tiles are read by the calling thread, as pixel buffers are not
+        // necessarily thread-safe, and binned in batches.
+        int batchSize = 1;
+        if (executor != null
+                && (long) tileWidth * tileHeight
+                    >= executor.getMinPixelsPerTask()) {
+            batchSize = executor.getMaxTasks(Long.MAX_VALUE);
+        }
+        HistogramTask[] tasks = new HistogramTask[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            tasks[i] = new HistogramTask(new int[binCount], min, binSize);
+        }
+        int pending = 0;
+        int t = pd.getT();
+        for (int z = zStart; z <= zEnd; z++) {
+            for (int y = y0; y < y0 + height; y += tileHeight) {
+                int h = Math.min(tileHeight, y0 + height - y);
+                for (int x = x0; x < x0 + width; x += tileWidth) {
+                    int w = Math.min(tileWidth, x0 + width - x);
+                    tasks[pending].setData(
+                            pixelsData.getTile(z, index, t, x, y, w, h), w * h);
+                    if (++pending == batchSize) {
+                        runHistogramTasks(tasks, pending, executor);
+                        pending = 0;
+                    }
+                }
+            }
+        }
+        runHistogramTasks(tasks, pending, executor);
+
+        int[] totals = tasks[0].totals;
+        for (int i = 1; i < batchSize; i++) {
+            for (int j = 0; j < binCount; j++) {
+                totals[j] += tasks[i].totals[j];
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Runs the first <code>count</code> tasks, in parallel if there are
+     * several.
+     * 
+     * @param tasks The tasks.
+     * @param count The number of tasks with data to bin.
+     * @param executor The executor to use or <code>null</code>.
+     */
+    private void runHistogramTasks(HistogramTask[] tasks, int count,
+            RenderingExecutor executor) {
+        if (count == 0) {
+            return;
+        }
+        if (count == 1 || executor == null) {
+            for (int i = 0; i < count; i++) {
+                tasks[i].call();
+            }
+            return;
+        }
+        RenderingTask[] batch = new RenderingTask[count];
+        System.arraycopy(tasks, 0, batch, 0, count);
+        try {
+            executor.execute(batch);
+        } catch (QuantizationException e) {
+            // Never thrown by HistogramTask.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the values below which <code>lower</code> and
+     * <code>upper</code> percent of the pixels counted in a histogram lie. The
+     * lower value is the start of the bin where the lower percentile is
+     * reached and the upper value the end of the bin where the upper
+     * percentile is reached.
+     * 
+     * @param totals The histogram as returned by
+     *               {@link #computeHistogram}.
+     * @param min The lower bound of the first bin.
+     * @param max The upper bound of the last bin.
+     * @param lower The lower percentile, between <code>0</code> and
+     *              <code>100</code>.
+     * @param upper The upper percentile, between <code>lower</code> and
+     *              <code>100</code>.
+     * @return An array containing the two values.
+     */
+    public static double[] getPercentiles(int[] totals, double min,
+            double max, double lower, double upper) {
+        if (lower < 0 || upper > 100 || lower > upper) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid percentiles: %s-%s", lower, upper));
+        }
+        long total = 0;
+        for (int i = 0; i < totals.length; i++) {
+            total += totals[i];
+        }
+        double[] values = new double[] { min, max };
+        if (total == 0) {
+            return values;
+        }
+        double binSize = (max - min) / totals.length;
+        double lowerCount = total * lower / 100;
+        double upperCount = total * upper / 100;
+        long sum = 0;
+        boolean lowerFound = false;
+        for (int i = 0; i < totals.length; i++) {
+            sum += totals[i];
+            if (!lowerFound && sum > lowerCount) {
+                values[0] = min + i * binSize;
+                lowerFound = true;
+            }
+            if (sum >= upperCount) {
+                values[1] = min + (i + 1) * binSize;
+                break;
+            }
+        }
+        return values;
+    }
+
     /**
      * Returns the statistics.
      * 
@@ -386,6 +577,74 @@ public class StatsFactory {
         return inputEnd;
     }
 
+    /**
+     * Bins the values of one tile into its own histogram so that several
+     * tiles can be binned at once.
+     */
+    static class HistogramTask implements RenderingTask {
+
+        /** The number of pixels in each bin. */
+        final int[] totals;
+
+        /** The lower bound of the first bin. */
+        private final double min;
+
+        /** The size of each bin. */
+        private final double binSize;
+
+        /** The tile to bin. */
+        private PixelData data;
+
+        /** The number of pixels in the tile. */
+        private int count;
+
+        /**
+         * Creates a new instance.
+         * 
+         * @param totals The histogram to add to.
+         * @param min The lower bound of the first bin.
+         * @param binSize The size of each bin.
+         */
+        HistogramTask(int[] totals, double min, double binSize) {
+            this.totals = totals;
+            this.min = min;
+            this.binSize = binSize;
+        }
+
+        /**
+         * Sets the tile to bin on the next call.
+         * 
+         * @param data The tile.
+         * @param count The number of pixels in the tile.
+         */
+        void setData(PixelData data, int count) {
+            this.data = data;
+            this.count = count;
+        }
+
+        /** Adds each value of the tile to its bin. */
+        public Object call() {
+            int last = totals.length - 1;
+            double v;
+            int i;
+            for (int j = 0; j < count; j++) {
+                v = data.getPixelValue(j);
+                if (v != v) {
+                    continue; // NaN
+                }
+                i = binIndex(v, min, binSize, totals.length);
+                if (i < 0) {
+                    i = 0;
+                } else if (i > last) {
+                    i = last;
+                }
+                totals[i]++;
+            }
+            data = null;
+            return null;
+        }
+    }
+
     // inner class
     class BasicSegment {
 
@@ -8,6 +8,7 @@
 package omeis.providers.re.quantum;
 
 // Java imports
+import java.nio.ByteBuffer;
 
 // Third-party libraries
 import org.apache.commons.logging.Log;
@@ -16,6 +17,7 @@ import org.apache.commons.logging.LogFactory;
 // Application-internal dependencies
 import ome.model.display.QuantumDef;
 import ome.model.enums.PixelsType;
+import ome.util.PixelData;
 
 /**
  * Quantization process. In charge of building a look-up table for each active
@@ -339,4 +341,76 @@ public class Quantization_8_16_bit extends QuantumStrategy {
         return i & 0xFF; // assumed x in [min, max]
     }
 
+    /**
+     * Implemented as specified in {@link QuantumStrategy}. Unsigned 8 bit,
+     * signed and unsigned 16 bit, unsigned 32 bit and float data is read
+     * straight from the backing buffer and looked up in the LUT; values
+     * outside of the LUT are handed to {@link #quantize(double)}. Other pixel
+     * types use the generic implementation.
+     * 
+     * @see QuantumStrategy#quantize(PixelData, int, int, int[], int)
+     */
+    @Override
+    public void quantize(PixelData data, int offset, int count, int[] dest,
+            int destOffset) throws QuantizationException {
+        ByteBuffer buf = data.getData();
+        byte[] lut = LUT;
+        int lo = lutMin, hi = lutMax;
+        int end = destOffset + count;
+        int x, i;
+        switch (data.javaType()) {
+            case PixelData.BYTE:
+                if (data.isSigned()) {
+                    break;
+                }
+                for (i = destOffset; i < end; i++, offset++) {
+                    x = buf.get(offset) & 0xFF;
+                    dest[i] = x < lo || x > hi ? quantize(x)
+                            : lut[x - lo] & 0xFF;
+                }
+                return;
+            case PixelData.SHORT:
+                offset *= 2;
+                if (data.isSigned()) {
+                    for (i = destOffset; i < end; i++, offset += 2) {
+                        x = buf.getShort(offset);
+                        dest[i] = x < lo || x > hi ? quantize(x)
+                                : lut[x - lo] & 0xFF;
+                    }
+                } else {
+                    for (i = destOffset; i < end; i++, offset += 2) {
+                        x = buf.getShort(offset) & 0xFFFF;
+                        dest[i] = x < lo || x > hi ? quantize(x)
+                                : lut[x - lo] & 0xFF;
+                    }
+                }
+                return;
+            case PixelData.INT:
+                if (data.isSigned()) {
+                    break;
+                }
+                offset *= 4;
+                long v;
+                for (i = destOffset; i < end; i++, offset += 4) {
+                    v = buf.getInt(offset) & 0xFFFFFFFFL;
+                    // Saturate as the cast from double in quantize() does.
+                    x = v > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) v;
+                    dest[i] = x < lo || x > hi ? quantize(v)
+                            : lut[x - lo] & 0xFF;
+                }
+                return;
+            case PixelData.FLOAT:
+                offset *= 4;
+                float f;
+                for (i = destOffset; i < end; i++, offset += 4) {
+                    f = buf.getFloat(offset);
+                    x = (int) f;
+                    dest[i] = x < lo || x > hi ? quantize(f)
+                            : lut[x - lo] & 0xFF;
+                }
+                return;
+        }
+        super.quantize(data, offset, count, dest, destOffset);
+    }
+
 }
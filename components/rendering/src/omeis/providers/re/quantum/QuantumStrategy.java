@@ -15,6 +15,7 @@ package omeis.providers.re.quantum;
 import ome.model.display.QuantumDef;
 import ome.model.enums.Family;
 import ome.model.enums.PixelsType;
+import ome.util.PixelData;
 import omeis.providers.re.data.PlaneFactory;
 
 /**
@@ -487,4 +488,30 @@ public abstract class QuantumStrategy {
      */
     public abstract int quantize(double value) throws QuantizationException;
 
+    /**
+     * Maps a run of consecutive pixels to values in the codomain interval.
+     * This is equivalent to calling {@link #quantize(double)} for each pixel
+     * but allows subclasses to avoid the per pixel type dispatch and boxing
+     * to <code>double</code>.
+     * 
+     * @param data
+     *            The pixel data to read from.
+     * @param offset
+     *            The index of the first pixel (not byte) to quantize.
+     * @param count
+     *            The number of pixels to quantize.
+     * @param dest
+     *            The array to write the quantized values into.
+     * @param destOffset
+     *            The index in <code>dest</code> of the first value.
+     * @throws QuantizationException
+     *             If any of the values cannot be quantized.
+     */
+    public void quantize(PixelData data, int offset, int count, int[] dest,
+            int destOffset) throws QuantizationException {
+        for (int i = 0; i < count; i++) {
+            dest[destOffset + i] = quantize(data.getPixelValue(offset + i));
+        }
+    }
+
 }
@@ -15,7 +15,11 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
 
 import loci.formats.FormatException;
 import loci.formats.FormatTools;
@@ -124,6 +128,42 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
 
     public static final String PYR_LOCK_EXT = ".pyr_lock";
 
+    // CONCURRENT READS
+
+    /**
+     * Maximum number of {@link #readers} which may be open at the same time.
+     * If one, all reads are instead serialized on this instance using the
+     * {@link #delegate}.
+     */
+    private final int maxReaders;
+
+    /**
+     * Permits for the {@link #maxReaders} handles; one is held by each thread
+     * currently reading.
+     */
+    private final Semaphore readerPermits;
+
+    /**
+     * Idle read-only handles on the pyramid, each with its own
+     * {@link OmeroPixelsPyramidReader}, which are used for the pixel data
+     * methods so that tiles can be decoded in parallel. The {@link #delegate}
+     * is never placed here and remains in use for metadata and resolution
+     * level changes. Also serves as the lock for {@link #borrowedReaders}.
+     */
+    private final LinkedList<BfPixelBuffer> readers =
+        new LinkedList<BfPixelBuffer>();
+
+    /**
+     * Handles currently in use. On {@link #close()} these are marked so that
+     * they will be closed rather than pooled when they are returned.
+     */
+    private final Set<BfPixelBuffer> borrowedReaders =
+        new HashSet<BfPixelBuffer>();
+
+    /** Handles in use during {@link #close()}. */
+    private final Set<BfPixelBuffer> staleReaders =
+        new HashSet<BfPixelBuffer>();
+
     /**
      * We may want a constructor that takes the id of an imported file
      * or that takes a File object?
@@ -155,6 +195,30 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     public BfPyramidPixelBuffer(TileSizes sizes, Pixels pixels, String filePath, boolean write)
     throws IOException, FormatException
     {
+        this(sizes, pixels, filePath, write, 1);
+    }
+
+    /**
+     * Full constructor which additionally permits concurrent reads once the
+     * pyramid is read-only.
+     *
+     * @param sizes
+     * @param pixels
+     * @param filePath
+     * @param write
+     * @param maxReaders Maximum number of independent reader handles which
+     * will be opened to serve concurrent pixel data requests. Each handle
+     * holds its own file descriptor and parsed IFDs. One (or less) means that
+     * all reads are serialized.
+     * @throws IOException
+     * @throws FormatException
+     */
+    public BfPyramidPixelBuffer(TileSizes sizes, Pixels pixels, String filePath,
+            boolean write, int maxReaders)
+    throws IOException, FormatException
+    {
+        this.maxReaders = Math.max(1, maxReaders);
+        this.readerPermits = new Semaphore(this.maxReaders, true);
         this.sizes = sizes;
         this.readerFile = new File(filePath);
         this.pixels = pixels;
@@ -468,6 +532,158 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
         return delegate;
     }
 
+    /**
+     * Sets the byte order of the pyramid on data read from it.
+     */
+    private PixelData order(PixelData data)
+    {
+        data.setOrder(byteOrder);
+        return data;
+    }
+
+    /**
+     * A single pixel data read against one {@link BfPixelBuffer} handle, with
+     * the z, c and t offsets already rasterized.
+     */
+    private abstract static class Read<T>
+    {
+        abstract T read(BfPixelBuffer buffer) throws IOException;
+    }
+
+    /**
+     * Runs the given read either serialized on this instance using the
+     * {@link #delegate()} or, if {@link #maxReaders} is greater than one,
+     * on a pooled handle without holding the lock on this instance.
+     */
+    private <T> T read(Read<T> read) throws IOException
+    {
+        if (maxReaders == 1)
+        {
+            synchronized (this)
+            {
+                return read.read(delegate());
+            }
+        }
+
+        final BfPixelBuffer buffer = borrowReader();
+        try
+        {
+            return read.read(buffer);
+        }
+        finally
+        {
+            returnReader(buffer);
+        }
+    }
+
+    /**
+     * Takes an idle handle from {@link #readers} or opens a new one, blocking
+     * if {@link #maxReaders} are already in use. The handle is switched to
+     * the current resolution level of the {@link #delegate}.
+     */
+    private BfPixelBuffer borrowReader() throws IOException
+    {
+        final int resolutionLevel;
+        synchronized (this)
+        {
+            // Also closes the writer and opens the primary reader if needed.
+            resolutionLevel = delegate().getResolutionLevel();
+        }
+
+        try
+        {
+            readerPermits.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a reader: "
+                    + readerFile.getAbsolutePath());
+        }
+
+        BfPixelBuffer buffer = null;
+        boolean success = false;
+        try
+        {
+            synchronized (readers)
+            {
+                buffer = readers.poll();
+            }
+            if (buffer == null)
+            {
+                log.debug("Opening additional reader for "
+                        + readerFile.getAbsolutePath());
+                buffer = new BfPixelBuffer(readerFile.getAbsolutePath(),
+                        new OmeroPixelsPyramidReader());
+            }
+            if (buffer.getResolutionLevel() != resolutionLevel)
+            {
+                buffer.setResolutionLevel(resolutionLevel);
+            }
+            synchronized (readers)
+            {
+                borrowedReaders.add(buffer);
+            }
+            success = true;
+            return buffer;
+        }
+        catch (FormatException e)
+        {
+            IOException ioe = new IOException(
+                    "Failed to open reader: " + readerFile.getAbsolutePath());
+            ioe.initCause(e);
+            throw ioe;
+        }
+        finally
+        {
+            if (!success)
+            {
+                readerPermits.release();
+                if (buffer != null)
+                {
+                    closeReader(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a handle obtained from {@link #borrowReader()}, closing it
+     * instead if this instance has been closed in the meantime.
+     */
+    private void returnReader(BfPixelBuffer buffer)
+    {
+        try
+        {
+            synchronized (readers)
+            {
+                borrowedReaders.remove(buffer);
+                if (!staleReaders.remove(buffer))
+                {
+                    readers.add(buffer);
+                    return;
+                }
+            }
+            closeReader(buffer);
+        }
+        finally
+        {
+            readerPermits.release();
+        }
+    }
+
+    private void closeReader(BfPixelBuffer buffer)
+    {
+        try
+        {
+            buffer.close();
+        }
+        catch (Exception e)
+        {
+            log.warn("Failed to close pooled reader", e);
+        }
+    }
+
     /* (non-Javadoc)
      * @see ome.io.bioformats.BfPixelBuffer#setTile(byte[], java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
@@ -624,6 +840,19 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
      */
     public synchronized void close() throws IOException
     {
+        // Handles currently in use are closed as they are returned.
+        List<BfPixelBuffer> idle;
+        synchronized (readers)
+        {
+            staleReaders.addAll(borrowedReaders);
+            idle = new LinkedList<BfPixelBuffer>(readers);
+            readers.clear();
+        }
+        for (BfPixelBuffer buffer : idle)
+        {
+            closeReader(buffer);
+        }
+
         try
         {
             if (delegate != null)
@@ -662,29 +891,31 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getCol(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getCol(Integer x, Integer z, Integer c,
-                                         Integer t)
+    public PixelData getCol(final Integer x, Integer z, Integer c,
+                            Integer t)
             throws IOException, DimensionsOutOfBoundsException
     {
-        t = getRasterizedT(z, c, t);
-        c = 0;
-        z = 0;
-        PixelData data = delegate().getCol(x, z, c, t);
-        data.setOrder(byteOrder);
-        return data;
+        final int rasterizedT = getRasterizedT(z, c, t);
+        return order(read(new Read<PixelData>() {
+            PixelData read(BfPixelBuffer buffer) throws IOException {
+                return buffer.getCol(x, 0, 0, rasterizedT);
+            }
+        }));
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getColDirect(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, byte[])
      */
-    public synchronized byte[] getColDirect(Integer x, Integer z, Integer c,
-            Integer t, byte[] buffer)
+    public byte[] getColDirect(final Integer x, Integer z, Integer c,
+            Integer t, final byte[] buffer)
         throws IOException, DimensionsOutOfBoundsException
     {
-        t = getRasterizedT(z, c, t);
-        c = 0;
-        z = 0;
-        return delegate().getColDirect(x, z, c, t, buffer);
+        final int rasterizedT = getRasterizedT(z, c, t);
+        return read(new Read<byte[]>() {
+            byte[] read(BfPixelBuffer reader) throws IOException {
+                return reader.getColDirect(x, 0, 0, rasterizedT, buffer);
+            }
+        });
     }
 
     /* (non-Javadoc)
@@ -744,28 +975,30 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getPlane(java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getPlane(Integer z, Integer c, Integer t)
+    public PixelData getPlane(Integer z, Integer c, Integer t)
             throws IOException, DimensionsOutOfBoundsException
     {
-        t = getRasterizedT(z, c, t);
-        c = 0;
-        z = 0;
-        PixelData data = delegate().getPlane(z, c, t);
-        data.setOrder(byteOrder);
-        return data;
+        final int rasterizedT = getRasterizedT(z, c, t);
+        return order(read(new Read<PixelData>() {
+            PixelData read(BfPixelBuffer buffer) throws IOException {
+                return buffer.getPlane(0, 0, rasterizedT);
+            }
+        }));
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getPlaneDirect(java.lang.Integer, java.lang.Integer, java.lang.Integer, byte[])
      */
-    public synchronized byte[] getPlaneDirect(Integer z, Integer c, Integer t,
-                                              byte[] buffer)
+    public byte[] getPlaneDirect(Integer z, Integer c, Integer t,
+                                 final byte[] buffer)
             throws IOException, DimensionsOutOfBoundsException
     {
-        t = getRasterizedT(z, c, t);
-        c = 0;
-        z = 0;
-        return delegate().getPlaneDirect(z, c, t, buffer);
+        final int rasterizedT = getRasterizedT(z, c, t);
+        return read(new Read<byte[]>() {
+            byte[] read(BfPixelBuffer reader) throws IOException {
+                return reader.getPlaneDirect(0, 0, rasterizedT, buffer);
+            }
+        });
     }
 
     /* (non-Javadoc)
@@ -783,18 +1016,18 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getPlaneRegion(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getPlaneRegion(Integer x, Integer y,
-            Integer width, Integer height, Integer z, Integer c, Integer t,
-            Integer stride)
+    public PixelData getPlaneRegion(final Integer x, final Integer y,
+            final Integer width, final Integer height, Integer z, Integer c,
+            Integer t, final Integer stride)
             throws IOException, DimensionsOutOfBoundsException
     {
-        t = getRasterizedT(z, c, t);
-        c = 0;
-        z = 0;
-        PixelData data =
-            delegate().getPlaneRegion(x, y, width, height, z, c, t, stride);
-        data.setOrder(byteOrder);
-        return data;
+        final int rasterizedT = getRasterizedT(z, c, t);
+        return order(read(new Read<PixelData>() {
+            PixelData read(BfPixelBuffer buffer) throws IOException {
+                return buffer.getPlaneRegion(x, y, width, height, 0, 0,
+                        rasterizedT, stride);
+            }
+        }));
     }
 
     /* (non-Javadoc)
@@ -838,29 +1071,31 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getRow(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getRow(Integer y, Integer z, Integer c,
-                                         Integer t)
+    public PixelData getRow(final Integer y, Integer z, Integer c,
+                            Integer t)
             throws IOException, DimensionsOutOfBoundsException
     {
-        t = getRasterizedT(z, c, t);
-        c = 0;
-        z = 0;
-        PixelData data = delegate().getRow(y, z, c, t);
-        data.setOrder(byteOrder);
-        return data;
+        final int rasterizedT = getRasterizedT(z, c, t);
+        return order(read(new Read<PixelData>() {
+            PixelData read(BfPixelBuffer buffer) throws IOException {
+                return buffer.getRow(y, 0, 0, rasterizedT);
+            }
+        }));
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getRowDirect(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, byte[])
      */
-    public synchronized byte[] getRowDirect(Integer y, Integer z, Integer c,
-            Integer t, byte[] buffer)
+    public byte[] getRowDirect(final Integer y, Integer z, Integer c,
+            Integer t, final byte[] buffer)
         throws IOException, DimensionsOutOfBoundsException
     {
-        t = getRasterizedT(z, c, t);
-        c = 0;
-        z = 0;
-        return delegate().getRowDirect(y, z, c, t, buffer);
+        final int rasterizedT = getRasterizedT(z, c, t);
+        return read(new Read<byte[]>() {
+            byte[] read(BfPixelBuffer reader) throws IOException {
+                return reader.getRowDirect(y, 0, 0, rasterizedT, buffer);
+            }
+        });
     }
 
     /* (non-Javadoc)
@@ -982,30 +1217,35 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getTile(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getTile(Integer z, Integer c, Integer t,
-            Integer x, Integer y, Integer w, Integer h) throws IOException
+    public PixelData getTile(Integer z, Integer c, Integer t,
+            final Integer x, final Integer y, final Integer w,
+            final Integer h) throws IOException
     {
         checkTileParameters(x, y, w, h);
-        t = getRasterizedT(z, c, t);
-        c = 0;
-        z = 0;
-        PixelData data = delegate().getTile(z, c, t, x, y, w, h);
-        data.setOrder(byteOrder);
-        return data;
+        final int rasterizedT = getRasterizedT(z, c, t);
+        return order(read(new Read<PixelData>() {
+            PixelData read(BfPixelBuffer buffer) throws IOException {
+                return buffer.getTile(0, 0, rasterizedT, x, y, w, h);
+            }
+        }));
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getTileDirect(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, byte[])
      */
-    public synchronized byte[] getTileDirect(Integer z, Integer c, Integer t,
-            Integer x, Integer y, Integer w, Integer h, byte[] buffer)
+    public byte[] getTileDirect(Integer z, Integer c, Integer t,
+            final Integer x, final Integer y, final Integer w,
+            final Integer h, final byte[] buffer)
         throws IOException
     {
         checkTileParameters(x, y, w, h);
-        t = getRasterizedT(z, c, t);
-        c = 0;
-        z = 0;
-        return delegate().getTileDirect(z, c, t, x, y, w, h, buffer);
+        final int rasterizedT = getRasterizedT(z, c, t);
+        return read(new Read<byte[]>() {
+            byte[] read(BfPixelBuffer reader) throws IOException {
+                return reader.getTileDirect(0, 0, rasterizedT, x, y, w, h,
+                        buffer);
+            }
+        });
     }
 
     /* (non-Javadoc)
@@ -11,6 +11,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -64,6 +65,12 @@ public class PixelsService extends AbstractFileSystemService
 	/** Null plane size constant. */
 	public static final int NULL_PLANE_SIZE = 64;
 
+	/**
+	 * Number of tiles each pyramid worker may read ahead of the pyramid
+	 * writer.
+	 */
+	public static final int TILES_PER_WORKER = 4;
+
 	/** Resolver of archived original file paths for pixels sets. */
 	protected FilePathResolver resolver;
 
@@ -73,6 +80,12 @@ public class PixelsService extends AbstractFileSystemService
 	/** TileSizes implementation for default values */
 	protected TileSizes sizes;
 
+	/** Number of threads reading source tiles during pyramid creation. */
+	protected int pyramidWorkers = 1;
+
+	/** Number of concurrent reader handles per pyramid pixel buffer. */
+	protected int pyramidReaders = 1;
+
 	/** Null plane byte array. */
 	public static final byte[] nullPlane = new byte[] { -128, 127, -128, 127,
 			-128, 127, -128, 127, -128, 127, // 10
@@ -135,6 +148,30 @@ public class PixelsService extends AbstractFileSystemService
         this.resolver = resolver;
     }
 
+    /**
+     * Sets the number of threads which will concurrently read source tiles
+     * during {@link #makePyramid(Pixels)}. Tiles are always written to the
+     * pyramid in order by the calling thread.
+     * @param pyramidWorkers Number of workers; values less than one are
+     * treated as one.
+     */
+    public void setPyramidWorkers(int pyramidWorkers)
+    {
+        this.pyramidWorkers = Math.max(1, pyramidWorkers);
+    }
+
+    /**
+     * Sets the number of independent reader handles each
+     * {@link BfPyramidPixelBuffer} may open so that tiles of the same
+     * pyramid can be decoded concurrently. One serializes all reads.
+     * @param pyramidReaders Number of readers; values less than one are
+     * treated as one.
+     */
+    public void setPyramidReaders(int pyramidReaders)
+    {
+        this.pyramidReaders = Math.max(1, pyramidReaders);
+    }
+
 	/**
 	 * Creates a PixelBuffer for a given pixels set.
 	 * 
@@ -225,10 +262,14 @@ public class PixelsService extends AbstractFileSystemService
         final PixelBuffer source;
         final Dimension tileSize;
         final PixelsPyramidMinMaxStore minMaxStore;
+        final ByteOrder sourceByteOrder;
+        final List<PixelBuffer> sources = new ArrayList<PixelBuffer>();
+        final int series = getSeries(pixels);
 
         if (pixelsFile.exists())
         {
             minMaxStore = null;
+            sourceByteOrder = null;
             source = createRomioPixelBuffer(pixelsFilePath, pixels, false);
             // FIXME: This should be configuration or service driven
             // FIXME: Also implemented in RenderingBean.getTileSize()
@@ -237,13 +278,15 @@ public class PixelsService extends AbstractFileSystemService
         }
         else
         {
+            // Min/max values are accumulated from the tiles as they are read
+            // by the pipeline rather than by a MinMaxCalculator, since with
+            // more than one worker each reader only sees part of the data.
             minMaxStore = new PixelsPyramidMinMaxStore(pixels.getSizeC());
-            int series = getSeries(pixels);
-            BfPixelBuffer bfPixelBuffer = createMinMaxBfPixelBuffer(
-                    originalFilePath, series, minMaxStore);
-            pixelsPyramid.setByteOrder(
-                    bfPixelBuffer.isLittleEndian()? ByteOrder.LITTLE_ENDIAN
-                            : ByteOrder.BIG_ENDIAN);
+            BfPixelBuffer bfPixelBuffer = (BfPixelBuffer) createBfPixelBuffer(
+                    originalFilePath, series);
+            sourceByteOrder = bfPixelBuffer.isLittleEndian()?
+                    ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+            pixelsPyramid.setByteOrder(sourceByteOrder);
             source = bfPixelBuffer;
             // If the tile sizes we've been given are completely ridiculous
             // then reset them to WIDTHxHEIGHT. Currently these conditions are:
@@ -279,61 +322,89 @@ public class PixelsService extends AbstractFileSystemService
             }
         }
         log.info("Destination pyramid tile size: " + tileSize);
+        sources.add(source);
 
         try
         {
-            final double totalTiles =
-                source.getSizeZ() * source.getSizeC() * source.getSizeT() *
-                (Math.ceil(source.getSizeX() / tileSize.getWidth())) *
-                (Math.ceil(source.getSizeY() / tileSize.getHeight()));
-            final int tenPercent = Math.max((int) totalTiles / 10, 1);
-            Utils.forEachTile(new TileLoopIteration() {
-                public void run(int z, int c, int t, int x, int y, int w,
-                            int h, int tileCount)
+            // Each worker requires its own reader since neither
+            // RomioPixelBuffer nor Bio-Formats readers are thread-safe.
+            for (int i = 1; i < pyramidWorkers; i++)
             {
-                if (log.isInfoEnabled()
-                    && tileCount % tenPercent == 0)
+                if (minMaxStore == null)
                 {
-                    log.info(String.format(
-                            "Pyramid creation for Pixels:%d %d/%d (%d%%).",
-                            pixels.getId(), tileCount + 1, (int) totalTiles,
-                            (int) (tileCount / totalTiles * 100)));
+                    sources.add(createRomioPixelBuffer(
+                            pixelsFilePath, pixels, false));
                 }
-                try
+                else
                 {
-                    PixelData tile = source.getTile(z, c, t, x, y, w, h);
-                    pixelsPyramid.setTile(
-                            tile.getData().array(), z, c, t, x, y, w, h);
+                    sources.add(createBfPixelBuffer(originalFilePath, series));
                 }
-                catch (IOException e1)
+            }
+            final TilePipeline pipeline = new TilePipeline(sources,
+                    (int) tileSize.getWidth(), (int) tileSize.getHeight(),
+                    sources.size() * TILES_PER_WORKER);
+            log.info(String.format(
+                    "Pyramid creation for Pixels:%d using %d worker(s), " +
+                    "%d tiles in %d planes.", pixels.getId(), sources.size(),
+                    pipeline.getTotalTiles(), pipeline.getTotalPlanes()));
+            pipeline.run(new TilePipeline.Callback() {
+
+                public void tileRead(PixelData tile, int z, int c, int t)
                 {
-                    log.error("FAIL -- Error during tile population", e1);
-                    try
+                    if (minMaxStore != null)
                     {
-                        pixelsPyramidFile.delete();
-                        FileUtils.touch(pixelsPyramidFile); // ticket:5189
+                        tile.setOrder(sourceByteOrder);
+                        minMaxStore.updateChannelMinMax(c, tile);
                     }
-                    catch (Exception e2)
+                }
+
+                public void writeTile(PixelData tile, int z, int c, int t,
+                        int x, int y, int w, int h) throws IOException
+                {
+                    pixelsPyramid.setTile(
+                            tile.getData().array(), z, c, t, x, y, w, h);
+                }
+
+                public void planeWritten(int z, int c, int t, int planeCount,
+                        int totalPlanes)
+                {
+                    if (log.isInfoEnabled())
                     {
-                        log.warn("Error clearing empty or incomplete pixel " +
-                                 "buffer.", e2);
+                        log.info(String.format(
+                                "Pyramid creation for Pixels:%d plane " +
+                                "z:%d c:%d t:%d %d/%d (%d%%).",
+                                pixels.getId(), z, c, t, planeCount,
+                                totalPlanes, planeCount * 100 / totalPlanes));
                     }
-                    return;
                 }
-            }
-            }, source, (int) tileSize.getWidth(), (int) tileSize.getHeight());
+            });
 
             log.info("SUCCESS -- Pyramid created for pixels id:" + pixels.getId());
 
         }
+        catch (IOException e1)
+        {
+            log.error("FAIL -- Error during tile population", e1);
+            try
+            {
+                pixelsPyramidFile.delete();
+                FileUtils.touch(pixelsPyramidFile); // ticket:5189
+            }
+            catch (Exception e2)
+            {
+                log.warn("Error clearing empty or incomplete pixel " +
+                         "buffer.", e2);
+            }
+            return null; // Statistics are incomplete; closed in finally.
+        }
 
         finally
         {
-            if (source != null)
+            for (PixelBuffer toClose : sources)
             {
                 try
                 {
-                    source.close();
+                    toClose.close();
                 }
                 catch (IOException e)
                 {
@@ -633,7 +704,8 @@ public class PixelsService extends AbstractFileSystemService
                 // #5159. Creating the path if we need to write.
                 createSubpath(filePath);
             }
-            return new BfPyramidPixelBuffer(pixels, filePath, write);
+            return new BfPyramidPixelBuffer(new ConfiguredTileSizes(), pixels,
+                    filePath, write, pyramidReaders);
         }
         catch (Exception e)
         {
@@ -695,12 +767,16 @@ public class PixelsService extends AbstractFileSystemService
     {
         final double[][] channelGlobalMinMax;
 
+        /** Whether or not any tile has been seen for a given channel. */
+        final boolean[] channelSeen;
+
         final int sizeC;
 
         public PixelsPyramidMinMaxStore(int sizeC)
         {
             this.sizeC = sizeC;
             channelGlobalMinMax = new double[sizeC][2];
+            channelSeen = new boolean[sizeC];
         }
 
         /* (non-Javadoc)
@@ -709,8 +785,55 @@ public class PixelsService extends AbstractFileSystemService
         public void setChannelGlobalMinMax(int channel, double minimum,
                                            double maximum, int series)
         {
-            channelGlobalMinMax[channel][0] = minimum;
-            channelGlobalMinMax[channel][1] = maximum;
+            synchronized (channelGlobalMinMax)
+            {
+                channelGlobalMinMax[channel][0] = minimum;
+                channelGlobalMinMax[channel][1] = maximum;
+                channelSeen[channel] = true;
+            }
+        }
+
+        /**
+         * Merges the values of a tile into the global minimum and maximum
+         * of a channel. Safe to be called concurrently.
+         * @param channel Channel the tile belongs to.
+         * @param tile Tile data in the source byte order.
+         */
+        public void updateChannelMinMax(int channel, PixelData tile)
+        {
+            int size = tile.size();
+            if (size == 0)
+            {
+                return;
+            }
+            double minimum = tile.getPixelValue(0);
+            double maximum = minimum;
+            for (int i = 1; i < size; i++)
+            {
+                double value = tile.getPixelValue(i);
+                if (value < minimum)
+                {
+                    minimum = value;
+                }
+                else if (value > maximum)
+                {
+                    maximum = value;
+                }
+            }
+            synchronized (channelGlobalMinMax)
+            {
+                if (!channelSeen[channel])
+                {
+                    channelGlobalMinMax[channel][0] = minimum;
+                    channelGlobalMinMax[channel][1] = maximum;
+                    channelSeen[channel] = true;
+                    return;
+                }
+                channelGlobalMinMax[channel][0] =
+                    Math.min(channelGlobalMinMax[channel][0], minimum);
+                channelGlobalMinMax[channel][1] =
+                    Math.max(channelGlobalMinMax[channel][1], maximum);
+            }
         }
 
         public StatsInfo[] createStatsInfo()
@@ -0,0 +1,370 @@
+/*
+ * ome.io.nio.TilePipeline
+ *
+ *   Copyright 2011 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.util.PixelData;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Pipelined equivalent of {@link Utils#forEachTile(TileLoopIteration,
+ * PixelBuffer, int, int)}. Tiles are read concurrently by one worker thread
+ * per source {@link PixelBuffer} and are then handed, strictly in the same
+ * order as {@link Utils#forEachTile(TileLoopIteration, int, int, int, int,
+ * int, int, int)} would visit them, to a single writer running on the
+ * calling thread. This allows the (usually expensive) decoding of the source
+ * data to overlap with the writing of the destination, while the destination
+ * still sees a purely sequential stream of tiles.
+ *
+ * Since neither Bio-Formats readers nor {@link PixelBuffer} implementations
+ * are thread-safe, each source must be a distinct instance; all sources must
+ * describe the same pixels set.
+ *
+ * @since OMERO-Beta4.4
+ */
+public class TilePipeline
+{
+    /** The logger for this class. */
+    private final static Log log = LogFactory.getLog(TilePipeline.class);
+
+    /**
+     * Receives tiles from a {@link TilePipeline}.
+     */
+    public interface Callback
+    {
+        /**
+         * Invoked on a worker thread directly after a tile has been read.
+         * Implementations must be thread-safe and are a good place for
+         * per-tile work which does not depend on the tile order (such as
+         * min/max calculations).
+         */
+        void tileRead(PixelData tile, int z, int c, int t);
+
+        /**
+         * Invoked on the thread which called {@link TilePipeline#run},
+         * once per tile and in tile order.
+         */
+        void writeTile(PixelData tile, int z, int c, int t, int x, int y,
+                       int w, int h) throws IOException;
+
+        /**
+         * Invoked on the thread which called {@link TilePipeline#run} after
+         * the last tile of a plane has been passed to {@link #writeTile}.
+         * @param planeCount Number of planes written so far (1-based).
+         * @param totalPlanes Total number of planes which will be written.
+         */
+        void planeWritten(int z, int c, int t, int planeCount,
+                          int totalPlanes);
+    }
+
+    private final List<PixelBuffer> sources;
+
+    private final int sizeX, sizeY, sizeZ, sizeC, sizeT;
+
+    private final int tileWidth, tileHeight;
+
+    private final int tilesPerRow, tilesPerPlane, totalTiles;
+
+    /** Maximum number of tiles read but not yet written. */
+    private final int window;
+
+    /** Guards {@link #ready}, {@link #failure} and {@link #aborted}. */
+    private final Object lock = new Object();
+
+    /** Tiles read by the workers, keyed by their tile index. */
+    private final Map<Integer, PixelData> ready =
+        new HashMap<Integer, PixelData>();
+
+    /** First exception raised by a worker, if any. */
+    private Throwable failure;
+
+    /** Set by the writer once it stops consuming tiles. */
+    private boolean aborted;
+
+    /**
+     * Creates a new pipeline.
+     * @param sources One independent pixel buffer per worker. The first
+     * source is used to determine the dimensions of the pixels set.
+     * @param tileWidth <b>Maximum</b> width of the tiles.
+     * @param tileHeight <b>Maximum</b> height of the tiles.
+     * @param window Maximum number of tiles which may be held in memory
+     * waiting to be written. Must be at least the number of sources.
+     */
+    public TilePipeline(List<PixelBuffer> sources, int tileWidth,
+                        int tileHeight, int window)
+    {
+        if (sources == null || sources.isEmpty())
+        {
+            throw new IllegalArgumentException("At least one source required.");
+        }
+        this.sources = new ArrayList<PixelBuffer>(sources);
+        PixelBuffer first = sources.get(0);
+        this.sizeX = first.getSizeX();
+        this.sizeY = first.getSizeY();
+        this.sizeZ = first.getSizeZ();
+        this.sizeC = first.getSizeC();
+        this.sizeT = first.getSizeT();
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.window = Math.max(window, sources.size());
+        tilesPerRow = (sizeX + tileWidth - 1) / tileWidth;
+        int tilesPerColumn = (sizeY + tileHeight - 1) / tileHeight;
+        tilesPerPlane = tilesPerRow * tilesPerColumn;
+        totalTiles = tilesPerPlane * sizeZ * sizeC * sizeT;
+    }
+
+    /**
+     * Returns the total number of tiles this pipeline will visit.
+     * @return See above.
+     */
+    public int getTotalTiles()
+    {
+        return totalTiles;
+    }
+
+    /**
+     * Returns the total number of planes this pipeline will visit.
+     * @return See above.
+     */
+    public int getTotalPlanes()
+    {
+        return sizeZ * sizeC * sizeT;
+    }
+
+    /**
+     * Reads and writes every tile. Returns once all tiles have been written
+     * or the first error has been encountered, in which case all workers
+     * are stopped before the error is re-thrown.
+     * @param callback Receiver of the tiles.
+     * @return The total number of tiles written.
+     * @throws IOException If either a worker or
+     * {@link Callback#writeTile} fails.
+     */
+    public int run(Callback callback) throws IOException
+    {
+        final AtomicInteger next = new AtomicInteger();
+        final Semaphore permits = new Semaphore(window);
+        ExecutorService workers = Executors.newFixedThreadPool(
+                sources.size(), new WorkerThreadFactory());
+        try
+        {
+            for (PixelBuffer source : sources)
+            {
+                workers.execute(new Worker(source, callback, next, permits));
+            }
+            int[] position = new int[5];
+            for (int i = 0; i < totalTiles; i++)
+            {
+                PixelData tile = take(i);
+                permits.release();
+                position(i, position);
+                int x = position[3] * tileWidth;
+                int y = position[4] * tileHeight;
+                int w = Math.min(tileWidth, sizeX - x);
+                int h = Math.min(tileHeight, sizeY - y);
+                callback.writeTile(tile, position[0], position[1],
+                        position[2], x, y, w, h);
+                if ((i + 1) % tilesPerPlane == 0)
+                {
+                    callback.planeWritten(position[0], position[1],
+                            position[2], (i + 1) / tilesPerPlane,
+                            getTotalPlanes());
+                }
+            }
+            return totalTiles;
+        }
+        finally
+        {
+            synchronized (lock)
+            {
+                aborted = true;
+                ready.clear();
+            }
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Blocks until the tile with the given index has been read.
+     */
+    private PixelData take(int index) throws IOException
+    {
+        synchronized (lock)
+        {
+            while (true)
+            {
+                if (failure != null)
+                {
+                    if (failure instanceof IOException)
+                    {
+                        throw (IOException) failure;
+                    }
+                    if (failure instanceof RuntimeException)
+                    {
+                        throw (RuntimeException) failure;
+                    }
+                    if (failure instanceof Error)
+                    {
+                        throw (Error) failure;
+                    }
+                    IOException e = new IOException("Error reading tile.");
+                    e.initCause(failure);
+                    throw e;
+                }
+                PixelData tile = ready.remove(index);
+                if (tile != null)
+                {
+                    return tile;
+                }
+                try
+                {
+                    lock.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for tile.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Decomposes a tile index into its <code>z, c, t</code> plane and
+     * <code>x, y</code> tile offsets. Tiles are linearized in the same order
+     * as {@link Utils#forEachTile}: X fastest, then Y, Z, C and finally T.
+     */
+    private void position(int index, int[] position)
+    {
+        int plane = index / tilesPerPlane;
+        int tile = index % tilesPerPlane;
+        position[0] = plane % sizeZ;
+        position[1] = (plane / sizeZ) % sizeC;
+        position[2] = plane / (sizeZ * sizeC);
+        position[3] = tile % tilesPerRow;
+        position[4] = tile / tilesPerRow;
+    }
+
+    /**
+     * Claims tile indexes in increasing order and reads them from its own
+     * source. A permit must be held for every tile which has been claimed but
+     * not yet written; since the writer always waits for the lowest claimed
+     * index, the permits bound memory usage without ever deadlocking.
+     */
+    private class Worker implements Runnable
+    {
+        private final PixelBuffer source;
+
+        private final Callback callback;
+
+        private final AtomicInteger next;
+
+        private final Semaphore permits;
+
+        Worker(PixelBuffer source, Callback callback, AtomicInteger next,
+               Semaphore permits)
+        {
+            this.source = source;
+            this.callback = callback;
+            this.next = next;
+            this.permits = permits;
+        }
+
+        public void run()
+        {
+            int[] position = new int[5];
+            try
+            {
+                while (true)
+                {
+                    permits.acquire();
+                    int i = next.getAndIncrement();
+                    if (i >= totalTiles)
+                    {
+                        permits.release();
+                        return;
+                    }
+                    synchronized (lock)
+                    {
+                        if (aborted)
+                        {
+                            return;
+                        }
+                    }
+                    position(i, position);
+                    int x = position[3] * tileWidth;
+                    int y = position[4] * tileHeight;
+                    int w = Math.min(tileWidth, sizeX - x);
+                    int h = Math.min(tileHeight, sizeY - y);
+                    PixelData tile = source.getTile(position[0], position[1],
+                            position[2], x, y, w, h);
+                    callback.tileRead(tile, position[0], position[1],
+                            position[2]);
+                    synchronized (lock)
+                    {
+                        if (aborted)
+                        {
+                            return;
+                        }
+                        ready.put(i, tile);
+                        lock.notifyAll();
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // Shutdown by the writer; nothing to report.
+            }
+            catch (Throwable t)
+            {
+                synchronized (lock)
+                {
+                    if (failure == null && !aborted)
+                    {
+                        log.error("Error reading tile.", t);
+                        failure = t;
+                    }
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Names worker threads so that they are identifiable in thread dumps.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory
+    {
+        private static final AtomicInteger pool = new AtomicInteger();
+
+        private final int poolNumber = pool.incrementAndGet();
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, String.format(
+                    "TilePipeline-%d-worker-%d",
+                    poolNumber, count.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
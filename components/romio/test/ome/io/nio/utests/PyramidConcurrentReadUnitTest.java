@@ -0,0 +1,142 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2011 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ome.io.bioformats.BfPyramidPixelBuffer;
+import ome.io.nio.TileLoopIteration;
+import ome.io.nio.Utils;
+import ome.util.PixelData;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that a {@link BfPyramidPixelBuffer} with several reader handles
+ * returns the same tiles when read from many threads as when read serially.
+ * @since 4.4
+ */
+public class PyramidConcurrentReadUnitTest
+    extends AbstractPyramidPixelBufferUnitTest {
+
+    private final static Log log =
+        LogFactory.getLog(PyramidConcurrentReadUnitTest.class);
+
+    private static final int readers = 4;
+
+    /** Digests of every tile as read serially, in tile order. */
+    private final List<String> expected = new ArrayList<String>();
+
+    /** Tile coordinates (z, c, t, x, y, w, h) in tile order. */
+    private final List<int[]> tiles = new ArrayList<int[]>();
+
+    @BeforeClass
+    public void setup() throws Exception {
+        createService();
+        service.setPyramidReaders(readers);
+        pixelBuffer = service.getPixelBuffer(pixels);
+        writeTiles(new ArrayList<String>());
+        pixelBuffer.close();
+        pixelBuffer = service.getPixelBuffer(pixels);
+
+        Utils.forEachTile(new TileLoopIteration() {
+            public void run(int z, int c, int t, int x, int y, int tileWidth,
+                            int tileHeight, int tileCount) {
+                int[] tile = new int[] { z, c, t, x, y, tileWidth, tileHeight };
+                tiles.add(tile);
+                try {
+                    expected.add(read(tile));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, pixelBuffer, tileWidth, tileHeight);
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        if (pixelBuffer != null) {
+            pixelBuffer.close();
+        }
+        deleteRoot();
+    }
+
+    @Test
+    public void testConcurrentReadsMatchSerialReads() throws Exception {
+        List<String> actual = readAll(readers * 2);
+        assertEquals(actual, expected);
+    }
+
+    @Test(dependsOnMethods = "testConcurrentReadsMatchSerialReads")
+    public void testReadsAfterClose() throws Exception {
+        pixelBuffer.close();
+        List<String> actual = readAll(readers);
+        assertEquals(actual, expected);
+    }
+
+    /**
+     * Logs the tile throughput for an increasing number of reading threads.
+     */
+    @Test(groups = "manual")
+    public void testThroughput() throws Exception {
+        for (int threads = 1; threads <= readers * 2; threads *= 2) {
+            readAll(threads); // Warm up.
+            long start = System.nanoTime();
+            int rounds = 5;
+            for (int i = 0; i < rounds; i++) {
+                readAll(threads);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            log.info(String.format("%d thread(s): %.1f tiles/s", threads,
+                    (rounds * tiles.size()) / seconds));
+        }
+    }
+
+    /**
+     * Reads every tile split across the given number of threads and returns
+     * the digests in tile order.
+     */
+    private List<String> readAll(int threads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (final int[] tile : tiles) {
+                futures.add(executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        return read(tile);
+                    }
+                }));
+            }
+            List<String> digests = new ArrayList<String>();
+            for (Future<String> future : futures) {
+                digests.add(future.get());
+            }
+            return digests;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private String read(int[] tile) throws IOException {
+        PixelData data = pixelBuffer.getTile(tile[0], tile[1], tile[2],
+                tile[3], tile[4], tile[5], tile[6]);
+        return ome.util.Utils.bytesToHex(
+                ome.util.Utils.calculateMessageDigest(data.getData()));
+    }
+}
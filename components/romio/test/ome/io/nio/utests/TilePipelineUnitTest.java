@@ -0,0 +1,193 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2011 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelsService;
+import ome.io.nio.RomioPixelBuffer;
+import ome.io.nio.TileLoopIteration;
+import ome.io.nio.TilePipeline;
+import ome.io.nio.Utils;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link TilePipeline} hands tiles to its writer in exactly the
+ * order and with exactly the content of a sequential
+ * {@link Utils#forEachTile} loop.
+ * @since 4.4
+ */
+public class TilePipelineUnitTest {
+
+    private static final int sizeX = 100;
+
+    private static final int sizeY = 90;
+
+    private static final int sizeZ = 3;
+
+    private static final int sizeC = 2;
+
+    private static final int sizeT = 2;
+
+    private static final int tileWidth = 32;
+
+    private static final int tileHeight = 32;
+
+    private String root;
+
+    private Pixels pixels;
+
+    private PixelsService service;
+
+    private List<PixelBuffer> sources = new ArrayList<PixelBuffer>();
+
+    @BeforeClass
+    public void setup() throws IOException {
+        root = PathUtil.getInstance().getTemporaryDataFilePath();
+        pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(sizeX);
+        pixels.setSizeY(sizeY);
+        pixels.setSizeZ(sizeZ);
+        pixels.setSizeC(sizeC);
+        pixels.setSizeT(sizeT);
+        PixelsType type = new PixelsType();
+        type.setValue("uint16");
+        pixels.setPixelsType(type);
+        service = new PixelsService(root);
+
+        PixelBuffer writer = service.createPixelBuffer(pixels);
+        try {
+            short value = 0;
+            for (int t = 0; t < sizeT; t++) {
+                for (int c = 0; c < sizeC; c++) {
+                    for (int z = 0; z < sizeZ; z++) {
+                        byte[] plane = new byte[sizeX * sizeY * 2];
+                        ByteBuffer buffer = ByteBuffer.wrap(plane);
+                        for (int i = 0; i < sizeX * sizeY; i++) {
+                            buffer.putShort(value++);
+                        }
+                        writer.setPlane(plane, z, c, t);
+                    }
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        for (int i = 0; i < 3; i++) {
+            sources.add(new RomioPixelBuffer(
+                    service.getPixelsPath(pixels.getId()), pixels));
+        }
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        for (PixelBuffer source : sources) {
+            source.close();
+        }
+        FileUtils.deleteDirectory(new File(root));
+    }
+
+    @Test
+    public void testTilesWrittenInLoopOrder() throws IOException {
+        final List<String> expected = new ArrayList<String>();
+        final PixelBuffer reference = sources.get(0);
+        Utils.forEachTile(new TileLoopIteration() {
+            public void run(int z, int c, int t, int x, int y, int w, int h,
+                            int tileCount) {
+                try {
+                    PixelData tile = reference.getTile(z, c, t, x, y, w, h);
+                    expected.add(describe(tile, z, c, t, x, y, w, h));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, reference, tileWidth, tileHeight);
+
+        final List<String> written = new ArrayList<String>();
+        final List<Integer> planes = new ArrayList<Integer>();
+        TilePipeline pipeline =
+            new TilePipeline(sources, tileWidth, tileHeight, 6);
+        int tileCount = pipeline.run(new TilePipeline.Callback() {
+            public void tileRead(PixelData tile, int z, int c, int t) {
+                // Nothing to do.
+            }
+            public void writeTile(PixelData tile, int z, int c, int t,
+                    int x, int y, int w, int h) {
+                written.add(describe(tile, z, c, t, x, y, w, h));
+            }
+            public void planeWritten(int z, int c, int t, int planeCount,
+                    int totalPlanes) {
+                assertEquals(totalPlanes, sizeZ * sizeC * sizeT);
+                planes.add(planeCount);
+            }
+        });
+        assertEquals(tileCount, expected.size());
+        assertEquals(written, expected);
+        assertEquals(planes.size(), sizeZ * sizeC * sizeT);
+        assertEquals(planes.get(planes.size() - 1).intValue(),
+                sizeZ * sizeC * sizeT);
+    }
+
+    @Test
+    public void testReadFailureIsRethrown() throws IOException {
+        List<PixelBuffer> failing = new ArrayList<PixelBuffer>();
+        failing.add(new RomioPixelBuffer(
+                service.getPixelsPath(pixels.getId()), pixels) {
+            @Override
+            public PixelData getTile(Integer z, Integer c, Integer t,
+                    Integer x, Integer y, Integer w, Integer h)
+                    throws IOException {
+                throw new IOException("Expected failure.");
+            }
+        });
+        try {
+            new TilePipeline(failing, tileWidth, tileHeight, 8).run(
+                    new TilePipeline.Callback() {
+                public void tileRead(PixelData tile, int z, int c, int t) {
+                }
+                public void writeTile(PixelData tile, int z, int c, int t,
+                        int x, int y, int w, int h) {
+                }
+                public void planeWritten(int z, int c, int t,
+                        int planeCount, int totalPlanes) {
+                }
+            });
+            fail("Expected IOException.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Expected failure."));
+        } finally {
+            failing.get(0).close();
+        }
+    }
+
+    private String describe(PixelData tile, int z, int c, int t, int x, int y,
+                            int w, int h) {
+        byte[] data = new byte[tile.getData().capacity()];
+        tile.getData().rewind();
+        tile.getData().get(data);
+        return String.format("%d/%d/%d/%d/%d/%d/%d/%d", z, c, t, x, y, w, h,
+                Arrays.hashCode(data));
+    }
+}
@@ -21,6 +21,15 @@ import java.io.OutputStream;
  */
 public interface LocalCompress {
 
+    /** Lossy JPEG output, the default compression format. */
+    public static final String JPEG = "jpeg";
+
+    /**
+     * Lossless PNG output, palette-indexed for images with no more than 256
+     * colours.
+     */
+    public static final String PNG = "png";
+
     /**
      * Compresses a buffered image to an output stream.
      * 
@@ -34,6 +43,18 @@ public interface LocalCompress {
 	void compressToStream(BufferedImage image, OutputStream outputStream)
 		throws IOException;
 
+	/**
+	 * Compresses a buffered image to a byte array, using an output buffer
+	 * which is reused by the calling thread.
+	 * 
+	 * @param image
+	 *            the buffered image.
+	 * @return the compressed image.
+	 * @throws IOException
+	 *             if there is a problem when compressing <i>image</i>.
+	 */
+	byte[] compressToBytes(BufferedImage image) throws IOException;
+
 	/**
 	 * Sets the current compression level for the service. (The default is 85%)
 	 * 
@@ -50,4 +71,20 @@ public interface LocalCompress {
 	 * @returns See above.
 	 */
 	float getCompressionLevel();
+
+	/**
+	 * Sets the format images are compressed to. (The default is
+	 * {@link #JPEG}) The compression level only applies to lossy formats.
+	 * 
+	 * @param format Either {@link #JPEG} or {@link #PNG}, ignoring case.
+	 * @throws ApiUsageException if the <code>format</code> is not supported.
+	 */
+	void setCompressionFormat(String format);
+
+	/**
+	 * Returns the format images are compressed to.
+	 * 
+	 * @return See above.
+	 */
+	String getCompressionFormat();
 }
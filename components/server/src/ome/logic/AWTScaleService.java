@@ -9,6 +9,7 @@ package ome.logic;
 
 // Java imports
 import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.WritableRaster;
@@ -20,6 +21,7 @@ import org.apache.commons.logging.LogFactory;
 
 // Application-internal dependencies
 import ome.api.IScale;
+import ome.util.ImageUtil;
 
 /**
  * Provides methods for scaling buffered images.
@@ -46,6 +48,20 @@ public class AWTScaleService implements IScale {
         int thumbWidth = (int) (image.getWidth() * xScale);
         log.info("Scaling to: " + thumbHeight + "x" + thumbWidth);
 
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (thumbWidth <= width && thumbHeight <= height
+                && image.getType() == BufferedImage.TYPE_INT_RGB) {
+            // Reduce packed RGB images by area averaging rather than through
+            // Java2D, which with the default hints drops most pixels. Images
+            // with alpha are left to Java2D, as the packed scaling makes
+            // every pixel opaque.
+            int[] buf = image.getRGB(0, 0, width, height, null, 0, width);
+            return ImageUtil.createBufferedImage(ImageUtil.scalePackedInt(
+                    buf, width, height, thumbWidth, thumbHeight),
+                    thumbWidth, thumbHeight);
+        }
+
         // Create the required compatible (thumbnail) buffered image to avoid
         // potential errors from Java's ImagingLib.
         ColorModel cm = image.getColorModel();
@@ -55,9 +71,10 @@ public class AWTScaleService implements IScale {
 
         // Do the actual scaling and return the result
         Graphics2D graphics2D = thumbImage.createGraphics();
-        // graphics2D.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
-        // RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics2D.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
         graphics2D.drawImage(image, 0, 0, thumbWidth, thumbHeight, null);
+        graphics2D.dispose();
         return thumbImage;
     }
 }
@@ -8,46 +8,148 @@
 package ome.logic;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.zip.Deflater;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 import ome.api.local.LocalCompress;
+import ome.conditions.ApiUsageException;
 
 public class CompressImpl implements LocalCompress {
 
 	/** The default compression quality in fractional percent. */
     private float quality = 0.85F;
 	
+    /** The format images are compressed to. */
+    private String format = JPEG;
+
+    /**
+     * Encoder for {@link #PNG}, using the fastest deflate level as the images
+     * are usually sent straight to a client.
+     */
+    private static final PngEncoder pngEncoder =
+        new PngEncoder(Deflater.BEST_SPEED);
+
+    /**
+     * Size above which the output buffer of a thread is not kept for reuse,
+     * so that compressing one very large image does not pin its buffer.
+     * (4MB)
+     */
+    private static final int MAX_RETAINED_BUFFER = 4194304;
+
+    /**
+     * JPEG writer of each thread. Looking up a writer through the service
+     * registry for each image is far more expensive than resetting one.
+     */
+    private static final ThreadLocal<ImageWriter> jpegWriter =
+        new ThreadLocal<ImageWriter>() {
+        @Override
+        protected ImageWriter initialValue() {
+            return ImageIO.getImageWritersByFormatName("jpeg").next();
+        }
+    };
+
+    /** Output buffer of each thread used by {@link #compressToBytes}. */
+    private static final ThreadLocal<ByteArrayOutputStream> outputBuffer =
+        new ThreadLocal<ByteArrayOutputStream>() {
+        @Override
+        protected ByteArrayOutputStream initialValue() {
+            return new ByteArrayOutputStream(65536);
+        }
+    };
+
     /* (non-Javadoc)
      * @see ome.api.ICompress#compressToStream(java.awt.image.BufferedImage, java.io.OutputStream)
      */
     public void compressToStream(BufferedImage image, OutputStream outputStream)
     	throws IOException
     {
-        // Get a JPEG image writer
-        ImageWriter jpegWriter =
-        	ImageIO.getImageWritersByFormatName("jpeg").next();
+        if (PNG.equals(format)) {
+            compressToPng(image, outputStream);
+            return;
+        }
+
+        // Get this thread's JPEG image writer
+        ImageWriter writer = jpegWriter.get();
 
         // Setup the compression value from (0.05, 0.75 and 0.95)
-        ImageWriteParam iwp = jpegWriter.getDefaultWriteParam();
+        ImageWriteParam iwp = writer.getDefaultWriteParam();
         iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
         iwp.setCompressionQuality(quality);
 
-        // Write the JPEG to our ByteArray stream
-    	ImageOutputStream imageOutputStream = null;
+        // Write the JPEG to our stream, caching in memory rather than in a
+        // temporary file as ImageIO.createImageOutputStream() may.
+        ImageOutputStream imageOutputStream =
+            new MemoryCacheImageOutputStream(outputStream);
+        boolean written = false;
         try {
-        	imageOutputStream = ImageIO.createImageOutputStream(outputStream);
-        	jpegWriter.setOutput(imageOutputStream);
-        	jpegWriter.write(null, new IIOImage(image, null, null), iwp);
+        	writer.setOutput(imageOutputStream);
+        	writer.write(null, new IIOImage(image, null, null), iwp);
+        	written = true;
         } finally {
-        	if (imageOutputStream != null)
-        		imageOutputStream.close();
+            if (written) {
+                writer.reset();
+            } else {
+                // Do not hand a writer in an unknown state to the next image.
+                jpegWriter.remove();
+                writer.dispose();
+            }
+        	imageOutputStream.close();
+        }
+    }
+
+    /**
+     * Writes an image as a PNG, working on its packed integers directly if
+     * it wraps a rendering engine buffer, e.g. one from
+     * {@link ome.util.ImageUtil#createBufferedImage(int[], int, int)}.
+     */
+    private void compressToPng(BufferedImage image, OutputStream outputStream)
+        throws IOException
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] buf = null;
+        DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        if (image.getType() == BufferedImage.TYPE_INT_RGB
+            && dataBuffer instanceof DataBufferInt
+            && dataBuffer.getNumBanks() == 1 && dataBuffer.getOffset() == 0
+            && image.getRaster().getSampleModelTranslateX() == 0
+            && image.getRaster().getSampleModelTranslateY() == 0
+            && image.getSampleModel() instanceof SinglePixelPackedSampleModel
+            && ((SinglePixelPackedSampleModel) image.getSampleModel())
+                .getScanlineStride() == width) {
+            buf = ((DataBufferInt) dataBuffer).getData();
+        } else {
+            buf = image.getRGB(0, 0, width, height, null, 0, width);
+        }
+        pngEncoder.encode(buf, width, height, outputStream);
+    }
+
+    /* (non-Javadoc)
+     * @see ome.api.local.LocalCompress#compressToBytes(java.awt.image.BufferedImage)
+     */
+    public byte[] compressToBytes(BufferedImage image) throws IOException
+    {
+        ByteArrayOutputStream buffer = outputBuffer.get();
+        buffer.reset();
+        try {
+            compressToStream(image, buffer);
+            return buffer.toByteArray();
+        } finally {
+            if (buffer.size() > MAX_RETAINED_BUFFER) {
+                outputBuffer.remove();
+            }
         }
     }
 
@@ -66,4 +168,27 @@ public class CompressImpl implements LocalCompress {
 	{
 		return quality;
 	}
+
+	/* (non-Javadoc)
+	 * @see ome.api.local.LocalCompress#setCompressionFormat(java.lang.String)
+	 */
+	public void setCompressionFormat(String format)
+	{
+		String f = format == null ? null : format.toLowerCase();
+		if (!JPEG.equals(f) && !PNG.equals(f))
+		{
+			throw new ApiUsageException(String.format(
+				"Unsupported compression format: %s (supported: %s, %s)",
+				format, JPEG, PNG));
+		}
+		this.format = f;
+	}
+
+	/* (non-Javadoc)
+	 * @see ome.api.local.LocalCompress#getCompressionFormat()
+	 */
+	public String getCompressionFormat()
+	{
+		return format;
+	}
 }
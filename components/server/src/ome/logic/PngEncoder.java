@@ -0,0 +1,255 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.logic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes rendering engine packed integer buffers as PNG images. Unlike the
+ * ImageIO PNG writer this works directly on the packed integers and lets the
+ * deflate level be chosen, so that a fast level can be used for rendered
+ * planes which are sent straight to a client.
+ *
+ * Images with no more than 256 distinct colours, such as label masks, are
+ * written palette-indexed with one byte per pixel; all others as 8-bit RGB.
+ * The alpha component of the packed integers is ignored.
+ *
+ * @since 4.4
+ */
+public class PngEncoder {
+
+    /** Maximum number of colours in a palette-indexed image. */
+    public static final int MAX_PALETTE_SIZE = 256;
+
+    private static final byte[] SIGNATURE = new byte[] {
+        (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+    private static final int COLOR_TYPE_RGB = 2;
+
+    private static final int COLOR_TYPE_INDEXED = 3;
+
+    private static final int FILTER_NONE = 0;
+
+    private static final int FILTER_SUB = 1;
+
+    private final int level;
+
+    /**
+     * @param level
+     *            the deflate level, from {@link Deflater#BEST_SPEED} to
+     *            {@link Deflater#BEST_COMPRESSION}.
+     */
+    public PngEncoder(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Writes a packed integer buffer to a stream as a PNG image.
+     *
+     * @param buf
+     *            the rendering engine packed integer buffer.
+     * @param sizeX
+     *            the X-width of the image.
+     * @param sizeY
+     *            the Y-width of the image.
+     * @param out
+     *            the stream to write to. It is not closed.
+     * @throws IOException
+     *             if there is a problem when writing to <i>out</i>.
+     */
+    public void encode(int[] buf, int sizeX, int sizeY, OutputStream out)
+            throws IOException {
+        Palette palette = Palette.of(buf, sizeX * sizeY);
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream hdr = new DataOutputStream(header);
+        hdr.writeInt(sizeX);
+        hdr.writeInt(sizeY);
+        hdr.writeByte(8); // Bit depth
+        hdr.writeByte(palette == null ? COLOR_TYPE_RGB : COLOR_TYPE_INDEXED);
+        hdr.writeByte(0); // Deflate
+        hdr.writeByte(0); // Adaptive filtering
+        hdr.writeByte(0); // No interlace
+        writeChunk(data, "IHDR", header.toByteArray());
+
+        if (palette != null) {
+            writeChunk(data, "PLTE", palette.toBytes());
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+                Math.max(1024, sizeX * sizeY / 4));
+        Deflater deflater = new Deflater(level);
+        try {
+            DeflaterOutputStream idat =
+                new DeflaterOutputStream(compressed, deflater, 65536);
+            if (palette == null) {
+                writeRgbRows(buf, sizeX, sizeY, idat);
+            } else {
+                writeIndexedRows(buf, sizeX, sizeY, palette, idat);
+            }
+            idat.finish();
+        } finally {
+            deflater.end();
+        }
+        writeChunk(data, "IDAT", compressed.toByteArray());
+        writeChunk(data, "IEND", new byte[0]);
+        data.flush();
+    }
+
+    /**
+     * Writes each row with the Sub filter, which stores every component as
+     * the difference to the same component of the pixel to its left.
+     */
+    private static void writeRgbRows(int[] buf, int sizeX, int sizeY,
+            OutputStream out) throws IOException {
+        byte[] row = new byte[1 + sizeX * 3];
+        row[0] = FILTER_SUB;
+        for (int y = 0; y < sizeY; y++) {
+            int previous = 0;
+            int offset = y * sizeX;
+            for (int x = 0, i = 1; x < sizeX; x++) {
+                int value = buf[offset + x];
+                row[i++] = (byte) ((value >> 16) - (previous >> 16));
+                row[i++] = (byte) ((value >> 8) - (previous >> 8));
+                row[i++] = (byte) (value - previous);
+                previous = value;
+            }
+            out.write(row);
+        }
+    }
+
+    private static void writeIndexedRows(int[] buf, int sizeX, int sizeY,
+            Palette palette, OutputStream out) throws IOException {
+        byte[] row = new byte[1 + sizeX];
+        row[0] = FILTER_NONE;
+        int last = buf[0];
+        byte index = (byte) palette.indexOf(last);
+        for (int y = 0; y < sizeY; y++) {
+            int offset = y * sizeX;
+            for (int x = 0; x < sizeX; x++) {
+                int value = buf[offset + x];
+                if (value != last) {
+                    last = value;
+                    index = (byte) palette.indexOf(value);
+                }
+                row[x + 1] = index;
+            }
+            out.write(row);
+        }
+    }
+
+    private static void writeChunk(DataOutputStream out, String type,
+            byte[] data) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * The distinct colours of an image, held in an open addressing hash
+     * table which is small enough to stay in the processor cache.
+     */
+    static class Palette {
+
+        private static final int TABLE_SIZE = 1024;
+
+        private final int[] colors = new int[TABLE_SIZE];
+
+        private final int[] indexes = new int[TABLE_SIZE];
+
+        private final int[] ordered = new int[MAX_PALETTE_SIZE];
+
+        private int size = 0;
+
+        /**
+         * Returns the palette of the first <i>length</i> packed integers of
+         * <i>buf</i>, or null if they have more than
+         * {@link PngEncoder#MAX_PALETTE_SIZE} colours.
+         */
+        static Palette of(int[] buf, int length) {
+            Palette palette = new Palette();
+            Arrays.fill(palette.indexes, -1);
+            int last = -1;
+            for (int i = 0; i < length; i++) {
+                int color = buf[i] & 0xFFFFFF;
+                if (color == last) {
+                    continue; // Runs of the same colour are common.
+                }
+                last = color;
+                if (palette.slot(color) < 0 && !palette.add(color)) {
+                    return null;
+                }
+            }
+            return palette;
+        }
+
+        private int hash(int color) {
+            return (color * 0x9E3779B1 >>> 22) & (TABLE_SIZE - 1);
+        }
+
+        /**
+         * Returns the slot in the table holding the colour, or -1.
+         */
+        private int slot(int color) {
+            int h = hash(color);
+            while (indexes[h] >= 0) {
+                if (colors[h] == color) {
+                    return h;
+                }
+                h = (h + 1) & (TABLE_SIZE - 1);
+            }
+            return -1;
+        }
+
+        private boolean add(int color) {
+            if (size == MAX_PALETTE_SIZE) {
+                return false;
+            }
+            int h = hash(color);
+            while (indexes[h] >= 0) {
+                h = (h + 1) & (TABLE_SIZE - 1);
+            }
+            colors[h] = color;
+            indexes[h] = size;
+            ordered[size++] = color;
+            return true;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int indexOf(int packed) {
+            return indexes[slot(packed & 0xFFFFFF)];
+        }
+
+        byte[] toBytes() {
+            byte[] bytes = new byte[size * 3];
+            for (int i = 0; i < size; i++) {
+                bytes[i * 3] = (byte) (ordered[i] >> 16);
+                bytes[i * 3 + 1] = (byte) (ordered[i] >> 8);
+                bytes[i * 3 + 2] = (byte) ordered[i];
+            }
+            return bytes;
+        }
+    }
+}
@@ -12,9 +12,17 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -30,6 +38,7 @@ import ome.api.IPixels;
 import ome.api.IRenderingSettings;
 import ome.api.ServiceInterface;
 import ome.conditions.ConcurrencyException;
+import ome.conditions.InternalException;
 import ome.conditions.ResourceError;
 import ome.conditions.ValidationException;
 import ome.io.nio.PixelBuffer;
@@ -95,7 +104,34 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
 
     /** Reference to the service used to retrieve the pixels metadata. */
     protected transient IPixels pixelsMetadata;
- 
+
+    /** The number of bins used to determine percentiles of a channel. */
+    private static final int PERCENTILE_BINS = 1024;
+
+    /**
+     * The percentage of pixels below the input start when resetting the
+     * input window from a histogram.
+     */
+    private transient double windowStartPercentile = 0;
+
+    /**
+     * The percentage of pixels below the input end when resetting the input
+     * window from a histogram.
+     */
+    private transient double windowEndPercentile = 100;
+
+    /**
+     * The number of pixels sets whose location statistics are computed at
+     * once when resetting the rendering settings of a set.
+     */
+    private transient int resetThreads = 1;
+
+    /**
+     * The number of rendering settings saved at once when resetting the
+     * rendering settings of a set.
+     */
+    private transient int resetBatchSize = 100;
+
     /**
      * Returns the min/max depending on the pixels type if the values
      * have not seen stored.
@@ -592,6 +628,12 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
     /**
      * Performs the logic specified by {@link #resetDefaultsInSet()} and
      * {@link #setOriginalSettingsInSet()}.
+     * 
+     * The location statistics of up to {@link #resetThreads} pixels sets are
+     * computed at once by worker threads while this thread, which owns the
+     * session, prepares the rendering settings and opens the buffer of the
+     * next pixels set. The settings are saved every {@link #resetBatchSize}
+     * pixels sets.
      */
     private <T extends IObject> Set<Long> resetDefaultsInSet(
             Class<T> klass, Set<Long> nodeIds, boolean computeStats)
@@ -605,6 +647,7 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
     	// to a list of Pixels objects for us to work on.
     	List<Pixels> pixels = new ArrayList<Pixels>();
     	updatePixelsForNodes(pixels, klass, nodeIds);
+    	pixels = uniquePixels(pixels);
     	
     	// Perform the actual work of resetting rendering settings, collecting
     	// the settings that need to be saved and saving the newly modified or
@@ -614,46 +657,239 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
     	List<Family> families = pixelsMetadata.getAllEnumerations(Family.class);
         List<RenderingModel> renderingModels = 
             pixelsMetadata.getAllEnumerations(RenderingModel.class);
+        QuantumFactory quantumFactory = new QuantumFactory(families);
         
-    	List<RenderingDef> toSave = new ArrayList<RenderingDef>(pixels.size());
+    	List<RenderingDef> toSave = new ArrayList<RenderingDef>(
+    			Math.min(resetBatchSize, pixels.size()));
     	Map<Long, RenderingDef> settingsMap = loadRenderingSettings(pixels);
-    	RenderingDef settings;
+    	int threads = Math.min(resetThreads, pixels.size());
+    	ExecutorService executor = null;
+    	if (computeStats && threads > 1) {
+    		executor = Executors.newFixedThreadPool(threads);
+    	}
+    	LinkedList<PendingReset> pending = new LinkedList<PendingReset>();
+    	int done = 0;
+    	try {
+    		RenderingDef settings;
+    		for (Pixels p : pixels)
+    		{
+    			settings = settingsMap.get(p.getId());
+    			if (settings == null)
+    			{
+    				settings = createNewRenderingDef(p);
+    			}
+    			PendingReset reset = prepareReset(settings, p, computeStats,
+    					quantumFactory, renderingModels, executor);
+    			if (reset != null) {
+    				pending.add(reset);
+    			}
+    			// Keep every worker busy but no more buffers open than that.
+    			while (pending.size() > threads) {
+    				finishReset(pending.removeFirst(), quantumFactory,
+    						toSave, imageIds);
+    			}
+    			done++;
+    			if (toSave.size() >= resetBatchSize) {
+    				saveRenderingSettings(toSave, done, pixels.size());
+    			}
+    		}
+    		while (!pending.isEmpty()) {
+    			finishReset(pending.removeFirst(), quantumFactory, toSave,
+    					imageIds);
+    		}
+    		saveRenderingSettings(toSave, done, pixels.size());
+    	} finally {
+    		if (executor != null) {
+    			executor.shutdownNow();
+    		}
+    		for (PendingReset reset : pending) {
+    			if (reset.windows != null) {
+    				reset.windows.cancel(true);
+    			}
+    			closeBuffer(reset.pixels, reset.buffer);
+    		}
+    	}
+        s1.stop();
+    	return imageIds;
+    }
+
+    /**
+     * Removes the repeated pixels sets from a list, keeping the first
+     * occurrence of each. The loaders fetch the channels, so they return a
+     * pixels set once per channel.
+     * 
+     * @param pixels The pixels sets to filter.
+     * @return See above.
+     */
+    private List<Pixels> uniquePixels(List<Pixels> pixels)
+    {
+    	Map<Long, Pixels> unique = new LinkedHashMap<Long, Pixels>();
     	for (Pixels p : pixels)
     	{
-    		settings = settingsMap.get(p.getId());
-    		if (settings == null)
+    		if (!unique.containsKey(p.getId()))
     		{
-    			settings = createNewRenderingDef(p);
+    			unique.put(p.getId(), p);
     		}
-    		try {
-    			RenderingDef newSettings =
-    				resetDefaults(settings, p, false, computeStats,
-    						families, renderingModels);
-    			if (newSettings != null) {
-    				toSave.add(newSettings);
+    	}
+    	return new ArrayList<Pixels>(unique.values());
+    }
+
+    /**
+     * Resets a set of rendering settings and, if the stats are to be
+     * computed, opens the buffer of the pixels set and starts computing the
+     * location statistics of its channels.
+     * 
+     * @param settings The rendering settings which are to be reset.
+     * @param pixels The pixels object whose rendering settings are to be reset.
+     * @param computeStats Pass <code>true</code> to compute the stats 
+     * 					   determining the input interval, <code>false</code>
+     *                     otherwise.
+     * @param quantumFactory A populated quantum factory.
+     * @param renderingModels The valid rendering model enumerations.
+     * @param executor The executor computing the stats or <code>null</code>
+     *                 to compute them in the calling thread.
+     * @return The pending reset or <code>null</code> if the settings could
+     *         not be reset.
+     */
+    private PendingReset prepareReset(RenderingDef settings, Pixels pixels,
+    		boolean computeStats, QuantumFactory quantumFactory,
+    		List<RenderingModel> renderingModels, ExecutorService executor)
+    {
+    	PixelBuffer buffer = null;
+    	try {
+    		// The input windows are taken from the global statistics here and
+    		// replaced once the location statistics are known.
+    		resetDefaults(settings, pixels, quantumFactory, renderingModels,
+    				null, false);
+    		FutureTask<InputWindow[]> windows = null;
+    		if (computeStats) {
+    			// Load everything the workers read from the pixels set, as
+    			// they must not use the session.
+    			pixels.getPixelsType().getValue();
+    			for (int w = 0; w < pixels.sizeOfChannels(); w++) {
+    				StatsInfo stats = pixels.getChannel(w).getStatsInfo();
+    				if (stats != null) {
+    					stats.getGlobalMin();
+    				}
     			}
-    			imageIds.add(p.getImage().getId());
-			} catch (ResourceError e) {
-				//Exception has already been written to log file.
-            } catch (ConcurrencyException e) {
-                log.warn(e.getClass().getSimpleName() + ", " +
-                		"not resetting settings for Image:"
-                         + p.getImage().getId());
-            } catch (Exception e) {
-                log.warn("Exception while resetting settings for Image:"
-                         + p.getImage().getId(), e);
-            }
+    			buffer = pixelsData.getPixelBuffer(pixels, false);
+    			windows = new FutureTask<InputWindow[]>(new LocationStats(
+    					pixels, getDefaultPlaneDef(settings), buffer));
+    			if (executor == null) {
+    				windows.run();
+    			} else {
+    				executor.execute(windows);
+    			}
+    		}
+    		PendingReset reset = new PendingReset(pixels, settings, buffer,
+    				windows);
+    		buffer = null;
+    		return reset;
+    	} catch (Exception e) {
+    		logResetFailure(pixels, e);
+    		return null;
+    	} finally {
+    		closeBuffer(pixels, buffer);
+    	}
+    }
+
+    /**
+     * Waits for the location statistics of a pending reset, if any, and
+     * applies them to its rendering settings.
+     * 
+     * @param reset The pending reset.
+     * @param quantumFactory A populated quantum factory.
+     * @param toSave The rendering settings to save, added to if successful.
+     * @param imageIds The reset images, added to if successful.
+     */
+    private void finishReset(PendingReset reset, QuantumFactory quantumFactory,
+    		List<RenderingDef> toSave, Set<Long> imageIds)
+    {
+    	RenderingDef settings = reset.settings;
+    	try {
+    		if (reset.windows != null) {
+    			applyLocationStats(reset.pixels,
+    					settings.<ChannelBinding>collectWaveRendering(null),
+    					quantumFactory, settings.getQuantization(),
+    					reset.windows.get());
+    		}
+            // Increment the version of the rendering settings so that we 
+            // can have some notification that either the RenderingDef 
+            // object itself or one of its children in the object graph has 
+            // been updated. FIXME: This should be implemented using 
+            // IUpdate.touch() or similar once that functionality exists.
+    		settings.setVersion(settings.getVersion() + 1);
+    		toSave.add(settings);
+    		imageIds.add(reset.pixels.getImage().getId());
+    	} catch (ExecutionException e) {
+    		logResetFailure(reset.pixels, e.getCause());
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new InternalException(
+    				"Interrupted while resetting rendering settings.");
+    	} finally {
+    		closeBuffer(reset.pixels, reset.buffer);
     	}
+    }
+
+    /**
+     * Saves and clears a batch of rendering settings.
+     * 
+     * @param toSave The rendering settings to save.
+     * @param done The number of pixels sets handled so far.
+     * @param total The number of pixels sets to handle.
+     */
+    private void saveRenderingSettings(List<RenderingDef> toSave, int done,
+    		int total)
+    {
         StopWatch s2 = new CommonsLogStopWatch(
 			"omero.resetDefaultsInSet.saveAndReturn");
         if (toSave.size() > 0) {
         	RenderingDef[] toSaveArray = 
         		toSave.toArray(new RenderingDef[toSave.size()]);
         	iUpdate.saveAndReturnArray(toSaveArray);
+        	toSave.clear();
         }
         s2.stop();
-        s1.stop();
-    	return imageIds;
+        log.info(String.format("Reset rendering settings of %d/%d pixels sets",
+        		done, total));
+    }
+
+    /**
+     * Logs why the rendering settings of a pixels set were not reset.
+     * 
+     * @param pixels The pixels set.
+     * @param t The cause.
+     */
+    private void logResetFailure(Pixels pixels, Throwable t)
+    {
+    	if (t instanceof ResourceError) {
+    		//Exception has already been written to log file.
+    	} else if (t instanceof ConcurrencyException) {
+            log.warn(t.getClass().getSimpleName() + ", " +
+            		"not resetting settings for Image:"
+                     + pixels.getImage().getId());
+    	} else {
+            log.warn("Exception while resetting settings for Image:"
+                     + pixels.getImage().getId(), t);
+    	}
+    }
+
+    /**
+     * Closes a pixel buffer, logging rather than throwing any failure.
+     * 
+     * @param pixels The pixels set of the buffer.
+     * @param buffer The buffer to close, may be <code>null</code>.
+     */
+    private void closeBuffer(Pixels pixels, PixelBuffer buffer)
+    {
+    	if (buffer == null) return;
+    	try {
+    		buffer.close();
+    	} catch (IOException e) {
+    		log.warn("Could not close buffer of pixels set " + pixels.getId(),
+    				e);
+    	}
     }
     
     /**
@@ -887,25 +1123,72 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
     private void computeLocationStats(Pixels pixels,
             List<ChannelBinding> cbs, PlaneDef planeDef, PixelBuffer buf,
             QuantumFactory quantumFactory, QuantumDef qDef) {
+        applyLocationStats(pixels, cbs, quantumFactory, qDef,
+                computeLocationStats(pixels, planeDef, buf));
+    }
+
+    /**
+     * Computes the input window of each channel of a pixels set. Neither
+     * the database nor the rendering settings are touched, so that this may
+     * be called by another thread as long as the statistics of the channels
+     * have been initialized.
+     *
+     * @param pixels	The pixels set.
+     * @param planeDef	The 2D-plane. Mustn't be <code>null</code>
+     * @param buf		The buffer.
+     * @return The input window of each channel.
+     */
+    private InputWindow[] computeLocationStats(Pixels pixels,
+            PlaneDef planeDef, PixelBuffer buf) {
         if (planeDef == null) {
             throw new NullPointerException("No plane definition.");
         }
         StatsFactory sf = new StatsFactory();
+        boolean usePercentiles =
+            (windowStartPercentile > 0 || windowEndPercentile < 100)
+            && windowStartPercentile < windowEndPercentile;
+        InputWindow[] windows = new InputWindow[pixels.sizeOfChannels()];
+        for (int w = 0; w < windows.length; w++) {
+            if (usePercentiles) {
+                double[] window = computePercentileWindow(pixels, buf,
+                        planeDef, w, sf);
+                windows[w] = new InputWindow(window[0], window[1], false);
+            } else {
+                sf.computeLocationStats(pixels, buf, planeDef, w);
+                windows[w] = new InputWindow(sf.getInputStart(),
+                        sf.getInputEnd(), sf.isNoiseReduction());
+            }
+        }
+        return windows;
+    }
+
+    /**
+     * Sets the input window of each channel binding of a set of rendering
+     * settings.
+     *
+     * @param pixels	The pixels set.
+     * @param cbs		The collection of settings corresponding to channel.
+     * @param quantumFactory A populated quantum factory.
+     * @param qDef		The object hosting information about how to map data.
+     * @param windows	The input window of each channel.
+     */
+    private void applyLocationStats(Pixels pixels, List<ChannelBinding> cbs,
+            QuantumFactory quantumFactory, QuantumDef qDef,
+            InputWindow[] windows) {
         ChannelBinding cb;
         double min, max;
         QuantumStrategy qs;
         PixelsType pt = pixels.getPixelsType();
-        for (int w = 0; w < pixels.sizeOfChannels(); w++) {
+        for (int w = 0; w < windows.length; w++) {
             // FIXME: This is where we need to have the ChannelBinding -->
             // Channel linkage. Without it, we have to assume that the order in
             // which the channel bindings was created matches up with the order
             // of the channels linked to the pixels set.
-        	
+
             cb = cbs.get(w);
-            sf.computeLocationStats(pixels, buf, planeDef, w);
-            cb.setNoiseReduction(sf.isNoiseReduction());
-            min = sf.getInputStart();
-            max = sf.getInputEnd();
+            cb.setNoiseReduction(windows[w].noiseReduction);
+            min = windows[w].start;
+            max = windows[w].end;
         	if (Math.abs(min-max) < EPSILON) {
         		qs = quantumFactory.getStrategy(qDef, pt);
         		min = qs.getPixelsTypeMin();
@@ -916,6 +1199,41 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
         }
     }
     
+    /**
+     * Determines the input window of a channel from the configured
+     * percentiles of the histogram of the passed plane.
+     * 
+     * @param pixels    The pixels set.
+     * @param buf       The buffer.
+     * @param planeDef  The 2D-plane.
+     * @param w         The channel index.
+     * @param sf        The factory used to compute the histogram.
+     * @return The input start and end.
+     */
+    private double[] computePercentileWindow(Pixels pixels, PixelBuffer buf,
+            PlaneDef planeDef, int w, StatsFactory sf) {
+        double gMin, gMax;
+        StatsInfo stats = pixels.getChannel(w).getStatsInfo();
+        if (stats == null) {
+            double[] range = initPixelsRange(pixels.getPixelsType());
+            gMin = range[0];
+            gMax = range[1];
+        } else {
+            gMin = stats.getGlobalMin().doubleValue();
+            gMax = stats.getGlobalMax().doubleValue();
+        }
+        try {
+            int[] histogram = sf.computeHistogram(buf, planeDef, w,
+                    planeDef.getZ(), planeDef.getZ(), PERCENTILE_BINS, gMin,
+                    gMax, null);
+            return StatsFactory.getPercentiles(histogram, gMin, gMax,
+                    windowStartPercentile, windowEndPercentile);
+        } catch (IOException e) {
+            log.error("Could not compute histogram of channel " + w, e);
+            throw new ResourceError(e.getMessage());
+        }
+    }
+
     /**
      * Creates the default plane definition to use for generation of the very
      * first image displayed by <i>2D</i> viewers based upon a rendering
@@ -1094,6 +1412,69 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
         pixelsData = dataService;
     }
 
+    /**
+     * Sets the percentage of pixels below the input start when resetting the
+     * rendering settings. If left at <code>0</code> and the end percentile at
+     * <code>100</code>, the input window is determined from the location
+     * statistics instead.
+     * 
+     * @param start
+     *            A value between <code>0</code> and <code>100</code>.
+     */
+    public void setWindowStartPercentile(double start) {
+        if (start < 0 || start > 100) {
+            throw new IllegalArgumentException(
+                    "Invalid window start percentile: " + start);
+        }
+        windowStartPercentile = start;
+    }
+
+    /**
+     * Sets the percentage of pixels below the input end when resetting the
+     * rendering settings.
+     * 
+     * @param end
+     *            A value between <code>0</code> and <code>100</code>.
+     * @see #setWindowStartPercentile(double)
+     */
+    public void setWindowEndPercentile(double end) {
+        if (end < 0 || end > 100) {
+            throw new IllegalArgumentException(
+                    "Invalid window end percentile: " + end);
+        }
+        windowEndPercentile = end;
+    }
+
+    /**
+     * Sets the number of pixels sets whose location statistics are computed
+     * at once when resetting the rendering settings of a set.
+     *
+     * @param threads
+     *            A value of <code>1</code> or more.
+     */
+    public void setResetThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid number of reset threads: " + threads);
+        }
+        resetThreads = threads;
+    }
+
+    /**
+     * Sets the number of rendering settings saved at once when resetting the
+     * rendering settings of a set.
+     *
+     * @param batchSize
+     *            A value of <code>1</code> or more.
+     */
+    public void setResetBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid reset batch size: " + batchSize);
+        }
+        resetBatchSize = batchSize;
+    }
+
     /**
      * Returns the interface this implementation is for.
      * @see AbstractLevel2Service#getServiceInterface()
@@ -1555,4 +1936,72 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
     {
     	return resetDefaultsInSet(klass, nodeIds, false);
     }
+
+    /**
+     * The input window computed for a channel.
+     */
+    private static class InputWindow
+    {
+        final double start;
+
+        final double end;
+
+        final boolean noiseReduction;
+
+        InputWindow(double start, double end, boolean noiseReduction)
+        {
+            this.start = start;
+            this.end = end;
+            this.noiseReduction = noiseReduction;
+        }
+    }
+
+    /**
+     * Computes the input windows of the channels of a pixels set, one
+     * channel after the other as the buffer is not thread safe.
+     */
+    private class LocationStats implements Callable<InputWindow[]>
+    {
+        private final Pixels pixels;
+
+        private final PlaneDef planeDef;
+
+        private final PixelBuffer buffer;
+
+        LocationStats(Pixels pixels, PlaneDef planeDef, PixelBuffer buffer)
+        {
+            this.pixels = pixels;
+            this.planeDef = planeDef;
+            this.buffer = buffer;
+        }
+
+        public InputWindow[] call()
+        {
+            return computeLocationStats(pixels, planeDef, buffer);
+        }
+    }
+
+    /**
+     * Rendering settings which have been reset but whose location statistics
+     * may still be being computed.
+     */
+    private static class PendingReset
+    {
+        final Pixels pixels;
+
+        final RenderingDef settings;
+
+        final PixelBuffer buffer;
+
+        final Future<InputWindow[]> windows;
+
+        PendingReset(Pixels pixels, RenderingDef settings, PixelBuffer buffer,
+                Future<InputWindow[]> windows)
+        {
+            this.pixels = pixels;
+            this.settings = settings;
+            this.buffer = buffer;
+            this.windows = windows;
+        }
+    }
 }
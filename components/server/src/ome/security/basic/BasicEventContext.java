@@ -64,6 +64,9 @@ public class BasicEventContext extends SimpleEventContext {
 
     private Event event;
 
+    /** Set while {@link #event} has not been saved. See {@link EventSaver}. */
+    private boolean eventPending;
+
     private Experimenter owner;
 
     private ExperimenterGroup group;
@@ -98,6 +101,7 @@ public class BasicEventContext extends SimpleEventContext {
         owner = null;
         group = null;
         event = null;
+        eventPending = false;
     }
 
     /**
@@ -233,6 +237,7 @@ public class BasicEventContext extends SimpleEventContext {
 
     public void setEvent(Event event) {
         this.event = event;
+        this.eventPending = false;
         this.ceId = event.getId();
         if (event.isLoaded()) {
             if (event.getType().isLoaded()) {
@@ -241,6 +246,18 @@ public class BasicEventContext extends SimpleEventContext {
         }
     }
 
+    public boolean isEventPending() {
+        return eventPending;
+    }
+
+    /**
+     * Marks the current, unsaved event as one which is only to be saved when
+     * it is first used. See {@link EventSaver}.
+     */
+    public void setEventPending() {
+        this.eventPending = true;
+    }
+
     public Experimenter getOwner() {
         return owner;
     }
@@ -106,6 +106,12 @@ public class BasicSecuritySystem implements SecuritySystem,
 
     protected/* final */ShareStore store;
 
+    /** Optional cache of the lookups made for write calls. */
+    protected/* final */LoginCache loginCache;
+
+    /** Optional policy for saving the events of write calls. */
+    protected/* final */EventSaver eventSaver;
+
     /**
      * Simpilifed factory method which generates all the security primitives
      * internally. Primarily useful for generated testing instances.
@@ -150,6 +156,25 @@ public class BasicSecuritySystem implements SecuritySystem,
         this.store = this.ctx.getBean("shareStore", ShareStore.class);
     }
 
+    /**
+     * Sets the cache used by {@link #loadEventContext(boolean, boolean)} to
+     * skip loading the user, group and session of a write call when the
+     * same has been loaded by an earlier call. If not set, nothing is cached.
+     */
+    public void setLoginCache(LoginCache loginCache) {
+        this.loginCache = loginCache;
+    }
+
+    /**
+     * Sets the {@link EventSaver} which may defer the saving of the event of
+     * a write call or reuse that of an earlier call. It must be the same
+     * instance as set on {@link CurrentDetails}. If not set, a new event is
+     * saved on each write call.
+     */
+    public void setEventSaver(EventSaver eventSaver) {
+        this.eventSaver = eventSaver;
+    }
+
     // ~ Login/logout
     // =========================================================================
 
@@ -336,9 +361,20 @@ public class BasicSecuritySystem implements SecuritySystem,
         cd.checkAndInitialize(ec, admin, store);
         ec = cd.getCurrentEventContext(); // Replace with callContext
 
+        // Lookups cached by an earlier write call in this session. The
+        // version is read first so that nothing loaded after an update
+        // to users or groups is cached under the old version.
+        final long cacheVersion =
+            loginCache == null ? 0 : loginCache.getVersion();
+        Permissions cachedPerms = null;
+        if (!isReadOnly && loginCache != null) {
+            cachedPerms = loginCache.get(ec);
+        }
+        final boolean cached = cachedPerms != null;
+
         // Experimenter
         Experimenter exp;
-        if (isReadOnly) {
+        if (isReadOnly || cached) {
             exp = new Experimenter(ec.getCurrentUserId(), false);
         } else {
             exp = admin.userProxy(ec.getCurrentUserId());
@@ -370,9 +406,14 @@ public class BasicSecuritySystem implements SecuritySystem,
 
         if (groupId >= 0) { // negative groupId means all member groups
             eventGroupId = groupId;
-            callGroup = admin.groupProxy(groupId);
+            if (cached) {
+                callGroup = new ExperimenterGroup(groupId, false);
+                callPerms = cachedPerms;
+            } else {
+                callGroup = admin.groupProxy(groupId);
+                callPerms = callGroup.getDetails().getPermissions();
+            }
             eventGroup = callGroup;
-            callPerms = callGroup.getDetails().getPermissions();
 
             // tickets:2950, 1940, 3529
             if (!isAdmin && !ec.getMemberOfGroupsList().contains(groupId)) {
@@ -391,7 +432,11 @@ public class BasicSecuritySystem implements SecuritySystem,
             }
             log.debug("Choice for event group: " + eventGroupId);
 
-            eventGroup = admin.getGroup(eventGroupId);
+            if (cached) {
+                eventGroup = new ExperimenterGroup(eventGroupId, false);
+            } else {
+                eventGroup = admin.getGroup(eventGroupId);
+            }
             callGroup = new ExperimenterGroup(groupId, false);
             callPerms = Permissions.DUMMY;
 
@@ -399,10 +444,13 @@ public class BasicSecuritySystem implements SecuritySystem,
 
         long sessionId = ec.getCurrentSessionId().longValue();
         ome.model.meta.Session sess = null;
-        if (isReadOnly) {
+        if (isReadOnly || cached) {
             sess = new ome.model.meta.Session(sessionId, false);
         } else {
             sess = sf.getQueryService().get(ome.model.meta.Session.class, sessionId);
+            if (loginCache != null) {
+                loginCache.put(ec, callPerms, cacheVersion);
+            }
         }
 
         tokenHolder.setToken(callGroup.getGraphHolder());
@@ -422,12 +470,27 @@ public class BasicSecuritySystem implements SecuritySystem,
         tokenHolder.setToken(event.getGraphHolder());
 
         // If this event is not read only, then lets save this event to prevent
-        // flushing issues later.
+        // flushing issues later, unless the EventSaver can reuse an earlier
+        // event or is to save this one when it is first used.
         if (!isReadOnly) {
             if (event.getExperimenterGroup().getId() < 0) {
                 event.setExperimenterGroup(eventGroup);
             }
-            cd.updateEvent(update.saveAndReturnObject(event)); // TODO use merge
+            Event shared = null;
+            if (eventSaver != null) {
+                shared = eventSaver.reuse(ec, event);
+            }
+            if (shared != null) {
+                cd.updateEvent(shared);
+            } else if (eventSaver != null && eventSaver.isLazy()) {
+                cd.deferEvent();
+            } else {
+                Event saved = update.saveAndReturnObject(event); // TODO use merge
+                cd.updateEvent(saved);
+                if (eventSaver != null) {
+                    eventSaver.saved(ec, event, saved);
+                }
+            }
         }
     }
 
@@ -602,6 +665,8 @@ public class BasicSecuritySystem implements SecuritySystem,
                 BasicEventContext c = cd.current();
                 boolean wasAdmin = c.isCurrentUserAdmin();
                 ExperimenterGroup oldGroup = c.getGroup();
+                // The group may be an unloaded proxy without permissions.
+                Permissions oldPerms = c.getCurrentGroupPermissions();
 
                 try {
                     c.setAdmin(true);
@@ -614,7 +679,7 @@ public class BasicSecuritySystem implements SecuritySystem,
                 } finally {
                     c.setAdmin(wasAdmin);
                     if (group != null) {
-                        c.setGroup(oldGroup, oldGroup.getDetails().getPermissions());
+                        c.setGroup(oldGroup, oldPerms);
                     }
                     enable(MergeEventListener.MERGE_EVENT);
                     enableReadFilter(session); // Now as non-admin
@@ -79,6 +79,11 @@ public class CurrentDetails implements PrincipalHolder {
     private final ThreadLocal<Map<String, String>> delayedCallContext
         = new ThreadLocal<Map<String, String>>();
 
+    /**
+     * Saves events whose creation was deferred by {@link #deferEvent()}.
+     */
+    private/* final */EventSaver eventSaver;
+
     /**
      * Default constructor. Should only be used for testing, since the stats
      * used will not be correct.
@@ -98,6 +103,10 @@ public class CurrentDetails implements PrincipalHolder {
         this.roles = roles;
     }
 
+    public void setEventSaver(EventSaver eventSaver) {
+        this.eventSaver = eventSaver;
+    }
+
     private LinkedList<BasicEventContext> list() {
         LinkedList<BasicEventContext> list = contexts.get();
         if (list == null) {
@@ -343,7 +352,7 @@ public class CurrentDetails implements PrincipalHolder {
         l.setAction(action);
         l.setEntityType(klass.getName()); // TODO could be id to Type entity
         l.setEntityId(id);
-        l.setEvent(c.getEvent());
+        l.setEvent(event(c));
         Details d = Details.create();
         d.setPermissions(Permissions.WORLD_IMMUTABLE);
         l.getDetails().copy(d);
@@ -375,8 +384,9 @@ public class CurrentDetails implements PrincipalHolder {
     public Details createDetails() {
         final BasicEventContext c = current();
         final Details d = Details.create(new Object[]{c, c.getCallContext()});
-        d.setCreationEvent(c.getEvent());
-        d.setUpdateEvent(c.getEvent());
+        final Event e = event(c);
+        d.setCreationEvent(e);
+        d.setUpdateEvent(e);
         d.setOwner(c.getOwner());
         d.setGroup(c.getGroup());
         // ticket:1434
@@ -436,7 +446,18 @@ public class CurrentDetails implements PrincipalHolder {
     }
 
     public Event getEvent() {
-        return current().getEvent();
+        return event(current());
+    }
+
+    /**
+     * Returns the event of the context, first saving it if that was deferred
+     * by {@link #deferEvent()}.
+     */
+    private Event event(BasicEventContext c) {
+        if (c.isEventPending()) {
+            c.setEvent(eventSaver.save(c));
+        }
+        return c.getEvent();
     }
 
     /**
@@ -462,6 +483,17 @@ public class CurrentDetails implements PrincipalHolder {
         current().setEvent(event);
     }
 
+    /**
+     * Leaves the unsaved {@link Event} of the current context to be saved
+     * by the {@link EventSaver} when it is first used.
+     */
+    void deferEvent() {
+        if (eventSaver == null) {
+            throw new InternalException("No EventSaver to defer events to");
+        }
+        current().setEventPending();
+    }
+
     // ~ Cleanups
     // =========================================================================
 
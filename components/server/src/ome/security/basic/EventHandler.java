@@ -25,6 +25,8 @@ import org.aopalliance.intercept.MethodInvocation;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Session;
+import org.perf4j.StopWatch;
+import org.perf4j.commonslog.CommonsLogStopWatch;
 import org.springframework.context.ApplicationListener;
 import org.springframework.orm.hibernate3.HibernateTemplate;
 import org.springframework.transaction.annotation.Transactional;
@@ -206,6 +208,8 @@ public class EventHandler implements MethodInterceptor, ApplicationListener<Cont
 
     public boolean doLogin(boolean readOnly, boolean isClose) {
 
+        // Overhead of each call before any work is done, by call type.
+        StopWatch sw = new CommonsLogStopWatch();
         try {
             secSys.loadEventContext(readOnly, isClose);
         } catch (SessionTimeoutException ste) {
@@ -225,11 +229,15 @@ public class EventHandler implements MethodInterceptor, ApplicationListener<Cont
         // now the user can be considered to be logged in.
         EventContext ec = secSys.getEventContext();
         if (!readOnly) {
+            // A deferred event has no id yet; EventSaver prepares the session
+            // again once it is saved. Until then, triggers use their own.
+            Long eventId = ec.getCurrentEventId();
             sql.prepareSession(
-                    ec.getCurrentEventId(),
+                    eventId == null ? 0L : eventId,
                     ec.getCurrentUserId(),
                     ec.getCurrentGroupId());
         }
+        sw.stop(readOnly ? "omero.login.readOnly" : "omero.login.write");
         if (log.isInfoEnabled()) {
             StringBuilder sb = new StringBuilder();
             sb.append(" Auth:\tuser=");
@@ -0,0 +1,183 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.security.basic;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ome.model.meta.Event;
+import ome.services.messages.DestroySessionMessage;
+import ome.system.EventContext;
+import ome.util.SqlAction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Decides how the {@link Event} of a write call is saved by
+ * {@link BasicSecuritySystem#loadEventContext(boolean, boolean)}. By default
+ * every write call saves a new event on login. Two options reduce the
+ * number of event rows created by clients which issue many small writes:
+ *
+ * <ul>
+ * <li><em>lazy</em>: the event is only saved when it is first handed out,
+ * i.e. when an object is created or updated or an {@link ome.model.meta.EventLog}
+ * is added. Calls which change nothing create no event. Until then, database
+ * triggers see no current event and create their own as they do outside of
+ * a session.</li>
+ * <li><em>coalesce</em>: a write call reuses the event of the previous write
+ * call of the same session if that event has the same user, group and type
+ * and was saved less than the given number of milliseconds ago. Only events
+ * whose transaction has committed are reused.</li>
+ * </ul>
+ *
+ * Each call still adds its own {@link ome.model.meta.EventLog} rows, which
+ * are what the indexers iterate over, so only the event they point to is
+ * shared.
+ *
+ * @since 4.4
+ */
+public class EventSaver implements ApplicationListener<DestroySessionMessage> {
+
+    private final static Log log = LogFactory.getLog(EventSaver.class);
+
+    private final SqlAction sql;
+
+    private boolean lazy = false;
+
+    private long coalesceMs = 0;
+
+    /** Last committed event of each session, by session uuid. */
+    private final Map<String, Saved> lastSaved =
+        new ConcurrentHashMap<String, Saved>();
+
+    private static class Saved {
+
+        final long id;
+
+        final String key;
+
+        final long created = System.currentTimeMillis();
+
+        Saved(long id, String key) {
+            this.id = id;
+            this.key = key;
+        }
+    }
+
+    public EventSaver(SqlAction sql) {
+        this.sql = sql;
+    }
+
+    /**
+     * If true, events are saved on first use by {@link #save(BasicEventContext)}
+     * rather than on login.
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * Milliseconds after its creation during which an event may be reused by
+     * later write calls of the same session. 0 disables reuse.
+     */
+    public void setCoalesceMs(long coalesceMs) {
+        if (coalesceMs < 0) {
+            throw new IllegalArgumentException("coalesceMs: " + coalesceMs);
+        }
+        this.coalesceMs = coalesceMs;
+    }
+
+    /**
+     * Returns an unloaded instance of an event which the given, unsaved event
+     * can be replaced by, or null if a new event must be saved.
+     */
+    public Event reuse(EventContext ec, Event event) {
+        if (coalesceMs == 0) {
+            return null;
+        }
+        final String uuid = ec.getCurrentSessionUuid();
+        final Saved last = lastSaved.get(uuid);
+        if (last == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - last.created >= coalesceMs) {
+            lastSaved.remove(uuid);
+            return null;
+        }
+        if (!last.key.equals(key(event))) {
+            return null;
+        }
+        return new Event(last.id, false);
+    }
+
+    /**
+     * Saves the pending event of the context with a plain insert and points
+     * the database session at it, so that triggers fired during the rest of
+     * the transaction use it. Returns an unloaded instance of the saved event.
+     */
+    public Event save(BasicEventContext c) {
+        final Event event = c.getEvent();
+        final long id = sql.nextValue("seq_event", 1);
+        sql.insertEvent(id, event.getTime(),
+                event.getExperimenter().getId(),
+                event.getExperimenterGroup().getId(),
+                event.getSession().getId(),
+                event.getType().getValue());
+        sql.prepareSession(id, c.getCurrentUserId(), c.getCurrentGroupId());
+        if (log.isDebugEnabled()) {
+            log.debug("Saved pending event " + id);
+        }
+        Event unloaded = new Event(id, false);
+        saved(c, event, unloaded);
+        return unloaded;
+    }
+
+    /**
+     * Called with each event saved for a write call, so that it can be reused
+     * once its transaction has committed.
+     */
+    public void saved(EventContext ec, Event unsaved, Event saved) {
+        if (coalesceMs == 0
+                || !TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        final String uuid = ec.getCurrentSessionUuid();
+        final Saved s = new Saved(saved.getId(), key(unsaved));
+        TransactionSynchronizationManager.registerSynchronization(
+                new TransactionSynchronizationAdapter() {
+                    @Override
+                    public void afterCommit() {
+                        lastSaved.put(uuid, s);
+                    }
+                });
+    }
+
+    public void onApplicationEvent(DestroySessionMessage event) {
+        lastSaved.remove(event.getSessionId());
+    }
+
+    /**
+     * Events are only shared between calls which would have saved the same
+     * values, except for the time.
+     */
+    private static String key(Event event) {
+        return event.getExperimenter().getId() + ":"
+                + event.getExperimenterGroup().getId() + ":"
+                + event.getSession().getId() + ":"
+                + event.getType().getValue();
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.security.basic;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ome.model.internal.Permissions;
+import ome.services.messages.DestroySessionMessage;
+import ome.services.sessions.events.ChangeSecurityContextEvent;
+import ome.services.sessions.events.UserGroupUpdateEvent;
+import ome.system.EventContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+
+/**
+ * Remembers, per session, what
+ * {@link BasicSecuritySystem#loadEventContext(boolean, boolean)} looked up
+ * for a write call: that the user, group and session exist and the
+ * permissions of the group. Later write calls in the same session, as the
+ * same user and in the same group can then use unloaded proxies rather than
+ * loading each object again.
+ *
+ * Every entry is stamped with the version of this cache at the time its
+ * lookups started. Any {@link UserGroupUpdateEvent} increments the version,
+ * which invalidates all entries, including those still being filled. A
+ * {@link ChangeSecurityContextEvent} or {@link DestroySessionMessage} drops
+ * the entries of that session. Entries are also never used after
+ * {@link #MAX_AGE}, so that a change committed after the event which
+ * announced it is picked up in the end.
+ *
+ * @since 4.4
+ */
+public class LoginCache implements ApplicationListener<ApplicationEvent> {
+
+    private final static Log log = LogFactory.getLog(LoginCache.class);
+
+    /** Milliseconds after which an entry is looked up again. (1 min) */
+    public static final long MAX_AGE = 60000L;
+
+    private final AtomicLong version = new AtomicLong();
+
+    /** Entries by user and group id, by session uuid. */
+    private final Map<String, Map<String, Entry>> sessions =
+        new ConcurrentHashMap<String, Map<String, Entry>>();
+
+    private static class Entry {
+
+        final long version;
+
+        final long created = System.currentTimeMillis();
+
+        final Permissions groupPermissions;
+
+        Entry(long version, Permissions groupPermissions) {
+            this.version = version;
+            this.groupPermissions = groupPermissions;
+        }
+    }
+
+    /**
+     * Returns the current version, which must be read before the lookups
+     * whose results are passed to {@link #put(EventContext, Permissions, long)}.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Returns the permissions of the current group of the context if its
+     * lookups have been cached and are still valid, otherwise null.
+     */
+    public Permissions get(EventContext ec) {
+        Map<String, Entry> entries = sessions.get(ec.getCurrentSessionUuid());
+        if (entries == null) {
+            return null;
+        }
+        Entry entry = entries.get(key(ec));
+        if (entry == null || entry.version != version.get()
+                || System.currentTimeMillis() - entry.created > MAX_AGE) {
+            return null;
+        }
+        return copy(entry.groupPermissions);
+    }
+
+    /**
+     * Caches the permissions of the current group of the context, unless
+     * the cache has been invalidated since the given version was read.
+     */
+    public void put(EventContext ec, Permissions groupPermissions,
+            long version) {
+        if (version != this.version.get()) {
+            return;
+        }
+        String uuid = ec.getCurrentSessionUuid();
+        Map<String, Entry> entries = sessions.get(uuid);
+        if (entries == null) {
+            entries = new ConcurrentHashMap<String, Entry>();
+            sessions.put(uuid, entries);
+        }
+        entries.put(key(ec), new Entry(version, copy(groupPermissions)));
+    }
+
+    public void onApplicationEvent(ApplicationEvent event) {
+        if (event instanceof UserGroupUpdateEvent) {
+            version.incrementAndGet();
+            sessions.clear();
+            if (log.isDebugEnabled()) {
+                log.debug("Cleared on " + event);
+            }
+        } else if (event instanceof ChangeSecurityContextEvent) {
+            sessions.remove(((ChangeSecurityContextEvent) event).getUuid());
+        } else if (event instanceof DestroySessionMessage) {
+            sessions.remove(((DestroySessionMessage) event).getSessionId());
+        }
+    }
+
+    private static String key(EventContext ec) {
+        return ec.getCurrentUserId() + ":" + ec.getCurrentGroupId();
+    }
+
+    /**
+     * {@link Permissions#DUMMY} is compared by identity, so it must not be
+     * copied. All others are, so that no caller can change a cached value.
+     */
+    private static Permissions copy(Permissions p) {
+        if (p == null || p == Permissions.DUMMY) {
+            return p;
+        }
+        return new Permissions(p);
+    }
+
+}
@@ -448,8 +448,9 @@ public class OmeroInterceptor implements Interceptor {
 
             if (!isOwner && currentUser.isGraphCritical(rv)) {
                 // ticket:1769
-                String gname = currentUser.getGroup().getName();
-                String oname = currentUser.getOwner().getOmeName();
+                // The owner and group may be unloaded proxies.
+                String gname = ec.getCurrentGroupName();
+                String oname = ec.getCurrentUserName();
 
                 Long changedUid = null;
                 if (changedObject.getDetails().getOwner() != null) {
@@ -12,6 +12,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.security.MessageDigest;
 import java.sql.SQLException;
 
 import ome.annotations.RolesAllowed;
@@ -73,6 +74,17 @@ public class RawFileBean extends AbstractStatefulBean implements RawFileStore {
 
     /** is file service checking for disk overflow */
     private transient boolean diskSpaceChecking;
+
+    /**
+     * Running SHA-1 of the file from its start up to {@link #digested}, fed
+     * by writes which arrive in order. Null if the file must be rehashed in
+     * full on {@link #save()}, e.g. after a write to a part of the file which
+     * had already been digested or a truncation into it.
+     */
+    private transient MessageDigest digest;
+
+    /** Number of bytes from the start of the file in {@link #digest}. */
+    private transient long digested;
     
     /**
      * default constructor
@@ -141,7 +153,10 @@ public class RawFileBean extends AbstractStatefulBean implements RawFileStore {
             String path = ioService.getFilesPath(id);
             try {
 
-                byte[] hash = Utils.pathToSha1(path);
+                byte[] hash = completeDigest();
+                if (hash == null) {
+                    hash = Utils.pathToSha1(path);
+                }
                 file.setSha1(Utils.bytesToHex(hash));
 
                 long size = new File(path).length();
@@ -231,6 +246,8 @@ public class RawFileBean extends AbstractStatefulBean implements RawFileStore {
             buffer = null;
 
             modified = false;
+            digest = Utils.newSha1MessageDigest();
+            digested = 0;
             file = iQuery.get(OriginalFile.class, fileId);
             String repo = (String) iQuery.execute(new HibernateCallback<String>(){
                 public String doInHibernate(Session arg0)
@@ -294,6 +311,11 @@ public class RawFileBean extends AbstractStatefulBean implements RawFileStore {
         try {
             if (length < buffer.size()) {
                 buffer.truncate(length);
+                synchronized (this) {
+                    if (length < digested) {
+                        digest = null;
+                    }
+                }
                 modified();
                 return true;
             }
@@ -333,6 +355,7 @@ public class RawFileBean extends AbstractStatefulBean implements RawFileStore {
         
         try {
             buffer.write(nioBuffer, position);
+            updateDigest(buf, position, length);
             modified();
         } catch (IOException e) {
             if (log.isDebugEnabled()) {
@@ -342,6 +365,71 @@ public class RawFileBean extends AbstractStatefulBean implements RawFileStore {
         }
     }
 
+    /**
+     * Adds a write to the running digest if it continues the digested part
+     * of the file. A write past the end of the digested part is left to be
+     * read back on {@link #save()}, while a write into it means the file
+     * must be rehashed in full.
+     */
+    private synchronized void updateDigest(byte[] buf, long position, int length) {
+        if (digest == null) {
+            return;
+        }
+        if (position == digested) {
+            digest.update(buf, 0, length);
+            digested += length;
+        } else if (position < digested) {
+            digest = null;
+        }
+    }
+
+    /**
+     * Completes a copy of the running digest with whatever part of the file
+     * was not written in order, so that later writes can still be added.
+     *
+     * @return null if the file must be rehashed in full.
+     */
+    private synchronized byte[] completeDigest() {
+        if (digest == null) {
+            return null;
+        }
+        MessageDigest md;
+        try {
+            md = (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            md = digest;
+            digest = null;
+        }
+        try {
+            long size = buffer.size();
+            if (size < digested) {
+                return null;
+            }
+            long position = digested;
+            ByteBuffer buf = ByteBuffer.allocate(1048576);
+            while (position < size) {
+                buf.clear();
+                int rlen = buffer.read(buf, position);
+                if (rlen <= 0) {
+                    return null;
+                }
+                md.update(buf.array(), 0, rlen);
+                position += rlen;
+            }
+            if (position > digested && log.isDebugEnabled()) {
+                log.debug(String.format("Read %s of %s bytes to complete "
+                        + "the SHA-1 of OriginalFile:%s", size - digested,
+                        size, id));
+            }
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Buffer could not be read; rehashing.", e);
+            }
+            return null;
+        }
+        return md.digest();
+    }
+
     /**
      * getter disk overflow checking
      * @return
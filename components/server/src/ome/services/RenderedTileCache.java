@@ -0,0 +1,298 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.Statistics;
+import ome.api.local.LocalCompress;
+import ome.model.display.ChannelBinding;
+import ome.model.display.CodomainMapContext;
+import ome.model.display.ContrastStretchingContext;
+import ome.model.display.PlaneSlicingContext;
+import ome.model.display.QuantumDef;
+import ome.model.display.RenderingDef;
+import ome.model.display.ReverseIntensityContext;
+import ome.services.sessions.state.CacheFactory;
+import ome.util.Utils;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.RegionDef;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Server-wide cache of compressed images produced by
+ * {@link RenderingBean#renderCompressed(PlaneDef)}. Viewers request the same
+ * tiles over and over while panning, and as long as neither the plane nor the
+ * rendering settings change, the re-read, re-quantized and re-compressed
+ * result is identical.
+ *
+ * Entries are held in an {@link Ehcache} which keeps the most recently used
+ * tiles on the heap and overflows the rest to disk. Keys are built by
+ * {@link #key(long, PlaneDef, Integer, float, RenderingDef)} from the pixels
+ * id, the plane definition, the resolution level, the compression level and a
+ * digest of the rendering settings, so that tiles rendered with other
+ * settings are never returned. Entries for a pixels set are additionally
+ * dropped via {@link #invalidate(long)} whenever its settings are saved or
+ * reset.
+ *
+ * @since Beta4.4
+ */
+@ManagedResource(objectName = "omero:type=RenderedTileCache",
+        description = "Cache of compressed rendered tiles")
+public class RenderedTileCache {
+
+    private final static Log log = LogFactory.getLog(RenderedTileCache.class);
+
+    private final Ehcache cache;
+
+    /**
+     * @param manager
+     *            {@link CacheManager} which owns the underlying cache and
+     *            defines the location of the disk store.
+     * @param maxInMemory
+     *            Number of tiles kept on the heap. If zero or less, the cache
+     *            is disabled.
+     * @param maxOnDisk
+     *            Number of tiles kept on disk in addition to those on the
+     *            heap. If zero or less, no tiles will be written to disk.
+     */
+    public RenderedTileCache(CacheManager manager, int maxInMemory,
+            int maxOnDisk) {
+        if (maxInMemory <= 0) {
+            log.info("Rendered tile cache disabled");
+            cache = null;
+            return;
+        }
+        CacheFactory factory = new CacheFactory();
+        factory.setBeanName("renderedTileCache");
+        factory.setCacheManager(manager);
+        factory.setMaxElementsInMemory(maxInMemory);
+        factory.setOverflowToDisk(maxOnDisk > 0);
+        factory.setMaxElementsOnDisk(Math.max(0, maxOnDisk));
+        factory.setDiskPersistent(false);
+        factory.setEternal(true);
+        cache = factory.createCache();
+    }
+
+    /**
+     * Whether or not the cache will store anything.
+     */
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * Builds the cache key for a single rendered plane.
+     *
+     * @param pixelsId
+     *            Id of the pixels set being rendered.
+     * @param pd
+     *            The plane (and optionally region and stride) to render.
+     * @param resolutionLevel
+     *            Resolution level in use or null if never set.
+     * @param compression
+     *            Compression level of the output.
+     * @param def
+     *            Current, possibly unsaved, rendering settings.
+     */
+    public static String key(long pixelsId, PlaneDef pd,
+            Integer resolutionLevel, float compression, RenderingDef def) {
+        return key(pixelsId, pd, resolutionLevel, LocalCompress.JPEG,
+                compression, def);
+    }
+
+    /**
+     * Builds the cache key for a single rendered plane compressed to the
+     * given format.
+     *
+     * @param format
+     *            Compression format of the output.
+     * @see #key(long, PlaneDef, Integer, float, RenderingDef)
+     */
+    public static String key(long pixelsId, PlaneDef pd,
+            Integer resolutionLevel, String format, float compression,
+            RenderingDef def) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(pixelsId);
+        sb.append(':').append(resolutionLevel == null ? "-" : resolutionLevel);
+        sb.append(':').append(pd.getSlice());
+        sb.append(':').append(pd.getZ());
+        sb.append(':').append(pd.getT());
+        sb.append(':').append(pd.getX());
+        sb.append(':').append(pd.getY());
+        RegionDef region = pd.getRegion();
+        if (region != null) {
+            sb.append(':').append(region.getX());
+            sb.append(',').append(region.getY());
+            sb.append(',').append(region.getWidth());
+            sb.append(',').append(region.getHeight());
+        }
+        sb.append(':').append(pd.getStride());
+        sb.append(':').append(format);
+        sb.append(':').append(compression);
+        sb.append(':').append(settingsDigest(def));
+        return sb.toString();
+    }
+
+    /**
+     * Returns a stable digest of everything in the {@link RenderingDef}
+     * which has an effect on the rendered image: the rendering model, the
+     * quantum definition, all channel bindings and the codomain maps in
+     * their order.
+     */
+    public static String settingsDigest(RenderingDef def) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(def.getModel().getValue());
+        QuantumDef qd = def.getQuantization();
+        sb.append('|').append(qd.getBitResolution());
+        sb.append(',').append(qd.getCdStart());
+        sb.append(',').append(qd.getCdEnd());
+        Collection<ChannelBinding> bindings = def.unmodifiableWaveRendering();
+        for (ChannelBinding cb : bindings) {
+            sb.append('|').append(cb.getActive());
+            sb.append(',').append(cb.getFamily().getValue());
+            sb.append(',').append(cb.getCoefficient());
+            sb.append(',').append(cb.getInputStart());
+            sb.append(',').append(cb.getInputEnd());
+            sb.append(',').append(cb.getNoiseReduction());
+            sb.append(',').append(cb.getRed());
+            sb.append(',').append(cb.getGreen());
+            sb.append(',').append(cb.getBlue());
+            sb.append(',').append(cb.getAlpha());
+        }
+        Collection<CodomainMapContext> maps =
+            def.unmodifiableSpatialDomainEnhancement();
+        for (CodomainMapContext ctx : maps) {
+            sb.append('|').append(ctx.getClass().getSimpleName());
+            if (ctx instanceof ContrastStretchingContext) {
+                ContrastStretchingContext csc = (ContrastStretchingContext) ctx;
+                sb.append(',').append(csc.getXstart());
+                sb.append(',').append(csc.getYstart());
+                sb.append(',').append(csc.getXend());
+                sb.append(',').append(csc.getYend());
+            } else if (ctx instanceof PlaneSlicingContext) {
+                PlaneSlicingContext psc = (PlaneSlicingContext) ctx;
+                sb.append(',').append(psc.getLowerLimit());
+                sb.append(',').append(psc.getUpperLimit());
+                sb.append(',').append(psc.getPlaneSelected());
+                sb.append(',').append(psc.getPlanePrevious());
+                sb.append(',').append(psc.getConstant());
+            } else if (ctx instanceof ReverseIntensityContext) {
+                sb.append(',').append(
+                        ((ReverseIntensityContext) ctx).getReverse());
+            } else {
+                // Unknown map: never share a key with other settings.
+                sb.append(',').append(System.identityHashCode(ctx));
+            }
+        }
+        try {
+            return Utils.bytesToHex(Utils.calculateMessageDigest(
+                    sb.toString().getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // UTF-8 is always supported.
+        }
+    }
+
+    /**
+     * Returns the cached tile for the given key or null.
+     */
+    public byte[] get(String key) {
+        if (cache == null) {
+            return null;
+        }
+        Element elt = cache.get(key);
+        if (elt == null) {
+            return null;
+        }
+        return (byte[]) elt.getObjectValue();
+    }
+
+    /**
+     * Caches a tile under a key produced by
+     * {@link #key(long, PlaneDef, Integer, float, RenderingDef)}.
+     */
+    public void put(String key, byte[] tile) {
+        if (cache != null) {
+            cache.put(new Element(key, tile));
+        }
+    }
+
+    /**
+     * Removes all tiles of the given pixels set, regardless of the settings
+     * they were rendered with.
+     */
+    public void invalidate(long pixelsId) {
+        if (cache == null) {
+            return;
+        }
+        final String prefix = pixelsId + ":";
+        int count = 0;
+        for (Object key : cache.getKeys()) {
+            if (((String) key).startsWith(prefix)) {
+                if (cache.remove(key)) {
+                    count++;
+                }
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Invalidated %s tile(s) for Pixels:%s",
+                    count, pixelsId));
+        }
+    }
+
+    @ManagedOperation(description = "Removes all cached tiles")
+    public void clear() {
+        if (cache != null) {
+            cache.removeAll();
+        }
+    }
+
+    @ManagedAttribute(description = "Number of requests served from the cache")
+    public long getHits() {
+        return cache == null ? 0 : statistics().getCacheHits();
+    }
+
+    @ManagedAttribute(description = "Number of hits served from the heap")
+    public long getInMemoryHits() {
+        return cache == null ? 0 : statistics().getInMemoryHits();
+    }
+
+    @ManagedAttribute(description = "Number of hits served from disk")
+    public long getOnDiskHits() {
+        return cache == null ? 0 : statistics().getOnDiskHits();
+    }
+
+    @ManagedAttribute(description = "Number of requests which were rendered")
+    public long getMisses() {
+        return cache == null ? 0 : statistics().getCacheMisses();
+    }
+
+    @ManagedAttribute(description = "Number of tiles evicted from the cache")
+    public long getEvictions() {
+        return cache == null ? 0 : statistics().getEvictionCount();
+    }
+
+    @ManagedAttribute(description = "Number of tiles currently cached")
+    public long getSize() {
+        return cache == null ? 0 : cache.getSize();
+    }
+
+    private Statistics statistics() {
+        return cache.getStatistics();
+    }
+
+}
@@ -9,7 +9,6 @@ package ome.services;
 
 import java.awt.Dimension;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -51,6 +50,7 @@ import ome.util.ShallowCopy;
 import omeis.providers.re.RGBBuffer;
 import omeis.providers.re.Renderer;
 import omeis.providers.re.RenderingEngine;
+import omeis.providers.re.RenderingExecutor;
 import omeis.providers.re.codomain.CodomainMapContext;
 import omeis.providers.re.data.PlaneDef;
 import omeis.providers.re.data.RegionDef;
@@ -98,6 +98,9 @@ public class RenderingBean implements RenderingEngine, Serializable {
     /** Reference to the logger. */
     private static final Log log = LogFactory.getLog(RenderingBean.class);
 
+    /** The maximum number of bins of a histogram. */
+    private static final int MAX_HISTOGRAM_BINS = 65536;
+
     /**
      * Returns the service corresponding to this class.
      * 
@@ -156,6 +159,19 @@ public class RenderingBean implements RenderingEngine, Serializable {
     /** The resolution level to be used by the pixel buffer. */
     private Integer resolutionLevel;
 
+    /** Server-wide cache of compressed tiles. May be null. */
+    private transient RenderedTileCache tileCache;
+
+    /** Server-wide pool of rendering threads. May be null. */
+    private transient RenderingExecutor renderingExecutor;
+
+    /**
+     * Set once a codomain map has been added, removed or updated since the
+     * last {@link #load()}. Codomain maps are not part of the
+     * {@link RenderingDef}, so tiles are not cached while any are in use.
+     */
+    private transient boolean codomainMapsChanged = false;
+
     /**
      * Compression service Bean injector.
      * 
@@ -170,6 +186,26 @@ public class RenderingBean implements RenderingEngine, Serializable {
         this.compressionSrv = compress;
     }
 
+    /**
+     * Rendered tile cache Bean injector.
+     *
+     * @param tileCache
+     *            a {@link RenderedTileCache}.
+     */
+    public void setTileCache(RenderedTileCache tileCache) {
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * Rendering executor Bean injector.
+     *
+     * @param renderingExecutor
+     *            a {@link RenderingExecutor} shared by all renderers.
+     */
+    public void setRenderingExecutor(RenderingExecutor renderingExecutor) {
+        this.renderingExecutor = renderingExecutor;
+    }
+
     @RolesAllowed("user")
     public long getRenderingDefId() {
         if (rendDefObj == null || rendDefObj.getId() == null) {
@@ -393,6 +429,8 @@ public class RenderingBean implements RenderingEngine, Serializable {
             PixelBuffer buffer = getPixelBuffer();
             renderer = new Renderer(quantumFactory, renderingModels, pixelsObj,
                     rendDefObj, buffer);
+            renderer.setExecutor(renderingExecutor);
+            codomainMapsChanged = false;
         } finally {
             rwl.writeLock().unlock();
         }
@@ -524,8 +562,14 @@ public class RenderingBean implements RenderingEngine, Serializable {
     public byte[] renderCompressed(PlaneDef pd) {
         rwl.writeLock().lock();
 
-        ByteArrayOutputStream byteStream = null;
         try {
+            String key = tileCacheKey(pd);
+            if (key != null) {
+                byte[] cached = tileCache.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+            }
         	int stride = pd.getStride();
         	if (stride < 0) stride = 0;
         	stride++;
@@ -541,22 +585,48 @@ public class RenderingBean implements RenderingEngine, Serializable {
             sizeY = sizeY/stride;
             BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX,
                     sizeY);
-            byteStream = new ByteArrayOutputStream();
-            compressionSrv.compressToStream(image, byteStream);
-            return byteStream.toByteArray();
+            byte[] compressed = compressionSrv.compressToBytes(image);
+            if (key != null) {
+                tileCache.put(key, compressed);
+            }
+            return compressed;
         } catch (IOException e) {
             log.error("Could not compress rendered image.", e);
             throw new ResourceError(e.getMessage());
         } finally {
             rwl.writeLock().unlock();
-            try {
-                if (byteStream != null) {
-                    byteStream.close();
-                }
-            } catch (IOException e) {
-                log.error("Could not close byte stream.", e);
-                throw new ResourceError(e.getMessage());
-            }
+        }
+    }
+
+    /**
+     * Returns the {@link RenderedTileCache} key for the given plane with the
+     * current settings, or null if the result of
+     * {@link #renderCompressed(PlaneDef)} must not be cached, e.g. because
+     * overlays or codomain maps are in use. Must be called with the write
+     * lock held.
+     */
+    private String tileCacheKey(PlaneDef pd) {
+        if (tileCache == null || !tileCache.isEnabled()) {
+            return null;
+        }
+        errorIfInvalidState();
+        Map<byte[], Integer> overlays = renderer.getOverlays();
+        if (codomainMapsChanged || (overlays != null && !overlays.isEmpty())) {
+            return null;
+        }
+        return RenderedTileCache.key(pixelsObj.getId(), pd, resolutionLevel,
+                compressionSrv.getCompressionFormat(),
+                compressionSrv.getCompressionLevel(),
+                renderer.getRenderingDef());
+    }
+
+    /**
+     * Drops all cached tiles of the current pixels set after its settings
+     * have been saved or reset.
+     */
+    private void invalidateTileCache() {
+        if (tileCache != null && pixelsObj != null) {
+            tileCache.invalidate(pixelsObj.getId());
         }
     }
 
@@ -620,7 +690,6 @@ public class RenderingBean implements RenderingEngine, Serializable {
             int stepping, int start, int end) {
         rwl.writeLock().lock();
 
-        ByteArrayOutputStream byteStream = null;
         try {
             if (resolutionLevel != null)
             {
@@ -632,22 +701,12 @@ public class RenderingBean implements RenderingEngine, Serializable {
             int sizeY = pixelsObj.getSizeY();
             BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX,
                     sizeY);
-            byteStream = new ByteArrayOutputStream();
-            compressionSrv.compressToStream(image, byteStream);
-            return byteStream.toByteArray();
+            return compressionSrv.compressToBytes(image);
         } catch (IOException e) {
             log.error("Could not compress rendered image.", e);
             throw new ResourceError(e.getMessage());
         } finally {
             rwl.writeLock().unlock();
-            try {
-                if (byteStream != null) {
-                    byteStream.close();
-                }
-            } catch (IOException e) {
-                log.error("Could not close byte stream.", e);
-                throw new ResourceError(e.getMessage());
-            }
         }
     }
 
@@ -692,7 +751,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
                 // *** Ticket #848 -- Chris Allan <callan@blackcat.ca> ***
                 load();
             }
-            
+            invalidateTileCache();
         } finally {
             rwl.writeLock().unlock();
         }
@@ -743,6 +802,26 @@ public class RenderingBean implements RenderingEngine, Serializable {
         return compressionSrv.getCompressionLevel();
     }
 
+    /**
+     * Implemented as specified by the {@link RenderingEngine} interface.
+     * 
+     * @see RenderingEngine#setCompressionFormat()
+     */
+    @RolesAllowed("user")
+    public void setCompressionFormat(String format) {
+        compressionSrv.setCompressionFormat(format);
+    }
+
+    /**
+     * Implemented as specified by the {@link RenderingEngine} interface.
+     * 
+     * @see RenderingEngine#getCompressionFormat()
+     */
+    @RolesAllowed("user")
+    public String getCompressionFormat() {
+        return compressionSrv.getCompressionFormat();
+    }
+
     /**
      * Implemented as specified by the {@link RenderingEngine} interface.
      * 
@@ -836,6 +915,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
             // we will now reload the renderer.
             // *** Ticket #848 -- Chris Allan <callan@blackcat.ca> ***
             load();
+            invalidateTileCache();
         } finally {
             rwl.writeLock().unlock();
         }
@@ -1146,6 +1226,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
         try {
             errorIfInvalidState();
             renderer.getCodomainChain().add(mapCtx.copy());
+            codomainMapsChanged = true;
         } finally {
             rwl.writeLock().unlock();
         }
@@ -1158,6 +1239,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
         try {
             errorIfInvalidState();
             renderer.getCodomainChain().remove(mapCtx.copy());
+            codomainMapsChanged = true;
         } finally {
             rwl.writeLock().unlock();
         }
@@ -1171,6 +1253,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
         try {
             errorIfInvalidState();
             renderer.getCodomainChain().update(mapCtx.copy());
+            codomainMapsChanged = true;
         } finally {
             rwl.writeLock().unlock();
         }
@@ -1461,6 +1544,44 @@ public class RenderingBean implements RenderingEngine, Serializable {
         }
     }
 
+    /**
+     * Implemented as specified by the {@link RenderingEngine} interface.
+     * 
+     * @see RenderingEngine#getHistogram(int, int, PlaneDef, boolean)
+     */
+    @RolesAllowed("user")
+    public int[] getHistogram(int w, int binCount, PlaneDef pd,
+            boolean wholeStack) {
+        if (binCount < 1 || binCount > MAX_HISTOGRAM_BINS) {
+            throw new ApiUsageException("The number of bins must be between"
+                    + " 1 and " + MAX_HISTOGRAM_BINS + ": " + binCount);
+        }
+        if (pd == null) {
+            throw new ApiUsageException("The plane definition is required.");
+        }
+        rwl.writeLock().lock();
+
+        try {
+            errorIfInvalidState();
+            int sizeC = pixelsObj.getSizeC();
+            if (w < 0 || w >= sizeC) {
+                throw new ApiUsageException("The channel must be between"
+                        + " 0 and " + (sizeC - 1) + ": " + w);
+            }
+            checkPlaneDef(pd);
+            if (resolutionLevel != null)
+            {
+                renderer.setResolutionLevel(resolutionLevel);
+            }
+            return renderer.getHistogram(w, binCount, pd, wholeStack);
+        } catch (IOException e) {
+            log.error("IO error while computing histogram.", e);
+            throw new ResourceError(e.getMessage());
+        } finally {
+            rwl.writeLock().unlock();
+        }
+    }
+
     /**
      * Validates the plane definition.
      * @param pd Plane definition to validate.
@@ -19,9 +19,16 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import ome.annotations.RolesAllowed;
@@ -41,7 +48,10 @@ import ome.io.nio.PixelBuffer;
 import ome.io.nio.PixelsService;
 import ome.io.nio.ThumbnailService;
 import ome.logic.AbstractLevel2Service;
+import ome.model.core.Channel;
 import ome.model.core.Pixels;
+import ome.model.display.ChannelBinding;
+import ome.model.display.CodomainMapContext;
 import ome.model.display.RenderingDef;
 import ome.model.display.Thumbnail;
 import ome.model.enums.Family;
@@ -51,7 +61,9 @@ import ome.parameters.Parameters;
 import ome.system.EventContext;
 import ome.system.SimpleEventContext;
 import ome.util.ImageUtil;
+import ome.util.ShallowCopy;
 import omeis.providers.re.Renderer;
+import omeis.providers.re.RenderingExecutor;
 import omeis.providers.re.data.PlaneDef;
 import omeis.providers.re.quantum.QuantizationException;
 import omeis.providers.re.quantum.QuantumFactory;
@@ -111,6 +123,12 @@ public class ThumbnailBean extends AbstractLevel2Service
     /** The rendering settings service. */
     private transient IRenderingSettings settingsService;
 
+    /** The pool of rendering threads shared by all renderers. */
+    private transient RenderingExecutor renderingExecutor;
+
+    /** The pool of threads creating the missing thumbnails of a set. */
+    private transient ExecutorService thumbnailExecutor;
+
     /** The list of all families supported by the {@link Renderer}. */
     private transient List<Family> families;
 
@@ -343,6 +361,7 @@ public class ThumbnailBean extends AbstractLevel2Service
         PixelBuffer buffer = pixelDataService.getPixelBuffer(pixels, false);
         renderer = new Renderer(quantumFactory, renderingModels, pixels,
                 settings, buffer);
+        renderer.setExecutor(renderingExecutor);
         dirty = false;
     }
 
@@ -450,6 +469,30 @@ public class ThumbnailBean extends AbstractLevel2Service
         this.settingsService = settingsService;
     }
 
+    /**
+     * Rendering executor Bean injector.
+     * 
+     * @param renderingExecutor
+     *            a <code>RenderingExecutor</code>.
+     */
+    public void setRenderingExecutor(RenderingExecutor renderingExecutor) {
+        getBeanHelper().throwIfAlreadySet(this.renderingExecutor,
+                renderingExecutor);
+        this.renderingExecutor = renderingExecutor;
+    }
+
+    /**
+     * Thumbnail executor Bean injector.
+     * 
+     * @param thumbnailExecutor
+     *            an <code>ExecutorService</code>.
+     */
+    public void setThumbnailExecutor(ExecutorService thumbnailExecutor) {
+        getBeanHelper().throwIfAlreadySet(this.thumbnailExecutor,
+                thumbnailExecutor);
+        this.thumbnailExecutor = thumbnailExecutor;
+    }
+
     /**
      * Compresses a buffered image thumbnail to disk.
      * 
@@ -574,12 +617,30 @@ public class ThumbnailBean extends AbstractLevel2Service
             theZ = settings.getDefaultZ();
         if (theT == null)
             theT = settings.getDefaultT();
+        return createScaledImage(renderer, thumbnailMetadata, theZ, theT);
+    }
+
+    /**
+     * Creates a scaled buffered image with a given renderer. Only uses the
+     * arguments and stateless services so that it may be called by the
+     * thumbnail workers.
+     * 
+     * @param renderer the renderer to use.
+     * @param thumbnailMetadata the thumbnail metadata, giving the size.
+     * @param theZ the optical section (offset across the Z-axis) requested.
+     * @param theT the timepoint (offset across the T-axis) requested.
+     * @return a scaled buffered image.
+     */
+    private BufferedImage createScaledImage(Renderer renderer,
+            Thumbnail thumbnailMetadata, int theZ, int theT)
+    {
         PlaneDef pd = new PlaneDef(PlaneDef.XY, theT);
         pd.setZ(theZ);
         // Use a resolution level that matches our requested size if we can
         PixelBuffer pixelBuffer = renderer.getPixels();
-        int originalSizeX = pixels.getSizeX();
-        int originalSizeY = pixels.getSizeY();
+        Pixels rendererPixels = renderer.getMetadata();
+        int originalSizeX = rendererPixels.getSizeX();
+        int originalSizeY = rendererPixels.getSizeY();
         int pixelBufferSizeX = pixelBuffer.getSizeX();
         int pixelBufferSizeY = pixelBuffer.getSizeY();
         if (pixelBuffer.getResolutionLevels() > 1)
@@ -603,7 +664,6 @@ public class ThumbnailBean extends AbstractLevel2Service
         }
 
         // Render the planes and translate to a buffered image
-        Pixels rendererPixels = renderer.getMetadata();
         try
         {
             log.debug(String.format("Setting renderer Pixel sizeX:%d sizeY:%d",
@@ -611,6 +671,25 @@ public class ThumbnailBean extends AbstractLevel2Service
             rendererPixels.setSizeX(pixelBufferSizeX);
             rendererPixels.setSizeY(pixelBufferSizeY);
             int[] buf = renderer.renderAsPackedInt(pd, null);
+            int thumbSizeX = thumbnailMetadata.getSizeX();
+            int thumbSizeY = thumbnailMetadata.getSizeY();
+            if (thumbSizeX <= pixelBufferSizeX
+                && thumbSizeY <= pixelBufferSizeY)
+            {
+                // Reduce by area averaging directly on the packed buffer,
+                // without an intermediate buffered image.
+                log.debug(String.format("Area averaging %dx%d to %dx%d",
+                        pixelBufferSizeX, pixelBufferSizeY,
+                        thumbSizeX, thumbSizeY));
+                StopWatch s1 = new CommonsLogStopWatch(
+                        "omero.thumbnail.scalePackedInt");
+                int[] scaled = ImageUtil.scalePackedInt(buf,
+                        pixelBufferSizeX, pixelBufferSizeY,
+                        thumbSizeX, thumbSizeY);
+                s1.stop();
+                return ImageUtil.createBufferedImage(
+                        scaled, thumbSizeX, thumbSizeY);
+            }
             BufferedImage image = ImageUtil.createBufferedImage(
                     buf, pixelBufferSizeX, pixelBufferSizeY);
 
@@ -655,7 +734,16 @@ public class ThumbnailBean extends AbstractLevel2Service
     private void newContext()
     {
         resetMetadata();
-        ctx = new ThumbnailCtx(
+        ctx = createContext();
+    }
+
+    /**
+     * Creates the thumbnail context used by {@link #newContext()}.
+     * @return See above.
+     */
+    protected ThumbnailCtx createContext()
+    {
+        return new ThumbnailCtx(
                 iQuery, iUpdate, iPixels, settingsService, ioService,
                 sec, sec.getEffectiveUID());
     }
@@ -912,8 +1000,24 @@ public class ThumbnailBean extends AbstractLevel2Service
         Map<Long, byte[]> toReturn = new HashMap<Long, byte[]>();
 
         List<Thumbnail> toSave = new ArrayList<Thumbnail>();
+
+        // Missing thumbnails are handed to the thumbnail workers first so
+        // that they are being created while the cached ones are read.
+        Map<Long, Thumbnail> dirtyCreated = new HashMap<Long, Thumbnail>();
+        Set<Long> inProgressIds = new HashSet<Long>();
+        Map<Long, Future<byte[]>> created =
+            submitMissingThumbnails(pixelsIds, dirtyCreated, inProgressIds);
         for (Long pixelsId : pixelsIds)
         {
+            if (created.containsKey(pixelsId))
+            {
+                continue;
+            }
+            if (inProgressIds.contains(pixelsId))
+            {
+                retrieveInProgressThumbnail(pixelsId, toReturn);
+                continue;
+            }
             // Ensure that the renderer has been made dirty otherwise the
             // same renderer will be used to return all thumbnails with dirty
             // metadata. (See #2075).
@@ -960,6 +1064,35 @@ public class ThumbnailBean extends AbstractLevel2Service
                 toReturn.put(pixelsId, null);
             }
         }
+        for (Map.Entry<Long, Future<byte[]>> entry : created.entrySet())
+        {
+            Long pixelsId = entry.getKey();
+            try
+            {
+                toReturn.put(pixelsId, entry.getValue().get());
+                Thumbnail metadata = dirtyCreated.get(pixelsId);
+                if (metadata != null)
+                {
+                    // See _createThumbnail()
+                    metadata.setVersion(metadata.getVersion() + 1);
+                    metadata.setPixels(new Pixels(pixelsId, false));
+                    toSave.add(metadata);
+                }
+            }
+            catch (ExecutionException e)
+            {
+                log.warn("Retrieving thumbnail in set for " +
+                        "Pixels ID " + pixelsId + " failed.", e.getCause());
+                toReturn.put(pixelsId, null);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while retrieving thumbnail in set " +
+                        "for Pixels ID " + pixelsId + ".");
+                toReturn.put(pixelsId, null);
+            }
+        }
         // We're doing the update or creation and save as a two step 
         // process due to the possible unloaded Pixels. If we do not, 
         // Pixels will be unloaded and we will hit 
@@ -972,6 +1105,316 @@ public class ThumbnailBean extends AbstractLevel2Service
         return toReturn;
     }
 
+    /**
+     * Retrieves the in progress image as the thumbnail of a Pixels set whose
+     * pixel buffer could not be opened.
+     * @param pixelsId The Pixels ID.
+     * @param toReturn Map of Pixels ID vs. thumbnail bytes to fill.
+     */
+    protected void retrieveInProgressThumbnail(
+            Long pixelsId, Map<Long, byte[]> toReturn)
+    {
+        resetMetadata();
+        try
+        {
+            inProgress = true;
+            pixels = ctx.getPixels(pixelsId);
+            this.pixelsId = pixels.getId();
+            settings = ctx.getSettings(pixelsId);
+            thumbnailMetadata = ctx.getMetadata(pixelsId);
+            toReturn.put(pixelsId, retrieveThumbnail());
+        }
+        catch (Throwable t)
+        {
+            log.warn("Retrieving thumbnail in set for " +
+                    "Pixels ID " + pixelsId + " failed.", t);
+            toReturn.put(pixelsId, null);
+        }
+    }
+
+    /**
+     * Hands the thumbnails of a set which are not cached to the thumbnail
+     * workers. The Pixels sets and rendering settings of all of them are
+     * loaded in bulk and each pixel buffer is opened on the calling thread,
+     * which is logged in, so that a missing pyramid is reported as for a
+     * single thumbnail. Each worker is given the opened buffer and detached
+     * copies of the Pixels set and rendering settings, from which it
+     * creates the renderer. A buffer is only opened once a worker is free,
+     * so at most as many pixel buffers as there are thumbnail workers are
+     * open at once. Thumbnails which cannot be handed over are left to
+     * {@link #retrieveThumbnailSet(Set)}.
+     * @param pixelsIds The Pixels IDs of the set.
+     * @param dirtyCreated Filled with the thumbnail metadata which must be
+     * updated and saved once the corresponding thumbnail has been created.
+     * @param inProgressIds Filled with the Pixels IDs whose pixel buffer
+     * could not be opened as they are still being imported or their pyramid
+     * is being created.
+     * @return Map of Pixels ID vs. thumbnail bytes to come.
+     */
+    private Map<Long, Future<byte[]>> submitMissingThumbnails(
+            Set<Long> pixelsIds, Map<Long, Thumbnail> dirtyCreated,
+            Set<Long> inProgressIds)
+    {
+        Map<Long, Future<byte[]>> toReturn =
+            new HashMap<Long, Future<byte[]>>();
+        if (thumbnailExecutor == null)
+        {
+            return toReturn;
+        }
+        Set<Long> missing = new HashSet<Long>();
+        for (Long pixelsId : pixelsIds)
+        {
+            try
+            {
+                if (ctx.hasSettings(pixelsId) && ctx.hasMetadata(pixelsId)
+                    && !ctx.isThumbnailCached(pixelsId))
+                {
+                    missing.add(pixelsId);
+                }
+            }
+            catch (Throwable t)
+            {
+                // Reported when retrieved on the calling thread.
+            }
+        }
+        if (missing.size() == 0)
+        {
+            return toReturn;
+        }
+        if (diskSpaceChecking)
+        {
+            iRepositoryInfo.sanityCheckRepository();
+        }
+
+        StopWatch s1 = new CommonsLogStopWatch(
+                "omero.submitMissingThumbnails");
+        ctx.loadRenderingDescriptions(missing);
+        QuantumFactory quantumFactory = new QuantumFactory(getFamilies());
+        List<RenderingModel> renderingModels = getRenderingModels();
+        Semaphore workers = new Semaphore(getThumbnailWorkerCount());
+        for (Long pixelsId : missing)
+        {
+            try
+            {
+                Pixels pixels =
+                    copyPixels(ctx.getPixelsDescription(pixelsId));
+                RenderingDef settings =
+                    copySettings(ctx.getSettingsDescription(pixelsId));
+                Thumbnail metadata = ctx.getMetadata(pixelsId);
+                workers.acquireUninterruptibly();
+                PixelBuffer buffer;
+                try
+                {
+                    buffer = pixelDataService.getPixelBuffer(pixels, false);
+                }
+                catch (ConcurrencyException e)
+                {
+                    workers.release();
+                    log.info("ConcurrencyException on " +
+                             "submitMissingThumbnails.getPixelBuffer");
+                    inProgressIds.add(pixelsId);
+                    continue;
+                }
+                catch (RuntimeException e)
+                {
+                    workers.release();
+                    throw e;
+                }
+                try
+                {
+                    toReturn.put(pixelsId, thumbnailExecutor.submit(
+                            new ThumbnailCreator(quantumFactory,
+                                    renderingModels, pixels, settings,
+                                    metadata, buffer, workers)));
+                }
+                catch (RuntimeException e)
+                {
+                    buffer.close();
+                    workers.release();
+                    throw e;
+                }
+                if (ctx.dirtyMetadata(pixelsId))
+                {
+                    dirtyCreated.put(pixelsId, metadata);
+                }
+            }
+            catch (Throwable t)
+            {
+                log.debug("Not creating thumbnail for Pixels ID " + pixelsId
+                        + " in the background: " + t);
+            }
+        }
+        s1.stop();
+        return toReturn;
+    }
+
+    /**
+     * Returns the number of thumbnail workers, which bounds the number of
+     * pixel buffers opened by {@link #submitMissingThumbnails}.
+     * @return See above.
+     */
+    private int getThumbnailWorkerCount()
+    {
+        if (thumbnailExecutor instanceof ThreadPoolExecutor)
+        {
+            return Math.max(1, ((ThreadPoolExecutor) thumbnailExecutor)
+                    .getMaximumPoolSize());
+        }
+        return 1;
+    }
+
+    /**
+     * Copies a Pixels set, its pixels type and its channels with their
+     * logical channels and statistics so that it may be handed to a thumbnail
+     * worker without touching the Hibernate session.
+     * @param pixels The Pixels set to copy.
+     * @return See above.
+     */
+    @SuppressWarnings("unchecked")
+    private Pixels copyPixels(Pixels pixels)
+    {
+        Pixels newPixels = new ShallowCopy().copy(pixels);
+        newPixels.putAt(Pixels.CHANNELS, new ArrayList<Channel>());
+        Iterator<Channel> it = pixels.iterateChannels();
+        while (it.hasNext())
+        {
+            Channel channel = it.next();
+            Channel newChannel = new ShallowCopy().copy(channel);
+            newChannel.setLogicalChannel(
+                    new ShallowCopy().copy(channel.getLogicalChannel()));
+            if (channel.getStatsInfo() != null)
+            {
+                newChannel.setStatsInfo(
+                        new ShallowCopy().copy(channel.getStatsInfo()));
+            }
+            newPixels.addChannel(newChannel);
+        }
+        newPixels.setPixelsType(
+                new ShallowCopy().copy(pixels.getPixelsType()));
+        return newPixels;
+    }
+
+    /**
+     * Copies rendering settings, their model and quantum definition, and
+     * their channel bindings and codomain maps so that they may be handed to
+     * a thumbnail worker without touching the Hibernate session.
+     * @param settings The rendering settings to copy.
+     * @return See above.
+     */
+    @SuppressWarnings("unchecked")
+    private RenderingDef copySettings(RenderingDef settings)
+    {
+        RenderingDef newSettings = new ShallowCopy().copy(settings);
+        newSettings.putAt(RenderingDef.WAVERENDERING,
+                new ArrayList<ChannelBinding>());
+        newSettings.putAt(RenderingDef.SPATIALDOMAINENHANCEMENT,
+                new ArrayList<CodomainMapContext>());
+        newSettings.setModel(new ShallowCopy().copy(settings.getModel()));
+        newSettings.setQuantization(
+                new ShallowCopy().copy(settings.getQuantization()));
+        Iterator<ChannelBinding> bindings = settings.iterateWaveRendering();
+        while (bindings.hasNext())
+        {
+            ChannelBinding binding = bindings.next();
+            ChannelBinding newBinding = new ShallowCopy().copy(binding);
+            newBinding.setFamily(new ShallowCopy().copy(binding.getFamily()));
+            newSettings.addChannelBinding(newBinding);
+        }
+        Iterator<CodomainMapContext> maps =
+            settings.iterateSpatialDomainEnhancement();
+        while (maps.hasNext())
+        {
+            newSettings.addCodomainMapContext(
+                    new ShallowCopy().copy(maps.next()));
+        }
+        return newSettings;
+    }
+
+    /**
+     * Creates a thumbnail on a thumbnail worker from a pixel buffer opened
+     * by the calling thread and returns its bytes. The renderer is only
+     * created once the worker picks the task up. The renderer, and with it
+     * the buffer, is closed once done, freeing a worker slot.
+     */
+    private class ThumbnailCreator implements Callable<byte[]>
+    {
+        private final QuantumFactory quantumFactory;
+
+        private final List<RenderingModel> renderingModels;
+
+        private final Pixels pixels;
+
+        private final RenderingDef settings;
+
+        private final Thumbnail metadata;
+
+        private final PixelBuffer buffer;
+
+        private final Semaphore workers;
+
+        ThumbnailCreator(QuantumFactory quantumFactory,
+                List<RenderingModel> renderingModels, Pixels pixels,
+                RenderingDef settings, Thumbnail metadata,
+                PixelBuffer buffer, Semaphore workers)
+        {
+            this.quantumFactory = quantumFactory;
+            this.renderingModels = renderingModels;
+            this.pixels = pixels;
+            this.settings = settings;
+            this.metadata = metadata;
+            this.buffer = buffer;
+            this.workers = workers;
+        }
+
+        public byte[] call() throws IOException
+        {
+            try
+            {
+                return create();
+            }
+            finally
+            {
+                workers.release();
+            }
+        }
+
+        private byte[] create() throws IOException
+        {
+            Renderer renderer;
+            try
+            {
+                renderer = new Renderer(quantumFactory, renderingModels,
+                        pixels, settings, buffer);
+            }
+            catch (RuntimeException e)
+            {
+                buffer.close();
+                throw e;
+            }
+            try
+            {
+                renderer.setExecutor(renderingExecutor);
+                BufferedImage image = createScaledImage(renderer, metadata,
+                        settings.getDefaultZ(), settings.getDefaultT());
+                FileOutputStream stream =
+                    ioService.getThumbnailOutputStream(metadata);
+                try
+                {
+                    compressionService.compressToStream(image, stream);
+                }
+                finally
+                {
+                    stream.close();
+                }
+                return ioService.getThumbnail(metadata);
+            }
+            finally
+            {
+                renderer.close();
+            }
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -1124,11 +1567,9 @@ public class ThumbnailBean extends AbstractLevel2Service
         try {
             if (inProgress) {
                 compressInProgressImageToStream(thumbnailMetadata, byteStream);
-            } else {
-                compressionService.compressToStream(image, byteStream);
+                return byteStream.toByteArray();
             }
-            byte[] thumbnail = byteStream.toByteArray();
-            return thumbnail;
+            return compressionService.compressToBytes(image);
         } catch (IOException e) {
             log.error("Could not obtain thumbnail direct.", e);
             throw new ResourceError(e.getMessage());
@@ -124,6 +124,20 @@ public class ThumbnailCtx
     private Map<Long, Long> pixelsIdSettingsOwnerIdMap =
         new HashMap<Long, Long>();
 
+    /**
+     * Pixels ID vs. Pixels object with its channels and pixels type loaded,
+     * as required by a renderer.
+     */
+    private Map<Long, Pixels> pixelsIdDescriptionMap =
+        new HashMap<Long, Pixels>();
+
+    /**
+     * Pixels ID vs. RenderingDef object with its channel bindings, model and
+     * quantum definition loaded, as required by a renderer.
+     */
+    private Map<Long, RenderingDef> pixelsIdSettingsDescriptionMap =
+        new HashMap<Long, RenderingDef>();
+
     /**
      * Default constructor.
      * @param queryService OMERO query service to use.
@@ -273,6 +287,98 @@ public class ThumbnailCtx
         prepareRenderingSettings(settings, pixels);
     }
 
+    /**
+     * Bulk loads everything a renderer needs for a group of Pixels sets whose
+     * rendering settings have already been prepared, in place of a
+     * {@link IPixels#retrievePixDescription(long)} and
+     * {@link IPixels#loadRndSettings(long)} call per Pixels set.
+     * @param pixelsIds Pixels IDs to load renderer metadata for.
+     */
+    public void loadRenderingDescriptions(Set<Long> pixelsIds)
+    {
+        Set<Long> settingsIds = new HashSet<Long>();
+        for (Long pixelsId : pixelsIds)
+        {
+            RenderingDef settings = pixelsIdSettingsMap.get(pixelsId);
+            if (settings != null)
+            {
+                settingsIds.add(settings.getId());
+            }
+        }
+        if (settingsIds.size() == 0)
+        {
+            return;
+        }
+        StopWatch s1 = new CommonsLogStopWatch(
+                "omero.loadRenderingDescriptions");
+        List<Pixels> pixelsList = queryService.findAllByQuery(
+                "select distinct p from Pixels as p " +
+                "left outer join fetch p.pixelsType " +
+                "left outer join fetch p.channels as c " +
+                "left outer join fetch c.logicalChannel as lc " +
+                "left outer join fetch c.statsInfo " +
+                "left outer join fetch lc.photometricInterpretation " +
+                "left outer join fetch lc.illumination " +
+                "left outer join fetch lc.mode " +
+                "left outer join fetch lc.contrastMethod " +
+                "where p.id in (:ids)",
+                new Parameters().addIds(pixelsIds));
+        for (Pixels pixels : pixelsList)
+        {
+            pixelsIdDescriptionMap.put(pixels.getId(), pixels);
+        }
+        List<RenderingDef> settingsList = queryService.findAllByQuery(
+                "select distinct r from RenderingDef as r " +
+                "join fetch r.pixels " +
+                "left outer join fetch r.details.owner " +
+                "left outer join fetch r.quantization " +
+                "left outer join fetch r.model " +
+                "left outer join fetch r.waveRendering as cb " +
+                "left outer join fetch cb.family " +
+                "left outer join fetch r.spatialDomainEnhancement " +
+                "where r.id in (:ids)",
+                new Parameters().addIds(settingsIds));
+        for (RenderingDef settings : settingsList)
+        {
+            pixelsIdSettingsDescriptionMap.put(
+                    settings.getPixels().getId(), settings);
+        }
+        s1.stop();
+    }
+
+    /**
+     * Retrieves the Pixels object for a given Pixels ID as loaded by
+     * {@link #loadRenderingDescriptions(Set)}, loading it if it was not.
+     * @param pixelsId Pixels ID to retrieve the Pixels object for.
+     * @return See above.
+     */
+    public Pixels getPixelsDescription(long pixelsId)
+    {
+        Pixels pixels = pixelsIdDescriptionMap.get(pixelsId);
+        if (pixels == null)
+        {
+            pixels = pixelsService.retrievePixDescription(pixelsId);
+        }
+        return pixels;
+    }
+
+    /**
+     * Retrieves the RenderingDef object for a given Pixels ID as loaded by
+     * {@link #loadRenderingDescriptions(Set)}, loading it if it was not.
+     * @param pixelsId Pixels ID to retrieve the RenderingDef object for.
+     * @return See above.
+     */
+    public RenderingDef getSettingsDescription(long pixelsId)
+    {
+        RenderingDef settings = pixelsIdSettingsDescriptionMap.get(pixelsId);
+        if (settings == null)
+        {
+            settings = pixelsService.loadRndSettings(
+                    getSettings(pixelsId).getId());
+        }
+        return settings;
+    }
+
     /**
      * Bulk loads and prepares metadata for a group of pixels sets. Calling
      * this method guarantees that metadata are available, creating them if
@@ -0,0 +1,207 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.delete;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import ome.services.graphs.AnnotationGraphSpec;
+import ome.services.graphs.GraphException;
+import ome.services.graphs.GraphOpts;
+import ome.services.graphs.GraphStep;
+import ome.system.OmeroContext;
+import ome.tools.hibernate.QueryBuilder;
+import ome.util.SqlAction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.exception.ConstraintViolationException;
+import org.perf4j.StopWatch;
+import org.perf4j.commonslog.CommonsLogStopWatch;
+
+/**
+ * {@link DeleteStep} which deletes the rows of several consecutive
+ * {@link DeleteStep}s of the same table, specification and operation with a
+ * single statement, and so within a single savepoint. Created by
+ * {@link DeleteStepFactory#postProcess(List)}.
+ *
+ * If the statement fails or does not delete every row, the rows are deleted
+ * one at a time instead, each within its own savepoint, so that missing rows
+ * and SOFT entries are handled as they would have been by the individual
+ * {@link DeleteStep}s. Skipped SOFT rows are reported by
+ * {@link #getWarnings()}.
+ *
+ * @since 4.4.0
+ */
+public class BulkDeleteStep extends DeleteStep {
+
+    final private static Log log = LogFactory.getLog(BulkDeleteStep.class);
+
+    final private List<DeleteStep> rows;
+
+    final private StringBuilder warnings = new StringBuilder();
+
+    public BulkDeleteStep(OmeroContext ctx, int idx, List<DeleteStep> rows) {
+        super(ctx, idx, rows.get(0).stack, rows.get(0).spec,
+                rows.get(0).entry, rows.get(0).getIds());
+        this.rows = Collections.unmodifiableList(new ArrayList<DeleteStep>(
+                rows));
+    }
+
+    /**
+     * Returns the individual steps whose rows are deleted by this instance.
+     */
+    public List<DeleteStep> getRows() {
+        return rows;
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public String getWarnings() {
+        return warnings.toString();
+    }
+
+    /**
+     * Returns true if the two steps can be deleted by a single
+     * {@link BulkDeleteStep}, i.e. they delete from the same table with the
+     * same specification and operation. Steps below different parents are
+     * only merged if neither has a SOFT parent, since only those parents may
+     * be rolled back on their own.
+     */
+    static boolean canMerge(GraphStep a, GraphStep b) {
+        return a instanceof DeleteStep && b instanceof DeleteStep
+                && !(a instanceof BulkDeleteStep)
+                && !(b instanceof BulkDeleteStep)
+                && a.getIds() != null && b.getIds() != null // Not finalization
+                && a.spec == b.spec && a.table.equals(b.table)
+                && a.entry.getOpString().equals(b.entry.getOpString())
+                && !a.entry.isNull() // WORKAROUND see #2776, #2966
+                && (a.stack.equals(b.stack)
+                        || (!hasSoftParent(a) && !hasSoftParent(b)));
+    }
+
+    private static boolean hasSoftParent(GraphStep step) {
+        for (GraphStep parent : step.stack) {
+            if (parent.entry.isSoft()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void action(Callback cb, Session session, SqlAction sql,
+            GraphOpts opts) throws GraphException {
+
+        final List<Long> ids = new ArrayList<Long>(rows.size());
+        final List<Long> topLevelIds = new ArrayList<Long>();
+        for (DeleteStep row : rows) {
+            ids.add(row.id);
+            if (row.stack.size() <= 1) {
+                topLevelIds.add(row.id);
+            }
+        }
+
+        // Phase 1: top-levels
+        if (!topLevelIds.isEmpty()) {
+            if (spec instanceof AnnotationGraphSpec) {
+                deleteAnnotationLinks((AnnotationGraphSpec) spec, session,
+                        topLevelIds);
+            }
+        }
+
+        // Phase 2: primary action
+        final StopWatch swStep = new CommonsLogStopWatch();
+        final String savepoint = UUID.randomUUID().toString().replaceAll(
+                "-", "");
+        sql.createSavepoint(savepoint);
+        int count = -1;
+        try {
+            final QueryBuilder qb = spec.deleteAllQuery(ec, table, opts);
+            qb.paramList("ids", ids);
+            Query q = qb.query(session);
+            count = q.executeUpdate();
+        } catch (ConstraintViolationException cve) {
+            log.debug(String.format("Bulk delete of %s %s failed due to %s",
+                    ids.size(), table, cve.getConstraintName()));
+        }
+
+        if (count == ids.size()) {
+            sql.releaseSavepoint(savepoint);
+            for (DeleteStep row : rows) {
+                cb.addGraphIds(row);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("Processed %s %s from %s: root=%s",
+                        count, table, pathMsg, entry.getId()));
+            }
+            swStep.stop("omero.deletestep." + table, "bulk:" + count);
+            return;
+        }
+
+        sql.rollbackSavepoint(savepoint);
+        rowByRow(cb, session, sql, opts);
+        swStep.stop("omero.deletestep." + table, "rows:" + ids.size());
+    }
+
+    /**
+     * Deletes each row within its own savepoint, skipping those which fail if
+     * the entry is SOFT. Any other failure is passed on so that the
+     * {@link ome.services.graphs.GraphState} can roll back this step as a
+     * whole.
+     */
+    private void rowByRow(Callback cb, Session session, SqlAction sql,
+            GraphOpts opts) throws GraphException {
+        for (DeleteStep row : rows) {
+            row.setEventContext(ec);
+            final String savepoint = UUID.randomUUID().toString().replaceAll(
+                    "-", "");
+            sql.createSavepoint(savepoint);
+            try {
+                row.action(cb, session, sql, opts);
+                sql.releaseSavepoint(savepoint);
+            } catch (ConstraintViolationException cve) {
+                sql.rollbackSavepoint(savepoint);
+                if (!entry.isSoft()) {
+                    throw cve;
+                }
+                log.debug(String.format("Skipping processing of %s:%s "
+                        + "due to ConstraintViolation: %s", table, row.id,
+                        cve.getConstraintName()));
+                skipped(row);
+            } catch (GraphException ge) {
+                sql.rollbackSavepoint(savepoint);
+                if (!entry.isSoft()) {
+                    throw ge;
+                }
+                log.debug(String.format("Skipping processing of %s:%s "
+                        + "due to GraphException: %s", table, row.id,
+                        ge.message));
+                skipped(row);
+            }
+        }
+    }
+
+    /**
+     * Notes a skipped row as {@link ome.services.graphs.GraphState} does for
+     * a failed SOFT {@link DeleteStep}.
+     */
+    private void skipped(DeleteStep row) {
+        warnings.append("Skipping processing of " + table + ":" + row.id
+                + "\n");
+    }
+
+}
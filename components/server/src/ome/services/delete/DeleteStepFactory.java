@@ -7,6 +7,7 @@
 
 package ome.services.delete;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import ome.api.IDelete;
@@ -28,8 +29,20 @@ public class DeleteStepFactory implements GraphStepFactory {
 
     private final OmeroContext ctx;
 
+    /**
+     * Maximum number of consecutive {@link DeleteStep}s which are merged into
+     * a single {@link BulkDeleteStep}. A value of 1 leaves the steps as they
+     * are.
+     */
+    private final int batchSize;
+
     public DeleteStepFactory(OmeroContext ctx) {
+        this(ctx, 1);
+    }
+
+    public DeleteStepFactory(OmeroContext ctx, int batchSize) {
         this.ctx = ctx;
+        this.batchSize = batchSize;
     }
 
     public GraphStep create(int idx, List<GraphStep> stack, GraphSpec spec,
@@ -37,7 +50,41 @@ public class DeleteStepFactory implements GraphStepFactory {
         return new DeleteStep(ctx, idx, stack, spec, entry, ids);
     }
 
+    /**
+     * Merges runs of consecutive {@link DeleteStep}s which delete from the
+     * same table with the same specification and operation into
+     * {@link BulkDeleteStep}s of at most {@link #batchSize} rows. See
+     * {@link BulkDeleteStep#canMerge(GraphStep, GraphStep)}.
+     */
     public List<GraphStep> postProcess(List<GraphStep> steps) {
-        return steps;
+        if (batchSize <= 1) {
+            return steps;
+        }
+
+        final List<GraphStep> rv = new ArrayList<GraphStep>(steps.size());
+        final List<DeleteStep> run = new ArrayList<DeleteStep>();
+        for (GraphStep step : steps) {
+            if (!run.isEmpty()
+                    && (run.size() == batchSize || !BulkDeleteStep.canMerge(
+                            run.get(0), step))) {
+                flush(rv, run);
+            }
+            if (run.isEmpty() && !BulkDeleteStep.canMerge(step, step)) {
+                rv.add(step);
+            } else {
+                run.add((DeleteStep) step);
+            }
+        }
+        flush(rv, run);
+        return rv;
+    }
+
+    private void flush(List<GraphStep> rv, List<DeleteStep> run) {
+        if (run.size() == 1) {
+            rv.add(run.get(0));
+        } else if (run.size() > 1) {
+            rv.add(new BulkDeleteStep(ctx, rv.size(), run));
+        }
+        run.clear();
     }
 }
@@ -84,10 +84,20 @@ public class Deletion {
 
         protected AbstractFileSystemService afs;
 
+        protected int batchSize = 1;
+
         public Builder(AbstractFileSystemService afs) {
             this.afs = afs;
         }
 
+        /**
+         * Sets the maximum number of rows of the same table which are deleted
+         * by a single statement. See {@link DeleteStepFactory#postProcess}.
+         */
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
         /* @Override - JDK6 only */
         public void setApplicationContext(ApplicationContext ctx)
             throws BeansException {
@@ -99,7 +109,8 @@ public class Deletion {
             throws Exception {
             ClassPathXmlApplicationContext specs = new ClassPathXmlApplicationContext(
                 new String[]{"classpath:ome/services/spec.xml"}, this.ctx);
-            DeleteStepFactory dsf = new DeleteStepFactory(this.ctx);
+            DeleteStepFactory dsf = new DeleteStepFactory(this.ctx,
+                batchSize);
             return new Deletion(specs, dsf, afs);
         }
 
@@ -258,6 +269,7 @@ public class Deletion {
             StopWatch sw = new CommonsLogStopWatch();
 
             state = new GraphState(ec, factory, sql, session, this.spec);
+            // Counting the rows of merged steps rather than the steps.
             scheduledDeletes = state.getTotalFoundCount();
             if (scheduledDeletes == 0L) {
                 throw new GraphException("Object missing");
@@ -271,7 +283,7 @@ public class Deletion {
                 + ") Delete a subgraph first.");
         }
 
-        return (int) scheduledDeletes;
+        return state == null ? 0 : state.getStepCount();
 
     }
 
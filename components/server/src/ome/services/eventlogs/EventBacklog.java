@@ -104,6 +104,22 @@ public class EventBacklog {
         }
     }
 
+    /**
+     * Adds an {@link EventLog} which could not be processed back to the end of
+     * the queue. Unlike {@link #add(EventLog)} this is also possible in the
+     * removing state, since the batch the log was taken from has already been
+     * drained; it is then retried by a later removing batch rather than lost.
+     */
+    public synchronized boolean readd(EventLog log) {
+        boolean state = adding;
+        adding = true;
+        try {
+            return add(log);
+        } finally {
+            adding = state;
+        }
+    }
+
     /**
      * Removes and returns the next {@link EventLog} instance or null if none is
      * present. Also cleans up any tracking information for the given
@@ -173,7 +173,7 @@ public abstract class EventLogLoader implements Iterator<EventLog>,
                 log.debug("Skipping rollback of " + el.getEntityType());
             }
         }
-        backlog.add(el);
+        backlog.readd(el);
     }
 
     protected abstract EventLog query();
@@ -11,7 +11,9 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import ome.services.messages.RegisterServiceCleanupMessage;
@@ -39,6 +41,13 @@ public class FileParser implements ApplicationContextAware {
 
     protected OmeroContext context;
 
+    /**
+     * Cleanups registered by parsers running outside of a service call, e.g.
+     * on the threads of a {@link ParserPool}. Null when cleanups should be
+     * published to the {@link #context} as usual.
+     */
+    private final static ThreadLocal<List<RegisterServiceCleanupMessage>> cleanups = new ThreadLocal<List<RegisterServiceCleanupMessage>>();
+
     public void setApplicationContext(ApplicationContext arg0)
             throws BeansException {
         context = (OmeroContext) arg0;
@@ -130,7 +139,7 @@ public class FileParser implements ApplicationContextAware {
     public Iterable<Reader> doParse(File file) throws Exception {
         FileReader reader = new FileReader(file);
         BufferedReader buffered = new BufferedReader(reader);
-        context.publishEvent(new RegisterServiceCleanupMessage(this, buffered) {
+        register(new RegisterServiceCleanupMessage(this, buffered) {
             @Override
             public void close() {
                 try {
@@ -145,6 +154,48 @@ public class FileParser implements ApplicationContextAware {
         return wrap(it);
     }
 
+    /**
+     * Registers a resource which must be closed once the {@link Reader}
+     * instances returned by {@link #doParse(File)} have been consumed. Within a
+     * service call the cleanup is published so that it runs when the call
+     * ends; between {@link #collectCleanups()} and {@link #closeCleanups()}
+     * it is instead run by the latter.
+     */
+    protected void register(RegisterServiceCleanupMessage cleanup) {
+        List<RegisterServiceCleanupMessage> list = cleanups.get();
+        if (list == null) {
+            context.publishEvent(cleanup);
+        } else {
+            list.add(cleanup);
+        }
+    }
+
+    /**
+     * Starts collecting the cleanups registered by parsers on the current
+     * thread rather than publishing them.
+     */
+    static void collectCleanups() {
+        cleanups.set(new ArrayList<RegisterServiceCleanupMessage>());
+    }
+
+    /**
+     * Runs and forgets the cleanups collected on the current thread since
+     * {@link #collectCleanups()}.
+     */
+    static void closeCleanups() {
+        List<RegisterServiceCleanupMessage> list = cleanups.get();
+        cleanups.remove();
+        if (list != null) {
+            for (RegisterServiceCleanupMessage cleanup : list) {
+                try {
+                    cleanup.close();
+                } catch (Exception e) {
+                    log.debug("Error closing " + cleanup.resource, e);
+                }
+            }
+        }
+    }
+
     /**
      * Wraps an {@link Iterator} with an {@link Iterable} instance. If the
      * {@link Iterator} is null, the {@link #EMPTY} {@link Iterable} will be
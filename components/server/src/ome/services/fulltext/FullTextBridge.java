@@ -56,6 +56,7 @@ public class FullTextBridge extends BridgeHelper {
     final protected OriginalFilesService files;
     final protected Map<String, FileParser> parsers;
     final protected Class<FieldBridge>[] classes;
+    protected ParserPool parserPool;
 
     /**
      * Since this constructor provides the instance with no way of parsing
@@ -100,6 +101,28 @@ public class FullTextBridge extends BridgeHelper {
         this.classes = bridgeClasses == null ? new Class[] {} : bridgeClasses;
     }
 
+    /**
+     * Spring injector. If set, files are parsed by the given
+     * {@link ParserPool}, which may already have parsed them in parallel
+     * ahead of indexing, rather than inline.
+     */
+    public void setParserPool(ParserPool parserPool) {
+        this.parserPool = parserPool;
+    }
+
+    /**
+     * Uses the {@link ParserPool} if one has been set.
+     */
+    @Override
+    protected Iterable<Reader> parse(final OriginalFile file,
+            final OriginalFilesService files,
+            final Map<String, FileParser> parsers) {
+        if (parserPool != null) {
+            return parserPool.parse(file);
+        }
+        return super.parse(file, files, parsers);
+    }
+
     /**
      * Default implementation of the
      * {@link #set(String, Object, Document, Store, org.apache.lucene.document.Field.Index, Float)}
@@ -10,6 +10,14 @@ package ome.services.fulltext;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import ome.api.local.LocalShare;
 import ome.conditions.InternalException;
@@ -94,6 +102,8 @@ public class FullTextIndexer extends SimpleWork {
 
     final protected EventLogLoader loader;
 
+    protected ParserPool parserPool;
+
     protected int reps = 5;
 
     /**
@@ -105,6 +115,15 @@ public class FullTextIndexer extends SimpleWork {
         ;
     }
 
+    /**
+     * Spring injector. If set, the files which the entities of a batch need
+     * are handed to the given {@link ParserPool} once the batch is loaded, so
+     * that they are parsed in parallel while the batch is indexed.
+     */
+    public void setParserPool(ParserPool parserPool) {
+        this.parserPool = parserPool;
+    }
+
     public FullTextIndexer(EventLogLoader ll) {
         super("FullTextIndexer", "index");
         this.loader = ll;
@@ -164,54 +183,159 @@ public class FullTextIndexer extends SimpleWork {
         return rc;
     }
 
+    /**
+     * Indexes or purges the entities of one batch of {@link EventLog}s. All
+     * entities of a type which are to be indexed are first loaded together
+     * (see {@link #load(Session, Class, Collection)}) rather than one query
+     * per {@link EventLog}; the actions are then applied in the order of the
+     * logs.
+     */
     public int doIndexing(FullTextSession session) {
 
         int count = 0;
 
+        List<EventLog> eventLogs = new ArrayList<EventLog>();
+        List<Class> types = new ArrayList<Class>();
+        Map<Class, Set<Long>> toLoad = new LinkedHashMap<Class, Set<Long>>();
         for (EventLog eventLog : loader) {
             if (eventLog != null) {
-                String act = eventLog.getAction();
                 Class type = asClassOrNull(eventLog.getEntityType());
                 if (type != null) {
-                    long id = eventLog.getEntityId();
+                    eventLogs.add(eventLog);
+                    types.add(type);
+                    if (isIndexAction(eventLog.getAction())) {
+                        Set<Long> ids = toLoad.get(type);
+                        if (ids == null) {
+                            ids = new LinkedHashSet<Long>();
+                            toLoad.put(type, ids);
+                        }
+                        ids.add(eventLog.getEntityId());
+                    }
+                }
+            }
+        }
 
-                    Action action = null;
-                    if ("DELETE".equals(act)) {
-                        action = new Purge(type, id);
-                    } else if ("REINDEX".equals(act) || "UPDATE".equals(act) || "INSERT".equals(act)) {
-                        IObject obj = get(session, type, id);
-                        if (obj == null) {
-                            log.error(String.format("Null returned! Purging "
-                                    + "since cannot index %s:Id_%s for %s", type
-                                    .getName(), id, eventLog));
-                            action = new Purge(type, id);
-                        } else {
-                            action = new Index(obj);
+        // The whole batch has been taken from the loader, so every log which
+        // has not been applied when something fails must be handed back.
+        Map<Class, TypeStats> stats = new LinkedHashMap<Class, TypeStats>();
+        int i = 0;
+        try {
+            Map<Class, Map<Long, IObject>> loaded =
+                new HashMap<Class, Map<Long, IObject>>();
+            for (Map.Entry<Class, Set<Long>> entry : toLoad.entrySet()) {
+                long start = System.currentTimeMillis();
+                loaded.put(entry.getKey(),
+                        load(session, entry.getKey(), entry.getValue()));
+                typeStats(stats, entry.getKey()).millis +=
+                    System.currentTimeMillis() - start;
+            }
+
+            // Files are parsed in parallel while the actions below write the
+            // Lucene documents, still one by one in the order of the logs.
+            if (parserPool != null) {
+                for (int j = 0; j < eventLogs.size(); j++) {
+                    EventLog eventLog = eventLogs.get(j);
+                    if (isIndexAction(eventLog.getAction())) {
+                        IObject obj = loaded.get(types.get(j)).get(
+                                eventLog.getEntityId());
+                        if (obj != null) {
+                            parserPool.prefetch(obj);
                         }
+                    }
+                }
+            }
+
+            for (; i < eventLogs.size(); i++) {
+                EventLog eventLog = eventLogs.get(i);
+                Class type = types.get(i);
+                String act = eventLog.getAction();
+                long id = eventLog.getEntityId();
+
+                Action action = null;
+                if ("DELETE".equals(act)) {
+                    action = new Purge(type, id);
+                } else if (isIndexAction(act)) {
+                    IObject obj = loaded.get(type).get(id);
+                    if (obj == null) {
+                        log.error(String.format("Null returned! Purging "
+                                + "since cannot index %s:Id_%s for %s", type
+                                .getName(), id, eventLog));
+                        action = new Purge(type, id);
                     } else {
-                        log.error("Unknown action type: " + act);
+                        action = new Index(obj);
                     }
+                } else {
+                    log.error("Unknown action type: " + act);
+                }
 
-                    if (action != null) {
-                        try {
-                            action.go(session);
-                            count++;
-                        } catch (Exception e) {
-                            String msg = "FullTextIndexer stuck! "
-                                    + "Failed to index EventLog: " + eventLog;
-                            log.error(msg, e);
-                            loader.rollback(eventLog);
-                            throw new InternalException(msg);
-                        }
-                        action.log(log);
+                if (action != null) {
+                    long start = System.currentTimeMillis();
+                    try {
+                        action.go(session);
+                        count++;
+                    } catch (Exception e) {
+                        String msg = "FullTextIndexer stuck! "
+                                + "Failed to index EventLog: " + eventLog;
+                        log.error(msg, e);
+                        throw new InternalException(msg);
                     }
+                    TypeStats typeStats = typeStats(stats, type);
+                    typeStats.millis += System.currentTimeMillis() - start;
+                    typeStats.count++;
+                    action.log(log);
                 }
             }
+        } catch (RuntimeException e) {
+            List<EventLog> remaining = eventLogs.subList(i, eventLogs.size());
+            log.warn(String.format("Rolling back %s of %s EventLog(s)",
+                    remaining.size(), eventLogs.size()));
+            for (EventLog eventLog : remaining) {
+                loader.rollback(eventLog);
+            }
+            throw e;
+        } finally {
+            if (parserPool != null) {
+                parserPool.clear();
+            }
+        }
 
+        for (Map.Entry<Class, TypeStats> entry : stats.entrySet()) {
+            TypeStats typeStats = entry.getValue();
+            log.info(String.format("INDEXED %s %s objects [%s ms., %s/s]",
+                    typeStats.count, entry.getKey().getSimpleName(),
+                    typeStats.millis, typeStats.perSecond()));
         }
         return count;
     }
 
+    /**
+     * Number of objects indexed or purged for one type and the time spent
+     * loading and indexing them.
+     */
+    private static class TypeStats {
+        long count;
+        long millis;
+
+        long perSecond() {
+            return millis == 0 ? count * 1000 : count * 1000 / millis;
+        }
+    }
+
+    private static TypeStats typeStats(Map<Class, TypeStats> stats,
+            Class type) {
+        TypeStats typeStats = stats.get(type);
+        if (typeStats == null) {
+            typeStats = new TypeStats();
+            stats.put(type, typeStats);
+        }
+        return typeStats;
+    }
+
+    private static boolean isIndexAction(String act) {
+        return "REINDEX".equals(act) || "UPDATE".equals(act)
+                || "INSERT".equals(act);
+    }
+
     /**
      * Default implementation suggests doing more if fewer than {@link #reps}
      * runs have been made and if there are still more than
@@ -241,9 +365,47 @@ public class FullTextIndexer extends SimpleWork {
         }
     }
 
+    /**
+     * Maximum number of ids passed to a single query by
+     * {@link #load(Session, Class, Collection)}.
+     */
+    public final static int MAX_IDS_PER_QUERY = 1000;
+
     protected IObject get(Session session, Class type, long id) {
+        QueryBuilder qb = query(type);
+        qb.where().and("this.id = :id");
+        qb.param("id", id);
+
+        return (IObject) qb.query(session).uniqueResult();
+    }
+
+    /**
+     * Loads all the given entities of one type, with the same joins as
+     * {@link #get(Session, Class, long)}, in as few queries as possible.
+     * 
+     * @return map from id to entity. Ids which could not be found are missing.
+     */
+    protected Map<Long, IObject> load(Session session, Class type,
+            Collection<Long> ids) {
+        Map<Long, IObject> rv = new HashMap<Long, IObject>();
+        List<Long> all = new ArrayList<Long>(ids);
+        for (int i = 0; i < all.size(); i += MAX_IDS_PER_QUERY) {
+            List<Long> chunk = all.subList(i,
+                    Math.min(all.size(), i + MAX_IDS_PER_QUERY));
+            QueryBuilder qb = query(type);
+            qb.where().and("this.id in (:ids)");
+            qb.paramList("ids", chunk);
+            for (Object o : qb.query(session).list()) {
+                IObject obj = (IObject) o;
+                rv.put(obj.getId(), obj);
+            }
+        }
+        return rv;
+    }
+
+    private QueryBuilder query(Class type) {
         QueryBuilder qb = new QueryBuilder();
-        qb.select("this").from(type.getName(), "this");
+        qb.select("distinct this").from(type.getName(), "this");
         if (IAnnotated.class.isAssignableFrom(type)) {
             qb.join("this.annotationLinks", "l1", true, true);
             qb.join("l1.child", "a1", true, true);
@@ -258,9 +420,6 @@ public class FullTextIndexer extends SimpleWork {
             qb.join("this.details.owner", "owner", false, true);
             qb.join("this.details.group", "group", false, true);
         }
-        qb.where().and("this.id = :id");
-        qb.param("id", id);
-
-        return (IObject) qb.query(session).uniqueResult();
+        return qb;
     }
 }
@@ -0,0 +1,361 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.fulltext;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ome.io.nio.OriginalFilesService;
+import ome.model.IAnnotated;
+import ome.model.IObject;
+import ome.model.annotations.Annotation;
+import ome.model.annotations.FileAnnotation;
+import ome.model.core.OriginalFile;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Parses the contents of {@link OriginalFile files} on a bounded pool of
+ * threads ahead of indexing. Once a batch has been loaded,
+ * {@link FullTextIndexer} passes each object to {@link #prefetch(IObject)} so
+ * that the files the {@link FullTextBridge} will need are parsed in parallel,
+ * while the Lucene documents are still written one at a time in the order of
+ * the event logs. The bridge picks up the parsed text via
+ * {@link #parse(OriginalFile)}.
+ *
+ * Files larger than the maximum file size are not parsed, and parsing which
+ * runs longer than the timeout is abandoned. In both cases the contents of
+ * the file are not indexed, as when a {@link FileParser} fails, and the other
+ * objects of the batch are indexed as usual.
+ *
+ * The parsed contents are kept until the end of the batch, so that files
+ * needed by several objects are only parsed once, but at most the maximum
+ * number of retained characters are kept for a batch. Files whose contents
+ * do not fit are parsed again when the bridge needs them and not kept.
+ *
+ * @since 4.4
+ */
+public class ParserPool {
+
+    private final static Log log = LogFactory.getLog(ParserPool.class);
+
+    private final OriginalFilesService files;
+
+    private final Map<String, FileParser> parsers;
+
+    private final ExecutorService executor;
+
+    private final long timeout;
+
+    private final long maxFileSize;
+
+    private final long maxRetainedChars;
+
+    /**
+     * Characters kept by the parsing of the current batch. Replaced on
+     * {@link #clear()} so that abandoned parsing cannot affect the next batch.
+     */
+    private AtomicLong retained = new AtomicLong();
+
+    /**
+     * Parsing which has been started for the current batch by file id. A null
+     * value marks a file which will not be parsed.
+     */
+    private final Map<Long, ParseTask> tasks = new HashMap<Long, ParseTask>();
+
+    /**
+     * Main constructor.
+     *
+     * @param files
+     *            {@link OriginalFilesService} for finding the files on disk.
+     * @param parsers
+     *            {@link FileParser} instances by mimetype, with "*" as the
+     *            wildcard.
+     * @param executor
+     *            the bounded pool on which files are parsed.
+     * @param timeout
+     *            milliseconds after which the parsing of a single file is
+     *            abandoned.
+     * @param maxFileSize
+     *            size in bytes above which files are not parsed.
+     * @param maxRetainedChars
+     *            number of parsed characters above which the contents of
+     *            further files are not kept for the rest of the batch.
+     */
+    public ParserPool(OriginalFilesService files,
+            Map<String, FileParser> parsers, ExecutorService executor,
+            long timeout, long maxFileSize, long maxRetainedChars) {
+        this.files = files;
+        this.parsers = parsers;
+        this.executor = executor;
+        this.timeout = timeout;
+        this.maxFileSize = maxFileSize;
+        this.maxRetainedChars = maxRetainedChars;
+    }
+
+    public ParserPool(OriginalFilesService files,
+            Map<String, FileParser> parsers, ExecutorService executor,
+            long timeout, long maxFileSize) {
+        this(files, parsers, executor, timeout, maxFileSize, Long.MAX_VALUE);
+    }
+
+    /**
+     * Starts parsing the files which indexing the given object will need:
+     * the object itself if it is an {@link OriginalFile} or a
+     * {@link FileAnnotation}, and the files of the {@link FileAnnotation}s
+     * linked to it.
+     */
+    public synchronized void prefetch(IObject object) {
+        if (object instanceof OriginalFile) {
+            start((OriginalFile) object, true);
+        }
+        if (object instanceof FileAnnotation) {
+            start(((FileAnnotation) object).getFile(), true);
+        }
+        if (object instanceof IAnnotated) {
+            for (Annotation annotation : ((IAnnotated) object)
+                    .linkedAnnotationList()) {
+                if (annotation instanceof FileAnnotation) {
+                    start(((FileAnnotation) annotation).getFile(), true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the parsed contents of the file, waiting for the parsing to
+     * finish if necessary. Files which were not {@link #prefetch(IObject)
+     * prefetched} are parsed now and not kept, as is the case when indexing
+     * outside of {@link FullTextIndexer#doIndexing}. The same holds for files
+     * whose contents did not fit within the retained characters.
+     *
+     * @return An {@link Iterable} which is never null.
+     */
+    public Iterable<Reader> parse(OriginalFile file) {
+        ParseTask task;
+        synchronized (this) {
+            task = start(file, false);
+        }
+        if (task == null) {
+            return FileParser.EMPTY;
+        }
+
+        String text = task.await();
+        if (text == null && task.overflowed) {
+            synchronized (this) {
+                task = submit(file, null);
+            }
+            if (task == null) {
+                return FileParser.EMPTY;
+            }
+            text = task.await();
+        }
+        if (text == null) {
+            return FileParser.EMPTY;
+        }
+        return Collections.singletonList((Reader) new StringReader(text));
+    }
+
+    /**
+     * Abandons any parsing still running and forgets the parsed contents.
+     * Called once a batch has been indexed.
+     */
+    public synchronized void clear() {
+        for (ParseTask task : tasks.values()) {
+            if (task != null) {
+                task.future.cancel(true);
+            }
+        }
+        tasks.clear();
+        retained = new AtomicLong();
+    }
+
+    /**
+     * Returns the parsing of the file, starting it unless it has already been
+     * started for this batch.
+     * @param keep whether to keep the parsing until {@link #clear()}.
+     * @return null if the file will not be parsed.
+     */
+    private ParseTask start(OriginalFile file, boolean keep) {
+        if (file == null || file.getId() == null) {
+            return null;
+        }
+        Long id = file.getId();
+        if (tasks.containsKey(id)) {
+            return tasks.get(id);
+        }
+
+        ParseTask task = submit(file, keep ? retained : null);
+        if (keep) {
+            tasks.put(id, task);
+        }
+        return task;
+    }
+
+    /**
+     * Starts parsing the file on the pool.
+     * @param budget the characters retained by the batch if the contents are
+     * to be kept, otherwise null.
+     * @return null if the file will not be parsed.
+     */
+    private ParseTask submit(OriginalFile file, AtomicLong budget) {
+        Long id = file.getId();
+        ParseTask task = null;
+        FileParser parser = null;
+        if (files != null && parsers != null && file.getMimetype() != null) {
+            parser = parsers.get(file.getMimetype());
+            if (parser == null) {
+                parser = parsers.get("*");
+            }
+        }
+        if (parser != null) {
+            File path = new File(files.getFilesPath(id));
+            if (path.length() > maxFileSize) {
+                log.warn(String.format("Not parsing OriginalFile:Id_%s: "
+                        + "%s bytes is larger than the maximum of %s", id,
+                        path.length(), maxFileSize));
+            } else {
+                task = new ParseTask(id, parser, path, budget);
+                task.future = executor.submit(task);
+            }
+        }
+        return task;
+    }
+
+    /**
+     * Reads all the {@link Reader}s returned by a {@link FileParser} into a
+     * single string, closing whatever the parser registered for cleanup.
+     */
+    private class ParseTask implements Callable<String> {
+
+        final long id;
+
+        final FileParser parser;
+
+        final File path;
+
+        /** Characters retained by the batch or null if not kept. */
+        final AtomicLong budget;
+
+        Future<String> future;
+
+        /** When parsing started or 0 while the task is queued. */
+        volatile long started;
+
+        /** Set if the contents did not fit within the retained characters. */
+        volatile boolean overflowed;
+
+        ParseTask(long id, FileParser parser, File path, AtomicLong budget) {
+            this.id = id;
+            this.parser = parser;
+            this.path = path;
+            this.budget = budget;
+        }
+
+        public String call() throws Exception {
+            started = System.currentTimeMillis();
+            StringBuilder sb = new StringBuilder();
+            char[] buf = new char[8192];
+            FileParser.collectCleanups();
+            try {
+                for (Reader reader : parser.parse(path)) {
+                    try {
+                        int rv;
+                        while ((rv = reader.read(buf)) != -1) {
+                            if (Thread.interrupted()) {
+                                throw new InterruptedIOException();
+                            }
+                            if (!reserve(sb.length(), rv)) {
+                                return null;
+                            }
+                            sb.append(buf, 0, rv);
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                    sb.append('\n');
+                }
+            } finally {
+                FileParser.closeCleanups();
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Reserves further characters for the contents if they are kept.
+         * Otherwise, gives back those reserved so far and marks the task as
+         * {@link #overflowed}.
+         */
+        private boolean reserve(int reserved, int count) {
+            if (budget == null) {
+                return true;
+            }
+            if (budget.addAndGet(count) <= maxRetainedChars) {
+                return true;
+            }
+            budget.addAndGet(-(reserved + count));
+            overflowed = true;
+            log.info(String.format("Not keeping the contents of "
+                    + "OriginalFile:Id_%s: more than %s characters are "
+                    + "kept for the batch.", id, maxRetainedChars));
+            return false;
+        }
+
+        /**
+         * Waits until parsing has run for at most the timeout. Time spent
+         * queued behind other files does not count.
+         *
+         * @return null if parsing failed or was abandoned.
+         */
+        String await() {
+            while (true) {
+                long start = started;
+                long wait = start == 0 ? timeout : start + timeout
+                        - System.currentTimeMillis();
+                try {
+                    return future.get(Math.max(1, wait),
+                            TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    start = started;
+                    if (start != 0
+                            && System.currentTimeMillis() - start >= timeout) {
+                        future.cancel(true);
+                        log.warn(String.format("Abandoned parsing "
+                                + "OriginalFile:Id_%s after %s ms.", id,
+                                timeout));
+                        return null;
+                    }
+                } catch (ExecutionException e) {
+                    log.warn("Failed to parse OriginalFile:Id_" + id,
+                            e.getCause());
+                    return null;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                } catch (CancellationException e) {
+                    return null;
+                }
+            }
+        }
+    }
+
+}
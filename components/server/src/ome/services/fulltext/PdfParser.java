@@ -33,8 +33,7 @@ public class PdfParser extends FileParser {
     public Iterable<Reader> doParse(File file) throws Exception {
 
         final PdfThread pdfThread = new PdfThread(file);
-        this.context.publishEvent(new RegisterServiceCleanupMessage(this,
-                pdfThread) {
+        register(new RegisterServiceCleanupMessage(this, pdfThread) {
             @Override
             public void close() {
                 try {
@@ -333,6 +333,17 @@ public class BaseGraphSpec implements GraphSpec, BeanNameAware {
         return qb;
     }
 
+    public QueryBuilder deleteAllQuery(EventContext ec, String table, GraphOpts opts) {
+        final QueryBuilder qb = new QueryBuilder();
+        qb.delete(table);
+        qb.where();
+        qb.and("id in (:ids)");
+        if (!opts.isForce()) {
+            permissionsClause(ec, qb, false);
+        }
+        return qb;
+    }
+
     /**
      * Appends a clause to the {@link QueryBuilder} based on the current user.
      *
@@ -184,6 +184,13 @@ public interface GraphSpec {
 
     QueryBuilder deleteQuery(EventContext ec, String table, GraphOpts opts);
 
+    /**
+     * Like {@link #deleteQuery(EventContext, String, GraphOpts)} but
+     * initialized to take the parameter list "ids" instead of "id" so that
+     * many rows of the table can be deleted with a single statement.
+     */
+    QueryBuilder deleteAllQuery(EventContext ec, String table, GraphOpts opts);
+
     /**
      * Returns an iterator over all subspecs and their subspecs, depth-first.
      */
@@ -146,7 +146,9 @@ public class GraphState implements GraphStep.Callback {
         // Post-process and lock.
         this.steps = Collections.unmodifiableList(
                 factory.postProcess(steps));
-        for (GraphStep step : this.steps) {
+        for (int i = 0; i < this.steps.size(); i++) {
+            GraphStep step = this.steps.get(i);
+            step.idx = i;
             step.setEventContext(gec);
         }
     }
@@ -249,6 +251,19 @@ public class GraphState implements GraphStep.Callback {
      * Return the total number of ids loaded into this instance.
      */
     public int getTotalFoundCount() {
+        int count = 0;
+        for (GraphStep step : steps) {
+            count += step.getRowCount();
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of steps to pass to {@link #execute(int)}, which is
+     * less than {@link #getTotalFoundCount()} if steps were merged by
+     * {@link GraphStepFactory#postProcess(List)}.
+     */
+    public int getStepCount() {
         return steps.size();
     }
 
@@ -348,7 +363,7 @@ public class GraphState implements GraphStep.Callback {
 
                 // Finalize.
                 step.release(this);
-                return "";
+                return step.getWarnings();
 
             } catch (ConstraintViolationException cve) {
                 String cause = "ConstraintViolation: " + cve.getConstraintName();
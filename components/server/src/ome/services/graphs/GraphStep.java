@@ -69,9 +69,11 @@ public abstract class GraphStep {
     private final static String INVALIDATED = "INVALIDATED_";
 
     /**
-     * Location of this step in {@link GraphState#steps}.
+     * Location of this step in {@link GraphState#steps}. Not final since the
+     * steps are renumbered by {@link GraphState} once
+     * {@link GraphStepFactory#postProcess(List)} may have merged some of them.
      */
-    public final int idx;
+    public int idx;
 
     /**
      * Stack of other {@link GraphStep} instances which show where this step is
@@ -176,6 +178,23 @@ public abstract class GraphStep {
         this.ec = ec;
     }
 
+    /**
+     * Returns the warnings for rows which {@link #action} skipped rather than
+     * failing, in the form returned by {@link GraphState#execute(int)}. Empty
+     * unless overridden.
+     */
+    public String getWarnings() {
+        return "";
+    }
+
+    /**
+     * Returns the number of rows processed by this step. This is 1 unless
+     * several steps were merged by {@link GraphStepFactory#postProcess(List)}.
+     */
+    public int getRowCount() {
+        return 1;
+    }
+
     public long[] getIds() {
         if (this.ids == null) {
             return null;
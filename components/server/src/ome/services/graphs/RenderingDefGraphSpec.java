@@ -69,4 +69,19 @@ public class RenderingDefGraphSpec extends BaseGraphSpec {
         return qb;
     }
 
+    /**
+     * As {@link #deleteQuery(EventContext, String, GraphOpts)}.
+     */
+    @Override
+    public QueryBuilder deleteAllQuery(EventContext ec, String table, GraphOpts opts) {
+        final QueryBuilder qb = new QueryBuilder(true); // SQL QUERY #9496
+        qb.delete(table);
+        qb.where();
+        qb.and("id in (:ids)");
+        if (!opts.isForce()) {
+            permissionsClause(ec, qb, true);
+        }
+        return qb;
+    }
+
 }
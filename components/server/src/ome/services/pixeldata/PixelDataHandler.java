@@ -43,6 +43,11 @@ public class PixelDataHandler extends SimpleWork {
 
     protected int reps = 5;
 
+    /**
+     * If set, used instead of {@link #loader} to choose the next pixels set.
+     */
+    protected PixelDataScheduler scheduler;
+
     /**
      * Spring injector. Sets the number of indexing runs will be made if there
      * is a substantial backlog.
@@ -52,6 +57,13 @@ public class PixelDataHandler extends SimpleWork {
         ;
     }
 
+    /**
+     * Spring injector. Enables priority- and size-aware scheduling.
+     */
+    public void setScheduler(PixelDataScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
     public PixelDataHandler(PersistentEventLogLoader ll, PixelsService pixelsService) {
         super("PixelDataHandler", "process");
         this.loader = ll;
@@ -78,6 +90,10 @@ public class PixelDataHandler extends SimpleWork {
     @Transactional(readOnly = false)
     public Object doWork(Session session, ServiceFactory sf) {
 
+        if (scheduler != null) {
+            return doScheduledWork(session, sf);
+        }
+
         EventLog eventLog = loadNext();
         if (eventLog == null)
         {
@@ -99,6 +115,40 @@ public class PixelDataHandler extends SimpleWork {
         return null;
     }
 
+    /**
+     * Processes a single pixels set chosen by the {@link #scheduler}, which is
+     * always notified on completion so that the current id can advance.
+     */
+    private Object doScheduledWork(Session session, ServiceFactory sf) {
+
+        final PixelDataScheduler.Ticket ticket = scheduler.next();
+        if (ticket == null) {
+            log.debug("No pixels scheduled");
+            return null;
+        }
+
+        final long start = System.currentTimeMillis();
+        boolean handled = false;
+        try {
+            handled = process(ticket.getPixelsId(), sf, session);
+        } finally {
+            scheduler.done(ticket);
+        }
+        final String msg = String.format(
+                "EventLog:%s(entityId=%s, priority=%s, cost=%s) [%s ms.]",
+                ticket.getEventLogId(), ticket.getPixelsId(),
+                ticket.getPriority(), ticket.getCost(),
+                (System.currentTimeMillis() - start));
+
+        if (handled) {
+            log.info("HANDLED "+ msg);
+        } else {
+            log.debug("SKIPPED "+ msg);
+        }
+
+        return null;
+    }
+
     /**
      * Synchronized loading since the event log loader infrastructure assumes
      * a single threaded environment.
@@ -0,0 +1,463 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.pixeldata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import ome.model.meta.EventLog;
+import ome.util.SqlAction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Chooses which pixels set the next {@link PixelDataHandler} invocation
+ * should generate a pyramid for. Rather than draining PIXELDATA
+ * {@link EventLog} instances in id order, candidates are loaded from two
+ * ends of the backlog (the oldest unprocessed logs and the newest ones) and
+ * ordered by {@link Priority}, so that a user waiting to view an image is
+ * not queued behind thousands of older imports.
+ *
+ * Every PIXELDATA {@link EventLog} is created by {@link PixelDataThread}
+ * for a {@link ome.io.messages.MissingPyramidMessage}, i.e. for a request
+ * for the pixels set which failed because its pyramid is missing. Requests
+ * made by the session which imported the pixels set are marked with the
+ * "Import" event type; any other recent request is someone waiting to view
+ * the image. A client waiting for the pyramid also requests it again after
+ * backing off, so a pixels set with several unprocessed requests is
+ * interactive as well. Requests older than
+ * {@link #setRecentMillis(long) the recent window} are the backlog.
+ *
+ * Each pixels set also carries a cost (its uncompressed size in bytes). The
+ * sum of the costs of all running pyramids is kept below
+ * {@link #setMaxConcurrentCost(long) a limit}, although a single pyramid
+ * is always admitted when nothing else is running.
+ *
+ * Since logs complete out of order, the persisted current id of the
+ * {@link PersistentEventLogLoader} is only advanced to the contiguous
+ * completion watermark: the highest id below which every loaded log has
+ * been handled. After a restart, anything above the watermark is simply
+ * loaded again; pyramids which already exist are skipped by the
+ * {@link ome.io.nio.PixelsService}.
+ *
+ * @author Josh Moore, josh at glencoesoftware.com
+ * @since Beta4.4
+ */
+public class PixelDataScheduler {
+
+    private final static Log log = LogFactory.getLog(PixelDataScheduler.class);
+
+    /**
+     * Scheduling classes in decreasing order of urgency.
+     */
+    public enum Priority {
+
+        /**
+         * Requested recently by a session other than the importing one, or
+         * requested again while unprocessed, i.e. a client is waiting.
+         */
+        INTERACTIVE,
+
+        /** Requested recently by the session which imported the set. */
+        IMPORT,
+
+        /** Everything older than the recent window. */
+        BACKLOG;
+    }
+
+    /**
+     * A single pixels set to be processed along with all of the
+     * {@link EventLog} ids which requested it.
+     */
+    public static class Ticket {
+
+        private final long pixelsId;
+
+        private final long cost;
+
+        private final SortedSet<Long> eventLogIds = new TreeSet<Long>();
+
+        private Priority priority;
+
+        private int skipped = 0;
+
+        Ticket(long pixelsId, long cost, Priority priority) {
+            this.pixelsId = pixelsId;
+            this.cost = cost;
+            this.priority = priority;
+        }
+
+        public long getPixelsId() {
+            return pixelsId;
+        }
+
+        /**
+         * Estimated cost; the uncompressed size of the pixels set in bytes.
+         */
+        public long getCost() {
+            return cost;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * The oldest {@link EventLog} which requested this pixels set.
+         */
+        public long getEventLogId() {
+            return eventLogIds.first();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Ticket(pixels=%s, priority=%s, cost=%s, "
+                    + "logs=%s)", pixelsId, priority, cost, eventLogIds);
+        }
+    }
+
+    /**
+     * Orders by {@link Priority} and then by the oldest requesting log.
+     */
+    private final static Comparator<Ticket> ORDER = new Comparator<Ticket>() {
+        public int compare(Ticket o1, Ticket o2) {
+            int cmp = o1.priority.compareTo(o2.priority);
+            if (cmp != 0) {
+                return cmp;
+            }
+            long l1 = o1.getEventLogId();
+            long l2 = o2.getEventLogId();
+            return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+        }
+    };
+
+    // Columns of SqlAction#nextPixelsDataCandidatesForRepo
+    private final static int EVENTLOG = 0, PIXELS = 1, TIME = 3, IMPORT = 4,
+            SIZE_X = 5, BYTES_PER_PIXEL = 10;
+
+    protected final PersistentEventLogLoader loader;
+
+    protected final String repo;
+
+    protected SqlAction sql;
+
+    protected int windowSize = 100;
+
+    protected int tailSize = 25;
+
+    protected long recentMillis = 60 * 60 * 1000L;
+
+    protected long refreshMillis = 5 * 1000L;
+
+    protected long maxConcurrentCost = 4L * 1024 * 1024 * 1024;
+
+    protected int maxSkips = 10;
+
+    /** Candidates which have not yet been handed out, by pixels id. */
+    private final Map<Long, Ticket> pending = new HashMap<Long, Ticket>();
+
+    /** Candidates currently being processed, by pixels id. */
+    private final Map<Long, Ticket> running = new HashMap<Long, Ticket>();
+
+    /** All pending or running tickets by {@link EventLog} id. */
+    private final Map<Long, Ticket> byEventLog = new HashMap<Long, Ticket>();
+
+    /**
+     * Uncompleted {@link EventLog} ids at or below {@link #windowEnd}. The
+     * watermark is one less than the first of these.
+     */
+    private final SortedSet<Long> outstanding = new TreeSet<Long>();
+
+    /**
+     * Completed {@link EventLog} ids above {@link #windowEnd}, i.e. those
+     * loaded from the newest end of the backlog. Dropped once the window
+     * passes them.
+     */
+    private final Set<Long> completedAhead = new HashSet<Long>();
+
+    /** Highest {@link EventLog} id loaded in order; -2 if uninitialized. */
+    private long windowEnd = -2;
+
+    /** Last value passed to {@link PersistentEventLogLoader#setCurrentId}. */
+    private long watermark;
+
+    private long runningCost = 0;
+
+    private long lastRefresh = 0;
+
+    public PixelDataScheduler(PersistentEventLogLoader loader) {
+        this.loader = loader;
+        this.repo = loader.repo;
+    }
+
+    /**
+     * Spring injector.
+     */
+    public void setSqlAction(SqlAction sql) {
+        this.sql = sql;
+    }
+
+    /**
+     * Number of the oldest unprocessed {@link EventLog} instances which are
+     * kept loaded.
+     */
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Number of the newest {@link EventLog} instances which are loaded on
+     * every refresh in order to find interactive requests.
+     */
+    public void setTailSize(int tailSize) {
+        this.tailSize = tailSize;
+    }
+
+    /**
+     * Age in milliseconds after which a request which has not been repeated
+     * is considered {@link Priority#BACKLOG}.
+     */
+    public void setRecentMillis(long recentMillis) {
+        this.recentMillis = recentMillis;
+    }
+
+    /**
+     * Minimum time in milliseconds between two database refreshes while
+     * candidates are still pending.
+     */
+    public void setRefreshMillis(long refreshMillis) {
+        this.refreshMillis = refreshMillis;
+    }
+
+    /**
+     * Maximum sum of the {@link Ticket#getCost() costs} of all concurrently
+     * running pyramids.
+     */
+    public void setMaxConcurrentCost(long maxConcurrentCost) {
+        this.maxConcurrentCost = maxConcurrentCost;
+    }
+
+    /**
+     * Number of times the most urgent candidate may be overtaken by cheaper
+     * ones before nothing else is started until it fits.
+     */
+    public void setMaxSkips(int maxSkips) {
+        this.maxSkips = maxSkips;
+    }
+
+    /**
+     * Returns the next pixels set to process or null if either nothing is
+     * available or nothing fits in the remaining cost budget. Every returned
+     * {@link Ticket} must be passed to {@link #done(Ticket)}.
+     */
+    public synchronized Ticket next() {
+
+        final long now = System.currentTimeMillis();
+        if (windowEnd < -1) {
+            windowEnd = loader.getCurrentId();
+            watermark = windowEnd;
+        }
+        if (pending.isEmpty() || now - lastRefresh > refreshMillis) {
+            refresh(now);
+        }
+        if (pending.isEmpty()) {
+            return null;
+        }
+
+        final List<Ticket> ordered = new ArrayList<Ticket>(pending.values());
+        Collections.sort(ordered, ORDER);
+        final Ticket head = ordered.get(0);
+        for (Ticket ticket : ordered) {
+            if (running.isEmpty()
+                    || runningCost + ticket.cost <= maxConcurrentCost) {
+                if (ticket != head) {
+                    head.skipped++;
+                }
+                pending.remove(ticket.pixelsId);
+                running.put(ticket.pixelsId, ticket);
+                runningCost += ticket.cost;
+                if (log.isDebugEnabled()) {
+                    log.debug(String.format("Starting %s (running=%s, "
+                            + "cost=%s)", ticket, running.size(), runningCost));
+                }
+                return ticket;
+            }
+            if (ticket == head && head.skipped >= maxSkips) {
+                log.debug("Waiting for resources for " + head);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Marks the given {@link Ticket} as finished, whether or not processing
+     * succeeded, and advances the persisted current id if possible.
+     */
+    public synchronized void done(Ticket ticket) {
+        if (running.remove(ticket.pixelsId) == null) {
+            log.warn("Unknown ticket: " + ticket);
+            return;
+        }
+        runningCost -= ticket.cost;
+        for (Long id : ticket.eventLogIds) {
+            byEventLog.remove(id);
+            if (id <= windowEnd) {
+                outstanding.remove(id);
+            } else {
+                completedAhead.add(id);
+            }
+        }
+        final long mark = outstanding.isEmpty() ? windowEnd
+                : outstanding.first() - 1;
+        if (mark > watermark) {
+            loader.setCurrentId(mark);
+            watermark = mark;
+        }
+    }
+
+    /**
+     * Loads the next contiguous candidates after {@link #windowEnd} as well
+     * as the newest candidates overall, and counts the unprocessed requests
+     * for all of their pixels sets at once.
+     */
+    private void refresh(long now) {
+        lastRefresh = now;
+
+        List<long[]> windowRows = null;
+        final int room = windowSize - outstanding.size();
+        if (room > 0) {
+            windowRows = sql.nextPixelsDataCandidatesForRepo(repo,
+                    windowEnd, room, false);
+            if (windowRows != null) {
+                for (long[] row : windowRows) {
+                    windowEnd = Math.max(windowEnd, row[EVENTLOG]);
+                }
+            }
+        }
+        List<long[]> tailRows = null;
+        if (tailSize > 0) {
+            tailRows = sql.nextPixelsDataCandidatesForRepo(repo,
+                    windowEnd, tailSize, true);
+        }
+
+        final Set<Long> pixelsIds = new HashSet<Long>();
+        addPixelsIds(windowRows, pixelsIds);
+        addPixelsIds(tailRows, pixelsIds);
+        Map<Long, Long> requests = null;
+        if (!pixelsIds.isEmpty()) {
+            requests = sql.countPixelsDataRequests(watermark, pixelsIds);
+        }
+        if (requests == null) {
+            requests = Collections.emptyMap();
+        }
+
+        if (windowRows != null) {
+            for (long[] row : windowRows) {
+                add(row, true, requests, now);
+            }
+        }
+        // Anything completed-ahead which the window has now passed has
+        // been handled by add() or was not a candidate any more.
+        for (Iterator<Long> it = completedAhead.iterator(); it.hasNext();) {
+            if (it.next() <= windowEnd) {
+                it.remove();
+            }
+        }
+        if (tailRows != null) {
+            for (long[] row : tailRows) {
+                add(row, false, requests, now);
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Refreshed: pending=%s running=%s "
+                    + "outstanding=%s windowEnd=%s watermark=%s",
+                    pending.size(), running.size(), outstanding.size(),
+                    windowEnd, watermark));
+        }
+    }
+
+    private static void addPixelsIds(List<long[]> rows, Set<Long> ids) {
+        if (rows != null) {
+            for (long[] row : rows) {
+                ids.add(row[PIXELS]);
+            }
+        }
+    }
+
+    private void add(long[] row, boolean inWindow, Map<Long, Long> requests,
+            long now) {
+        final Long eventLogId = row[EVENTLOG];
+        final long pixelsId = row[PIXELS];
+
+        if (completedAhead.contains(eventLogId)) {
+            if (inWindow) {
+                completedAhead.remove(eventLogId);
+            }
+            return;
+        }
+        if (inWindow) {
+            outstanding.add(eventLogId);
+        }
+        if (byEventLog.containsKey(eventLogId)) {
+            return; // Already known, e.g. from the newest end.
+        }
+
+        final Long count = requests.get(pixelsId);
+        final Priority priority = priority(row, count == null ? 1 : count,
+                now);
+        Ticket ticket = running.get(pixelsId);
+        if (ticket == null) {
+            ticket = pending.get(pixelsId);
+        }
+        if (ticket == null) {
+            ticket = new Ticket(pixelsId, cost(row), priority);
+            pending.put(pixelsId, ticket);
+        } else if (priority.compareTo(ticket.priority) < 0) {
+            ticket.priority = priority;
+        }
+        ticket.eventLogIds.add(eventLogId);
+        byEventLog.put(eventLogId, ticket);
+    }
+
+    /**
+     * @param row a candidate row
+     * @param requests the number of unprocessed requests for its pixels set
+     * @param now the current time in milliseconds
+     */
+    protected Priority priority(long[] row, long requests, long now) {
+        if (requests > 1) {
+            return Priority.INTERACTIVE;
+        } else if (now - row[TIME] > recentMillis) {
+            return Priority.BACKLOG;
+        } else if (row[IMPORT] == 1) {
+            return Priority.IMPORT;
+        }
+        return Priority.INTERACTIVE;
+    }
+
+    protected long cost(long[] row) {
+        long cost = row[BYTES_PER_PIXEL];
+        for (int i = SIZE_X; i < SIZE_X + 5; i++) {
+            cost *= Math.max(1, row[i]);
+        }
+        return cost;
+    }
+
+}
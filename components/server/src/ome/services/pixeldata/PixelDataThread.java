@@ -10,6 +10,7 @@ package ome.services.pixeldata;
 import java.sql.Timestamp;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -52,6 +53,12 @@ public class PixelDataThread extends ExecutionThread implements ApplicationListe
 
     private final static int DEFAULT_THREADS = 1;
 
+    /**
+     * {@link EventType} of the PIXELDATA events requested by the session
+     * which imported the pixels set.
+     */
+    public final static String IMPORT_EVENT_TYPE = "Import";
+
     /** Server session UUID */
     private final String uuid;
 
@@ -209,19 +216,31 @@ public class PixelDataThread extends ExecutionThread implements ApplicationListe
         final Principal p = new Principal(uuid);
         final Map<String, String> callContext = new HashMap<String, String>();
 
-        // First call is with -1 in order to find the pixels group.
+        // First call is with -1 in order to find the pixels group and the
+        // session which created the pixels.
         // TODO: this could equally be done with sqlAction.
         callContext.put("omero.group", "-1");
-        final Long groupID = (Long) this.executor.execute(callContext, p,
+        final Object[] groupAndSession = (Object[]) this.executor.execute(
+                callContext, p,
                 new Executor.SimpleWork(this, "getGroupId") {
             @Transactional(readOnly = true)
             public Object doWork(Session session, ServiceFactory sf) {
-                final ExperimenterGroup group = sf.getQueryService().findByQuery(
-                        "select p.details.group from Pixels p where p.id = :id",
+                final List<Object[]> rows = sf.getQueryService().projection(
+                        "select p.details.group.id, "
+                        + "p.details.creationEvent.session.id "
+                        + "from Pixels p where p.id = :id",
                         new ome.parameters.Parameters().addId(mpm.pixelsID));
-                return group.getId();
+                return rows.get(0);
             }
         });
+        final Long groupID = (Long) groupAndSession[0];
+
+        // A request from the session which imported the pixels is marked
+        // as such so that PixelDataScheduler can order requests from anyone
+        // viewing the image before it.
+        final String eventType =
+            ec.getCurrentSessionId().equals(groupAndSession[1]) ?
+                    IMPORT_EVENT_TYPE : ec.getCurrentEventType();
 
         // Reset to prevent "Not intended for copying" errors
         callContext.put("omero.group", groupID.toString());
@@ -234,7 +253,7 @@ public class PixelDataThread extends ExecutionThread implements ApplicationListe
 
                 // Load objects
                 final EventType type = sf.getTypesService().getEnumeration(
-                        EventType.class, ec.getCurrentEventType());
+                        EventType.class, eventType);
                 final EventLog el = new EventLog();
                 final Event e = new Event();
                 e.setExperimenter(
@@ -244,6 +263,8 @@ public class PixelDataThread extends ExecutionThread implements ApplicationListe
                         ec.getCurrentSessionId(), false));
                 e.setTime(new Timestamp(new Date().getTime()));
                 e.setType(type);
+                // One log per request, even for the same pixels set, so
+                // that PixelDataScheduler can see which sets are waited for.
                 el.setAction("PIXELDATA");
                 el.setEntityId(mpm.pixelsID);
                 el.setEntityType(Pixels.class.getName());
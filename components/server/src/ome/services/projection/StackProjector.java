@@ -0,0 +1,415 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.projection;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import ome.api.IProjection;
+import ome.io.nio.DimensionsOutOfBoundsException;
+import ome.io.nio.PixelBuffer;
+import ome.util.PixelData;
+import omeis.providers.re.RenderingExecutor;
+import omeis.providers.re.RenderingTask;
+import omeis.providers.re.quantum.QuantizationException;
+
+/**
+ * Projects stacks tile by tile rather than loading them whole. Every tile of
+ * the output plane has its own running accumulator, into which the same tile
+ * of each optical section is folded as it is read. Each finished tile is
+ * handed to a {@link TileWriter}, so only the tiles currently being projected
+ * are held in memory and stacks which do not fit in the heap, including
+ * pyramid backed ones, can be projected into a pyramid backed buffer.
+ * <p>
+ * Tiles are read by the calling thread, as pixel buffers are not necessarily
+ * thread-safe, and folded into their accumulators in batches on a
+ * {@link RenderingExecutor}.
+ * </p>
+ *
+ * @since Beta4.4
+ */
+public class StackProjector
+{
+    /**
+     * Receives each tile of a projected plane once it is finished. Tiles are
+     * handed over row by row, from left to right, on the calling thread.
+     */
+    public interface TileWriter
+    {
+        /**
+         * @param tile The projected pixels of the tile, of the pixels type
+         * given to {@link StackProjector#project}.
+         * @param x Top left corner of the tile, X offset.
+         * @param y Top left corner of the tile, Y offset.
+         * @param w Width of the tile.
+         * @param h Height of the tile.
+         * @throws IOException If the tile cannot be written.
+         */
+        void writeTile(PixelData tile, int x, int y, int w, int h)
+            throws IOException;
+    }
+
+    /** The buffer to read the optical sections from. */
+    private final PixelBuffer source;
+
+    /** One of the <code>IProjection</code> algorithm constants. */
+    private final int algorithm;
+
+    /** The executor to fold tiles on or <code>null</code>. */
+    private final RenderingExecutor executor;
+
+    /**
+     * Creates a new instance.
+     * @param source The buffer to read the optical sections from.
+     * @param algorithm One of {@link IProjection#MAXIMUM_INTENSITY},
+     * {@link IProjection#MEAN_INTENSITY} or {@link IProjection#SUM_INTENSITY}.
+     * @param executor The executor to fold tiles on or <code>null</code> to
+     * fold them on the calling thread.
+     */
+    public StackProjector(PixelBuffer source, int algorithm,
+                          RenderingExecutor executor)
+    {
+        if (algorithm != IProjection.MAXIMUM_INTENSITY
+            && algorithm != IProjection.MEAN_INTENSITY
+            && algorithm != IProjection.SUM_INTENSITY)
+        {
+            throw new IllegalArgumentException(
+                    "Unknown algorithm: " + algorithm);
+        }
+        this.source = source;
+        this.algorithm = algorithm;
+        this.executor = executor;
+    }
+
+    /**
+     * Projects a stack into a plane.
+     * @param c The channel to project.
+     * @param t The timepoint to project.
+     * @param stepping Stepping value to use while calculating the projection.
+     * For example, <code>stepping=1</code> will use every optical section from
+     * <code>start</code> to <code>end</code> where <code>stepping=2</code> will
+     * use every other section from <code>start</code> to <code>end</code> to
+     * perform the projection.
+     * @param start Optical section to start projecting from.
+     * @param end Optical section to finish projecting. Included by maximum
+     * intensity projections only, as has always been the case.
+     * @param to The plane to project into.
+     * @param minMax The minimum and maximum of the projected pixel data so
+     * far, updated in place, or <code>null</code> if they are not needed.
+     * @throws IOException If a tile cannot be read.
+     * @throws DimensionsOutOfBoundsException If a section, the channel or the
+     * timepoint is out of range.
+     */
+    public void project(int c, int t, int stepping, int start, int end,
+                        final PixelData to, double[] minMax)
+        throws IOException, DimensionsOutOfBoundsException
+    {
+        final int sizeX = source.getSizeX();
+        project(c, t, stepping, start, end, to.getPixelsType(),
+                source.getTileSize(), new TileWriter()
+        {
+            public void writeTile(PixelData tile, int x, int y, int w, int h)
+            {
+                int k = 0;
+                for (int j = y; j < y + h; j++)
+                {
+                    int offset = j * sizeX + x;
+                    for (int i = 0; i < w; i++, k++)
+                    {
+                        to.setPixelValue(offset + i, tile.getPixelValue(k));
+                    }
+                }
+            }
+        }, minMax);
+    }
+
+    /**
+     * Projects a stack tile by tile, handing each projected tile to a
+     * writer rather than filling a whole plane.
+     * @param c The channel to project.
+     * @param t The timepoint to project.
+     * @param stepping Stepping value to use while calculating the projection.
+     * @param start Optical section to start projecting from.
+     * @param end Optical section to finish projecting. Included by maximum
+     * intensity projections only.
+     * @param pixelsType The pixels type of the projected tiles.
+     * @param tileSize The size of the projected tiles, e.g. that of the
+     * destination buffer.
+     * @param writer The writer to hand the projected tiles to.
+     * @param minMax The minimum and maximum of the projected pixel data so
+     * far, updated in place, or <code>null</code> if they are not needed.
+     * @throws IOException If a tile cannot be read or written.
+     * @throws DimensionsOutOfBoundsException If a section, the channel or the
+     * timepoint is out of range.
+     * @see #project(int, int, int, int, int, PixelData, double[])
+     */
+    public void project(int c, int t, int stepping, int start, int end,
+                        String pixelsType, Dimension tileSize,
+                        TileWriter writer, double[] minMax)
+        throws IOException, DimensionsOutOfBoundsException
+    {
+        boolean max = algorithm == IProjection.MAXIMUM_INTENSITY;
+        int[] sections = getSections(stepping, start, max? end + 1 : end);
+        for (int z : sections)
+        {
+            source.checkBounds(null, null, z, c, t);
+        }
+        int sizeX = source.getSizeX();
+        int sizeY = source.getSizeY();
+        int tileWidth = Math.min(sizeX, (int) tileSize.getWidth());
+        int tileHeight = Math.min(sizeY, (int) tileSize.getHeight());
+
+        int batchSize = 1;
+        if (executor != null && sections.length > 0
+            && (long) tileWidth * tileHeight >= executor.getMinPixelsPerTask())
+        {
+            batchSize = executor.getMaxTasks(Long.MAX_VALUE);
+        }
+        TileTask[] tasks = new TileTask[batchSize];
+        for (int i = 0; i < batchSize; i++)
+        {
+            tasks[i] = new TileTask(new double[tileWidth * tileHeight], max);
+        }
+
+        int pending = 0;
+        for (int y = 0; y < sizeY; y += tileHeight)
+        {
+            int h = Math.min(tileHeight, sizeY - y);
+            for (int x = 0; x < sizeX; x += tileWidth)
+            {
+                int w = Math.min(tileWidth, sizeX - x);
+                tasks[pending++].setRegion(x, y, w, h);
+                if (pending == batchSize)
+                {
+                    projectTiles(tasks, pending, c, t, sections, pixelsType,
+                            writer, minMax);
+                    pending = 0;
+                }
+            }
+        }
+        projectTiles(tasks, pending, c, t, sections, pixelsType, writer,
+                minMax);
+    }
+
+    /**
+     * Returns the optical sections to project.
+     * @param stepping The stepping between sections.
+     * @param start The first section.
+     * @param end The section after the last one.
+     * @return See above.
+     */
+    private int[] getSections(int stepping, int start, int end)
+    {
+        if (stepping < 1)
+        {
+            throw new IllegalArgumentException(
+                    "Stepping must be positive: " + stepping);
+        }
+        int count = 0;
+        for (int z = start; z < end; z += stepping)
+        {
+            count++;
+        }
+        int[] sections = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            sections[i] = start + i * stepping;
+        }
+        return sections;
+    }
+
+    /**
+     * Folds every section of the first <code>count</code> tiles and hands
+     * the results to the writer.
+     */
+    private void projectTiles(TileTask[] tasks, int count, int c, int t,
+                              int[] sections, String pixelsType,
+                              TileWriter writer, double[] minMax)
+        throws IOException
+    {
+        if (count == 0)
+        {
+            return;
+        }
+        for (int i = 0; i < count; i++)
+        {
+            Arrays.fill(tasks[i].projected, 0);
+        }
+        for (int z : sections)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                TileTask task = tasks[i];
+                task.data = source.getTile(z, c, t, task.x, task.y,
+                                           task.width, task.height);
+            }
+            fold(tasks, count);
+        }
+
+        boolean mean = algorithm == IProjection.MEAN_INTENSITY;
+        int bytesPerPixel = PixelData.getBitDepth(pixelsType) / 8;
+        for (int i = 0; i < count; i++)
+        {
+            TileTask task = tasks[i];
+            task.data = null;
+            double[] projected = task.projected;
+            int n = task.width * task.height;
+            PixelData tile = new PixelData(pixelsType,
+                    ByteBuffer.wrap(new byte[n * bytesPerPixel]));
+            double maximum = tile.getMaximum();
+            for (int k = 0; k < n; k++)
+            {
+                double value = projected[k];
+                if (!task.max)
+                {
+                    if (mean)
+                    {
+                        value = value / sections.length;
+                    }
+                    if (value > maximum)
+                    {
+                        value = maximum;
+                    }
+                }
+                tile.setPixelValue(k, value);
+                if (minMax != null)
+                {
+                    minMax[0] = value < minMax[0]? value : minMax[0];
+                    minMax[1] = value > minMax[1]? value : minMax[1];
+                }
+            }
+            writer.writeTile(tile, task.x, task.y, task.width, task.height);
+        }
+    }
+
+    /**
+     * Runs the first <code>count</code> tasks, in parallel if there are
+     * several.
+     */
+    private void fold(TileTask[] tasks, int count)
+    {
+        if (count == 1 || executor == null)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                tasks[i].call();
+            }
+            return;
+        }
+        RenderingTask[] batch = new RenderingTask[count];
+        System.arraycopy(tasks, 0, batch, 0, count);
+        try
+        {
+            executor.execute(batch);
+        }
+        catch (QuantizationException e)
+        {
+            // Never thrown by TileTask.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Folds one tile of one optical section into the running maximum or sum
+     * of that tile, reading the backing buffer directly for each pixel type.
+     */
+    static class TileTask implements RenderingTask
+    {
+        /** The running maximum or sum of each pixel of the tile. */
+        final double[] projected;
+
+        /** Whether to keep the maximum rather than the sum. */
+        final boolean max;
+
+        /** The region of the tile within the plane. */
+        int x, y, width, height;
+
+        /** The tile of the current optical section. */
+        PixelData data;
+
+        TileTask(double[] projected, boolean max)
+        {
+            this.projected = projected;
+            this.max = max;
+        }
+
+        void setRegion(int x, int y, int width, int height)
+        {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        public Object call()
+        {
+            int n = width * height;
+            ByteBuffer buf = data.getData();
+            boolean signed = data.isSigned();
+            switch (data.javaType())
+            {
+                case PixelData.BYTE:
+                    for (int i = 0; i < n; i++)
+                    {
+                        byte b = buf.get(i);
+                        fold(i, signed? b : b & 0xFF);
+                    }
+                    return null;
+                case PixelData.SHORT:
+                    for (int i = 0; i < n; i++)
+                    {
+                        short s = buf.getShort(i * 2);
+                        fold(i, signed? s : s & 0xFFFF);
+                    }
+                    return null;
+                case PixelData.INT:
+                    for (int i = 0; i < n; i++)
+                    {
+                        int v = buf.getInt(i * 4);
+                        fold(i, signed? v : v & 0xFFFFFFFFL);
+                    }
+                    return null;
+                case PixelData.FLOAT:
+                    for (int i = 0; i < n; i++)
+                    {
+                        fold(i, buf.getFloat(i * 4));
+                    }
+                    return null;
+                case PixelData.DOUBLE:
+                    for (int i = 0; i < n; i++)
+                    {
+                        fold(i, buf.getDouble(i * 8));
+                    }
+                    return null;
+                default:
+                    for (int i = 0; i < n; i++)
+                    {
+                        fold(i, data.getPixelValue(i));
+                    }
+                    return null;
+            }
+        }
+
+        private void fold(int i, double value)
+        {
+            if (max)
+            {
+                if (value > projected[i])
+                {
+                    projected[i] = value;
+                }
+            }
+            else
+            {
+                projected[i] += value;
+            }
+        }
+    }
+}
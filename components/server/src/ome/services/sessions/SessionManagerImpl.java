@@ -11,8 +11,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
@@ -82,7 +84,7 @@ import org.springframework.transaction.annotation.Transactional;
  * @author Josh Moore, josh at glencoesoftware.com
  * @since 3.0-Beta3
  */
-public class SessionManagerImpl implements SessionManager, SessionCache.StaleCacheListener,
+public class SessionManagerImpl implements SessionManager, SessionCache.BulkStaleCacheListener,
         ApplicationContextAware, ApplicationListener {
 
     private final static Log log = LogFactory.getLog(SessionManagerImpl.class);
@@ -897,6 +899,66 @@ public class SessionManagerImpl implements SessionManager, SessionCache.StaleCac
         return createSessionContext(list, ctx);
     }
 
+    /**
+     * Will be called by {@link SessionCache} in place of
+     * {@link #reload(SessionContext)} for every session. Looks up the state
+     * of all sessions in a few queries and only returns replacements for
+     * those sessions whose state has changed.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public Map<String, SessionContext> reloadAll(
+            final Map<String, SessionContext> contexts) {
+        final Map<String, SessionContext> rv = new HashMap<String, SessionContext>();
+        if (contexts.isEmpty()) {
+            return rv;
+        }
+        Map<String, List<Object>> lookups = (Map) executor.execute(asroot,
+                new Executor.SimpleWork(this, "reloadAll", contexts.size()) {
+                    @Transactional(readOnly = true)
+                    public Object doWork(org.hibernate.Session session,
+                            ServiceFactory sf) {
+                        return executeSessionContextLookups(session, contexts);
+                    }
+                });
+        for (Map.Entry<String, SessionContext> entry : contexts.entrySet()) {
+            String id = entry.getKey();
+            SessionContext ctx = entry.getValue();
+            List<Object> list = lookups.get(id);
+            if (list == null) {
+                rv.put(id, null);
+            } else if (hasChanged(ctx, list)) {
+                rv.put(id, createSessionContext(list, ctx));
+            }
+        }
+        return rv;
+    }
+
+    /**
+     * Compares a snapshot as from
+     * {@link #executeSessionContextLookups(org.hibernate.Session, Map)} with
+     * the state held by a cached {@link SessionContext}.
+     */
+    private boolean hasChanged(SessionContext ctx, List<?> list) {
+        final Experimenter exp = (Experimenter) list.get(0);
+        final ExperimenterGroup grp = (ExperimenterGroup) list.get(1);
+        try {
+            Permissions perms = grp.getDetails().getPermissions();
+            Permissions current = ctx.getCurrentGroupPermissions();
+            return !exp.getId().equals(ctx.getCurrentUserId())
+                    || !grp.getId().equals(ctx.getCurrentGroupId())
+                    || perms == null || current == null
+                    || !perms.identical(current)
+                    || !list.get(2).equals(ctx.getMemberOfGroupsList())
+                    || !new HashSet<Object>((List<?>) list.get(3))
+                            .equals(new HashSet<Object>(ctx
+                                    .getLeaderOfGroupsList()))
+                    || !list.get(4).equals(ctx.getUserRoles());
+        } catch (RuntimeException e) {
+            // Cannot compare, e.g. an internal context
+            return true;
+        }
+    }
+
     // Executor methods
     // =========================================================================
 
@@ -1266,6 +1328,98 @@ public class SessionManagerImpl implements SessionManager, SessionCache.StaleCac
         }
     }
 
+    /**
+     * Returns a snapshot as from
+     * {@link #executeSessionContextLookup(ServiceFactory, Principal, Session)}
+     * for each of the given sessions, using one query each for the sessions,
+     * users, groups and group memberships of all of them. The snapshot is null
+     * if the session has been closed or its user or group cannot be found.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, List<Object>> executeSessionContextLookups(
+            org.hibernate.Session session, Map<String, SessionContext> contexts) {
+
+        final Set<String> uuids = new HashSet<String>();
+        final Set<String> userNames = new HashSet<String>();
+        final Set<String> groupNames = new HashSet<String>();
+        for (SessionContext ctx : contexts.values()) {
+            uuids.add(ctx.getSession().getUuid());
+            userNames.add(ctx.getCurrentUserName());
+            groupNames.add(ctx.getCurrentGroupName());
+        }
+
+        final Set<String> closed = new HashSet<String>(session.createQuery(
+                "select s.uuid from Session s where s.closed is not null "
+                        + "and s.uuid in (:uuids)").setParameterList("uuids",
+                uuids).list());
+
+        final Map<String, Experimenter> users = new HashMap<String, Experimenter>();
+        for (Object o : session.createQuery(
+                "select e from Experimenter e where e.omeName in (:names)")
+                .setParameterList("names", userNames).list()) {
+            Experimenter exp = (Experimenter) o;
+            users.put(exp.getOmeName(), exp);
+        }
+
+        final Map<String, ExperimenterGroup> groups = new HashMap<String, ExperimenterGroup>();
+        for (Object o : session.createQuery(
+                "select g from ExperimenterGroup g where g.name in (:names)")
+                .setParameterList("names", groupNames).list()) {
+            ExperimenterGroup grp = (ExperimenterGroup) o;
+            groups.put(grp.getName(), grp);
+        }
+
+        // As AdminImpl.getMemberOfGroupIds, getLeaderOfGroupIds, getUserRoles
+        final Map<Long, List<Long>> memberOf = new HashMap<Long, List<Long>>();
+        final Map<Long, List<Long>> leaderOf = new HashMap<Long, List<Long>>();
+        final Map<Long, List<String>> userRoles = new HashMap<Long, List<String>>();
+        final Set<Long> userIds = new HashSet<Long>();
+        for (Experimenter exp : users.values()) {
+            userIds.add(exp.getId());
+            memberOf.put(exp.getId(), new ArrayList<Long>());
+            leaderOf.put(exp.getId(), new ArrayList<Long>());
+            userRoles.put(exp.getId(), new ArrayList<String>());
+        }
+        if (!userIds.isEmpty()) {
+            List<Object[]> rows = session.createQuery(
+                    "select e.id, g.id, g.name, m.owner from Experimenter e "
+                            + "join e.groupExperimenterMap m join m.parent g "
+                            + "where e.id in (:ids) order by e.id, index(m)")
+                    .setParameterList("ids", userIds).list();
+            for (Object[] row : rows) {
+                Long userId = (Long) row[0];
+                memberOf.get(userId).add((Long) row[1]);
+                userRoles.get(userId).add((String) row[2]);
+                if (Boolean.TRUE.equals(row[3])) {
+                    leaderOf.get(userId).add((Long) row[1]);
+                }
+            }
+        }
+
+        final Map<String, List<Object>> rv = new HashMap<String, List<Object>>();
+        for (Map.Entry<String, SessionContext> entry : contexts.entrySet()) {
+            SessionContext ctx = entry.getValue();
+            Experimenter exp = users.get(ctx.getCurrentUserName());
+            ExperimenterGroup grp = groups.get(ctx.getCurrentGroupName());
+            if (closed.contains(ctx.getSession().getUuid()) || exp == null
+                    || grp == null) {
+                rv.put(entry.getKey(), null);
+                continue;
+            }
+            List<Object> list = new ArrayList<Object>();
+            list.add(exp);
+            list.add(grp);
+            list.add(memberOf.get(exp.getId()));
+            list.add(leaderOf.get(exp.getId()));
+            list.add(userRoles.get(exp.getId()));
+            list.add(new Principal(ctx.getCurrentUserName(), ctx
+                    .getCurrentGroupName(), ctx.getCurrentEventType()));
+            list.add(ctx.getSession());
+            rv.put(entry.getKey(), list);
+        }
+        return rv;
+    }
+
     private Share newShare() {
         Share share = new Share();
         share.putAt("#2733", "ALLOW");
@@ -8,6 +8,8 @@ package ome.services.sessions.state;
 
 import java.sql.Timestamp;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -69,6 +71,27 @@ public class SessionCache implements ApplicationContextAware {
         SessionContext reload(SessionContext context);
     }
 
+    /**
+     * {@link StaleCacheListener} which can refresh all the sessions of the
+     * cache at once rather than one at a time.
+     */
+    public interface BulkStaleCacheListener extends StaleCacheListener {
+
+        /**
+         * Method called with all active sessions in the cache by uuid. The
+         * returned map contains a replacement for each session which has
+         * changed. A null replacement means that the session should be
+         * removed. Sessions which are not in the returned map are left as
+         * they are.
+         *
+         * Any runtime exception can be thrown to show that a bulk update is
+         * not possible, in which case each session will be passed to
+         * {@link #reload(SessionContext)} instead.
+         */
+        Map<String, SessionContext> reloadAll(
+                Map<String, SessionContext> contexts);
+    }
+
     /**
      * Container which can be put in a single {@link AtomicReference} instance.
      * Contains all the data for a single session immutably. Therefore any
@@ -576,8 +599,13 @@ public class SessionCache implements ApplicationContextAware {
             final Set<String> ids = sessions.keySet();
             log.info("Synchronizing session cache. Count = " + ids.size());
             final StopWatch sw = new CommonsLogStopWatch();
-            for (String id : ids) {
-                reload(id);
+            final StaleCacheListener listener = staleCacheListener.get();
+            if (listener instanceof BulkStaleCacheListener) {
+                reloadAll((BulkStaleCacheListener) listener, ids);
+            } else {
+                for (String id : ids) {
+                    reload(id);
+                }
             }
 
             sw.stop("omero.sessions.synchronization");
@@ -592,6 +620,59 @@ public class SessionCache implements ApplicationContextAware {
 
     }
 
+    /**
+     * Refreshes the given sessions with a single call to the
+     * {@link BulkStaleCacheListener}, only replacing those which have changed.
+     * Falls back to {@link #reload(String)} for each session if the bulk
+     * reload fails.
+     */
+    private void reloadAll(BulkStaleCacheListener listener, Set<String> ids) {
+
+        final Map<String, Data> datas = new LinkedHashMap<String, Data>();
+        final Map<String, SessionContext> contexts = new LinkedHashMap<String, SessionContext>();
+        for (String id : ids) {
+            try {
+                Data data = getDataNullOrThrowOnTimeout(id, false);
+                if (data == null) {
+                    internalRemove(id, "Timeout");
+                } else {
+                    datas.put(id, data);
+                    contexts.put(id, data.sessionContext);
+                }
+            } catch (Exception e) {
+                // As in reload(String)
+                log.warn("Removing session on get error of " + id, e);
+                internalRemove(id, "Get error");
+            }
+        }
+
+        final Map<String, SessionContext> replacements;
+        try {
+            replacements = listener.reloadAll(contexts);
+        } catch (Exception e) {
+            log.warn("Error on bulk reload; reloading each session", e);
+            for (String id : datas.keySet()) {
+                reload(id);
+            }
+            return;
+        }
+
+        for (Map.Entry<String, SessionContext> entry : replacements.entrySet()) {
+            String id = entry.getKey();
+            Data data = datas.get(id);
+            if (data == null) {
+                continue; // Not one of ours
+            }
+            if (entry.getValue() == null) {
+                internalRemove(id, "Replacement null");
+            } else {
+                refresh(id, data, entry.getValue());
+            }
+        }
+        log.info(String.format("Replaced %s of %s session(s).",
+                replacements.size(), datas.size()));
+    }
+
     /**
      * Provides the reloading logic of the {@link SessionCache} for the
      * {@link SessionManagerImpl} to use.
@@ -12,9 +12,12 @@ import java.io.FileOutputStream;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -62,6 +65,8 @@ import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * 
@@ -82,6 +87,66 @@ public class BlobShareStore extends ShareStore implements
 
     protected OmeroContext ctx;
 
+    /** Milliseconds after which cached {@link Contents} are parsed again. */
+    public static final long MAX_AGE = 60000L;
+
+    /** Number of shares whose {@link Contents} are kept. */
+    public static final int MAX_CACHED = 100;
+
+    /** Number of image ids passed to a single closure query. */
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * {@link Contents} of recently checked shares by share id, least
+     * recently used first. Entries are removed by {@link #doSet}.
+     */
+    private final Map<Long, Contents> contents =
+        Collections.synchronizedMap(new LinkedHashMap<Long, Contents>(16,
+                0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Contents> e) {
+                return size() > MAX_CACHED;
+            }
+        });
+
+    /**
+     * What {@link #doContains} needs to know about a share: the ids of the
+     * shared objects by class name, parsed once from the {@link ShareData},
+     * and the ids of the objects which are reachable from the shared images
+     * (ticket:2249). The latter are only loaded when first needed.
+     */
+    static class Contents {
+
+        final long created;
+
+        final Map<String, Set<Long>> objects = new HashMap<String, Set<Long>>();
+
+        final Set<Long> images;
+
+        volatile Set<Long> pixels;
+
+        volatile Set<Long> instruments;
+
+        volatile Set<Long> objectiveSettings;
+
+        Contents(ShareData data, long created) {
+            this.created = created;
+            for (Map.Entry<String, List<Long>> entry : data.objectMap
+                    .entrySet()) {
+                objects.put(entry.getKey(), new HashSet<Long>(entry.getValue()));
+            }
+            Set<Long> ids = objects.get(Image.class.getName());
+            images = ids == null ? Collections.<Long> emptySet() : ids;
+        }
+
+        boolean contains(Class<?> kls, long id) {
+            Set<Long> ids = objects.get(kls.getName());
+            return ids != null && ids.contains(id);
+        }
+    }
+
     /**
      * Because there is a cyclical dependency SF->ACLVoter->BlobStore->SF we
      * have to lazy-load the session factory via the context.
@@ -129,6 +194,7 @@ public class BlobShareStore extends ShareStore implements
                     + " has been updated by someone else.");
         }
 
+        evict(data.id);
         data.optlock = newOptLock;
         share.setData(parse(data));
         share.setActive(data.enabled);
@@ -190,74 +256,57 @@ public class BlobShareStore extends ShareStore implements
         }
     }
 
-    boolean imagesContainsPixels(Session s, List<Long> images, Pixels pix, Map<Long, Long> cache) {
-        Long pixID = pix.getId();
-        return imagesContainsPixels(s, images, pixID, cache);
+    boolean imagesContainsPixels(Session s, Contents c, Pixels pix) {
+        if (pix == null) {
+            return false;
+        }
+        return imagesContainsPixels(s, c, pix.getId());
     }
 
-    boolean imagesContainsPixels(Session s, List<Long> images, long pixID, Map<Long, Long> cache) {
-        Long imgID;
-        if (cache.containsKey(pixID)) {
-            imgID = cache.get(pixID);
-        } else {
-            imgID = (Long) s.createQuery(
-                "select image.id from Pixels where id = ?")
-                .setParameter(0, pixID).uniqueResult();
-            cache.put(pixID, imgID);
-        }
-        return images.contains(imgID);
+    boolean imagesContainsPixels(Session s, Contents c, long pixID) {
+        loadClosure(s, c);
+        return c.pixels.contains(pixID);
     }
-    
-    boolean imagesContainsInstrument(Session s, List<Long> images, Instrument instr, Map<Long, Long> cache) {
+
+    boolean imagesContainsInstrument(Session s, Contents c, Instrument instr) {
         if (instr == null) {
             return false;
         }
-        Long instrID = instr.getId();
-        Long imgID;
-        if (cache.containsKey(instrID)) {
-            imgID = cache.get(instrID);
-        } else {
-            imgID = (Long) s.createQuery(
-                "select id from Image where instrument.id = ?")
-                .setParameter(0, instrID).uniqueResult();
-            cache.put(instrID, imgID);
-        }
-        return images.contains(imgID);
+        loadClosure(s, c);
+        return c.instruments.contains(instr.getId());
     }
 
-    boolean imagesContainsObjectiveSettings(Session s, List<Long> images, ObjectiveSettings os, Map<Long, Long> cache) {
-        Long osID = os.getId();
-        return imagesContainsObjectiveSettings(s, images, osID, cache);
-    }
-    
-    boolean imagesContainsObjectiveSettings(Session s, List<Long> images, long osID, Map<Long, Long> cache) {
-        Long imgID;
-        if (cache.containsKey(osID)) {
-            imgID = cache.get(osID);
-        } else {
-            imgID = (Long) s.createQuery(
-                "select id from Image where objectivesettings.id = ?")
-                .setParameter(0, osID).uniqueResult();
-            cache.put(osID, imgID);
+    boolean imagesContainsObjectiveSettings(Session s, Contents c,
+            ObjectiveSettings os) {
+        if (os == null) {
+            return false;
         }
-        return images.contains(imgID);
+        return imagesContainsObjectiveSettings(s, c, os.getId());
     }
-    
+
+    boolean imagesContainsObjectiveSettings(Session s, Contents c, long osID) {
+        loadClosure(s, c);
+        return c.objectiveSettings.contains(osID);
+    }
+
     @Override
     public <T extends IObject> boolean doContains(long sessionId, Class<T> kls,
             long objId) {
 
-        ShareData data = get(sessionId);
-        if (data == null) {
+        Contents c = contents(sessionId);
+        if (c == null) {
             return false;
         }
 
-        return doContains(data, kls, objId);
+        return doContains(c, kls, objId);
     }
 
     protected <T extends IObject> boolean doContains(ShareData data, Class<T> kls, long objId) {
-        List<Long> ids = data.objectMap.get(kls.getName());
-        if (ids != null && ids.contains(objId)) {
+        return doContains(new Contents(data, now()), kls, objId);
+    }
+
+    private <T extends IObject> boolean doContains(Contents c, Class<T> kls, long objId) {
+        if (c.contains(kls, objId)) {
             return true;
         }
 
@@ -280,36 +329,34 @@ public class BlobShareStore extends ShareStore implements
             + "left outer join fetch r.quantization "
         */
 
-        List<Long> images = data.objectMap.get(Image.class.getName());
-        Map<Long, Long> pixToImageCache = new HashMap<Long, Long>();
         Session s = session();
         if (Pixels.class.isAssignableFrom(kls)) {
-            return imagesContainsPixels(s, images, objId, pixToImageCache);
+            return imagesContainsPixels(s, c, objId);
         } else if (RenderingDef.class.isAssignableFrom(kls)) {
             RenderingDef obj = (RenderingDef) s.get(RenderingDef.class, objId);
-            return imagesContainsPixels(s, images, obj.getPixels(), pixToImageCache);
+            return imagesContainsPixels(s, c, obj.getPixels());
         } else if (ChannelBinding.class.isAssignableFrom(kls)) {
             ChannelBinding obj = (ChannelBinding) s.get(ChannelBinding.class, objId);
-            return imagesContainsPixels(s, images, obj.getRenderingDef().getPixels(), pixToImageCache);
+            return imagesContainsPixels(s, c, obj.getRenderingDef().getPixels());
         } else if (Thumbnail.class.isAssignableFrom(kls)) {
             Thumbnail obj = (Thumbnail) s.get(Thumbnail.class, objId);
-            return imagesContainsPixels(s, images, obj.getPixels(), pixToImageCache);
+            return imagesContainsPixels(s, c, obj.getPixels());
         } else if (Channel.class.isAssignableFrom(kls)) {
             Channel obj = (Channel) s.get(Channel.class, objId);
-            return imagesContainsPixels(s, images, obj.getPixels(), pixToImageCache);
+            return imagesContainsPixels(s, c, obj.getPixels());
         } else if (LogicalChannel.class.isAssignableFrom(kls)) {
             LogicalChannel obj = (LogicalChannel) s.get(LogicalChannel.class,
                     objId);
             Iterator<Channel> it = obj.iterateChannels();
             while (it.hasNext()) {
                 Channel ch = it.next();
-                if (images.contains(ch.getPixels().getImage().getId())) {
+                if (imagesContainsPixels(s, c, ch.getPixels())) {
                     return true;
                 }
             }
         } else if (PlaneInfo.class.isAssignableFrom(kls)) {
             PlaneInfo obj = (PlaneInfo) s.get(PlaneInfo.class, objId);
-            return imagesContainsPixels(s, images, obj.getPixels(), pixToImageCache);
+            return imagesContainsPixels(s, c, obj.getPixels());
         } else if (StatsInfo.class.isAssignableFrom(kls)
                 || QuantumDef.class.isAssignableFrom(kls) 
                 || LightPath.class.isAssignableFrom(kls) 
@@ -320,42 +367,39 @@ public class BlobShareStore extends ShareStore implements
             return true;
         }
         
-        Map<Long, Long> obToImageCache = new HashMap<Long, Long>();
         if (Objective.class.isAssignableFrom(kls)) {
         	Objective obj = (Objective) s.get(Objective.class, objId);
-            return imagesContainsInstrument(s, images, obj.getInstrument(), obToImageCache);
+            return imagesContainsInstrument(s, c, obj.getInstrument());
         } else if (Detector.class.isAssignableFrom(kls)) {
         	Detector obj = (Detector) s.get(Detector.class, objId);
-            return imagesContainsInstrument(s, images, obj.getInstrument(), obToImageCache);
+            return imagesContainsInstrument(s, c, obj.getInstrument());
         } else if (Dichroic.class.isAssignableFrom(kls)) {
         	Dichroic obj = (Dichroic) s.get(Dichroic.class, objId);
-            return imagesContainsInstrument(s, images, obj.getInstrument(), obToImageCache);
+            return imagesContainsInstrument(s, c, obj.getInstrument());
         } else if (FilterSet.class.isAssignableFrom(kls)) {
         	FilterSet obj = (FilterSet) s.get(FilterSet.class, objId);
-            return imagesContainsInstrument(s, images, obj.getInstrument(), obToImageCache);
+            return imagesContainsInstrument(s, c, obj.getInstrument());
         } else if (Filter.class.isAssignableFrom(kls)) {
         	Filter obj = (Filter) s.get(Filter.class, objId);
-            return imagesContainsInstrument(s, images, obj.getInstrument(), obToImageCache);
+            return imagesContainsInstrument(s, c, obj.getInstrument());
         } else if (LightSource.class.isAssignableFrom(kls)) {
         	LightSource obj = (LightSource) s.get(LightSource.class, objId);
-        	return imagesContainsInstrument(s, images, obj.getInstrument(), obToImageCache);
+        	return imagesContainsInstrument(s, c, obj.getInstrument());
         } else if (Laser.class.isAssignableFrom(kls)) {
         	Laser obj = (Laser) s.get(Laser.class, objId);
-        	return imagesContainsInstrument(s, images, obj.getInstrument(), obToImageCache);
+        	return imagesContainsInstrument(s, c, obj.getInstrument());
         } else if (LightSettings.class.isAssignableFrom(kls)) {
         	LightSettings obj = (LightSettings) s.get(LightSettings.class, objId);
-        	return imagesContainsInstrument(s, images, obj.getLightSource().getInstrument(), 
-        			obToImageCache);
+        	return imagesContainsInstrument(s, c, obj.getLightSource().getInstrument());
         } else if (DetectorSettings.class.isAssignableFrom(kls)) {
         	DetectorSettings obj = (DetectorSettings) s.get(DetectorSettings.class, objId);
-        	if (imagesContainsInstrument(s, images, obj.getDetector().getInstrument(), 
-        			obToImageCache)) {
+        	if (imagesContainsInstrument(s, c, obj.getDetector().getInstrument())) {
         		return true;
         	} else {
         		List<LogicalChannel> lcs = s.createQuery(
         				"select l from LogicalChannel l where l.detectorSettings.id = " + obj.getId()).list();
         		for (LogicalChannel lc : lcs) {
-        			if (doContains(data, LogicalChannel.class, lc.getId())) {
+        			if (doContains(c, LogicalChannel.class, lc.getId())) {
         				return true;
         			}
         		}
@@ -400,6 +444,90 @@ public class BlobShareStore extends ShareStore implements
         return rv;
     }
 
+    /**
+     * Returns the cached {@link Contents} of the share, parsing its
+     * {@link ShareData} if they are missing or older than {@link #MAX_AGE},
+     * or null if there is no such share.
+     */
+    private Contents contents(long shareId) {
+        long now = now();
+        Contents c = contents.get(shareId);
+        if (c != null && now - c.created <= MAX_AGE) {
+            return c;
+        }
+        ShareData data = get(shareId);
+        if (data == null) {
+            contents.remove(shareId);
+            return null;
+        }
+        c = new Contents(data, now);
+        contents.put(shareId, c);
+        return c;
+    }
+
+    /**
+     * Removes the {@link Contents} of a share which is being changed, both
+     * now and once the transaction has completed, so that no contents parsed
+     * concurrently from the old data outlive it.
+     */
+    private void evict(final long shareId) {
+        contents.remove(shareId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(
+                    new TransactionSynchronizationAdapter() {
+                        @Override
+                        public void afterCompletion(int status) {
+                            contents.remove(shareId);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Loads the ids of the pixels, instruments and objective settings of all
+     * images in the share, unless already loaded.
+     */
+    private void loadClosure(Session s, Contents c) {
+        if (c.objectiveSettings != null) {
+            return; // Set last.
+        }
+        Set<Long> pixels = new HashSet<Long>();
+        Set<Long> instruments = new HashSet<Long>();
+        Set<Long> objectiveSettings = new HashSet<Long>();
+        List<Long> images = new ArrayList<Long>(c.images);
+        for (int i = 0; i < images.size(); i += BATCH_SIZE) {
+            List<Long> batch = images.subList(i,
+                    Math.min(i + BATCH_SIZE, images.size()));
+            addIds(pixels, s, "select p.id from Pixels p "
+                    + "where p.image.id in (:ids)", batch);
+            addIds(instruments, s, "select i.instrument.id from Image i "
+                    + "where i.id in (:ids) and i.instrument is not null",
+                    batch);
+            addIds(objectiveSettings, s, "select i.objectiveSettings.id "
+                    + "from Image i where i.id in (:ids) "
+                    + "and i.objectiveSettings is not null", batch);
+        }
+        c.pixels = pixels;
+        c.instruments = instruments;
+        c.objectiveSettings = objectiveSettings;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addIds(Set<Long> ids, Session s, String hql,
+            Collection<Long> imageIds) {
+        Query q = s.createQuery(hql);
+        q.setParameterList("ids", imageIds);
+        ids.addAll(q.list());
+    }
+
+    /**
+     * Current time in milliseconds against which the age of cached
+     * {@link Contents} is measured.
+     */
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
     private Session session() {
         return initialize().getSession();
     }
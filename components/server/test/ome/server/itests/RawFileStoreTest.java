@@ -9,6 +9,7 @@ package ome.server.itests;
 import ome.api.RawFileStore;
 import ome.model.core.OriginalFile;
 import ome.model.enums.Format;
+import ome.util.Utils;
 
 import org.testng.annotations.Test;
 
@@ -37,4 +38,46 @@ public class RawFileStoreTest extends AbstractManagedContextTest {
         assertFalse(file.getSize().equals(-1L)); // The should be updated
         assertFalse(file.getSha1().equals("")); // These should be updated
     }
+
+    /**
+     * The SHA-1 kept while writing must match that of the whole file,
+     * whether the writes arrive in order, out of order or are truncated.
+     */
+    @Test
+    public void testIncrementalSha1() {
+        byte[] all = new byte[]{0,1,2,3,4,5,6,7};
+        byte[] first = new byte[]{0,1,2,3};
+        byte[] second = new byte[]{4,5,6,7};
+        String sha1 = Utils.bufferToSha1(all);
+
+        assertEquals(sha1, write(new byte[][]{first, second},
+                new long[]{0, 4}, -1).getSha1());
+        assertEquals(sha1, write(new byte[][]{second, first},
+                new long[]{4, 0}, -1).getSha1());
+        assertEquals(sha1, write(new byte[][]{all, all},
+                new long[]{0, 0}, -1).getSha1());
+        assertEquals(Utils.bufferToSha1(first), write(
+                new byte[][]{all}, new long[]{0}, 4).getSha1());
+    }
+
+    private OriginalFile write(byte[][] bufs, long[] positions,
+            long truncate) {
+        OriginalFile file = new OriginalFile();
+        file.setName("name");
+        file.setPath("/tmp/path");
+        file.setSha1("");
+        file.setSize(-1L);
+        file.setMimetype("application/octet-stream");
+        file = iUpdate.saveAndReturnObject(file);
+        RawFileStore rfs = factory.createRawFileStore();
+        rfs.setFileId(file.getId());
+        for (int i = 0; i < bufs.length; i++) {
+            rfs.write(bufs[i], positions[i], bufs[i].length);
+        }
+        if (truncate >= 0) {
+            rfs.truncate(truncate);
+        }
+        rfs.close();
+        return iQuery.get(OriginalFile.class, file.getId());
+    }
 }
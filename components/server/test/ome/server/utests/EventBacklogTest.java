@@ -101,4 +101,22 @@ public class EventBacklogTest extends MockObjectTestCase {
         b.flipState();
         assertTrue(b.add(currentIndex));
     }
+
+    @Test
+    public void testReaddedWhileRemoving() {
+        EventLog log1 = new EventLog(1L, "Image", "INSERT", null);
+        EventLog log2 = new EventLog(2L, "Image", "INSERT", null);
+        assertTrue(b.add(log1));
+        assertTrue(b.add(log2));
+        b.flipState();
+        assertNotNull(b.remove());
+        assertNotNull(b.remove());
+
+        // A failed log goes back even though the backlog is locked.
+        assertFalse(b.add(log2));
+        assertTrue(b.readd(log2));
+        assertTrue(b.removingOnly());
+        assertEquals(new Long(2L), b.remove().getEntityId());
+        assertNull(b.remove());
+    }
 }
@@ -0,0 +1,160 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.server.utests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ome.conditions.InternalException;
+import ome.model.IObject;
+import ome.model.core.Image;
+import ome.model.meta.EventLog;
+import ome.services.eventlogs.EventLogLoader;
+import ome.services.fulltext.FullTextIndexer;
+
+import org.hibernate.Session;
+import org.hibernate.search.FullTextSession;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.jmock.core.Invocation;
+import org.jmock.core.stub.DefaultResultStub;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that the logs of a batch which could not be indexed are handed back
+ * to the {@link EventLogLoader} and retried by a later batch.
+ */
+@Test(groups = { "query", "fulltext" })
+public class FullTextIndexerTest extends MockObjectTestCase {
+
+    Loader loader;
+
+    Indexer indexer;
+
+    IndexStub index;
+
+    FullTextSession session;
+
+    @BeforeMethod
+    public void setup() {
+        loader = new Loader();
+        indexer = new Indexer(loader);
+        index = new IndexStub();
+        Mock mock = new Mock(FullTextSession.class);
+        mock.setDefaultStub(index);
+        session = (FullTextSession) mock.proxy();
+        for (long id = 1; id <= 3; id++) {
+            loader.addEventLog(Image.class, id);
+        }
+    }
+
+    @Test
+    public void testRestOfBacklogBatchRetriedAfterFailure() {
+        index.failOn = 2L;
+        try {
+            indexer.doIndexing(session);
+            fail("Should have failed on the second log");
+        } catch (InternalException ie) {
+            // ok
+        }
+        assertEquals(Arrays.asList(1L, 2L), index.attempted);
+
+        index.failOn = null;
+        assertEquals(2, indexer.doIndexing(session));
+        assertEquals(Arrays.asList(1L, 2L, 2L, 3L), index.attempted);
+        assertEquals(0, indexer.doIndexing(session));
+    }
+
+    @Test
+    public void testWholeBatchRetriedAfterLoadFailure() {
+        indexer.failLoad = true;
+        try {
+            indexer.doIndexing(session);
+            fail("Should have failed to load");
+        } catch (IllegalStateException ise) {
+            // ok
+        }
+        assertTrue(index.attempted.isEmpty());
+
+        indexer.failLoad = false;
+        assertEquals(3, indexer.doIndexing(session));
+        assertEquals(Arrays.asList(1L, 2L, 3L), index.attempted);
+    }
+
+    /**
+     * A loader with no new logs, so that every batch is taken from the
+     * backlog.
+     */
+    static class Loader extends EventLogLoader {
+
+        @Override
+        protected EventLog query() {
+            return null;
+        }
+
+        @Override
+        public long more() {
+            return 0;
+        }
+    }
+
+    /**
+     * An indexer which loads unloaded {@link Image images} instead of
+     * querying the session.
+     */
+    static class Indexer extends FullTextIndexer {
+
+        boolean failLoad = false;
+
+        Indexer(EventLogLoader loader) {
+            super(loader);
+        }
+
+        @Override
+        protected Map<Long, IObject> load(Session session, Class type,
+                Collection<Long> ids) {
+            if (failLoad) {
+                throw new IllegalStateException("load failed");
+            }
+            Map<Long, IObject> rv = new HashMap<Long, IObject>();
+            for (Long id : ids) {
+                rv.put(id, new Image(id, false));
+            }
+            return rv;
+        }
+    }
+
+    /**
+     * Records the id of every object handed to
+     * {@link FullTextSession#index(Object)} and fails on the given one.
+     */
+    static class IndexStub extends DefaultResultStub {
+
+        final List<Long> attempted = new ArrayList<Long>();
+
+        Long failOn;
+
+        @Override
+        public Object invoke(Invocation invocation) throws Throwable {
+            if (invocation.invokedMethod.getName().equals("index")) {
+                Long id = ((IObject) invocation.parameterValues.get(0))
+                        .getId();
+                attempted.add(id);
+                if (id.equals(failOn)) {
+                    throw new RuntimeException("index failed");
+                }
+            }
+            return super.invoke(invocation);
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.server.utests;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ome.logic.AWTScaleService;
+import ome.logic.CompressImpl;
+import ome.logic.JavaImageScalingService;
+import ome.util.ImageUtil;
+
+import org.perf4j.StopWatch;
+import org.perf4j.commonslog.CommonsLogStopWatch;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Checks {@link ImageUtil#scalePackedInt(int[], int, int, int, int)} and
+ * times scaling and compressing a rendered plane to thumbnail and tile sized
+ * outputs, both by area averaging the packed buffer and through
+ * {@link JavaImageScalingService}. The timings are logged as perf4j
+ * stop watches with the output size in their tag.
+ */
+@Test(groups = "rendering")
+public class ImageScalingBenchmarkTest extends TestCase {
+
+    static final int SIZE = 1024;
+
+    static final int ITERATIONS = 3;
+
+    int[] plane;
+
+    CompressImpl compress;
+
+    @BeforeClass
+    public void setup() {
+        Random r = new Random(0);
+        plane = new int[SIZE * SIZE];
+        for (int i = 0; i < plane.length; i++) {
+            plane[i] = 0xFF000000 | r.nextInt(0x1000000);
+        }
+        compress = new CompressImpl();
+    }
+
+    public void testUniformImageStaysUniform() {
+        int[] buf = new int[7 * 5];
+        Arrays.fill(buf, 0xFF123456);
+        int[] scaled = ImageUtil.scalePackedInt(buf, 7, 5, 3, 2);
+        assertEquals(6, scaled.length);
+        for (int value : scaled) {
+            assertEquals(0xFF123456, value);
+        }
+    }
+
+    public void testHalvingAveragesBlocks() {
+        int[] buf = new int[] {
+                0x000000, 0xFFFFFF, 0x0000FF, 0x0000FF,
+                0xFF0000, 0xFF0000, 0x00FF00, 0x00FF00 };
+        int[] scaled = ImageUtil.scalePackedInt(buf, 4, 2, 2, 1);
+        assertEquals(0xFFBF4040, scaled[0]);
+        assertEquals(0xFF008080, scaled[1]);
+    }
+
+    public void testPartialPixelsAreWeighted() {
+        // Each scaled pixel covers one and a third source pixels.
+        int[] buf = new int[] { 0x000000, 0xFFFFFF, 0x000000, 0xFFFFFF };
+        int[] scaled = ImageUtil.scalePackedInt(buf, 4, 1, 3, 1);
+        assertEquals(0xFF404040, scaled[0]);
+        assertEquals(0xFF808080, scaled[1]);
+        assertEquals(0xFFBFBFBF, scaled[2]);
+    }
+
+    public void testScaledRgbImageIsAreaAveraged() {
+        BufferedImage image = new BufferedImage(4, 2,
+                BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, 4, 2, new int[] {
+                0x000000, 0xFFFFFF, 0x0000FF, 0x0000FF,
+                0xFF0000, 0xFF0000, 0x00FF00, 0x00FF00 }, 0, 4);
+        BufferedImage scaled = new AWTScaleService().scaleBufferedImage(
+                image, 0.5f, 0.5f);
+        assertEquals(0xFFBF4040, scaled.getRGB(0, 0));
+        assertEquals(0xFF008080, scaled.getRGB(1, 0));
+    }
+
+    public void testScaledArgbImageKeepsAlpha() {
+        BufferedImage image = new BufferedImage(4, 4,
+                BufferedImage.TYPE_INT_ARGB);
+        int[] buf = new int[16];
+        Arrays.fill(buf, 0x00123456);
+        image.setRGB(0, 0, 4, 4, buf, 0, 4);
+        BufferedImage scaled = new AWTScaleService().scaleBufferedImage(
+                image, 0.5f, 0.5f);
+        assertTrue(scaled.getColorModel().hasAlpha());
+        assertEquals(0, scaled.getRGB(0, 0) >>> 24);
+    }
+
+    public void testAreaAveraging48() throws Exception {
+        areaAveraging(48);
+    }
+
+    public void testAreaAveraging96() throws Exception {
+        areaAveraging(96);
+    }
+
+    public void testAreaAveraging512() throws Exception {
+        areaAveraging(512);
+    }
+
+    public void testResampleOp48() throws Exception {
+        resampleOp(48);
+    }
+
+    public void testResampleOp96() throws Exception {
+        resampleOp(96);
+    }
+
+    public void testResampleOp512() throws Exception {
+        resampleOp(512);
+    }
+
+    private void areaAveraging(int size) throws Exception {
+        byte[] jpeg = null;
+        for (int i = 0; i < ITERATIONS; i++) {
+            StopWatch sw = new CommonsLogStopWatch(
+                    "omero.benchmark.areaAveraging." + size);
+            int[] scaled = ImageUtil.scalePackedInt(plane, SIZE, SIZE,
+                    size, size);
+            jpeg = compress.compressToBytes(
+                    ImageUtil.createBufferedImage(scaled, size, size));
+            sw.stop();
+        }
+        assertTrue(jpeg.length > 0);
+    }
+
+    private void resampleOp(int size) throws Exception {
+        JavaImageScalingService scale = new JavaImageScalingService();
+        float factor = (float) size / SIZE;
+        byte[] jpeg = null;
+        for (int i = 0; i < ITERATIONS; i++) {
+            StopWatch sw = new CommonsLogStopWatch(
+                    "omero.benchmark.resampleOp." + size);
+            BufferedImage image = ImageUtil.createBufferedImage(plane, SIZE,
+                    SIZE);
+            jpeg = compress.compressToBytes(
+                    scale.scaleBufferedImage(image, factor, factor));
+            sw.stop();
+        }
+        assertTrue(jpeg.length > 0);
+    }
+
+}
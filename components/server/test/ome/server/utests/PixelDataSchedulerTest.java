@@ -0,0 +1,286 @@
+/*
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.server.utests;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ome.services.pixeldata.PersistentEventLogLoader;
+import ome.services.pixeldata.PixelDataScheduler;
+import ome.services.pixeldata.PixelDataScheduler.Priority;
+import ome.services.pixeldata.PixelDataScheduler.Ticket;
+import ome.util.SqlAction;
+
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.jmock.core.Invocation;
+import org.jmock.core.Stub;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the ordering, cost admission and current id handling of
+ * {@link PixelDataScheduler} against a fake PIXELDATA backlog.
+ */
+@Test(groups = { "pixeldata" })
+public class PixelDataSchedulerTest extends MockObjectTestCase {
+
+    /** Candidate rows in event log order. */
+    List<long[]> backlog;
+
+    long currentId;
+
+    /** Number of grouped request counts made. */
+    int counts;
+
+    PersistentEventLogLoader loader;
+
+    PixelDataScheduler scheduler;
+
+    @BeforeMethod
+    public void setup() {
+        backlog = new ArrayList<long[]>();
+        currentId = 0;
+        counts = 0;
+        loader = new PersistentEventLogLoader("REPO", 1) {
+            @Override
+            public long getCurrentId() {
+                return currentId;
+            }
+            @Override
+            public void setCurrentId(long id) {
+                currentId = id;
+            }
+        };
+
+        Mock sqlMock = mock(SqlAction.class);
+        sqlMock.expects(atLeastOnce()).method("nextPixelsDataCandidatesForRepo")
+            .will(new Candidates());
+        sqlMock.expects(atLeastOnce()).method("countPixelsDataRequests")
+            .will(new Requests());
+
+        scheduler = new PixelDataScheduler(loader);
+        scheduler.setSqlAction((SqlAction) sqlMock.proxy());
+        scheduler.setRefreshMillis(0);
+    }
+
+    public void testInteractiveBeforeImportBeforeBacklog() {
+        long old = System.currentTimeMillis() - 2 * HOUR;
+        add(1, 10, 1, old, true);
+        add(2, 11, 1, old, false);
+        add(3, 12, 1);
+        add(4, 13, 1, System.currentTimeMillis(), false);
+        scheduler.setMaxConcurrentCost(Long.MAX_VALUE);
+
+        Ticket t1 = scheduler.next();
+        assertEquals(1, counts);
+        assertEquals(13, t1.getPixelsId());
+        assertEquals(Priority.INTERACTIVE, t1.getPriority());
+        Ticket t2 = scheduler.next();
+        assertEquals(12, t2.getPixelsId());
+        assertEquals(Priority.IMPORT, t2.getPriority());
+        Ticket t3 = scheduler.next();
+        Ticket t4 = scheduler.next();
+        assertEquals(10, t3.getPixelsId());
+        assertEquals(Priority.BACKLOG, t3.getPriority());
+        assertEquals(11, t4.getPixelsId());
+        assertEquals(Priority.BACKLOG, t4.getPriority());
+        assertNull(scheduler.next());
+    }
+
+    public void testRequestedAgainBeforeRequestedOnce() {
+        add(1, 10, 1);
+        add(2, 11, 1);
+        add(3, 12, 1);
+        add(4, 11, 1);
+        scheduler.setMaxConcurrentCost(Long.MAX_VALUE);
+
+        Ticket t1 = scheduler.next();
+        Ticket t2 = scheduler.next();
+        Ticket t3 = scheduler.next();
+        assertEquals(11, t1.getPixelsId());
+        assertEquals(Priority.INTERACTIVE, t1.getPriority());
+        assertEquals(10, t2.getPixelsId());
+        assertEquals(Priority.IMPORT, t2.getPriority());
+        assertEquals(12, t3.getPixelsId());
+        assertEquals(Priority.IMPORT, t3.getPriority());
+        assertNull(scheduler.next());
+    }
+
+    public void testOldRequestAgainIsInteractive() {
+        long old = System.currentTimeMillis() - 2 * HOUR;
+        add(1, 10, 1);
+        add(2, 11, 1, old, true);
+        add(3, 11, 1, old, true);
+        scheduler.setMaxConcurrentCost(Long.MAX_VALUE);
+
+        Ticket first = scheduler.next();
+        assertEquals(11, first.getPixelsId());
+        assertEquals(Priority.INTERACTIVE, first.getPriority());
+    }
+
+    public void testRequestBeyondTheWindowRaisesPriority() {
+        for (int i = 1; i <= 10; i++) {
+            add(i, 100 + i, 1);
+        }
+        add(11, 105, 1);
+        scheduler.setWindowSize(3);
+        scheduler.setTailSize(1);
+        scheduler.setMaxConcurrentCost(Long.MAX_VALUE);
+
+        Ticket first = scheduler.next();
+        assertEquals(105, first.getPixelsId());
+        assertEquals(Priority.INTERACTIVE, first.getPriority());
+    }
+
+    public void testNewestAreLoadedBeyondTheWindow() {
+        for (int i = 1; i <= 10; i++) {
+            add(i, 100 + i, 1);
+        }
+        add(11, 200, 1);
+        add(12, 200, 1);
+        scheduler.setWindowSize(3);
+        scheduler.setTailSize(1);
+        scheduler.setMaxConcurrentCost(Long.MAX_VALUE);
+
+        Ticket first = scheduler.next();
+        assertEquals(200, first.getPixelsId());
+        scheduler.done(first);
+        // Nothing in the window has been completed yet.
+        assertEquals(0, currentId);
+    }
+
+    public void testCostLimitsConcurrency() {
+        add(1, 10, 100);
+        add(2, 11, 100);
+        add(3, 12, 10);
+        scheduler.setMaxConcurrentCost(120);
+
+        Ticket big = scheduler.next();
+        assertEquals(10, big.getPixelsId());
+        // The second large set does not fit, but the small one does.
+        Ticket small = scheduler.next();
+        assertEquals(12, small.getPixelsId());
+        assertNull(scheduler.next());
+
+        scheduler.done(big);
+        Ticket second = scheduler.next();
+        assertEquals(11, second.getPixelsId());
+    }
+
+    public void testSingleOversizedSetIsAdmitted() {
+        add(1, 10, 1000);
+        scheduler.setMaxConcurrentCost(1);
+        assertEquals(10, scheduler.next().getPixelsId());
+    }
+
+    public void testCurrentIdOnlyAdvancesContiguously() {
+        add(1, 10, 1);
+        add(2, 11, 1);
+        add(3, 12, 1);
+        scheduler.setMaxConcurrentCost(Long.MAX_VALUE);
+
+        Ticket t1 = scheduler.next();
+        Ticket t2 = scheduler.next();
+        Ticket t3 = scheduler.next();
+
+        scheduler.done(t2);
+        assertEquals(0, currentId);
+        scheduler.done(t3);
+        assertEquals(0, currentId);
+        scheduler.done(t1);
+        assertEquals(3, currentId);
+    }
+
+    public void testDuplicateRequestsShareATicket() {
+        add(1, 10, 1);
+        add(2, 10, 1);
+
+        Ticket t = scheduler.next();
+        assertEquals(10, t.getPixelsId());
+        assertEquals(Priority.INTERACTIVE, t.getPriority());
+        assertEquals(1, t.getEventLogId());
+        assertNull(scheduler.next());
+        scheduler.done(t);
+        assertEquals(2, currentId);
+    }
+
+    //
+    // Helpers
+    //
+
+    static final long HOUR = 60 * 60 * 1000L;
+
+    /**
+     * Adds a request made just now by the session which imported the set.
+     */
+    void add(long eventLog, long pixels, long bytes) {
+        add(eventLog, pixels, bytes, System.currentTimeMillis(), true);
+    }
+
+    void add(long eventLog, long pixels, long bytes, long time,
+            boolean imported) {
+        backlog.add(new long[] { eventLog, pixels, 0, time, imported ? 1 : 0,
+                bytes, 1, 1, 1, 1, 1 });
+    }
+
+    /**
+     * Answers {@link SqlAction#nextPixelsDataCandidatesForRepo} from
+     * {@link #backlog}.
+     */
+    class Candidates implements Stub {
+
+        public Object invoke(Invocation invocation) throws Throwable {
+            long after = (Long) invocation.parameterValues.get(1);
+            int howmany = (Integer) invocation.parameterValues.get(2);
+            boolean newestFirst = (Boolean) invocation.parameterValues.get(3);
+            List<long[]> rows = new ArrayList<long[]>();
+            for (long[] row : backlog) {
+                if (row[0] > after) {
+                    rows.add(row);
+                }
+            }
+            if (newestFirst) {
+                Collections.reverse(rows);
+            }
+            return rows.subList(0, Math.min(howmany, rows.size()));
+        }
+
+        public StringBuffer describeTo(StringBuffer buffer) {
+            return buffer.append("returns candidates from the backlog");
+        }
+    }
+
+    /**
+     * Answers {@link SqlAction#countPixelsDataRequests} from
+     * {@link #backlog}.
+     */
+    class Requests implements Stub {
+
+        public Object invoke(Invocation invocation) throws Throwable {
+            counts++;
+            long after = (Long) invocation.parameterValues.get(0);
+            Collection<?> ids = (Collection<?>) invocation.parameterValues
+                    .get(1);
+            Map<Long, Long> rv = new HashMap<Long, Long>();
+            for (long[] row : backlog) {
+                if (row[0] > after && ids.contains(row[1])) {
+                    Long count = rv.get(row[1]);
+                    rv.put(row[1], count == null ? 1 : count + 1);
+                }
+            }
+            return rv;
+        }
+
+        public StringBuffer describeTo(StringBuffer buffer) {
+            return buffer.append("counts requests in the backlog");
+        }
+    }
+}
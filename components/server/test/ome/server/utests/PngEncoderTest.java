@@ -0,0 +1,97 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.server.utests;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+import ome.api.local.LocalCompress;
+import ome.conditions.ApiUsageException;
+import ome.logic.CompressImpl;
+import ome.logic.PngEncoder;
+import ome.util.ImageUtil;
+
+import org.testng.annotations.Test;
+
+/**
+ * Checks that {@link PngEncoder} and the PNG format of {@link CompressImpl}
+ * are lossless and choose a palette for images with few colours.
+ */
+@Test(groups = "rendering")
+public class PngEncoderTest extends TestCase {
+
+    static final int SIZE = 64;
+
+    public void testMaskIsPaletteIndexed() throws Exception {
+        int[] buf = new int[SIZE * SIZE];
+        for (int i = 0; i < buf.length; i++) {
+            // Sixteen labels in squares of 16x16 pixels
+            int label = (i % SIZE) / 16 + (i / SIZE) / 16 * 4;
+            buf[i] = 0xFF000000 | label * 0x0F0E0D;
+        }
+        BufferedImage image = roundTrip(buf);
+        assertTrue(image.getColorModel() instanceof IndexColorModel);
+        assertPixels(buf, image);
+    }
+
+    public void testManyColoursAreRgb() throws Exception {
+        Random r = new Random(0);
+        int[] buf = new int[SIZE * SIZE];
+        for (int i = 0; i < buf.length; i++) {
+            buf[i] = 0xFF000000 | r.nextInt(0x1000000);
+        }
+        BufferedImage image = roundTrip(buf);
+        assertFalse(image.getColorModel() instanceof IndexColorModel);
+        assertPixels(buf, image);
+    }
+
+    public void testCompressImplWritesPng() throws Exception {
+        int[] buf = new int[SIZE * SIZE];
+        buf[SIZE + 1] = 0x00FF00;
+        CompressImpl compress = new CompressImpl();
+        compress.setCompressionFormat("PNG");
+        assertEquals(LocalCompress.PNG, compress.getCompressionFormat());
+        byte[] png = compress.compressToBytes(
+                ImageUtil.createBufferedImage(buf, SIZE, SIZE));
+        assertPixels(buf, ImageIO.read(new ByteArrayInputStream(png)));
+    }
+
+    public void testUnsupportedFormat() {
+        CompressImpl compress = new CompressImpl();
+        try {
+            compress.setCompressionFormat("webp");
+            fail("Should have thrown");
+        } catch (ApiUsageException e) {
+            // Good
+        }
+        assertEquals(LocalCompress.JPEG, compress.getCompressionFormat());
+    }
+
+    private BufferedImage roundTrip(int[] buf) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PngEncoder(1).encode(buf, SIZE, SIZE, out);
+        return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private void assertPixels(int[] buf, BufferedImage image) {
+        assertEquals(SIZE, image.getWidth());
+        assertEquals(SIZE, image.getHeight());
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                assertEquals(buf[y * SIZE + x] & 0xFFFFFF,
+                        image.getRGB(x, y) & 0xFFFFFF);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.server.utests;
+
+import junit.framework.TestCase;
+import net.sf.ehcache.CacheManager;
+import ome.model.display.ChannelBinding;
+import ome.model.display.QuantumDef;
+import ome.model.display.RenderingDef;
+import ome.model.display.ReverseIntensityContext;
+import ome.model.enums.Family;
+import ome.model.enums.RenderingModel;
+import ome.services.RenderedTileCache;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.RegionDef;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the keys, invalidation and counters of {@link RenderedTileCache}.
+ */
+@Test(groups = "rendering")
+public class RenderedTileCacheTest extends TestCase {
+
+    RenderedTileCache cache;
+
+    @BeforeMethod
+    public void setup() {
+        cache = new RenderedTileCache(CacheManager.getInstance(), 10, 0);
+        cache.clear();
+    }
+
+    public void testDisabled() {
+        RenderedTileCache disabled =
+            new RenderedTileCache(CacheManager.getInstance(), 0, 0);
+        assertFalse(disabled.isEnabled());
+        disabled.put("1:key", new byte[] { 1 });
+        assertNull(disabled.get("1:key"));
+    }
+
+    public void testKeyIsStable() {
+        String k1 = RenderedTileCache.key(1L, tile(0, 0), 2, 0.85f, def());
+        String k2 = RenderedTileCache.key(1L, tile(0, 0), 2, 0.85f, def());
+        assertEquals(k1, k2);
+    }
+
+    public void testKeyDependsOnPlaneAndSettings() {
+        String key = RenderedTileCache.key(1L, tile(0, 0), 2, 0.85f, def());
+        assertFalse(key.equals(
+                RenderedTileCache.key(2L, tile(0, 0), 2, 0.85f, def())));
+        assertFalse(key.equals(
+                RenderedTileCache.key(1L, tile(256, 0), 2, 0.85f, def())));
+        assertFalse(key.equals(
+                RenderedTileCache.key(1L, tile(0, 0), 1, 0.85f, def())));
+        assertFalse(key.equals(
+                RenderedTileCache.key(1L, tile(0, 0), 2, 0.5f, def())));
+        assertFalse(key.equals(
+                RenderedTileCache.key(1L, tile(0, 0), 2, "png", 0.85f, def())));
+        assertEquals(key,
+                RenderedTileCache.key(1L, tile(0, 0), 2, "jpeg", 0.85f, def()));
+
+        RenderingDef changed = def();
+        changed.getChannelBinding(0).setInputEnd(100.0);
+        assertFalse(key.equals(
+                RenderedTileCache.key(1L, tile(0, 0), 2, 0.85f, changed)));
+
+        changed = def();
+        changed.getQuantization().setCdEnd(128);
+        assertFalse(key.equals(
+                RenderedTileCache.key(1L, tile(0, 0), 2, 0.85f, changed)));
+
+        changed = def();
+        ReverseIntensityContext reverse = new ReverseIntensityContext();
+        reverse.setReverse(true);
+        changed.addCodomainMapContext(reverse);
+        String reversed = RenderedTileCache.key(1L, tile(0, 0), 2, 0.85f,
+                changed);
+        assertFalse(key.equals(reversed));
+        reverse.setReverse(false);
+        assertFalse(reversed.equals(
+                RenderedTileCache.key(1L, tile(0, 0), 2, 0.85f, changed)));
+    }
+
+    public void testHitsAndMisses() {
+        String key = RenderedTileCache.key(1L, tile(0, 0), null, 0.85f, def());
+        assertNull(cache.get(key));
+        cache.put(key, new byte[] { 1, 2, 3 });
+        byte[] tile = cache.get(key);
+        assertEquals(3, tile.length);
+        assertTrue(cache.getHits() >= 1);
+        assertTrue(cache.getMisses() >= 1);
+        assertEquals(1, cache.getSize());
+    }
+
+    public void testInvalidateOnlyRemovesThatPixelsSet() {
+        String k1 = RenderedTileCache.key(1L, tile(0, 0), null, 0.85f, def());
+        String k11 = RenderedTileCache.key(11L, tile(0, 0), null, 0.85f, def());
+        cache.put(k1, new byte[] { 1 });
+        cache.put(k11, new byte[] { 11 });
+        cache.invalidate(1L);
+        assertNull(cache.get(k1));
+        assertNotNull(cache.get(k11));
+    }
+
+    //
+    // Helpers
+    //
+
+    PlaneDef tile(int x, int y) {
+        PlaneDef pd = new PlaneDef(PlaneDef.XY, 0);
+        pd.setZ(0);
+        pd.setRegion(new RegionDef(x, y, 256, 256));
+        return pd;
+    }
+
+    RenderingDef def() {
+        RenderingDef def = new RenderingDef();
+        def.setModel(new RenderingModel("rgb"));
+        QuantumDef qd = new QuantumDef();
+        qd.setBitResolution(255);
+        qd.setCdStart(0);
+        qd.setCdEnd(255);
+        def.setQuantization(qd);
+        for (int i = 0; i < 2; i++) {
+            ChannelBinding cb = new ChannelBinding();
+            cb.setActive(true);
+            cb.setFamily(new Family("linear"));
+            cb.setCoefficient(1.0);
+            cb.setInputStart(0.0);
+            cb.setInputEnd(255.0);
+            cb.setNoiseReduction(false);
+            cb.setRed(255);
+            cb.setGreen(i * 255);
+            cb.setBlue(0);
+            cb.setAlpha(255);
+            def.addChannelBinding(cb);
+        }
+        return def;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.server.utests;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import ome.api.IProjection;
+import ome.io.nio.DimensionsOutOfBoundsException;
+import ome.io.nio.InMemoryPlanarPixelBuffer;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.services.projection.StackProjector;
+import ome.util.PixelData;
+import omeis.providers.re.RenderingExecutor;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that projecting tile by tile, with tiles which do not divide the
+ * plane evenly, gives the values of projecting each pixel through the stack.
+ */
+@Test(groups = "rendering")
+public class StackProjectorTest extends TestCase {
+
+    static final int SIZE_X = 7, SIZE_Y = 5, SIZE_Z = 4;
+
+    RenderingExecutor executor = new RenderingExecutor(4, 4, 1);
+
+    StackBuffer source = new StackBuffer();
+
+    @AfterClass
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public void testMaximum() throws Exception {
+        PixelData to = project(IProjection.MAXIMUM_INTENSITY, 1, 0, 3, null);
+        for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+            assertEquals(value(i, 3), to.getPixelValue(i));
+        }
+    }
+
+    public void testSumExcludesEnd() throws Exception {
+        PixelData to = project(IProjection.SUM_INTENSITY, 1, 0, 3, null);
+        for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+            assertEquals(value(i, 0) + value(i, 1) + value(i, 2),
+                    to.getPixelValue(i));
+        }
+    }
+
+    public void testMeanWithStepping() throws Exception {
+        double[] minMax = new double[] { Double.MAX_VALUE, Double.MIN_VALUE };
+        PixelData to = project(IProjection.MEAN_INTENSITY, 2, 0, 4, minMax);
+        for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+            assertEquals(Math.floor((value(i, 0) + value(i, 2)) / 2),
+                    to.getPixelValue(i));
+        }
+        assertEquals(to.getPixelValue(0), minMax[0]);
+        assertEquals(to.getPixelValue(SIZE_X * SIZE_Y - 1), minMax[1]);
+    }
+
+    public void testParallelMatchesSerial() throws Exception {
+        for (int algorithm = 0; algorithm < 3; algorithm++) {
+            byte[] serial = data(project(algorithm, 1, 0, 3, null, null));
+            byte[] parallel = data(project(algorithm, 1, 0, 3, null,
+                    executor));
+            assertTrue(Arrays.equals(serial, parallel));
+        }
+    }
+
+    public void testTilesWrittenToPyramid() throws Exception {
+        final PyramidBuffer destination = new PyramidBuffer();
+        new StackProjector(source, IProjection.MAXIMUM_INTENSITY, executor)
+                .project(0, 0, 1, 0, 3, "uint16", destination.getTileSize(),
+                        new StackProjector.TileWriter() {
+                            public void writeTile(PixelData tile, int x,
+                                    int y, int w, int h) throws IOException {
+                                destination.setTile(tile.getData().array(),
+                                        0, 0, 0, x, y, w, h);
+                            }
+                        }, null);
+        // 4x4 tiles, row by row, each only as large as the tile itself.
+        int[][] regions = new int[][] { { 0, 0, 4, 4 }, { 4, 0, 3, 4 },
+                { 0, 4, 4, 1 }, { 4, 4, 3, 1 } };
+        assertEquals(regions.length, destination.tiles.size());
+        for (int k = 0; k < regions.length; k++) {
+            int[] region = regions[k];
+            WrittenTile tile = destination.tiles.get(k);
+            assertTrue(Arrays.equals(region, tile.region));
+            assertEquals(region[2] * region[3] * 2, tile.data.length);
+            PixelData data = new PixelData("uint16",
+                    ByteBuffer.wrap(tile.data));
+            for (int j = 0; j < region[3]; j++) {
+                for (int i = 0; i < region[2]; i++) {
+                    int offset = (region[1] + j) * SIZE_X + region[0] + i;
+                    assertEquals(value(offset, 3),
+                            data.getPixelValue(j * region[2] + i));
+                }
+            }
+        }
+    }
+
+    @Test(expectedExceptions = DimensionsOutOfBoundsException.class)
+    public void testSectionOutOfRange() throws Exception {
+        project(IProjection.MAXIMUM_INTENSITY, 1, 0, SIZE_Z, null);
+    }
+
+    private PixelData project(int algorithm, int stepping, int start,
+            int end, double[] minMax) throws Exception {
+        return project(algorithm, stepping, start, end, minMax, executor);
+    }
+
+    private PixelData project(int algorithm, int stepping, int start,
+            int end, double[] minMax, RenderingExecutor executor)
+            throws Exception {
+        PixelData to = new PixelData("uint16",
+                ByteBuffer.allocate(SIZE_X * SIZE_Y * 2));
+        new StackProjector(source, algorithm, executor).project(0, 0,
+                stepping, start, end, to, minMax);
+        return to;
+    }
+
+    private byte[] data(PixelData to) {
+        return to.getData().array();
+    }
+
+    static double value(int i, int z) {
+        return i * 3 + z * 100;
+    }
+
+    /**
+     * A destination which, like a pyramid, is written tile by tile in 4x4
+     * tiles and refuses whole planes.
+     */
+    static class PyramidBuffer extends InMemoryPlanarPixelBuffer {
+
+        final List<WrittenTile> tiles = new ArrayList<WrittenTile>();
+
+        PyramidBuffer() {
+            super(StackBuffer.pixels(), null);
+        }
+
+        @Override
+        public Dimension getTileSize() {
+            return new Dimension(4, 4);
+        }
+
+        @Override
+        public void setTile(byte[] buffer, Integer z, Integer c, Integer t,
+                Integer x, Integer y, Integer w, Integer h) {
+            tiles.add(new WrittenTile(buffer, new int[] { x, y, w, h }));
+        }
+    }
+
+    static class WrittenTile {
+
+        final byte[] data;
+
+        final int[] region;
+
+        WrittenTile(byte[] data, int[] region) {
+            this.data = data;
+            this.region = region;
+        }
+    }
+
+    /**
+     * A stack read in 3x2 tiles, which is all {@link StackProjector} needs.
+     */
+    static class StackBuffer extends InMemoryPlanarPixelBuffer {
+
+        StackBuffer() {
+            super(pixels(), null);
+        }
+
+        private static Pixels pixels() {
+            PixelsType type = new PixelsType();
+            type.setValue("uint16");
+            Pixels pixels = new Pixels();
+            pixels.setPixelsType(type);
+            pixels.setSizeX(SIZE_X);
+            pixels.setSizeY(SIZE_Y);
+            pixels.setSizeZ(SIZE_Z);
+            pixels.setSizeC(1);
+            pixels.setSizeT(1);
+            return pixels;
+        }
+
+        @Override
+        public Dimension getTileSize() {
+            return new Dimension(3, 2);
+        }
+
+        @Override
+        public PixelData getTile(Integer z, Integer c, Integer t, Integer x,
+                Integer y, Integer w, Integer h) throws IOException {
+            ByteBuffer data = ByteBuffer.allocate(w * h * 2);
+            for (int j = 0; j < h; j++) {
+                for (int i = 0; i < w; i++) {
+                    int offset = (y + j) * SIZE_X + x + i;
+                    data.putShort((j * w + i) * 2, (short) value(offset, z));
+                }
+            }
+            return new PixelData("uint16", data);
+        }
+    }
+
+}
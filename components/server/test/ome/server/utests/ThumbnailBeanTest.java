@@ -0,0 +1,207 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.server.utests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ome.api.IPixels;
+import ome.api.local.LocalQuery;
+import ome.api.local.LocalUpdate;
+import ome.conditions.MissingPyramidException;
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelsService;
+import ome.model.core.Pixels;
+import ome.model.display.ChannelBinding;
+import ome.model.display.QuantumDef;
+import ome.model.display.RenderingDef;
+import ome.model.display.Thumbnail;
+import ome.model.enums.Family;
+import ome.model.enums.PixelsType;
+import ome.model.enums.RenderingModel;
+import ome.services.ThumbnailBean;
+import ome.services.ThumbnailCtx;
+
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that the pixel buffers of the thumbnails of a set which are not
+ * cached are opened on the calling thread, and that a Pixels set whose
+ * pyramid is missing gets the in progress thumbnail.
+ */
+public class ThumbnailBeanTest extends MockObjectTestCase {
+
+    static final byte[] IN_PROGRESS = new byte[] { 1, 2, 3 };
+
+    Mock mockPixels, mockQuery, mockUpdate;
+
+    ExecutorService executor;
+
+    /** Threads on which pixel buffers were opened. */
+    List<Thread> openers;
+
+    ThumbnailBean bean;
+
+    @BeforeMethod
+    public void setup() {
+        mockPixels = mock(IPixels.class);
+        mockQuery = mock(LocalQuery.class);
+        mockUpdate = mock(LocalUpdate.class);
+        executor = Executors.newFixedThreadPool(2);
+        openers = Collections.synchronizedList(new ArrayList<Thread>());
+
+        bean = new ThumbnailBean(false) {
+            @Override
+            protected ThumbnailCtx createContext() {
+                return new Ctx();
+            }
+
+            @Override
+            protected void retrieveInProgressThumbnail(Long pixelsId,
+                    Map<Long, byte[]> toReturn) {
+                toReturn.put(pixelsId, IN_PROGRESS);
+            }
+        };
+        bean.setIPixels((IPixels) mockPixels.proxy());
+        bean.setQueryService((LocalQuery) mockQuery.proxy());
+        bean.setUpdateService((LocalUpdate) mockUpdate.proxy());
+        bean.setThumbnailExecutor(executor);
+        bean.setPixelDataService(new PixelsService(
+                System.getProperty("java.io.tmpdir")) {
+            @Override
+            public PixelBuffer getPixelBuffer(Pixels pixels, boolean write) {
+                openers.add(Thread.currentThread());
+                throw new MissingPyramidException("Missing pyramid", 1000,
+                        pixels.getId());
+            }
+        });
+    }
+
+    @AfterMethod
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testMissingPyramidGetsInProgressThumbnail() {
+        mockPixels.expects(atLeastOnce()).method("getAllEnumerations")
+                .will(returnValue(new ArrayList<Object>()));
+        mockUpdate.expects(once()).method("saveArray");
+        mockQuery.expects(once()).method("clear");
+        mockUpdate.expects(once()).method("flush");
+
+        Map<Long, byte[]> thumbnails = bean.getThumbnailByLongestSideSet(48,
+                Collections.singleton(1L));
+
+        assertEquals(1, thumbnails.size());
+        assertSame(IN_PROGRESS, thumbnails.get(1L));
+        // Opened where the missing pyramid can be reported, not on a
+        // thumbnail worker.
+        assertEquals(Collections.singletonList(Thread.currentThread()),
+                openers);
+    }
+
+    /**
+     * Context with rendering settings and metadata, but no cached
+     * thumbnail, for every Pixels set.
+     */
+    static class Ctx extends ThumbnailCtx {
+
+        final Map<Long, Thumbnail> metadata = new HashMap<Long, Thumbnail>();
+
+        Ctx() {
+            super(null, null, null, null, null, null, 0L);
+        }
+
+        @Override
+        public void loadAndPrepareRenderingSettings(Set<Long> pixelsIds) {
+        }
+
+        @Override
+        public void createAndPrepareMissingRenderingSettings(
+                Set<Long> pixelsIds) {
+        }
+
+        @Override
+        public void loadAndPrepareMetadata(Set<Long> pixelsIds,
+                int longestSide) {
+        }
+
+        @Override
+        public void loadRenderingDescriptions(Set<Long> pixelsIds) {
+        }
+
+        @Override
+        public boolean hasSettings(long pixelsId) {
+            return true;
+        }
+
+        @Override
+        public boolean hasMetadata(long pixelsId) {
+            return true;
+        }
+
+        @Override
+        public boolean isThumbnailCached(long pixelsId) {
+            return false;
+        }
+
+        @Override
+        public boolean dirtyMetadata(long pixelsId) {
+            return false;
+        }
+
+        @Override
+        public Pixels getPixelsDescription(long pixelsId) {
+            Pixels pixels = new Pixels(pixelsId, true);
+            PixelsType type = new PixelsType();
+            type.setValue("uint8");
+            pixels.setPixelsType(type);
+            return pixels;
+        }
+
+        @Override
+        public RenderingDef getSettingsDescription(long pixelsId) {
+            RenderingDef def = new RenderingDef();
+            RenderingModel model = new RenderingModel();
+            model.setValue("rgb");
+            def.setModel(model);
+            QuantumDef qDef = new QuantumDef();
+            qDef.setCdStart(0);
+            qDef.setCdEnd(255);
+            qDef.setBitResolution(255);
+            def.setQuantization(qDef);
+            ChannelBinding cb = new ChannelBinding();
+            Family family = new Family();
+            family.setValue("linear");
+            cb.setFamily(family);
+            def.addChannelBinding(cb);
+            return def;
+        }
+
+        @Override
+        public Thumbnail getMetadata(long pixelsId) {
+            Thumbnail thumbnail = metadata.get(pixelsId);
+            if (thumbnail == null) {
+                thumbnail = new Thumbnail();
+                metadata.put(pixelsId, thumbnail);
+            }
+            return thumbnail;
+        }
+    }
+
+}
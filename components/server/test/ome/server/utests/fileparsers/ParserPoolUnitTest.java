@@ -0,0 +1,129 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.server.utests.fileparsers;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+import ome.io.nio.OriginalFilesService;
+import ome.model.core.OriginalFile;
+import ome.services.fulltext.FileParser;
+import ome.services.fulltext.ParserPool;
+import ome.services.fulltext.PdfParser;
+import ome.system.OmeroContext;
+
+import org.springframework.util.ResourceUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class ParserPoolUnitTest extends TestCase {
+
+    ExecutorService executor;
+
+    Map<String, FileParser> parsers;
+
+    OriginalFilesService files;
+
+    @BeforeClass
+    public void setup() throws Exception {
+        executor = Executors.newFixedThreadPool(2);
+        final File abc123 = ResourceUtils
+                .getFile("classpath:ome/server/utests/fileparsers/ABC123.pdf");
+        files = new OriginalFilesService(abc123.getParent()) {
+            @Override
+            public String getFilesPath(Long id) {
+                return abc123.getAbsolutePath();
+            }
+        };
+        PdfParser pdf = new PdfParser();
+        pdf.setApplicationContext(new OmeroContext(
+                "classpath:ome/server/utests/fileparsers/config.xml"));
+        FileParser slow = new FileParser() {
+            @Override
+            public Iterable<Reader> doParse(File file) throws Exception {
+                Thread.sleep(10000);
+                return null;
+            }
+        };
+        parsers = new HashMap<String, FileParser>();
+        parsers.put("application/pdf", pdf);
+        parsers.put("text/slow", slow);
+    }
+
+    @AfterClass
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testPrefetchedPdf() throws Exception {
+        ParserPool pool = new ParserPool(files, parsers, executor, 10000,
+                Long.MAX_VALUE);
+        OriginalFile file = file(1L, "application/pdf");
+        pool.prefetch(file);
+        assertEquals("ABC123", read(pool.parse(file)));
+        // Can be read again, e.g. for the combined field
+        assertEquals("ABC123", read(pool.parse(file)));
+        pool.clear();
+        // Should have been closed by the pool rather than published
+        assertTrue(FileParserUnitTest.list.isEmpty());
+    }
+
+    @Test
+    public void testContentsBeyondRetainedCharsAreParsedAgain()
+            throws Exception {
+        ParserPool pool = new ParserPool(files, parsers, executor, 10000,
+                Long.MAX_VALUE, 1);
+        OriginalFile file = file(4L, "application/pdf");
+        pool.prefetch(file);
+        assertEquals("ABC123", read(pool.parse(file)));
+        assertEquals("ABC123", read(pool.parse(file)));
+        pool.clear();
+    }
+
+    @Test
+    public void testFileTooLarge() throws Exception {
+        ParserPool pool = new ParserPool(files, parsers, executor, 10000, 1);
+        OriginalFile file = file(2L, "application/pdf");
+        pool.prefetch(file);
+        assertFalse(pool.parse(file).iterator().hasNext());
+        pool.clear();
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        ParserPool pool = new ParserPool(files, parsers, executor, 200,
+                Long.MAX_VALUE);
+        OriginalFile file = file(3L, "text/slow");
+        long start = System.currentTimeMillis();
+        assertFalse(pool.parse(file).iterator().hasNext());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        pool.clear();
+    }
+
+    private OriginalFile file(long id, String mimetype) {
+        OriginalFile file = new OriginalFile(id, true);
+        file.setMimetype(mimetype);
+        return file;
+    }
+
+    private String read(Iterable<Reader> text) throws Exception {
+        StringBuffer sb = new StringBuffer();
+        for (Reader reader : text) {
+            BufferedReader buffered = new BufferedReader(reader);
+            sb.append(buffered.readLine());
+        }
+        return sb.toString();
+    }
+}
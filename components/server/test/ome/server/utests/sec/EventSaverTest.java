@@ -0,0 +1,243 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.server.utests.sec;
+
+import java.util.ArrayList;
+
+import ome.model.core.Image;
+import ome.model.enums.EventType;
+import ome.model.internal.Permissions;
+import ome.model.meta.Event;
+import ome.model.meta.Experimenter;
+import ome.model.meta.ExperimenterGroup;
+import ome.model.meta.Session;
+import ome.security.basic.BasicEventContext;
+import ome.security.basic.BasicSecuritySystem;
+import ome.security.basic.CurrentDetails;
+import ome.security.basic.EventHandler;
+import ome.security.basic.EventSaver;
+import ome.services.messages.DestroySessionMessage;
+import ome.services.sessions.stats.NullSessionStats;
+import ome.system.Principal;
+import ome.system.SimpleEventContext;
+import ome.util.SqlAction;
+
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.jmock.core.Constraint;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class EventSaverTest extends MockObjectTestCase {
+
+    EventSaver saver;
+
+    Context ec;
+
+    Mock mockSql;
+
+    /** Holds the pending event, saved by {@link #lazy}. */
+    CurrentDetails cd;
+
+    EventSaver lazy;
+
+    @BeforeMethod
+    public void setup() {
+        saver = new EventSaver(null);
+        saver.setCoalesceMs(60000L);
+        ec = new Context("a");
+        mockSql = mock(SqlAction.class);
+        lazy = new EventSaver((SqlAction) mockSql.proxy());
+        lazy.setLazy(true);
+        cd = new CurrentDetails();
+        cd.setEventSaver(lazy);
+        TransactionSynchronizationManager.initSynchronization();
+    }
+
+    @AfterMethod
+    public void teardown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    static class Context extends SimpleEventContext {
+        private static final long serialVersionUID = 1L;
+
+        Context(String uuid) {
+            this.csName = uuid;
+            this.csId = 3L;
+            this.cuId = 1L;
+            this.cgId = 2L;
+            this.memberOfGroups = new ArrayList<Long>();
+            this.leaderOfGroups = new ArrayList<Long>();
+            setGroupPermissions(Permissions.USER_PRIVATE);
+        }
+    }
+
+    /**
+     * Logs a context into {@link #cd} whose event is left to be saved on
+     * first use, as by a write call with lazy events.
+     */
+    BasicEventContext loginPending() {
+        BasicEventContext c = new BasicEventContext(new Principal("a"),
+                new NullSessionStats(), ec);
+        cd.login(c);
+        c.setOwner(new Experimenter(1L, false));
+        c.setGroup(new ExperimenterGroup(2L, false), Permissions.USER_PRIVATE);
+        c.setEvent(event(2L, "User"));
+        c.setEventPending();
+        return c;
+    }
+
+    void expectSave() {
+        mockSql.expects(once()).method("nextValue")
+                .will(returnValue(10L));
+        mockSql.expects(once()).method("insertEvent")
+                .with(new Constraint[] { eq(10L), ANYTHING,
+                        eq(1L), eq(2L), eq(3L), eq("User") });
+        mockSql.expects(once()).method("prepareSession")
+                .with(eq(10L), eq(1L), eq(2L));
+    }
+
+    /**
+     * Handler whose security system logs in the context of
+     * {@link #loginPending()}.
+     */
+    EventHandler handler() {
+        BasicSecuritySystem secSys = new BasicSecuritySystem(null, null, cd,
+                null, null, null, null, null) {
+            @Override
+            public void loadEventContext(boolean isReadOnly, boolean isClose) {
+                loginPending();
+            }
+        };
+        return new EventHandler((SqlAction) mockSql.proxy(), secSys, null,
+                null);
+    }
+
+    Event event(long groupId, String type) {
+        Event e = new Event();
+        e.setExperimenter(new Experimenter(1L, false));
+        e.setExperimenterGroup(new ExperimenterGroup(groupId, false));
+        e.setSession(new Session(3L, false));
+        e.setType(new EventType(type));
+        return e;
+    }
+
+    void commit() {
+        for (TransactionSynchronization s : TransactionSynchronizationManager
+                .getSynchronizations()) {
+            s.afterCommit();
+        }
+        TransactionSynchronizationManager.clearSynchronization();
+        TransactionSynchronizationManager.initSynchronization();
+    }
+
+    void rollback() {
+        TransactionSynchronizationManager.clearSynchronization();
+        TransactionSynchronizationManager.initSynchronization();
+    }
+
+    public void testNothingIsReusedByDefault() {
+        saver = new EventSaver(null);
+        saver.saved(ec, event(2L, "User"), new Event(10L, false));
+        commit();
+        assertNull(saver.reuse(ec, event(2L, "User")));
+    }
+
+    public void testCommittedEventIsReused() {
+        saver.saved(ec, event(2L, "User"), new Event(10L, false));
+        assertNull(saver.reuse(ec, event(2L, "User")));
+        commit();
+        Event reused = saver.reuse(ec, event(2L, "User"));
+        assertNotNull(reused);
+        assertEquals(Long.valueOf(10L), reused.getId());
+        assertFalse(reused.isLoaded());
+    }
+
+    public void testRolledBackEventIsNotReused() {
+        saver.saved(ec, event(2L, "User"), new Event(10L, false));
+        rollback();
+        assertNull(saver.reuse(ec, event(2L, "User")));
+    }
+
+    public void testOnlyMatchingEventsAreReused() {
+        saver.saved(ec, event(2L, "User"), new Event(10L, false));
+        commit();
+        assertNull(saver.reuse(ec, event(4L, "User")));
+        assertNull(saver.reuse(ec, event(2L, "Import")));
+        assertNull(saver.reuse(new Context("b"), event(2L, "User")));
+    }
+
+    public void testDestroyedSessionIsForgotten() {
+        saver.saved(ec, event(2L, "User"), new Event(10L, false));
+        commit();
+        saver.onApplicationEvent(new DestroySessionMessage(this, "a"));
+        assertNull(saver.reuse(ec, event(2L, "User")));
+    }
+
+    public void testPendingEventSavedOnFirstGetEvent() {
+        expectSave();
+        BasicEventContext c = loginPending();
+        assertEquals(Long.valueOf(10L), cd.getEvent().getId());
+        assertFalse(c.isEventPending());
+        assertEquals(Long.valueOf(10L), cd.createDetails().getCreationEvent()
+                .getId());
+        cd.addLog("INSERT", Image.class, 5L);
+        mockSql.verify();
+    }
+
+    public void testPendingEventSavedOnFirstCreateDetails() {
+        expectSave();
+        loginPending();
+        assertEquals(Long.valueOf(10L), cd.createDetails().getUpdateEvent()
+                .getId());
+        cd.addLog("INSERT", Image.class, 5L);
+        assertEquals(Long.valueOf(10L), cd.getEvent().getId());
+        mockSql.verify();
+    }
+
+    public void testPendingEventSavedOnFirstAddLog() {
+        expectSave();
+        loginPending();
+        cd.addLog("INSERT", Image.class, 5L);
+        assertEquals(Long.valueOf(10L), cd.getEvent().getId());
+        cd.createDetails();
+        mockSql.verify();
+    }
+
+    public void testPendingEventNotSavedWithoutWrites() {
+        // Triggers use their own event until the pending one is saved.
+        mockSql.expects(once()).method("prepareSession")
+                .with(eq(0L), eq(1L), eq(2L));
+        assertTrue(handler().doLogin(false, false));
+        cd.logout();
+        mockSql.verify();
+    }
+
+    public void testSessionPreparedAgainOnceSaved() {
+        mockSql.expects(once()).method("prepareSession")
+                .with(eq(0L), eq(1L), eq(2L));
+        expectSave();
+        assertTrue(handler().doLogin(false, false));
+        assertEquals(Long.valueOf(10L), cd.getEvent().getId());
+        assertEquals(Long.valueOf(10L), cd.getCurrentEventContext()
+                .getCurrentEventId());
+        mockSql.verify();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNegativeWindowIsRejected() {
+        saver.setCoalesceMs(-1L);
+    }
+
+}
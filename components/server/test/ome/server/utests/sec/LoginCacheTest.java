@@ -0,0 +1,92 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.server.utests.sec;
+
+import junit.framework.TestCase;
+import ome.model.internal.Permissions;
+import ome.security.basic.LoginCache;
+import ome.services.messages.DestroySessionMessage;
+import ome.services.sessions.events.ChangeSecurityContextEvent;
+import ome.services.sessions.events.UserGroupUpdateEvent;
+import ome.system.SimpleEventContext;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class LoginCacheTest extends TestCase {
+
+    LoginCache cache;
+
+    @BeforeMethod
+    public void setup() {
+        cache = new LoginCache();
+    }
+
+    static class Context extends SimpleEventContext {
+        private static final long serialVersionUID = 1L;
+
+        Context(String uuid, long userId, long groupId) {
+            this.csName = uuid;
+            this.cuId = userId;
+            this.cgId = groupId;
+        }
+    }
+
+    public void testCachedPermissionsAreCopies() {
+        Context ec = new Context("a", 1L, 2L);
+        Permissions perms = new Permissions(Permissions.GROUP_PRIVATE);
+        cache.put(ec, perms, cache.getVersion());
+        Permissions cached = cache.get(ec);
+        assertNotNull(cached);
+        assertNotSame(perms, cached);
+        assertTrue(perms.sameRights(cached));
+    }
+
+    public void testDummyIsNotCopied() {
+        Context ec = new Context("a", 1L, -1L);
+        cache.put(ec, Permissions.DUMMY, cache.getVersion());
+        assertSame(Permissions.DUMMY, cache.get(ec));
+    }
+
+    public void testEntriesAreByUserAndGroup() {
+        cache.put(new Context("a", 1L, 2L), Permissions.GROUP_PRIVATE,
+                cache.getVersion());
+        assertNull(cache.get(new Context("a", 1L, 3L)));
+        assertNull(cache.get(new Context("a", 4L, 2L)));
+        assertNull(cache.get(new Context("b", 1L, 2L)));
+    }
+
+    public void testUserGroupUpdateInvalidatesLookupsInProgress() {
+        Context ec = new Context("a", 1L, 2L);
+        long version = cache.getVersion();
+        cache.onApplicationEvent(new UserGroupUpdateEvent(this));
+        cache.put(ec, Permissions.GROUP_PRIVATE, version);
+        assertNull(cache.get(ec));
+    }
+
+    public void testUserGroupUpdateInvalidatesEntries() {
+        Context ec = new Context("a", 1L, 2L);
+        cache.put(ec, Permissions.GROUP_PRIVATE, cache.getVersion());
+        cache.onApplicationEvent(new UserGroupUpdateEvent(this));
+        assertNull(cache.get(ec));
+    }
+
+    public void testSessionEventsRemoveOnlyThatSession() {
+        Context a = new Context("a", 1L, 2L);
+        Context b = new Context("b", 1L, 2L);
+        cache.put(a, Permissions.GROUP_PRIVATE, cache.getVersion());
+        cache.put(b, Permissions.GROUP_PRIVATE, cache.getVersion());
+        cache.onApplicationEvent(new ChangeSecurityContextEvent(this, "a",
+                null, null));
+        assertNull(cache.get(a));
+        assertNotNull(cache.get(b));
+        cache.onApplicationEvent(new DestroySessionMessage(this, "b"));
+        assertNull(cache.get(b));
+    }
+
+}
@@ -9,7 +9,9 @@ package ome.server.utests.sessions;
 import java.sql.Timestamp;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
@@ -34,6 +36,7 @@ import ome.services.sessions.SessionCallback;
 import ome.services.sessions.SessionContext;
 import ome.services.sessions.SessionContextImpl;
 import ome.services.sessions.events.UserGroupUpdateEvent;
+import ome.services.sessions.state.SessionCache.BulkStaleCacheListener;
 import ome.services.sessions.state.SessionCache.StaleCacheListener;
 import ome.services.sessions.state.SessionCache;
 import ome.services.sessions.stats.NullSessionStats;
@@ -527,6 +530,62 @@ public class SessionCacheTest extends TestCase {
         return s;
     }
 
+    @Test
+    public void testBulkListenerOnlyReplacesChangedSessions() {
+        final SessionContext unchanged = sc(sess());
+        final SessionContext changed = sc(sess());
+        final SessionContext removed = sc(sess());
+        final SessionContext replacement = sc(sess());
+        cache.putSession("unchanged", unchanged);
+        cache.putSession("changed", changed);
+        cache.putSession("removed", removed);
+
+        final int[] calls = new int[2];
+        cache.setStaleCacheListener(new BulkStaleCacheListener() {
+            public SessionContext reload(SessionContext context) {
+                calls[0]++;
+                return context;
+            }
+
+            public Map<String, SessionContext> reloadAll(
+                    Map<String, SessionContext> contexts) {
+                calls[1]++;
+                assertEquals(3, contexts.size());
+                Map<String, SessionContext> rv = new HashMap<String, SessionContext>();
+                rv.put("changed", replacement);
+                rv.put("removed", null);
+                return rv;
+            }
+        });
+        cache.updateEvent(new UserGroupUpdateEvent(this));
+        cache.doUpdate();
+
+        assertEquals(0, calls[0]);
+        assertEquals(1, calls[1]);
+        assertSame(unchanged, cache.getSessionContext("unchanged"));
+        assertSame(replacement, cache.getSessionContext("changed"));
+        throwsRemovedSession("removed");
+    }
+
+    @Test
+    public void testBulkListenerFallsBackOnError() {
+        cache.putSession("uuid", sc(sess()));
+        final SessionContext replacement = sc(sess());
+        cache.setStaleCacheListener(new BulkStaleCacheListener() {
+            public SessionContext reload(SessionContext context) {
+                return replacement;
+            }
+
+            public Map<String, SessionContext> reloadAll(
+                    Map<String, SessionContext> contexts) {
+                throw new RuntimeException();
+            }
+        });
+        cache.updateEvent(new UserGroupUpdateEvent(this));
+        cache.doUpdate();
+        assertSame(replacement, cache.getSessionContext("uuid"));
+    }
+
     SessionContext sc(Session s) {
         return new SessionContextImpl(s, Collections.singletonList(1L),
                 Collections.singletonList(1L), Collections.singletonList(""),
@@ -9,15 +9,35 @@ package ome.server.utests.sharing;
 import java.io.File;
 import java.io.FileInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import junit.framework.TestCase;
+import ome.model.IObject;
+import ome.model.acquisition.Instrument;
+import ome.model.acquisition.Objective;
+import ome.model.containers.Dataset;
+import ome.model.core.Image;
+import ome.model.core.Pixels;
+import ome.model.meta.Share;
 import ome.services.sharing.BlobShareStore;
 import ome.services.sharing.data.Obj;
 import ome.services.sharing.data.ShareData;
+import ome.services.sharing.data.ShareItem;
+import ome.tools.hibernate.SessionFactory;
 
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.jmock.Mock;
+import org.jmock.core.Invocation;
+import org.jmock.core.stub.DefaultResultStub;
+import org.jmock.core.stub.ReturnStub;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.util.ResourceUtils;
 import org.testng.annotations.Test;
 
@@ -51,6 +71,284 @@ public class BlobShareStoreTest extends TestCase {
         }
     }
 
+    static class Store extends BlobShareStore {
+        <T extends IObject> boolean check(ShareData data, Class<T> kls,
+                long id) {
+            return doContains(data, kls, id);
+        }
+    }
+
+    public void testDirectlySharedObjectsAreContained() {
+        ShareData data = new ShareData();
+        data.objectMap = new HashMap<String, List<Long>>();
+        data.objectMap.put(Image.class.getName(), Arrays.asList(1L, 2L));
+        data.objectMap.put(Dataset.class.getName(), Arrays.asList(3L));
+        Store store = new Store();
+        assertTrue(store.check(data, Image.class, 1L));
+        assertTrue(store.check(data, Image.class, 2L));
+        assertTrue(store.check(data, Dataset.class, 3L));
+    }
+
+    public void testSetEvictsContents() {
+        CachingStore store = new CachingStore();
+        store.save(data(1L, 1L));
+        assertTrue(store.doContains(1L, Image.class, 1L));
+        assertTrue(store.doContains(1L, Image.class, 1L));
+        assertEquals(Arrays.asList(1L), store.loads);
+
+        store.doSet(new Share(1L, true), data(1L, 2L),
+                Collections.<ShareItem> emptyList());
+        assertFalse(store.doContains(1L, Image.class, 1L));
+        assertTrue(store.doContains(1L, Image.class, 2L));
+        assertEquals(Arrays.asList(1L, 1L), store.loads);
+    }
+
+    public void testContentsEvictedAfterCompletion() {
+        CachingStore store = new CachingStore();
+        store.save(data(1L, 1L));
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            store.doSet(new Share(1L, true), data(1L, 2L),
+                    Collections.<ShareItem> emptyList());
+            // Contents cached by a concurrent check before the commit.
+            assertTrue(store.doContains(1L, Image.class, 2L));
+            assertEquals(Arrays.asList(1L), store.loads);
+            for (Object sync : TransactionSynchronizationManager
+                    .getSynchronizations()) {
+                ((TransactionSynchronization) sync).afterCompletion(
+                        TransactionSynchronization.STATUS_COMMITTED);
+            }
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        assertTrue(store.doContains(1L, Image.class, 2L));
+        assertEquals(Arrays.asList(1L, 1L), store.loads);
+    }
+
+    public void testContentsExpireAfterMaxAge() {
+        CachingStore store = new CachingStore();
+        store.save(data(1L, 1L));
+        assertTrue(store.doContains(1L, Image.class, 1L));
+        store.time = BlobShareStore.MAX_AGE;
+        assertTrue(store.doContains(1L, Image.class, 1L));
+        assertEquals(Arrays.asList(1L), store.loads);
+        store.time = BlobShareStore.MAX_AGE + 1;
+        assertTrue(store.doContains(1L, Image.class, 1L));
+        assertEquals(Arrays.asList(1L, 1L), store.loads);
+    }
+
+    public void testLeastRecentlyUsedContentsDropped() {
+        CachingStore store = new CachingStore();
+        for (long id = 1; id <= BlobShareStore.MAX_CACHED + 1; id++) {
+            store.save(data(id, id));
+        }
+        for (long id = 1; id <= BlobShareStore.MAX_CACHED; id++) {
+            assertTrue(store.doContains(id, Image.class, id));
+        }
+        // Share 1 is used again, so share 2 is dropped for the newest.
+        assertTrue(store.doContains(1L, Image.class, 1L));
+        long newest = BlobShareStore.MAX_CACHED + 1;
+        assertTrue(store.doContains(newest, Image.class, newest));
+        store.loads.clear();
+        assertTrue(store.doContains(1L, Image.class, 1L));
+        assertTrue(store.doContains(2L, Image.class, 2L));
+        assertEquals(Arrays.asList(2L), store.loads);
+    }
+
+    public void testClosureLoadedInBatches() {
+        CachingStore store = new CachingStore();
+        Long[] images = new Long[1500];
+        for (int i = 0; i < images.length; i++) {
+            long image = i + 1;
+            images[i] = image;
+            store.pixels.put(image, 10000L + image);
+            // All images were acquired on the same instrument.
+            store.instruments.put(image, 50L);
+        }
+        store.objectives.put(7L, 50L);
+        store.objectives.put(8L, 51L);
+        store.save(data(1L, images));
+
+        assertTrue(store.doContains(1L, Pixels.class, 10001L));
+        assertTrue(store.doContains(1L, Pixels.class, 11500L));
+        assertFalse(store.doContains(1L, Pixels.class, 99L));
+        assertTrue(store.doContains(1L, Objective.class, 7L));
+        assertFalse(store.doContains(1L, Objective.class, 8L));
+        // Pixels, instruments and objective settings of each batch.
+        assertEquals(Arrays.asList(1000, 1000, 1000, 500, 500, 500),
+                store.batches);
+        assertEquals(Arrays.asList(1L), store.loads);
+    }
+
+    static ShareData data(long id, Long... images) {
+        ShareData data = new ShareData();
+        data.id = id;
+        data.enabled = true;
+        data.guests = new ArrayList<String>();
+        data.members = new ArrayList<Long>();
+        data.objectList = new ArrayList<Obj>();
+        data.objectMap = new HashMap<String, List<Long>>();
+        data.objectMap.put(Image.class.getName(), Arrays.asList(images));
+        return data;
+    }
+
+    /**
+     * A store whose session is stubbed by {@link SessionStub}, and whose
+     * clock is set by the test.
+     */
+    static class CachingStore extends BlobShareStore {
+
+        long time = 0;
+
+        /** Serialized {@link ShareData} by share id. */
+        final Map<Long, byte[]> shares = new HashMap<Long, byte[]>();
+
+        /** Pixels id by image id. */
+        final Map<Long, Long> pixels = new HashMap<Long, Long>();
+
+        /** Instrument id by image id. */
+        final Map<Long, Long> instruments = new HashMap<Long, Long>();
+
+        /** Instrument id by objective id. */
+        final Map<Long, Long> objectives = new HashMap<Long, Long>();
+
+        /** Ids of the shares loaded from the session, in order. */
+        final List<Long> loads = new ArrayList<Long>();
+
+        /** Number of image ids passed to each closure query, in order. */
+        final List<Integer> batches = new ArrayList<Integer>();
+
+        CachingStore() {
+            Mock factory = new Mock(org.hibernate.SessionFactory.class);
+            factory.stubs().method("getAllClassMetadata")
+                    .will(new ReturnStub(new HashMap<Object, Object>()));
+            Mock session = new Mock(Session.class);
+            session.setDefaultStub(new SessionStub(this));
+            final Session proxy = (Session) session.proxy();
+            __dont_use_me_factory = new SessionFactory(
+                    (org.hibernate.SessionFactory) factory.proxy(), null) {
+                @Override
+                public Session getSession() {
+                    return proxy;
+                }
+            };
+        }
+
+        void save(ShareData data) {
+            shares.put(data.id, parse(data));
+        }
+
+        @Override
+        protected long now() {
+            return time;
+        }
+    }
+
+    /**
+     * Answers the loads, merges and queries of a {@link CachingStore} from
+     * its maps.
+     */
+    static class SessionStub extends DefaultResultStub {
+
+        final CachingStore store;
+
+        SessionStub(CachingStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public Object invoke(Invocation invocation) throws Throwable {
+            String name = invocation.invokedMethod.getName();
+            List<?> args = invocation.parameterValues;
+            if (name.equals("get") && args.get(0) == Share.class) {
+                Long id = (Long) args.get(1);
+                store.loads.add(id);
+                byte[] data = store.shares.get(id);
+                if (data == null) {
+                    return null;
+                }
+                Share share = new Share(id, true);
+                share.setData(data);
+                return share;
+            } else if (name.equals("get") && args.get(0) == Objective.class) {
+                Long id = (Long) args.get(1);
+                Objective objective = new Objective(id, true);
+                objective.setInstrument(new Instrument(
+                        store.objectives.get(id), false));
+                return objective;
+            } else if (name.equals("merge")) {
+                Object obj = args.get(0);
+                if (obj instanceof Share) {
+                    Share share = (Share) obj;
+                    store.shares.put(share.getId(), share.getData());
+                }
+                return obj;
+            } else if (name.equals("createQuery")) {
+                Mock query = new Mock(Query.class);
+                query.setDefaultStub(new QueryStub(store, (String) args
+                        .get(0)));
+                return query.proxy();
+            }
+            return super.invoke(invocation);
+        }
+    }
+
+    /**
+     * Lists the share for the version check of {@link BlobShareStore#doSet},
+     * no members, and the ids reachable from the queried images.
+     */
+    static class QueryStub extends DefaultResultStub {
+
+        final CachingStore store;
+
+        final String hql;
+
+        Collection<?> ids;
+
+        QueryStub(CachingStore store, String hql) {
+            this.store = store;
+            this.hql = hql;
+        }
+
+        @Override
+        public Object invoke(Invocation invocation) throws Throwable {
+            String name = invocation.invokedMethod.getName();
+            List<?> args = invocation.parameterValues;
+            if (name.equals("setParameterList")) {
+                ids = (Collection<?>) args.get(1);
+            } else if (name.equals("list")) {
+                return list();
+            }
+            return super.invoke(invocation);
+        }
+
+        List<Object> list() {
+            List<Object> rv = new ArrayList<Object>();
+            if (hql.startsWith("select s from Share s")) {
+                rv.add(new Share(1L, false));
+                return rv;
+            }
+            Map<Long, Long> closure;
+            if (hql.startsWith("select p.id from Pixels p")) {
+                closure = store.pixels;
+            } else if (hql.startsWith("select i.instrument.id")) {
+                closure = store.instruments;
+            } else if (hql.startsWith("select i.objectiveSettings.id")) {
+                closure = new HashMap<Long, Long>();
+            } else {
+                return rv; // No share members.
+            }
+            store.batches.add(ids.size());
+            for (Object id : ids) {
+                Long value = closure.get(id);
+                if (value != null) {
+                    rv.add(value);
+                }
+            }
+            return rv;
+        }
+    }
+
     String toString(List<Obj> objs) {
         StringBuilder sb = new StringBuilder();
         sb.append("[");
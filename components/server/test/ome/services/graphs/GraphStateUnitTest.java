@@ -120,6 +120,47 @@ public class GraphStateUnitTest extends MockGraphTest {
 
     }
 
+    @Test
+    public void testMultipleResultsAreMergedUpToBatchSize() throws Exception {
+        BaseGraphSpec spec = new BaseGraphSpec("/Test", "/Test") {
+            @Override
+            public Class<IObject> getHibernateClass(String table) {
+                return IObject.class;
+            }
+        };
+
+        table = table(new long[] { 1L }, new long[] { 2L }, new long[] { 3L });
+        prepareQueryBackupIds(table);
+
+        GraphState state = new GraphState(createEventContext(false),
+            new DeleteStepFactory(specXml, 2), null, session, spec);
+        assertEquals(2, state.getStepCount());
+        assertEquals(3, state.getTotalFoundCount());
+
+    }
+
+    @Test
+    public void testEntriesOfDifferentTablesAreNotMerged() throws Exception {
+        BaseGraphSpec spec = new BaseGraphSpec("/Test", "/Test", "/Foo") {
+            @Override
+            public Class<IObject> getHibernateClass(String table) {
+                return IObject.class;
+            }
+        };
+
+        table = Arrays.asList(Arrays.asList(1L));
+        prepareQueryBackupIds(table);
+
+        table = Arrays.asList(Arrays.asList(2L));
+        prepareQueryBackupIds(table);
+
+        GraphState state = new GraphState(createEventContext(false),
+            new DeleteStepFactory(specXml, 1000), null, session, spec);
+        assertEquals(2, state.getStepCount());
+        assertEquals(2, state.getTotalFoundCount());
+
+    }
+
     @Test
     public void testSimpleRoiSubSpec() throws Exception {
         prepareGetRelationship();
@@ -0,0 +1,197 @@
+/*
+ *   Copyright (C) 2012 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.utests;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import ome.model.display.QuantumDef;
+import ome.model.enums.Family;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+import omeis.providers.re.quantum.Quantization_8_16_bit;
+import omeis.providers.re.quantum.QuantumFactory;
+import omeis.providers.re.quantum.QuantumStrategy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.testng.annotations.Test;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the bulk
+ * {@link QuantumStrategy#quantize(PixelData, int, int, int[], int)} of
+ * {@link Quantization_8_16_bit} returns the same values as quantizing each
+ * pixel on its own.
+ */
+public class TestQuantizationKernels extends TestCase
+{
+	private static Log log = LogFactory.getLog(TestQuantizationKernels.class);
+
+	private static final int SIZE = 512 * 512;
+
+	private Random random = new Random(1234);
+
+	@Test
+	public void testUint8()
+	{
+		assertKernelMatches("uint8", 0, 255, 10, 200);
+	}
+
+	@Test
+	public void testInt16()
+	{
+		assertKernelMatches("int16", -32768, 32767, -1000, 1000);
+	}
+
+	@Test
+	public void testUint16()
+	{
+		assertKernelMatches("uint16", 0, 65535, 100, 4000);
+	}
+
+	@Test
+	public void testUint32()
+	{
+		assertKernelMatches("uint32", 0, 60000, 100, 50000);
+	}
+
+	@Test
+	public void testFloat()
+	{
+		assertKernelMatches("float", -100, 60000, 0, 50000);
+	}
+
+	@Test
+	public void testGenericFallback()
+	{
+		assertKernelMatches("int32", -30000, 30000, -1000, 1000);
+	}
+
+	@Test
+	public void testOffsets() throws Exception
+	{
+		PixelData data = createData("uint16");
+		QuantumStrategy qs = createStrategy("uint16", 0, 65535, 100, 4000);
+		int[] actual = new int[110];
+		qs.quantize(data, 1000, 100, actual, 10);
+		for (int i = 0; i < 100; i++)
+		{
+			assertEquals(qs.quantize(data.getPixelValue(1000 + i)),
+					actual[10 + i]);
+		}
+		assertEquals(0, actual[0]);
+	}
+
+	/**
+	 * Logs the megapixels per second quantized by the per pixel and the bulk
+	 * methods for each pixels type with a specialized kernel.
+	 */
+	@Test(groups = "manual")
+	public void testThroughput() throws Exception
+	{
+		String[] types = { "uint8", "int16", "uint16", "uint32", "float" };
+		int[] dest = new int[SIZE];
+		int rounds = 50;
+		for (String type : types)
+		{
+			PixelData data = createData(type);
+			QuantumStrategy qs = createStrategy(type, 0, 60000, 100, 4000);
+			long start = System.nanoTime();
+			for (int r = 0; r < rounds; r++)
+			{
+				for (int i = 0; i < SIZE; i++)
+				{
+					dest[i] = qs.quantize(data.getPixelValue(i));
+				}
+			}
+			double perPixel = rate(rounds, start);
+			start = System.nanoTime();
+			for (int r = 0; r < rounds; r++)
+			{
+				qs.quantize(data, 0, SIZE, dest, 0);
+			}
+			double bulk = rate(rounds, start);
+			log.info(String.format("%s: per pixel %.1f MP/s, bulk %.1f MP/s",
+					type, perPixel, bulk));
+		}
+	}
+
+	private double rate(int rounds, long start)
+	{
+		double seconds = (System.nanoTime() - start) / 1e9;
+		return rounds * (SIZE / 1e6) / seconds;
+	}
+
+	private void assertKernelMatches(String type, double min, double max,
+			double start, double end)
+	{
+		try
+		{
+			PixelData data = createData(type);
+			QuantumStrategy qs = createStrategy(type, min, max, start, end);
+			int[] actual = new int[SIZE];
+			qs.quantize(data, 0, SIZE, actual, 0);
+			for (int i = 0; i < SIZE; i++)
+			{
+				assertEquals("Pixel " + i,
+						qs.quantize(data.getPixelValue(i)), actual[i]);
+			}
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private QuantumStrategy createStrategy(String type, double min,
+			double max, double start, double end)
+	{
+		QuantumDef qd = new QuantumDef();
+		qd.setBitResolution(QuantumFactory.DEPTH_8BIT);
+		qd.setCdStart(0);
+		qd.setCdEnd(255);
+		PixelsType pixelsType = new PixelsType();
+		pixelsType.setValue(type);
+		QuantumStrategy qs = new Quantization_8_16_bit(qd, pixelsType);
+		qs.setExtent(min, max);
+		qs.setMapping(new Family(QuantumFactory.LINEAR), 1.0, false);
+		qs.setWindow(start, end);
+		return qs;
+	}
+
+	private PixelData createData(String type)
+	{
+		int bytesPerPixel = PixelData.getBitDepth(type) / 8;
+		ByteBuffer buf = ByteBuffer.allocate(SIZE * bytesPerPixel);
+		PixelData data = new PixelData(type, buf);
+		for (int i = 0; i < SIZE; i++)
+		{
+			int offset = i * bytesPerPixel;
+			switch (data.javaType())
+			{
+				case PixelData.BYTE:
+					buf.put(offset, (byte) random.nextInt());
+					break;
+				case PixelData.SHORT:
+					buf.putShort(offset, (short) random.nextInt());
+					break;
+				case PixelData.INT:
+					// Mostly within range with some very large values.
+					buf.putInt(offset, random.nextInt(10) == 0?
+							random.nextInt() : random.nextInt(70000));
+					break;
+				case PixelData.FLOAT:
+					buf.putFloat(offset,
+							random.nextFloat() * 70000 - 1000);
+					break;
+			}
+		}
+		return data;
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ *   Copyright (C) 2012 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.utests;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import omeis.providers.re.RenderingExecutor;
+import omeis.providers.re.RenderingTask;
+import omeis.providers.re.quantum.QuantizationException;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import junit.framework.TestCase;
+
+public class TestRenderingExecutor extends TestCase
+{
+	private RenderingExecutor executor;
+
+	@BeforeMethod
+	public void setUp()
+	{
+		executor = new RenderingExecutor(4, 1, 1000);
+	}
+
+	@AfterMethod
+	public void tearDown()
+	{
+		executor.shutdown();
+	}
+
+	@Test
+	public void testSmallPlanesAreSingleThreaded()
+	{
+		assertEquals(1, executor.getMaxTasks(0));
+		assertEquals(1, executor.getMaxTasks(1999));
+		assertEquals(2, executor.getMaxTasks(2000));
+		assertEquals(4, executor.getMaxTasks(1000000));
+	}
+
+	@Test
+	public void testAllTasksRunWhenQueueIsFull() throws Exception
+	{
+		AtomicInteger count = new AtomicInteger();
+		RenderingTask[] tasks = new RenderingTask[32];
+		for (int i = 0; i < tasks.length; i++)
+		{
+			tasks[i] = new CountingTask(count, false);
+		}
+		executor.execute(tasks);
+		assertEquals(tasks.length, count.get());
+	}
+
+	@Test
+	public void testQuantizationExceptionIsRethrown() throws Exception
+	{
+		AtomicInteger count = new AtomicInteger();
+		RenderingTask[] tasks = new RenderingTask[] {
+				new CountingTask(count, false),
+				new CountingTask(count, true)
+		};
+		try
+		{
+			executor.execute(tasks);
+			fail("Expected a QuantizationException");
+		}
+		catch (QuantizationException e)
+		{
+			// Expected.
+		}
+	}
+
+	private static class CountingTask implements RenderingTask
+	{
+		private final AtomicInteger count;
+
+		private final boolean fail;
+
+		CountingTask(AtomicInteger count, boolean fail)
+		{
+			this.count = count;
+			this.fail = fail;
+		}
+
+		public Object call() throws QuantizationException
+		{
+			if (fail)
+			{
+				throw new QuantizationException("failed");
+			}
+			count.incrementAndGet();
+			return null;
+		}
+	}
+}
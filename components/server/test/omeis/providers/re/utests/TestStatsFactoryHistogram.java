@@ -0,0 +1,172 @@
+/*
+ *   Copyright (C) 2012 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.utests;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+import omeis.providers.re.RenderingExecutor;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.RegionDef;
+import omeis.providers.re.metadata.StatsFactory;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import junit.framework.TestCase;
+
+public class TestStatsFactoryHistogram extends TestCase
+{
+	private static final int SIZE_X = 100;
+
+	private static final int SIZE_Y = 60;
+
+	private RampPixelBuffer buffer;
+
+	private RenderingExecutor executor;
+
+	private StatsFactory factory = new StatsFactory();
+
+	@BeforeClass
+	public void setUp()
+	{
+		PixelsType type = new PixelsType();
+		type.setValue("uint16");
+		buffer = new RampPixelBuffer(type);
+		executor = new RenderingExecutor(4, 4, 1);
+	}
+
+	@AfterClass
+	public void tearDown()
+	{
+		executor.shutdown();
+	}
+
+	@Test
+	public void testPlaneHistogram() throws Exception
+	{
+		int[] totals = factory.computeHistogram(buffer, plane(), 0, 0, 0,
+				10, 0, 10, null);
+		int[] expected = new int[10];
+		Arrays.fill(expected, SIZE_X * SIZE_Y / 10);
+		assertTrue(Arrays.equals(expected, totals));
+	}
+
+	@Test
+	public void testParallelMatchesSerial() throws Exception
+	{
+		int[] serial = factory.computeHistogram(buffer, plane(), 0, 0, 0,
+				7, 0, 10, null);
+		int[] parallel = factory.computeHistogram(buffer, plane(), 0, 0, 0,
+				7, 0, 10, executor);
+		assertTrue(Arrays.equals(serial, parallel));
+	}
+
+	@Test
+	public void testRegionAndStack() throws Exception
+	{
+		PlaneDef pd = plane();
+		pd.setRegion(new RegionDef(10, 10, 20, 20));
+		assertEquals(400, sum(factory.computeHistogram(buffer, pd, 0, 0, 0,
+				10, 0, 10, executor)));
+		assertEquals(3 * 400, sum(factory.computeHistogram(buffer, pd, 0, 0,
+				2, 10, 0, 10, executor)));
+	}
+
+	@Test
+	public void testOutliersAreClamped() throws Exception
+	{
+		int[] totals = factory.computeHistogram(buffer, plane(), 0, 0, 0,
+				2, 2, 6, null);
+		assertEquals(SIZE_X * SIZE_Y, sum(totals));
+		// 0-3 in the first bin, 4-9 in the second.
+		assertEquals(SIZE_X * SIZE_Y * 4 / 10, totals[0]);
+	}
+
+	@Test
+	public void testPercentiles()
+	{
+		int[] totals = new int[] { 0, 0, 50, 50, 0 };
+		double[] window = StatsFactory.getPercentiles(totals, 0, 5, 1, 99);
+		assertEquals(2.0, window[0]);
+		assertEquals(4.0, window[1]);
+
+		window = StatsFactory.getPercentiles(new int[5], 0, 5, 1, 99);
+		assertEquals(0.0, window[0]);
+		assertEquals(5.0, window[1]);
+	}
+
+	private PlaneDef plane()
+	{
+		PlaneDef pd = new PlaneDef(PlaneDef.XY, 0);
+		pd.setZ(0);
+		return pd;
+	}
+
+	private int sum(int[] totals)
+	{
+		int sum = 0;
+		for (int v : totals)
+		{
+			sum += v;
+		}
+		return sum;
+	}
+
+	/**
+	 * Planes whose pixel values cycle through 0 to 9, read in 32x32 tiles.
+	 */
+	private static class RampPixelBuffer extends TestPixelBuffer
+	{
+		private final PixelsType type;
+
+		RampPixelBuffer(PixelsType type)
+		{
+			super(type, null);
+			this.type = type;
+		}
+
+		@Override
+		public int getSizeX()
+		{
+			return SIZE_X;
+		}
+
+		@Override
+		public int getSizeY()
+		{
+			return SIZE_Y;
+		}
+
+		@Override
+		public Dimension getTileSize()
+		{
+			return new Dimension(32, 32);
+		}
+
+		@Override
+		public PixelData getTile(Integer z, Integer c, Integer t, Integer x,
+				Integer y, Integer w, Integer h) throws IOException
+		{
+			ByteBuffer buf = ByteBuffer.allocate(w * h * 2);
+			for (int j = 0; j < h; j++)
+			{
+				for (int i = 0; i < w; i++)
+				{
+					int value = ((y + j) * SIZE_X + x + i) % 10;
+					buf.putShort((j * w + i) * 2, (short) value);
+				}
+			}
+			return new PixelData(type.getValue(), buf);
+		}
+	}
+}
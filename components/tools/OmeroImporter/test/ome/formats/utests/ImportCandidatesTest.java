@@ -7,9 +7,14 @@
 package ome.formats.utests;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import junit.framework.TestCase;
 import ome.formats.OMEROMetadataStoreClient;
@@ -23,9 +28,13 @@ import ome.formats.importer.ImportFixture;
 import ome.formats.importer.ImportLibrary;
 import ome.formats.importer.OMEROWrapper;
 import ome.formats.importer.ImportCandidates.SCANNING;
+import omero.model.Pixels;
+import omero.model.PixelsI;
+import omero.model.PixelsTypeI;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
 
 /**
@@ -93,6 +102,140 @@ public class ImportCandidatesTest extends TestCase {
 
     }
 
+    File dir;
+
+    @AfterMethod
+    public void deleteDir() {
+        if (dir != null) {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+            dir = null;
+        }
+    }
+
+    /**
+     * Creates a directory of files f0 to f7 of which each even file also
+     * uses the odd file after it.
+     */
+    private void candidates() throws Exception {
+        dir = File.createTempFile("candidates", "");
+        dir.delete();
+        dir.mkdir();
+        for (int i = 0; i < 8; i++) {
+            write(new File(dir, "f" + i), 1);
+        }
+    }
+
+    private void write(File file, int length) throws Exception {
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(new byte[length]);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Scans {@link #dir}, recording the names of the files which are parsed
+     * and the threads parsing them.
+     */
+    private ImportCandidates scan(int threads, String cache,
+            final List<String> parsed, final Set<String> parsers) {
+        return new ImportCandidates(ImportCandidates.DEPTH, w,
+                new String[] { dir.getAbsolutePath() }, o, threads, cache) {
+            @Override
+            protected ImportContainer singleFile(File file,
+                    ImportConfig config) {
+                parsed.add(file.getName());
+                parsers.add(Thread.currentThread().getName());
+                int i = Integer.parseInt(file.getName().substring(1));
+                List<String> used = new ArrayList<String>();
+                used.add(file.getAbsolutePath());
+                if (i % 2 == 0) {
+                    used.add(new File(dir, "f" + (i + 1)).getAbsolutePath());
+                }
+                ImportContainer ic = new ImportContainer(file, null, null,
+                        false, null, "reader",
+                        used.toArray(new String[used.size()]), false);
+                Pixels pixels = new PixelsI();
+                pixels.setSizeX(omero.rtypes.rint(i + 1));
+                pixels.setSizeY(omero.rtypes.rint(1));
+                pixels.setSizeZ(omero.rtypes.rint(1));
+                pixels.setSizeC(omero.rtypes.rint(1));
+                pixels.setSizeT(omero.rtypes.rint(1));
+                pixels.setPixelsType(new PixelsTypeI());
+                pixels.getPixelsType().setValue(omero.rtypes.rstring("uint8"));
+                ic.setBfImageCount(1);
+                ic.setBfPixels(Arrays.asList(pixels));
+                ic.setBfImageNames(Arrays.asList(file.getName()));
+                return ic;
+            }
+        };
+    }
+
+    private List<String> parsed() {
+        return Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    private Set<String> parsers() {
+        return Collections.synchronizedSet(new HashSet<String>());
+    }
+
+    @Test
+    public void testPoolMatchesSerialScan() throws Exception {
+        candidates();
+        Set<String> serialParsers = parsers();
+        ImportCandidates serial = scan(1, null, parsed(), serialParsers);
+        Set<String> poolParsers = parsers();
+        ImportCandidates pool = scan(4, null, parsed(), poolParsers);
+        assertEquals(serial.getPaths(), pool.getPaths());
+        for (String path : serial.getPaths()) {
+            assertTrue(Arrays.equals(serial.getUsedFiles(path),
+                    pool.getUsedFiles(path)));
+        }
+        String caller = Thread.currentThread().getName();
+        assertEquals(Collections.singleton(caller), serialParsers);
+        assertFalse(poolParsers.contains(caller));
+    }
+
+    @Test
+    public void testCachedCandidatesAreNotParsedAgain() throws Exception {
+        candidates();
+        File cache = File.createTempFile("candidates", ".cache");
+        cache.delete();
+        try {
+            List<String> parsed = parsed();
+            ImportCandidates first = scan(1, cache.getAbsolutePath(),
+                    parsed, parsers());
+            assertFalse(parsed.isEmpty());
+            assertTrue(cache.exists());
+
+            parsed.clear();
+            ImportCandidates second = scan(1, cache.getAbsolutePath(),
+                    parsed, parsers());
+            assertTrue(parsed.isEmpty());
+            assertEquals(first.getPaths(), second.getPaths());
+            for (String path : first.getPaths()) {
+                assertTrue(Arrays.equals(first.getUsedFiles(path),
+                        second.getUsedFiles(path)));
+            }
+            ImportContainer cached = second.getContainers().get(0);
+            assertEquals(1, cached.getBfPixels().size());
+            assertEquals(Arrays.asList(cached.getFile().getName()),
+                    cached.getBfImageNames());
+
+            // A changed file is parsed again. No other file uses f2.
+            File changed = new File(dir, "f2");
+            write(changed, 2);
+            scan(1, cache.getAbsolutePath(), parsed, parsers());
+            assertEquals(Arrays.asList(changed.getName()), parsed);
+        } finally {
+            cache.delete();
+        }
+    }
+
     @Test
     public void testTwoPasses() throws Exception {
         basic(o);
@@ -0,0 +1,335 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.formats.utests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import ome.formats.OMEROMetadataStoreClient;
+import ome.formats.importer.util.OriginalFileUploader;
+import omero.ApiUsageException;
+import omero.api.AMI_RawFileStore_write;
+import omero.api.RawFileStorePrx;
+
+import org.jmock.Mock;
+import org.jmock.core.Invocation;
+import org.jmock.core.stub.DefaultResultStub;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks the window of writes kept in flight by {@link OriginalFileUploader}
+ * and the resumption of an upload after its connection drops.
+ */
+public class OriginalFileUploaderTest extends TestCase
+{
+    private static final int CHUNK = OriginalFileUploader.CHUNK_SIZE;
+
+    /** Contents written to the server, by original file id. */
+    private Map<Long, byte[]> written;
+
+    /** Stores handed out by {@link #client}, in order. */
+    private LinkedList<FileStore> stores;
+
+    /** Stores which have been handed out. */
+    private List<FileStore> created;
+
+    private OMEROMetadataStoreClient client;
+
+    private ScheduledExecutorService answers;
+
+    private List<File> files;
+
+    @BeforeMethod
+    protected void setUp() throws Exception
+    {
+        written = new HashMap<Long, byte[]>();
+        stores = new LinkedList<FileStore>();
+        created = new ArrayList<FileStore>();
+        files = new ArrayList<File>();
+        answers = Executors.newSingleThreadScheduledExecutor();
+        client = new OMEROMetadataStoreClient()
+        {
+            @Override
+            public RawFileStorePrx createRawFileStore()
+            {
+                FileStore store = stores.isEmpty() ?
+                        new FileStore() : stores.removeFirst();
+                created.add(store);
+                return store.proxy();
+            }
+        };
+    }
+
+    @AfterMethod
+    protected void tearDown() throws Exception
+    {
+        answers.shutdownNow();
+        for (File file : files)
+        {
+            file.delete();
+        }
+    }
+
+    private byte[] contents(int length)
+    {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private File file(byte[] data) throws Exception
+    {
+        File file = File.createTempFile("uploader", ".dat");
+        files.add(file);
+        FileOutputStream stream = new FileOutputStream(file);
+        try
+        {
+            stream.write(data);
+        }
+        finally
+        {
+            stream.close();
+        }
+        return file;
+    }
+
+    private String sha1(byte[] data) throws Exception
+    {
+        return OMEROMetadataStoreClient.byteArrayToHexString(
+                MessageDigest.getInstance("SHA-1").digest(data));
+    }
+
+    private Map<File, String> upload(int window, File file, long id)
+    {
+        Map<File, Long> ids = new LinkedHashMap<File, Long>();
+        ids.put(file, id);
+        return new OriginalFileUploader(client, 1, window).upload(ids);
+    }
+
+    @Test
+    public void testWindowBoundsWritesInFlight() throws Exception
+    {
+        byte[] data = contents(5 * CHUNK + 10);
+        FileStore store = new FileStore();
+        store.delay = 5;
+        stores.add(store);
+        Map<File, String> sha1s = upload(2, file(data), 1L);
+        assertEquals(sha1(data), sha1s.values().iterator().next());
+        assertTrue(Arrays.equals(data, written.get(1L)));
+        assertEquals(6, store.positions.size());
+        assertTrue(store.maxInFlight <= 2);
+        assertEquals(1, store.closes);
+    }
+
+    @Test
+    public void testFilesReuseIdleStore() throws Exception
+    {
+        byte[] first = contents(CHUNK + 1);
+        byte[] second = contents(10);
+        Map<File, Long> ids = new LinkedHashMap<File, Long>();
+        ids.put(file(first), 1L);
+        ids.put(file(second), 2L);
+        Map<File, String> sha1s =
+            new OriginalFileUploader(client, 1, 2).upload(ids);
+        assertEquals(2, sha1s.size());
+        assertEquals(1, created.size());
+        assertTrue(Arrays.equals(first, written.get(1L)));
+        assertTrue(Arrays.equals(second, written.get(2L)));
+    }
+
+    @Test
+    public void testDroppedConnectionResumesFromLastAcknowledgedWrite()
+        throws Exception
+    {
+        byte[] data = contents(3 * CHUNK + 10);
+        FileStore dropped = new FileStore();
+        dropped.failAt = 1;
+        dropped.failure = new Ice.ConnectionLostException();
+        dropped.failClose = true;
+        FileStore resumed = new FileStore();
+        stores.add(dropped);
+        stores.add(resumed);
+        Map<File, String> sha1s = upload(2, file(data), 1L);
+        assertEquals(sha1(data), sha1s.values().iterator().next());
+        assertTrue(Arrays.equals(data, written.get(1L)));
+        assertEquals(2, created.size());
+        // The old store is closed when replaced, not again at the end.
+        assertEquals(1, dropped.closes);
+        assertEquals(1, resumed.closes);
+        assertEquals(Long.valueOf(CHUNK), resumed.positions.get(0));
+    }
+
+    @Test
+    public void testServerErrorIsNotResumed() throws Exception
+    {
+        FileStore store = new FileStore();
+        store.failAt = 0;
+        store.failure = new ApiUsageException();
+        stores.add(store);
+        assertTrue(upload(2, file(contents(10)), 1L).isEmpty());
+        assertEquals(1, created.size());
+        assertEquals(1, store.closes);
+    }
+
+    @Test
+    public void testGivesUpAfterMaxResumes() throws Exception
+    {
+        for (int i = 0; i <= OriginalFileUploader.MAX_RESUMES + 1; i++)
+        {
+            FileStore store = new FileStore();
+            store.failAt = 0;
+            store.failure = new Ice.ConnectionLostException();
+            stores.add(store);
+        }
+        assertTrue(upload(2, file(contents(10)), 1L).isEmpty());
+        assertEquals(OriginalFileUploader.MAX_RESUMES + 1, created.size());
+        for (FileStore store : created)
+        {
+            assertEquals(1, store.closes);
+        }
+    }
+
+    /**
+     * A {@link RawFileStorePrx} which copies what is written to it into
+     * {@link #written}, answering each write straight away or after a
+     * delay, and failing the given write.
+     */
+    private class FileStore extends DefaultResultStub
+    {
+        long delay = 0;
+
+        int failAt = -1;
+
+        Exception failure;
+
+        boolean failClose = false;
+
+        int closes = 0;
+
+        int inFlight = 0;
+
+        int maxInFlight = 0;
+
+        final List<Long> positions = new ArrayList<Long>();
+
+        private long fileId;
+
+        RawFileStorePrx proxy()
+        {
+            Mock mock = new Mock(RawFileStorePrx.class);
+            mock.setDefaultStub(this);
+            return (RawFileStorePrx) mock.proxy();
+        }
+
+        @Override
+        public Object invoke(Invocation invocation) throws Throwable
+        {
+            String name = invocation.invokedMethod.getName();
+            List<?> args = invocation.parameterValues;
+            if (name.equals("setFileId"))
+            {
+                fileId = (Long) args.get(0);
+            }
+            else if (name.equals("close"))
+            {
+                closes++;
+                if (failClose)
+                {
+                    throw new Ice.ConnectionLostException();
+                }
+            }
+            else if (name.equals("write_async"))
+            {
+                write((AMI_RawFileStore_write) args.get(0),
+                        (byte[]) args.get(1), (Long) args.get(2),
+                        (Integer) args.get(3));
+            }
+            return super.invoke(invocation);
+        }
+
+        private void write(final AMI_RawFileStore_write cb, byte[] buf,
+                           long position, int length)
+        {
+            int index;
+            synchronized (this)
+            {
+                index = positions.size();
+                positions.add(position);
+                maxInFlight = Math.max(maxInFlight, ++inFlight);
+            }
+            if (index == failAt)
+            {
+                answered();
+                if (failure instanceof Ice.LocalException)
+                {
+                    cb.ice_exception((Ice.LocalException) failure);
+                }
+                else
+                {
+                    cb.ice_exception((Ice.UserException) failure);
+                }
+                return;
+            }
+            if (index > failAt && failAt >= 0)
+            {
+                answered();
+                cb.ice_exception(new Ice.ConnectionLostException());
+                return;
+            }
+            synchronized (written)
+            {
+                byte[] data = written.get(fileId);
+                int end = (int) position + length;
+                if (data == null || data.length < end)
+                {
+                    byte[] grown = new byte[end];
+                    if (data != null)
+                    {
+                        System.arraycopy(data, 0, grown, 0, data.length);
+                    }
+                    written.put(fileId, grown);
+                    data = grown;
+                }
+                System.arraycopy(buf, 0, data, (int) position, length);
+            }
+            if (delay == 0)
+            {
+                answered();
+                cb.ice_response();
+                return;
+            }
+            answers.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    answered();
+                    cb.ice_response();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void answered()
+        {
+            inFlight--;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *   $Id$
+ *
+ *   Copyright 2012 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.formats.utests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import ome.formats.OMEROMetadataStoreClient;
+import ome.formats.importer.util.TileUploader;
+import omero.ApiUsageException;
+import omero.InternalException;
+import omero.ServerError;
+import omero.api.AMI_RawPixelsStore_setTile;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that {@link TileUploader} bounds the tiles in flight, reports
+ * failed writes and stops waiting for writes which are never answered.
+ */
+public class TileUploaderTest extends TestCase
+{
+    private List<AMI_RawPixelsStore_setTile> pending;
+
+    private OMEROMetadataStoreClient store;
+
+    @BeforeMethod
+    protected void setUp() throws Exception
+    {
+        pending = new ArrayList<AMI_RawPixelsStore_setTile>();
+        store = new OMEROMetadataStoreClient()
+        {
+            @Override
+            public void setTileAsync(Long pixId, byte[] arrayBuf, int z,
+                                     int c, int t, int x, int y, int w, int h,
+                                     AMI_RawPixelsStore_setTile cb)
+            {
+                pending.add(cb);
+            }
+        };
+    }
+
+    private void setTile(TileUploader uploader) throws ServerError
+    {
+        uploader.setTile(1L, new byte[16], 0, 0, 0, 0, 0, 4, 4);
+    }
+
+    @Test
+    public void testAnsweredTilesFreeTheirSlots() throws Exception
+    {
+        TileUploader uploader = new TileUploader(store, 2, 100);
+        setTile(uploader);
+        setTile(uploader);
+        assertEquals(2, uploader.getQueueDepth());
+        pending.get(0).ice_response();
+        assertEquals(1, uploader.getQueueDepth());
+        setTile(uploader);
+        pending.get(1).ice_response();
+        pending.get(2).ice_response();
+        uploader.flush();
+        assertEquals(0, uploader.getQueueDepth());
+        assertEquals(48, uploader.getBytes());
+    }
+
+    @Test
+    public void testFailedTileIsReported() throws Exception
+    {
+        TileUploader uploader = new TileUploader(store, 2, 100);
+        setTile(uploader);
+        ApiUsageException refused = new ApiUsageException(null, null,
+                "refused");
+        pending.get(0).ice_exception(refused);
+        try
+        {
+            setTile(uploader);
+            fail("Failure not reported");
+        }
+        catch (ApiUsageException e)
+        {
+            assertSame(refused, e);
+        }
+        assertEquals(1, pending.size());
+    }
+
+    @Test
+    public void testUnansweredTileTimesOutOnFlush() throws Exception
+    {
+        TileUploader uploader = new TileUploader(store, 2, 100);
+        setTile(uploader);
+        setTile(uploader);
+        pending.get(1).ice_response();
+        try
+        {
+            uploader.flush();
+            fail("Flush did not time out");
+        }
+        catch (InternalException e)
+        {
+            // The first tile was never answered
+        }
+        try
+        {
+            setTile(uploader);
+            fail("Timeout not reported again");
+        }
+        catch (InternalException e)
+        {
+            // ok
+        }
+        assertEquals(2, pending.size());
+    }
+
+    @Test
+    public void testFullUploaderTimesOutOnSetTile() throws Exception
+    {
+        TileUploader uploader = new TileUploader(store, 1, 100);
+        setTile(uploader);
+        try
+        {
+            setTile(uploader);
+            fail("setTile did not time out");
+        }
+        catch (InternalException e)
+        {
+            // ok
+        }
+        assertEquals(1, pending.size());
+    }
+}